@@ -0,0 +1,141 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Adaptive Replacement Cache. T1 holds keys seen once recently and T2 keys
+ * seen at least twice; B1 and B2 remember the keys recently evicted from each.
+ * A miss that hits B1 grows the target size p of T1, a miss that hits B2
+ * shrinks it, and evictions take from T1 or T2 to steer towards p. Hits move
+ * entries between lists, so they need the set lock.
+ */
+class ARCPolicy implements EvictionPolicy {
+    private static final int T1 = 0, T2 = 1, B1 = 2, B2 = 3;
+
+    private final int capacity;
+    private final EntryList t1 = new EntryList(), t2 = new EntryList();
+    private final EntryList b1 = new EntryList(), b2 = new EntryList();
+    private final HashMap<String, CacheEntry> ghosts = new HashMap<String, CacheEntry>();
+    private int p;
+    private boolean missWasGhost, missInB2;
+
+    /**
+     * @param capacity number of entries in the set, c in the ARC paper
+     */
+    ARCPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    @Override
+    public boolean recordsHitsByMarking() {
+        return false;
+    }
+
+    @Override
+    public void onHit(CacheEntry e) {
+        if (e.status == T2) {
+            t2.moveToLast(e);
+        } else {
+            t1.remove(e);
+            e.status = T2;
+            t2.addLast(e);
+        }
+    }
+
+    @Override
+    public void onMiss(String key) {
+        CacheEntry g = ghosts.remove(key);
+        missWasGhost = (g != null);
+        missInB2 = false;
+        if (g == null)
+            return;
+        if (g.status == B1) {
+            p = Math.min(capacity, p + Math.max(1, b2.size() / b1.size()));
+            b1.remove(g);
+        } else {
+            missInB2 = true;
+            p = Math.max(0, p - Math.max(1, b1.size() / b2.size()));
+            b2.remove(g);
+        }
+    }
+
+    @Override
+    public void onInsert(CacheEntry e) {
+        if (missWasGhost) {
+            e.status = T2;
+            t2.addLast(e);
+        } else {
+            e.status = T1;
+            t1.addLast(e);
+        }
+        missWasGhost = missInB2 = false;
+    }
+
+    @Override
+    public void onRemove(CacheEntry e) {
+        listOf(e).remove(e);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        CacheEntry victim;
+        if (replaceFromT1()) {
+            victim = t1.removeFirst();
+            remember(victim.key, B1, b1);
+        } else {
+            victim = t2.removeFirst();
+            if (victim == null)
+                return null;
+            remember(victim.key, B2, b2);
+        }
+        while (t1.size() + b1.size() > capacity && !b1.isEmpty())
+            forget(b1);
+        while (t1.size() + t2.size() + b1.size() + b2.size() > 2 * capacity
+                && !(b1.isEmpty() && b2.isEmpty())) {
+            forget(b2.isEmpty() ? b1 : b2);
+        }
+        return victim;
+    }
+
+    @Override
+    public CacheEntry peekVictim() {
+        return replaceFromT1() ? t1.first() : t2.first();
+    }
+
+    @Override
+    public List<CacheEntry> entriesInOrder() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(t1.size() + t2.size());
+        t1.appendTo(entries);
+        t2.appendTo(entries);
+        return entries;
+    }
+
+    /* REPLACE(x, p) from the ARC paper */
+    private boolean replaceFromT1() {
+        return !t1.isEmpty()
+            && (t2.isEmpty() || t1.size() > p || (missInB2 && t1.size() == p));
+    }
+
+    private void remember(String key, int status, EntryList list) {
+        CacheEntry g = new CacheEntry(key, null);
+        g.status = status;
+        list.addLast(g);
+        ghosts.put(key, g);
+    }
+
+    private void forget(EntryList list) {
+        CacheEntry g = list.removeFirst();
+        ghosts.remove(g.key);
+    }
+
+    private EntryList listOf(CacheEntry e) {
+        return (e.status == T2) ? t2 : t1;
+    }
+
+    @Override
+    public long getRotations() {
+        return 0;
+    }
+}
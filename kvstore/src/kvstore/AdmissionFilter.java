@@ -0,0 +1,25 @@
+package kvstore;
+
+/**
+ * Decides whether a value read from the store is worth caching. A filter sees
+ * every access to the cache and is consulted when a read-through fill would
+ * have to evict an entry from a full set.
+ */
+public interface AdmissionFilter {
+    /**
+     * Record one access to a key, whether it hit or missed the cache.
+     * May be called concurrently from any thread.
+     *
+     * @param key the key that was accessed
+     */
+    public void recordAccess(String key);
+
+    /**
+     * Decide whether a newly read key should replace the set's victim.
+     *
+     * @param candidate the key that missed and is about to be cached
+     * @param victim the key the set would evict to make room for it
+     * @return true if candidate should be cached in place of victim
+     */
+    public boolean admit(String candidate, String victim);
+}
@@ -0,0 +1,414 @@
+package kvstore;
+
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SUCCESS;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * A compact alternative to XML messages for get, put and del. A client
+ * starts the connection with MAGIC, which no XML document starts with, so
+ * the server can tell the two apart; then it sends one request frame and
+ * reads one response frame back:
+ *
+ *   opcode        1 byte
+ *   key length    4 bytes, big-endian
+ *   value length  4 bytes, big-endian
+ *   key           UTF-8
+ *   value         UTF-8
+ *   TTL           8 bytes, in milliseconds; PUT_TTL only
+ *
+ * Responses have the same layout and no key: SUCCESS with no value, VALUE
+ * with the value asked for, or ERROR with the error message as its value.
+ * Each frame gives its own length, so neither side shuts down its output
+ * to mark the end of one, and values go over the wire as they are instead
+ * of escaped.
+ *
+ * A connection that starts with PERSISTENT_MAGIC instead stays open for
+ * any number of requests. Each frame is then preceded by a 4-byte request
+ * ID, from 0 to Integer.MAX_VALUE, which the response to it repeats. The
+ * server first answers the magic itself with a response tagged 0: SUCCESS,
+ * or the error for which it refuses the connection before closing it. The
+ * client may send requests without waiting for the responses; the server
+ * answers them in order and closes the connection once the client closes
+ * its side.
+ */
+final class BinaryProtocol {
+
+    /** The first bytes of a binary connection. */
+    static final byte[] MAGIC = { 0, 'K', 'V', 'B' };
+    /** The first bytes of a persistent binary connection. */
+    static final byte[] PERSISTENT_MAGIC = { 0, 'K', 'V', 'P' };
+
+    static final byte GET = 1;
+    static final byte PUT = 2;
+    static final byte PUT_TTL = 3;
+    static final byte DEL = 4;
+
+    static final byte SUCCESS_RESP = 0x20;
+    static final byte VALUE_RESP = 0x21;
+    static final byte ERROR_RESP = 0x22;
+
+    /* opcode and the two lengths */
+    static final int HEADER = 9;
+    /** Longest key or value a frame may carry, in bytes. */
+    static final int MAX_LENGTH = 4 << 20;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Reads as many bytes from in as MAGIC has and tells which protocol
+     * they start. If neither magic, they are pushed back for the XML parser.
+     *
+     * @param  in a new connection's input, able to push back MAGIC.length
+     *         bytes
+     * @return BINARY or PERSISTENT after their magic, otherwise XML
+     * @throws IOException if in cannot be read
+     */
+    static WireProtocol negotiate(PushbackInputStream in) throws IOException {
+        byte[] start = new byte[MAGIC.length];
+        int n = 0;
+        while (n < start.length) {
+            int k = in.read(start, n, start.length - n);
+            if (k < 0)
+                break;
+            n += k;
+        }
+        if (n == MAGIC.length && Arrays.equals(start, MAGIC))
+            return WireProtocol.BINARY;
+        if (n == MAGIC.length && Arrays.equals(start, PERSISTENT_MAGIC))
+            return WireProtocol.PERSISTENT;
+        in.unread(start, 0, n);
+        return WireProtocol.XML;
+    }
+
+    /**
+     * Sends req as a request frame, after MAGIC, without shutting down the
+     * socket's output.
+     *
+     * @param  sock the socket to send through
+     * @param  req a get, put or del request
+     * @throws KVException with ERROR_INVALID_FORMAT if req is not a valid
+     *         request of those types, or ERROR_COULD_NOT_SEND_DATA
+     */
+    static void sendRequest(Socket sock, KVMessage req) throws KVException {
+        ByteBuffer frame = requestFrame(req, MAGIC.length);
+        frame.put(MAGIC);
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(frame.array());
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Encodes req as a request frame for a persistent connection.
+     *
+     * @param  id the request ID, from 0 to Integer.MAX_VALUE
+     * @param  req a get, put or del request
+     * @return the frame, ready to be written from its array
+     * @throws KVException with ERROR_INVALID_FORMAT if req is not a valid
+     *         request of those types
+     */
+    static ByteBuffer taggedRequest(int id, KVMessage req) throws KVException {
+        return requestFrame(req, 4).putInt(id);
+    }
+
+    /*
+     * Encodes req after room bytes left for the caller, and rewinds the
+     * frame so that they come next.
+     */
+    private static ByteBuffer requestFrame(KVMessage req, int room) throws KVException {
+        try {
+            req.validate();
+        } catch (KVException e) {
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        }
+        byte op;
+        if (GET_REQ.equals(req.getMsgType()))
+            op = GET;
+        else if (PUT_REQ.equals(req.getMsgType()))
+            op = (req.getTTL() != 0) ? PUT_TTL : PUT;
+        else if (DEL_REQ.equals(req.getMsgType()))
+            op = DEL;
+        else
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        byte[] key = req.getKey().getBytes(SlabAllocator.UTF8);
+        byte[] value = (op == PUT || op == PUT_TTL)
+                ? req.getValue().getBytes(SlabAllocator.UTF8) : new byte[0];
+        ByteBuffer frame = ByteBuffer.allocate(room + HEADER + key.length
+                + value.length + ((op == PUT_TTL) ? 8 : 0));
+        frame.position(room);
+        frame.put(op).putInt(key.length).putInt(value.length);
+        frame.put(key).put(value);
+        if (op == PUT_TTL)
+            frame.putLong(req.getTTL());
+        frame.rewind();
+        return frame;
+    }
+
+    /**
+     * Reads a request frame, the connection's MAGIC already read.
+     *
+     * @param  in the connection's input
+     * @return the request as the equivalent KVMessage
+     * @throws KVException with ERROR_INVALID_FORMAT on an unknown opcode or
+     *         a length out of range, ERROR_SOCKET_TIMEOUT, or
+     *         ERROR_COULD_NOT_RECEIVE_DATA if the frame is cut short
+     */
+    static KVMessage readRequest(InputStream in) throws KVException {
+        try {
+            DataInputStream data = new DataInputStream(in);
+            ByteBuffer header = readHeader(data);
+            byte op = header.get();
+            String type;
+            if (op == GET)
+                type = GET_REQ;
+            else if (op == PUT || op == PUT_TTL)
+                type = PUT_REQ;
+            else if (op == DEL)
+                type = DEL_REQ;
+            else
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            KVMessage req = new KVMessage(type);
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            req.setKey(readString(data, keyLength));
+            String value = readString(data, valueLength);
+            if (op == PUT || op == PUT_TTL)
+                req.setValue(value);
+            if (op == PUT_TTL)
+                req.setTTL(data.readLong());
+            return req;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Reads the request ID in front of a frame on a persistent connection,
+     * either way.
+     *
+     * @param  in the connection's input
+     * @return the ID, or -1 if the other side closed the connection instead
+     * @throws KVException with ERROR_INVALID_FORMAT on a negative ID,
+     *         ERROR_SOCKET_TIMEOUT, or ERROR_COULD_NOT_RECEIVE_DATA
+     */
+    static int readId(InputStream in) throws KVException {
+        try {
+            int first = in.read();
+            if (first < 0)
+                return -1;
+            byte[] rest = new byte[3];
+            new DataInputStream(in).readFully(rest);
+            int id = (first << 24) | ((rest[0] & 0xff) << 16)
+                    | ((rest[1] & 0xff) << 8) | (rest[2] & 0xff);
+            if (id < 0)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            return id;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Sends resp, a response as ServerClientHandler fills it in for XML, as
+     * a response frame.
+     *
+     * @param  sock the socket to send through
+     * @param  resp a response carrying a value, SUCCESS or an error message
+     * @throws KVException with ERROR_COULD_NOT_SEND_DATA
+     */
+    static void sendResponse(Socket sock, KVMessage resp) throws KVException {
+        try {
+            OutputStream out = sock.getOutputStream();
+            out.write(responseFrame(resp, 0).array());
+            out.flush();
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Writes resp as a response frame tagged with id, leaving out to be
+     * flushed by the caller.
+     *
+     * @param  out a persistent connection's output
+     * @param  id the ID of the request answered
+     * @param  resp a response carrying a value, SUCCESS or an error message
+     * @throws IOException if out cannot be written
+     */
+    static void writeResponse(OutputStream out, int id, KVMessage resp) throws IOException {
+        out.write(responseFrame(resp, 4).putInt(id).array());
+    }
+
+    /**
+     * Writes a VALUE frame tagged with id whose value is already UTF-8,
+     * leaving out to be flushed by the caller.
+     *
+     * @param  out a persistent connection's output
+     * @param  id the ID of the request answered
+     * @param  value the value's bytes, from its position to its limit
+     * @throws IOException if out cannot be written
+     */
+    static void writeValue(OutputStream out, int id, ByteBuffer value) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4 + HEADER);
+        header.putInt(id).put(VALUE_RESP).putInt(0).putInt(value.remaining());
+        out.write(header.array());
+        if (value.hasArray()) {
+            out.write(value.array(), value.arrayOffset() + value.position(), value.remaining());
+        } else {
+            WritableByteChannel channel = Channels.newChannel(out);
+            ByteBuffer rest = value.duplicate();
+            while (rest.hasRemaining())
+                channel.write(rest);
+        }
+    }
+
+    /* Encodes resp after room bytes, rewound like requestFrame's. */
+    private static ByteBuffer responseFrame(KVMessage resp, int room) {
+        byte op;
+        String text;
+        if (resp.getValue() != null) {
+            op = VALUE_RESP;
+            text = resp.getValue();
+        } else if (SUCCESS.equals(resp.getMessage())) {
+            op = SUCCESS_RESP;
+            text = "";
+        } else {
+            op = ERROR_RESP;
+            text = (resp.getMessage() == null) ? "" : resp.getMessage();
+        }
+        byte[] value = text.getBytes(SlabAllocator.UTF8);
+        ByteBuffer frame = ByteBuffer.allocate(room + HEADER + value.length);
+        frame.position(room);
+        frame.put(op).putInt(0).putInt(value.length).put(value);
+        frame.rewind();
+        return frame;
+    }
+
+    /**
+     * Sends a VALUE frame whose value is already UTF-8, e.g. a view from
+     * ValueLogKVStore.getMapped, without decoding it into a String.
+     *
+     * @param  sock the socket to send through
+     * @param  value the value's bytes, from its position to its limit
+     * @throws KVException with ERROR_COULD_NOT_SEND_DATA
+     */
+    static void sendValue(Socket sock, ByteBuffer value) throws KVException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        header.put(VALUE_RESP).putInt(0).putInt(value.remaining());
+        header.flip();
+        ByteBuffer[] frame = { header, value.duplicate() };
+        try {
+            // one write where possible, so that Nagle does not hold back the value
+            if (sock.getChannel() != null) {
+                while (frame[1].hasRemaining())
+                    sock.getChannel().write(frame);
+            } else {
+                BufferedOutputStream buffered = new BufferedOutputStream(sock.getOutputStream());
+                WritableByteChannel out = Channels.newChannel(buffered);
+                for (ByteBuffer buf : frame) {
+                    while (buf.hasRemaining())
+                        out.write(buf);
+                }
+                buffered.flush();
+            }
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * Reads a response frame.
+     *
+     * @param  sock the socket to read from
+     * @return the response as the equivalent KVMessage: holding the value,
+     *         or SUCCESS or the error as its message
+     * @throws KVException with ERROR_INVALID_FORMAT on an unknown opcode or
+     *         a length out of range, ERROR_SOCKET_TIMEOUT, or
+     *         ERROR_COULD_NOT_RECEIVE_DATA if the frame is cut short
+     */
+    static KVMessage receiveResponse(Socket sock) throws KVException {
+        try {
+            return readResponse(sock.getInputStream());
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Reads a response frame from in; on a persistent connection, after its
+     * request ID.
+     *
+     * @param  in the connection's input
+     * @return the response, as receiveResponse returns it
+     * @throws KVException as receiveResponse does
+     */
+    static KVMessage readResponse(InputStream in) throws KVException {
+        try {
+            DataInputStream data = new DataInputStream(in);
+            ByteBuffer header = readHeader(data);
+            byte op = header.get();
+            if (op != SUCCESS_RESP && op != VALUE_RESP && op != ERROR_RESP)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            int keyLength = header.getInt();
+            int valueLength = header.getInt();
+            // responses carry no key
+            readString(data, keyLength);
+            KVMessage resp = new KVMessage(RESP);
+            if (op == VALUE_RESP) {
+                resp.setValue(readString(data, valueLength));
+            } else if (op == SUCCESS_RESP) {
+                readString(data, valueLength);
+                resp.setMessage(SUCCESS);
+            } else {
+                resp.setMessage(readString(data, valueLength));
+            }
+            return resp;
+        } catch (SocketTimeoutException e) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /* One read for the header; the socket's stream is not buffered. */
+    private static ByteBuffer readHeader(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER];
+        in.readFully(header);
+        return ByteBuffer.wrap(header);
+    }
+
+    private static String readString(DataInputStream in, int length)
+            throws IOException, KVException {
+        if (length < 0 || length > MAX_LENGTH)
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        if (length == 0)
+            return "";
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, SlabAllocator.UTF8);
+    }
+}
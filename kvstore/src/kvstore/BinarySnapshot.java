@@ -0,0 +1,309 @@
+package kvstore;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+
+/**
+ * A binary snapshot of a store, written and read much faster than the XML
+ * dump. The file is a header followed by independent chunks of about
+ * chunkSize bytes each, and a trailer:
+ *
+ *   header  [magic][version]
+ *   chunk   [pair count][payload length][crc32 of payload][payload]
+ *   trailer [-1][chunk count][0][total pairs, as a long]
+ *
+ * A payload is its pairs as [key length][key][value length][value], in
+ * UTF-8. Because every chunk carries its own length and checksum, a reader
+ * finds the chunks by hopping from header to header and can then check and
+ * decode them in parallel, each from its own memory-mapped region of the
+ * file. A file with a bad checksum, or without its trailer, is refused as
+ * a whole rather than partly loaded.
+ */
+public class BinarySnapshot {
+
+    static final int MAGIC = 0x4b565342; // "KVSB"
+    static final int VERSION = 1;
+    static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private static final int FILE_HEADER = 8;
+    private static final int CHUNK_HEADER = 12;
+    private static final int TRAILER = CHUNK_HEADER + 8;
+
+    /**
+     * Writes a snapshot of the pairs in 1 MiB chunks. The map is iterated
+     * once, so with a concurrent map writes may go on meanwhile and the
+     * snapshot sees each key at most once; memory use is one chunk.
+     *
+     * @param pairs the pairs to write
+     * @param fileName the file to write, replaced if it exists
+     * @return the number of pairs written
+     * @throws IOException if the file cannot be written
+     */
+    public static long write(Map<String, String> pairs, String fileName) throws IOException {
+        return write(pairs, fileName, DEFAULT_CHUNK_SIZE);
+    }
+
+    static long write(Map<String, String> pairs, String fileName, int chunkSize)
+            throws IOException {
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        long total = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ChunkBuffer chunk = new ChunkBuffer(chunkSize);
+            int chunks = 0;
+            for (Map.Entry<String, String> e : pairs.entrySet()) {
+                chunk.add(e.getKey().getBytes(SlabAllocator.UTF8),
+                        e.getValue().getBytes(SlabAllocator.UTF8));
+                total++;
+                if (chunk.length >= chunkSize) {
+                    chunk.writeTo(out);
+                    chunks++;
+                }
+            }
+            if (chunk.count > 0) {
+                chunk.writeTo(out);
+                chunks++;
+            }
+            out.writeInt(-1);
+            out.writeInt(chunks);
+            out.writeInt(0);
+            out.writeLong(total);
+        } finally {
+            out.close();
+        }
+        return total;
+    }
+
+    /**
+     * Reads a snapshot, decoding its chunks in parallel on all processors.
+     *
+     * @param fileName the file written by write
+     * @return a new map holding the snapshot's pairs
+     * @throws IOException if the file cannot be read, is not a snapshot, or
+     *         is damaged
+     */
+    public static ConcurrentHashMap<String, String> read(String fileName) throws IOException {
+        return read(fileName, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param fileName the file written by write
+     * @param parallelism the number of threads decoding chunks
+     * @return a new map holding the snapshot's pairs
+     * @throws IOException if the file cannot be read, is not a snapshot, or
+     *         is damaged
+     */
+    public static ConcurrentHashMap<String, String> read(String fileName, int parallelism)
+            throws IOException {
+        parallelism = Math.max(1, parallelism);
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            long fileSize = channel.size();
+            ByteBuffer header = ByteBuffer.allocate(TRAILER);
+            readFully(channel, header, 0, FILE_HEADER);
+            if (header.getInt(0) != MAGIC)
+                throw new IOException("not a binary snapshot: " + fileName);
+            if (header.getInt(4) != VERSION)
+                throw new IOException("unsupported snapshot version " + header.getInt(4));
+
+            // hop over the chunks to find them, and size the map up front
+            List<long[]> chunks = new ArrayList<long[]>();
+            long total = 0;
+            long position = FILE_HEADER;
+            while (true) {
+                readFully(channel, header, position, CHUNK_HEADER);
+                int count = header.getInt(0);
+                int length = header.getInt(4);
+                if (count == -1) {
+                    readFully(channel, header, position, TRAILER);
+                    if (length != chunks.size() || header.getLong(CHUNK_HEADER) != total)
+                        throw new IOException("snapshot trailer does not match its chunks");
+                    break;
+                }
+                long payload = position + CHUNK_HEADER;
+                if (count < 0 || length < 0 || payload + length > fileSize)
+                    throw new IOException("bad chunk header at " + position);
+                chunks.add(new long[] { payload, length, count, header.getInt(8) & 0xffffffffL });
+                total += count;
+                position = payload + length;
+            }
+
+            int capacity = (int) Math.min(Integer.MAX_VALUE, total * 4 / 3 + 1);
+            ConcurrentHashMap<String, String> pairs =
+                    new ConcurrentHashMap<String, String>(capacity, 0.75f, parallelism);
+            AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            final List<ChunkLoader> loaders = new ArrayList<ChunkLoader>(chunks.size());
+            for (long[] c : chunks)
+                loaders.add(new ChunkLoader(channel, c, pairs, failure));
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.invoke(new RecursiveAction() {
+                    @Override
+                    protected void compute() {
+                        invokeAll(loaders);
+                    }
+                });
+            } finally {
+                pool.shutdown();
+            }
+            if (failure.get() != null)
+                throw failure.get();
+            return pairs;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @param fileName a file that may hold a snapshot
+     * @return whether the file starts like a binary snapshot
+     */
+    public static boolean isSnapshot(String fileName) {
+        try {
+            FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+            try {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                readFully(channel, magic, 0, 4);
+                return magic.getInt(0) == MAGIC;
+            } finally {
+                channel.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position, int n)
+            throws IOException {
+        buf.clear().limit(n);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException("snapshot ends early");
+        }
+    }
+
+    /*
+     * Checks and decodes one chunk from its own mapping of the file. The
+     * payload is copied out once so that CRC32 and String can work on an
+     * array; that copy is the only memory a loader holds.
+     */
+    private static class ChunkLoader extends RecursiveAction {
+
+        private final FileChannel channel;
+        private final long offset, crc;
+        private final int length, count;
+        private final ConcurrentHashMap<String, String> pairs;
+        private final AtomicReference<IOException> failure;
+
+        ChunkLoader(FileChannel channel, long[] chunk, ConcurrentHashMap<String, String> pairs,
+                AtomicReference<IOException> failure) {
+            this.channel = channel;
+            this.offset = chunk[0];
+            this.length = (int) chunk[1];
+            this.count = (int) chunk[2];
+            this.crc = chunk[3];
+            this.pairs = pairs;
+            this.failure = failure;
+        }
+
+        @Override
+        protected void compute() {
+            if (failure.get() != null)
+                return;
+            try {
+                MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+                byte[] payload = new byte[length];
+                region.get(payload);
+                CRC32 checksum = new CRC32();
+                checksum.update(payload, 0, length);
+                if (checksum.getValue() != crc)
+                    throw new IOException("snapshot chunk at " + offset + " fails its checksum");
+                ByteBuffer in = ByteBuffer.wrap(payload);
+                for (int i = 0; i < count; i++) {
+                    String key = readString(in);
+                    pairs.put(key, readString(in));
+                }
+                if (in.hasRemaining())
+                    throw new IOException("snapshot chunk at " + offset + " has trailing bytes");
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } catch (RuntimeException e) {
+                // lengths that run past the payload
+                failure.compareAndSet(null, new IOException("bad snapshot chunk at " + offset, e));
+            }
+        }
+
+        private static String readString(ByteBuffer in) {
+            int n = in.getInt();
+            String s = new String(in.array(), in.position(), n, SlabAllocator.UTF8);
+            in.position(in.position() + n);
+            return s;
+        }
+    }
+
+    /* The pairs of the chunk being written, encoded. */
+    private static class ChunkBuffer {
+
+        byte[] data;
+        int length;
+        int count;
+
+        ChunkBuffer(int chunkSize) {
+            data = new byte[Math.max(64, chunkSize + (chunkSize >> 2))];
+        }
+
+        void add(byte[] key, byte[] value) {
+            ensure(8 + key.length + value.length);
+            putBytes(key);
+            putBytes(value);
+            count++;
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            CRC32 checksum = new CRC32();
+            checksum.update(data, 0, length);
+            out.writeInt(count);
+            out.writeInt(length);
+            out.writeInt((int) checksum.getValue());
+            out.write(data, 0, length);
+            length = 0;
+            count = 0;
+        }
+
+        private void putBytes(byte[] b) {
+            data[length++] = (byte) (b.length >>> 24);
+            data[length++] = (byte) (b.length >>> 16);
+            data[length++] = (byte) (b.length >>> 8);
+            data[length++] = (byte) b.length;
+            System.arraycopy(b, 0, data, length, b.length);
+            length += b.length;
+        }
+
+        private void ensure(int n) {
+            if (length + n > data.length) {
+                byte[] grown = new byte[Math.max(length + n, 2 * data.length)];
+                System.arraycopy(data, 0, grown, 0, length);
+                data = grown;
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A Bloom filter over string keys: mightContain never misses a key that was
+ * added and wrongly reports others with a probability set by the bits spent
+ * per key, under 1% at 10. Each key's probes come from one 64-bit hash,
+ * split in two and combined (Kirsch and Mitzenmacher's double hashing).
+ * Not thread-safe while keys are being added; read-only use is.
+ */
+class BloomFilter {
+
+    /* fixed, so that filters written to disk stay valid */
+    private static final long K0 = 0x0706050403020100L;
+    private static final long K1 = 0x0f0e0d0c0b0a0908L;
+
+    private final long[] bits;
+    private final int numHashes;
+
+    /**
+     * @param expectedKeys the number of keys that will be added
+     * @param bitsPerKey bits of filter per key
+     */
+    BloomFilter(int expectedKeys, int bitsPerKey) {
+        long numBits = Math.max(64L, (long) expectedKeys * bitsPerKey);
+        this.bits = new long[(int) Math.min(Integer.MAX_VALUE, (numBits + 63) >>> 6)];
+        // k = ln 2 * m/n minimises false positives
+        this.numHashes = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * 0.69)));
+    }
+
+    private BloomFilter(long[] bits, int numHashes) {
+        this.bits = bits;
+        this.numHashes = numHashes;
+    }
+
+    void add(String key) {
+        long h = hash(key);
+        long numBits = (long) bits.length << 6;
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    boolean mightContain(String key) {
+        long h = hash(key);
+        long numBits = (long) bits.length << 6;
+        int h1 = (int) h, h2 = (int) (h >>> 32);
+        for (int i = 0; i < numHashes; i++) {
+            long bit = ((h1 + (long) i * h2) & Long.MAX_VALUE) % numBits;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the bytes writeTo needs
+     */
+    int serializedSize() {
+        return 8 + 8 * bits.length;
+    }
+
+    /**
+     * Writes the filter as [hash count][word count][words].
+     */
+    void writeTo(ByteBuffer out) {
+        out.putInt(numHashes);
+        out.putInt(bits.length);
+        for (long word : bits)
+            out.putLong(word);
+    }
+
+    /**
+     * @param in a filter written by writeTo
+     * @return the filter
+     */
+    static BloomFilter readFrom(ByteBuffer in) {
+        int numHashes = in.getInt();
+        long[] bits = new long[in.getInt()];
+        for (int i = 0; i < bits.length; i++)
+            bits[i] = in.getLong();
+        return new BloomFilter(bits, numHashes);
+    }
+
+    private static long hash(String key) {
+        return SetHash.sipHash13(K0, K1, key);
+    }
+}
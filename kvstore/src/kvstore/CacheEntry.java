@@ -0,0 +1,40 @@
+package kvstore;
+
+/**
+ * A key-value pair held by one set of a KVCache. The link and bookkeeping
+ * fields belong to the set's EvictionPolicy, which threads entries through its
+ * own lists instead of wrapping them in separate nodes.
+ */
+class CacheEntry {
+    final String key;
+    /* volatile so KVCache.optimisticGet can read them without the set lock */
+    volatile String value;
+    /* used instead of value when the cache keeps values in a SlabAllocator */
+    volatile long handle;
+    volatile boolean isUsed;
+    volatile int freq;
+    /* KVCache.sizeOf(key, value), charged against the byte budgets */
+    int size;
+
+    /* owned by the eviction policy, only touched under the set lock */
+    CacheEntry prev, next;
+    int status;
+
+    CacheEntry(String key, String value) {
+        this.key = key;
+        this.value = value;
+        this.isUsed = false;
+    }
+
+    /**
+     * Records a hit by setting the reference bit and bumping the small
+     * saturating frequency counter. Safe to call without the set lock; a
+     * lost update from a racing hit only costs a little precision.
+     */
+    void markAccessed() {
+        isUsed = true;
+        int f = freq;
+        if (f < 3)
+            freq = f + 1;
+    }
+}
@@ -0,0 +1,54 @@
+package kvstore;
+
+/**
+ * The eviction policies a KVCache can be built with. Each set of the cache
+ * runs its own instance of the chosen policy.
+ */
+public enum CachePolicy {
+
+    /** Second-chance (CLOCK) replacement, the cache's original policy. */
+    SECOND_CHANCE {
+        @Override
+        EvictionPolicy newPolicy(int capacity) {
+            return new SecondChancePolicy();
+        }
+    },
+
+    /** Least-recently-used; hits are taken under the set lock. */
+    LRU {
+        @Override
+        EvictionPolicy newPolicy(int capacity) {
+            return new LRUPolicy();
+        }
+    },
+
+    /** S3-FIFO: a small probationary FIFO, a main FIFO and a ghost FIFO. */
+    S3_FIFO {
+        @Override
+        EvictionPolicy newPolicy(int capacity) {
+            return new S3FIFOPolicy(capacity);
+        }
+    },
+
+    /** CLOCK-Pro: CLOCK with hot/cold pages and non-resident test periods. */
+    CLOCK_PRO {
+        @Override
+        EvictionPolicy newPolicy(int capacity) {
+            return new ClockProPolicy(capacity);
+        }
+    },
+
+    /** Adaptive Replacement Cache; hits are taken under the set lock. */
+    ARC {
+        @Override
+        EvictionPolicy newPolicy(int capacity) {
+            return new ARCPolicy(capacity);
+        }
+    };
+
+    /**
+     * @param capacity the number of entries the set can hold
+     * @return a fresh policy for one cache set
+     */
+    abstract EvictionPolicy newPolicy(int capacity);
+}
@@ -0,0 +1,153 @@
+package kvstore;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A point-in-time copy of a KVServer's cache statistics, broken down by
+ * cache set. Counters are read one at a time while requests keep running,
+ * so the figures of different sets may be a few operations apart.
+ */
+public class CacheStats {
+
+    private final long[] hits, misses, evictions, rotations;
+    private final long[] lockWaits, lockWaitNanos;
+    private final Map<String, Long> hotKeys;
+
+    CacheStats(long[] hits, long[] misses, long[] evictions, long[] rotations,
+            long[] lockWaits, long[] lockWaitNanos, Map<String, Long> hotKeys) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rotations = rotations;
+        this.lockWaits = lockWaits;
+        this.lockWaitNanos = lockWaitNanos;
+        this.hotKeys = Collections.unmodifiableMap(hotKeys);
+    }
+
+    /**
+     * @return the number of sets covered
+     */
+    public int getNumSets() {
+        return hits.length;
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return gets of the set that the cache answered
+     */
+    public long getHits(int cacheSet) {
+        return hits[cacheSet];
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return gets of the set that had to go to the store
+     */
+    public long getMisses(int cacheSet) {
+        return misses[cacheSet];
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return entries the set's policy evicted
+     */
+    public long getEvictions(int cacheSet) {
+        return evictions[cacheSet];
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return referenced entries the set's clock hand passed over, giving
+     *         them a second chance; 0 for LRU and ARC
+     */
+    public long getRotations(int cacheSet) {
+        return rotations[cacheSet];
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return requests that found the set's lock taken and had to wait
+     */
+    public long getLockWaits(int cacheSet) {
+        return lockWaits[cacheSet];
+    }
+
+    /**
+     * @param cacheSet Which set.
+     * @return nanoseconds requests spent waiting for the set's lock
+     */
+    public long getLockWaitNanos(int cacheSet) {
+        return lockWaitNanos[cacheSet];
+    }
+
+    /**
+     * @return hits over all sets
+     */
+    public long getTotalHits() {
+        return sum(hits);
+    }
+
+    /**
+     * @return misses over all sets
+     */
+    public long getTotalMisses() {
+        return sum(misses);
+    }
+
+    /**
+     * @return evictions over all sets
+     */
+    public long getTotalEvictions() {
+        return sum(evictions);
+    }
+
+    /**
+     * @return rotations over all sets
+     */
+    public long getTotalRotations() {
+        return sum(rotations);
+    }
+
+    /**
+     * @return lock waits over all sets
+     */
+    public long getTotalLockWaits() {
+        return sum(lockWaits);
+    }
+
+    /**
+     * @return nanoseconds spent waiting for locks over all sets
+     */
+    public long getTotalLockWaitNanos() {
+        return sum(lockWaitNanos);
+    }
+
+    /**
+     * @return the set whose lock requests waited longest for, or -1 if none
+     *         ever had to wait
+     */
+    public int getMostContendedSet() {
+        int worst = -1;
+        for (int i = 0; i < lockWaitNanos.length; i++) {
+            if (lockWaitNanos[i] > 0 && (worst < 0 || lockWaitNanos[i] > lockWaitNanos[worst]))
+                worst = i;
+        }
+        return worst;
+    }
+
+    /**
+     * @return estimated request counts of the most requested keys, most
+     *         requested first; see HotKeySketch
+     */
+    public Map<String, Long> getHotKeys() {
+        return hotKeys;
+    }
+
+    private static long sum(long[] counts) {
+        long sum = 0;
+        for (long c : counts)
+            sum += c;
+        return sum;
+    }
+}
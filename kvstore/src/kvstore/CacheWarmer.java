@@ -0,0 +1,173 @@
+package kvstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+
+import kvstore.xml.KVCacheEntry;
+import kvstore.xml.KVCacheType;
+import kvstore.xml.KVSetType;
+
+/**
+ * Preloads a KVServer's cache after a restart so that the first requests do
+ * not all miss. Hot keys come either from a snapshot the cache wrote with
+ * KVCache.dumpToFile, or from a frequency summary of recent requests; their
+ * values are always read from the store, which may have changed since.
+ *
+ * Keys are split by cache set and the sets are warmed by a few daemon
+ * threads in parallel. Each key is loaded under its set lock like a get
+ * miss, so requests keep being served, but a warm-up fill never evicts:
+ * once a set is full the rest of its keys are dropped.
+ */
+public class CacheWarmer {
+
+    private final KVServer server;
+    private final KVCache cache;
+    private final AtomicInteger warmed = new AtomicInteger();
+    private CountDownLatch done = new CountDownLatch(0);
+
+    /**
+     * Constructs a warmer for a server and its data cache.
+     *
+     * @param server the server to preload through
+     * @param cache the server's data cache, used to group keys by set
+     */
+    CacheWarmer(KVServer server, KVCache cache) {
+        this.server = server;
+        this.cache = cache;
+    }
+
+    /**
+     * Starts warming the cache with the given keys and returns at once.
+     * Within a set, keys are inserted in list order.
+     *
+     * @param hotKeys keys to preload, hottest or oldest first
+     */
+    public synchronized void start(List<String> hotKeys) {
+        int numSets = cache.getNumSets();
+        final List<List<String>> bySet = new ArrayList<List<String>>(numSets);
+        for (int i = 0; i < numSets; i++)
+            bySet.add(new ArrayList<String>());
+        for (String key : hotKeys)
+            bySet.get(cache.getCacheSetForKey(key)).add(key);
+
+        final int numThreads = Math.max(1,
+                Math.min(numSets, Runtime.getRuntime().availableProcessors()));
+        final CountDownLatch latch = new CountDownLatch(numThreads);
+        done = latch;
+        for (int t = 0; t < numThreads; t++) {
+            final int first = t;
+            Thread worker = new Thread("cache-warmer-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        for (int s = first; s < bySet.size(); s += numThreads)
+                            warmSet(bySet.get(s));
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /**
+     * Blocks until the warm-up has finished or the timeout expires.
+     *
+     * @param timeout how long to wait
+     * @param unit the unit of timeout
+     * @return true if the warm-up finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitCompletion(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = done;
+        }
+        return latch.await(timeout, unit);
+    }
+
+    /**
+     * @return true once every set has been warmed
+     */
+    public synchronized boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * @return the number of keys this warm-up has cached so far
+     */
+    public int getWarmedCount() {
+        return warmed.get();
+    }
+
+    private void warmSet(List<String> keys) {
+        for (String key : keys) {
+            boolean alreadyCached = cache.containsKey(key);
+            if (!server.warm(key))
+                return;
+            if (!alreadyCached && cache.containsKey(key))
+                warmed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reads the hot keys from a cache snapshot written by KVCache.dumpToFile,
+     * set by set and in each set's replacement order, so that reinserting
+     * them keeps their relative age. A missing or unreadable file yields no
+     * keys.
+     *
+     * @param  fileName the snapshot file
+     * @return the keys in the snapshot
+     */
+    public static List<String> keysFromSnapshot(String fileName) {
+        List<String> keys = new ArrayList<String>();
+        try {
+            @SuppressWarnings("unchecked")
+            KVCacheType xmlCache = ((JAXBElement<KVCacheType>)
+                    XMLBinding.unmarshaller().unmarshal(new File(fileName))).getValue();
+            for (KVSetType set : xmlCache.getSet()) {
+                for (KVCacheEntry e : set.getCacheEntry())
+                    keys.add(e.getKey());
+            }
+        } catch (JAXBException e) {
+            // ignore
+        } catch (IllegalArgumentException e) {
+            // ignore
+        }
+        return keys;
+    }
+
+    /**
+     * Orders the keys of a frequency summary, e.g. request counts collected
+     * before a shutdown, from the most to the least requested, keeping at
+     * most limit of them.
+     *
+     * @param  counts how often each key was requested
+     * @param  limit the largest number of keys to return
+     * @return the hottest keys, hottest first
+     */
+    public static List<String> keysByFrequency(final Map<String, Long> counts, int limit) {
+        List<String> keys = new ArrayList<String>(counts.keySet());
+        Collections.sort(keys, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                long ca = counts.get(a), cb = counts.get(b);
+                return (ca > cb) ? -1 : (ca < cb) ? 1 : 0;
+            }
+        });
+        return (keys.size() > limit) ? new ArrayList<String>(keys.subList(0, limit)) : keys;
+    }
+}
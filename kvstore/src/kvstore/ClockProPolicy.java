@@ -0,0 +1,274 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * CLOCK-Pro replacement. Resident entries are hot or cold, and every entry,
+ * plus the keys of recently evicted cold entries, sits on a single clock
+ * ring swept by three hands:
+ * <ul>
+ * <li>the cold hand evicts unreferenced cold entries, promotes referenced
+ *     cold entries that are in their test period, and starts a test period
+ *     for referenced cold entries that are not;</li>
+ * <li>the hot hand demotes unreferenced hot entries to cold when there are
+ *     too many hot ones, ending test periods it passes;</li>
+ * <li>the test hand ends test periods and drops remembered keys once there
+ *     are more of them than the set holds.</li>
+ * </ul>
+ * A miss on a remembered key means the cold space is too small, so the cold
+ * target grows; a test period expiring unused makes it shrink. Entries stay
+ * where they are on the ring when their state changes rather than moving to
+ * its head, which keeps every step O(1).
+ */
+class ClockProPolicy implements EvictionPolicy {
+    private static final int HOT = 0, COLD = 1, NONRESIDENT = 2;
+    private static final int TYPE_MASK = 3, IN_TEST = 4;
+
+    private final int capacity;
+    private int coldTarget = 1;
+    private int hotCount, coldCount;
+    private CacheEntry handHot, handCold, handTest;
+    private final HashMap<String, CacheEntry> nonResident = new HashMap<String, CacheEntry>();
+    private boolean promoteNext;
+    private volatile long rotations;
+
+    /**
+     * @param capacity number of entries in the set; also bounds the number
+     *        of remembered non-resident keys
+     */
+    ClockProPolicy(int capacity) {
+        this.capacity = Math.max(1, capacity);
+    }
+
+    @Override
+    public boolean recordsHitsByMarking() {
+        return true;
+    }
+
+    @Override
+    public void onHit(CacheEntry e) {
+        e.markAccessed();
+    }
+
+    @Override
+    public void onMiss(String key) {
+        CacheEntry g = nonResident.remove(key);
+        promoteNext = (g != null);
+        if (g != null) {
+            // re-accessed within its test period: the cold space is too small
+            coldTarget = Math.min(coldTarget + 1, Math.max(1, capacity - 1));
+            unlink(g);
+        }
+    }
+
+    @Override
+    public void onInsert(CacheEntry e) {
+        e.isUsed = false;
+        if (promoteNext) {
+            e.status = HOT;
+            hotCount++;
+        } else {
+            e.status = COLD | IN_TEST;
+            coldCount++;
+        }
+        linkBehindHotHand(e);
+        promoteNext = false;
+        balanceHot();
+    }
+
+    @Override
+    public void onRemove(CacheEntry e) {
+        if (type(e) == HOT)
+            hotCount--;
+        else
+            coldCount--;
+        unlink(e);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        for (;;) {
+            if (coldCount == 0) {
+                if (hotCount == 0)
+                    return null;
+                runHandHot();
+                continue;
+            }
+            CacheEntry e = handCold;
+            handCold = e.next;
+            if (type(e) != COLD)
+                continue;
+            if (e.isUsed) {
+                e.isUsed = false;
+                rotations++;
+                if ((e.status & IN_TEST) != 0) {
+                    e.status = HOT;
+                    coldCount--;
+                    hotCount++;
+                    balanceHot();
+                } else {
+                    e.status = COLD | IN_TEST;
+                }
+                continue;
+            }
+            coldCount--;
+            if ((e.status & IN_TEST) != 0) {
+                // keep its key on the ring for the rest of the test period
+                CacheEntry g = new CacheEntry(e.key, null);
+                g.status = NONRESIDENT | IN_TEST;
+                replace(e, g);
+                nonResident.put(g.key, g);
+                while (nonResident.size() > capacity)
+                    runHandTest();
+            } else {
+                unlink(e);
+            }
+            return e;
+        }
+    }
+
+    @Override
+    public CacheEntry peekVictim() {
+        CacheEntry firstCold = null;
+        CacheEntry e = handCold;
+        int ringSize = hotCount + coldCount + nonResident.size();
+        for (int i = 0; i < ringSize; i++, e = e.next) {
+            if (type(e) != COLD)
+                continue;
+            if (!e.isUsed)
+                return e;
+            if (firstCold == null)
+                firstCold = e;
+        }
+        return (firstCold != null) ? firstCold : handHot;
+    }
+
+    @Override
+    public List<CacheEntry> entriesInOrder() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(hotCount + coldCount);
+        CacheEntry e = handHot;
+        int ringSize = hotCount + coldCount + nonResident.size();
+        for (int i = 0; i < ringSize; i++, e = e.next) {
+            if (type(e) != NONRESIDENT)
+                entries.add(e);
+        }
+        return entries;
+    }
+
+    private void balanceHot() {
+        while (hotCount > 0 && hotCount > capacity - coldTarget)
+            runHandHot();
+    }
+
+    /* Sweeps until one hot entry has been demoted to cold. */
+    private void runHandHot() {
+        while (hotCount > 0) {
+            CacheEntry e = handHot;
+            if (type(e) == HOT) {
+                handHot = e.next;
+                if (e.isUsed) {
+                    e.isUsed = false;
+                    rotations++;
+                } else {
+                    e.status = COLD;
+                    hotCount--;
+                    coldCount++;
+                    return;
+                }
+            } else if ((e.status & IN_TEST) != 0) {
+                endTestPeriod(e);
+            } else {
+                handHot = e.next;
+            }
+        }
+    }
+
+    /* Sweeps until one remembered key has been dropped. */
+    private void runHandTest() {
+        while (!nonResident.isEmpty()) {
+            CacheEntry e = handTest;
+            boolean dropped = (type(e) == NONRESIDENT);
+            if ((e.status & IN_TEST) != 0)
+                endTestPeriod(e);
+            else
+                handTest = e.next;
+            if (dropped)
+                return;
+        }
+    }
+
+    /*
+     * The entry was not re-accessed during its test period, so the cold
+     * space is big enough. Moves any hand resting on it past it.
+     */
+    private void endTestPeriod(CacheEntry e) {
+        coldTarget = Math.max(1, coldTarget - 1);
+        if (type(e) == NONRESIDENT) {
+            nonResident.remove(e.key);
+            unlink(e);
+        } else {
+            e.status = COLD;
+            if (handHot == e)
+                handHot = e.next;
+            if (handTest == e)
+                handTest = e.next;
+        }
+    }
+
+    private static int type(CacheEntry e) {
+        return e.status & TYPE_MASK;
+    }
+
+    private void linkBehindHotHand(CacheEntry e) {
+        if (handHot == null) {
+            e.prev = e.next = e;
+            handHot = handCold = handTest = e;
+            return;
+        }
+        e.next = handHot;
+        e.prev = handHot.prev;
+        handHot.prev.next = e;
+        handHot.prev = e;
+    }
+
+    private void unlink(CacheEntry e) {
+        if (e.next == e) {
+            handHot = handCold = handTest = null;
+        } else {
+            if (handHot == e)
+                handHot = e.next;
+            if (handCold == e)
+                handCold = e.next;
+            if (handTest == e)
+                handTest = e.next;
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+        }
+        e.prev = e.next = null;
+    }
+
+    private void replace(CacheEntry e, CacheEntry with) {
+        if (e.next == e) {
+            with.prev = with.next = with;
+        } else {
+            with.prev = e.prev;
+            with.next = e.next;
+            e.prev.next = with;
+            e.next.prev = with;
+        }
+        if (handHot == e)
+            handHot = with;
+        if (handCold == e)
+            handCold = with;
+        if (handTest == e)
+            handTest = with;
+        e.prev = e.next = null;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations;
+    }
+}
@@ -0,0 +1,76 @@
+package kvstore;
+
+import java.util.List;
+
+/**
+ * An intrusive doubly-linked list of CacheEntries, ordered from the oldest
+ * (first) to the newest (last). Entries are linked through their own prev
+ * and next fields, so an entry can be on at most one EntryList at a time.
+ */
+class EntryList {
+    private CacheEntry head;
+    private int size;
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    CacheEntry first() {
+        return head;
+    }
+
+    void addLast(CacheEntry e) {
+        if (head == null) {
+            e.prev = e.next = e;
+            head = e;
+        } else {
+            e.next = head;
+            e.prev = head.prev;
+            head.prev.next = e;
+            head.prev = e;
+        }
+        size++;
+    }
+
+    void remove(CacheEntry e) {
+        if (e.next == e) {
+            head = null;
+        } else {
+            if (head == e)
+                head = e.next;
+            e.prev.next = e.next;
+            e.next.prev = e.prev;
+        }
+        e.prev = e.next = null;
+        size--;
+    }
+
+    CacheEntry removeFirst() {
+        CacheEntry e = head;
+        if (e != null)
+            remove(e);
+        return e;
+    }
+
+    void moveToLast(CacheEntry e) {
+        if (e == head) {
+            // on a circular list the oldest becomes the newest by advancing head
+            head = e.next;
+        } else if (e != head.prev) {
+            remove(e);
+            addLast(e);
+        }
+    }
+
+    void appendTo(List<CacheEntry> out) {
+        CacheEntry e = head;
+        for (int i = 0; i < size; i++) {
+            out.add(e);
+            e = e.next;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package kvstore;
+
+import java.util.List;
+
+/**
+ * Replacement logic for one set of a KVCache. The set owns the key index and
+ * decides when it is full; the policy orders the resident entries and picks
+ * which one to give up. Every method is called with the set's lock held,
+ * except that policies which record hits by marking may have
+ * CacheEntry.markAccessed() called on their entries concurrently.
+ */
+interface EvictionPolicy {
+
+    /**
+     * @return true if a hit only needs CacheEntry.markAccessed(), so that
+     *         KVCache.optimisticGet may serve it without the set lock
+     */
+    public boolean recordsHitsByMarking();
+
+    /**
+     * A resident entry was read or overwritten.
+     */
+    public void onHit(CacheEntry e);
+
+    /**
+     * A key that is not resident is about to be inserted. Called before any
+     * eviction it causes, so history-based policies can adapt first.
+     */
+    public void onMiss(String key);
+
+    /**
+     * A new entry has been added to the set.
+     */
+    public void onInsert(CacheEntry e);
+
+    /**
+     * A resident entry has been deleted from the set.
+     */
+    public void onRemove(CacheEntry e);
+
+    /**
+     * Chooses a resident entry to evict and stops tracking it.
+     *
+     * @return the evicted entry, or null if the policy holds none
+     */
+    public CacheEntry evict();
+
+    /**
+     * @return the entry evict() would choose next, without side effects
+     */
+    public CacheEntry peekVictim();
+
+    /**
+     * @return the resident entries in the policy's replacement order
+     */
+    public List<CacheEntry> entriesInOrder();
+
+    /**
+     * @return how many times evict() has passed over a referenced entry,
+     *         giving it another round instead of evicting it
+     */
+    public long getRotations();
+}
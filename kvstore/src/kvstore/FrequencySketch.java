@@ -0,0 +1,104 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A count-min sketch of 4-bit counters that estimates how often a key has
+ * been seen recently. Each long in the table packs sixteen counters and every
+ * key maps to one counter in each of four rows. Once sampleSize increments
+ * have been made all counters are halved, so old popularity fades away.
+ */
+public class FrequencySketch {
+
+    private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final int MAX_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int counterMask;
+    private final int sampleSize;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Constructs a sketch sized for a cache of the given number of entries.
+     *
+     * @param maximumEntries the number of entries the cache can hold
+     */
+    public FrequencySketch(int maximumEntries) {
+        int entries = Math.min(Math.max(16, maximumEntries), 1 << 26);
+        int words = Integer.highestOneBit(entries - 1) << 1;
+        table = new AtomicLongArray(words);
+        counterMask = (words << 4) - 1;
+        sampleSize = 10 * Math.max(1, maximumEntries);
+    }
+
+    /**
+     * Increments the counters of a key, saturating at 15.
+     *
+     * @param key the key that was seen
+     */
+    public void increment(String key) {
+        int hash = spread(key.hashCode());
+        boolean added = false;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = indexOf(hash, row);
+            int slot = counter >>> 4;
+            int shift = (counter & 15) << 2;
+            for (;;) {
+                long word = table.get(slot);
+                if (((word >>> shift) & 0xfL) == MAX_COUNT)
+                    break;
+                if (table.compareAndSet(slot, word, word + (1L << shift))) {
+                    added = true;
+                    break;
+                }
+            }
+        }
+        if (added && size.incrementAndGet() >= sampleSize)
+            reset();
+    }
+
+    /**
+     * Estimates how many times a key was seen since the last aging.
+     *
+     * @param key the key to look up
+     * @return the smallest of the key's counters, between 0 and 15
+     */
+    public int frequency(String key) {
+        int hash = spread(key.hashCode());
+        int min = MAX_COUNT;
+        for (int row = 0; row < SEEDS.length; row++) {
+            int counter = indexOf(hash, row);
+            int count = (int) ((table.get(counter >>> 4) >>> ((counter & 15) << 2)) & 0xfL);
+            min = Math.min(min, count);
+        }
+        return min;
+    }
+
+    /* Halves every counter; increments that race with this may be lost. */
+    private synchronized void reset() {
+        if (size.get() < sampleSize)
+            return;
+        for (int i = 0; i < table.length(); i++)
+            table.set(i, (table.get(i) >>> 1) & RESET_MASK);
+        size.set(size.get() / 2);
+    }
+
+    private int indexOf(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & counterMask;
+    }
+
+    private static int spread(int h) {
+        h ^= (h >>> 17);
+        h *= 0xed5ad4bb;
+        h ^= (h >>> 11);
+        h *= 0xac4c1b51;
+        h ^= (h >>> 15);
+        return h;
+    }
+}
@@ -0,0 +1,104 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values, such as latencies in nanoseconds or batch
+ * sizes, in power-of-two buckets: bucket 0 holds 0, and bucket i holds
+ * [2^(i-1), 2^i). Percentiles are therefore only accurate to a factor of
+ * two, which is enough to tell a healthy fsync from a stalled one. Safe to
+ * record into and read from any thread.
+ */
+public class Histogram {
+
+    public static final int BUCKETS = 64;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param value the value to count; negative values count as 0
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double getMean() {
+        long n = count.get();
+        return (n == 0) ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * @return the largest value recorded, or 0 if there are none
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param bucket Which bucket.
+     * @return the number of values recorded in the bucket
+     */
+    public long getBucketCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    /**
+     * @param bucket Which bucket.
+     * @return the largest value the bucket holds
+     */
+    public static long getBucketLimit(int bucket) {
+        return (bucket == 0) ? 0 : (bucket == BUCKETS - 1) ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return an upper bound on that fraction of the values recorded: the
+     *         limit of the bucket it falls in, or the maximum if smaller;
+     *         0 if there are none
+     */
+    public long getPercentile(double fraction) {
+        long n = count.get();
+        if (n == 0)
+            return 0;
+        long rank = (long) Math.ceil(fraction * n);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank)
+                return Math.min(getBucketLimit(i), max.get());
+        }
+        return max.get();
+    }
+
+    static int bucketOf(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /** The count, mean, median, 99th percentile and maximum. */
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.1f p50<=%d p99<=%d max=%d", getCount(), getMean(),
+                getPercentile(0.5), getPercentile(0.99), getMax());
+    }
+}
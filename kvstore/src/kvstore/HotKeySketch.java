@@ -0,0 +1,97 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Finds the most requested keys of a stream using the Space-Saving algorithm
+ * (Metwally et al.): it tracks k keys, and a key that is not tracked replaces
+ * the one with the lowest count, inheriting that count plus one. A key seen
+ * more than 1/k of the time is guaranteed to be tracked, and a count
+ * overestimates the true one by at most the count it inherited.
+ *
+ * To stay off the request path's critical section only one in sampleRate
+ * offers is recorded, chosen at random, and counts are scaled back up when
+ * reported.
+ */
+public class HotKeySketch {
+
+    private final int capacity;
+    private final int sampleRate;
+    private final Map<String, long[]> counts;
+
+    /**
+     * Constructs a sketch tracking up to k keys, recording one offer in
+     * sampleRate.
+     *
+     * @param k the number of keys to track
+     * @param sampleRate 1 to record every offer, n to record one in n
+     */
+    public HotKeySketch(int k, int sampleRate) {
+        if (k < 1 || sampleRate < 1)
+            throw new IllegalArgumentException("k and sampleRate must be positive");
+        this.capacity = k;
+        this.sampleRate = sampleRate;
+        this.counts = new HashMap<String, long[]>((int) (k / 0.75f) + 1);
+    }
+
+    /**
+     * Counts a request for a key.
+     *
+     * @param key the requested key
+     */
+    public void offer(String key) {
+        if (sampleRate > 1 && ThreadLocalRandom.current().nextInt(sampleRate) != 0)
+            return;
+        record(key);
+    }
+
+    private synchronized void record(String key) {
+        long[] count = counts.get(key);
+        if (count != null) {
+            count[0]++;
+            return;
+        }
+        if (counts.size() < capacity) {
+            counts.put(key, new long[] {1});
+            return;
+        }
+        String minKey = null;
+        long[] min = null;
+        for (Map.Entry<String, long[]> e : counts.entrySet()) {
+            if (min == null || e.getValue()[0] < min[0]) {
+                minKey = e.getKey();
+                min = e.getValue();
+            }
+        }
+        counts.remove(minKey);
+        min[0]++;
+        counts.put(key, min);
+    }
+
+    /**
+     * @return the tracked keys and their estimated request counts, from the
+     *         most to the least requested
+     */
+    public synchronized Map<String, Long> getTopKeys() {
+        List<Map.Entry<String, long[]>> entries =
+                new ArrayList<Map.Entry<String, long[]>>(counts.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, long[]>>() {
+            @Override
+            public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                long ca = a.getValue()[0], cb = b.getValue()[0];
+                return (ca > cb) ? -1 : (ca < cb) ? 1 : 0;
+            }
+        });
+        Map<String, Long> top = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, long[]> e : entries)
+            top.put(e.getKey(), e.getValue()[0] * sampleRate);
+        return top;
+    }
+}
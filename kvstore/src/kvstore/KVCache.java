@@ -1,15 +1,19 @@
 package kvstore;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import javax.xml.bind.JAXBContext;
+import java.util.Map;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
 
 import kvstore.xml.KVCacheEntry;
 import kvstore.xml.KVCacheType;
@@ -21,26 +25,161 @@ import kvstore.xml.ObjectFactory;
  * A set-associate cache which has a fixed maximum number of sets (numSets).
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
- * the eviction policy.
+ * the eviction policy, second-chance unless another CachePolicy is chosen.
+ * Optionally each set, the whole cache, or both are also bounded by the bytes
+ * their keys and values take up; see sizeOf.
  */
 public class KVCache implements KeyValueInterface {
     private List<CacheSet> cache;
     private List<Lock> setLocks;
     private int numSets, maxElemsPerSet;
+    private long maxBytesPerSet, maxBytesTotal;
+    private final AtomicLong totalBytes = new AtomicLong();
+    private SlabAllocator slabs;
+    private ValueCompressor compressor;
+    private SetHash.SetSelector selector;
     /**
      * Constructs a second-chance-replacement cache.
      *
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, CachePolicy.SECOND_CHANCE);
+    }
+
+    /**
+     * Constructs a cache whose sets use the given eviction policy.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy the replacement policy each set runs
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy) {
+        this(numSets, maxElemsPerSet, policy, 0, 0);
+    }
+
+    /**
+     * Constructs a cache bounded by bytes as well as by entries per set.
+     * A set that is over either of its budgets evicts entries, in policy
+     * order, until the incoming entry fits; since a set can only evict its
+     * own entries, a fill that still would not fit in the total budget once
+     * its set is empty is not cached at all. Entries larger than a budget
+     * are never cached. To bound by bytes alone, pass a large maxElemsPerSet;
+     * it also sizes the history that S3-FIFO, CLOCK-Pro and ARC keep.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param maxBytesPerSet byte budget of each set, or 0 for none
+     * @param maxBytesTotal byte budget of the whole cache, or 0 for none
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy,
+            long maxBytesPerSet, long maxBytesTotal) {
+        this(numSets, maxElemsPerSet, policy, maxBytesPerSet, maxBytesTotal, (SlabAllocator) null);
+    }
+
+    /**
+     * Constructs a cache that keeps its values off the Java heap. Entries
+     * hold a handle into the allocator's slabs and values are decoded when
+     * they are read; byte budgets are then charged the UTF-8 size of values.
+     * A value too large for one slab cannot be put into such a cache.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param maxBytesPerSet byte budget of each set, or 0 for none
+     * @param maxBytesTotal byte budget of the whole cache, or 0 for none
+     * @param slabs allocator to keep values in, or null to keep them on-heap
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy,
+            long maxBytesPerSet, long maxBytesTotal, SlabAllocator slabs) {
+        this(numSets, maxElemsPerSet, policy, maxBytesPerSet, maxBytesTotal,
+                slabs, SetHash.MODULO);
+    }
+
+    /**
+     * Constructs a cache that maps keys to sets with the given hash. MIXED
+     * spreads sequential keys evenly; SEEDED also resists keys chosen to
+     * collide. Both mask instead of dividing when numSets is a power of two.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param setHash how keys are mapped to sets
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy, SetHash setHash) {
+        this(numSets, maxElemsPerSet, policy, 0, 0, null, setHash);
+    }
+
+    /**
+     * Constructs a cache with every option.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param maxBytesPerSet byte budget of each set, or 0 for none
+     * @param maxBytesTotal byte budget of the whole cache, or 0 for none
+     * @param slabs allocator to keep values in, or null to keep them on-heap
+     * @param setHash how keys are mapped to sets
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy,
+            long maxBytesPerSet, long maxBytesTotal, SlabAllocator slabs,
+            SetHash setHash) {
+        this(numSets, maxElemsPerSet, policy, maxBytesPerSet, maxBytesTotal,
+                slabs, setHash, null);
+    }
+
+    /**
+     * Constructs a cache that keeps long values compressed on the heap, so
+     * that a byte budget holds more of them; byte budgets are then charged
+     * the compressed size. Every hit on a compressed value decompresses it.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param maxBytesPerSet byte budget of each set, or 0 for none
+     * @param maxBytesTotal byte budget of the whole cache, or 0 for none
+     * @param compressor decides which values to compress and how
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy,
+            long maxBytesPerSet, long maxBytesTotal, ValueCompressor compressor) {
+        this(numSets, maxElemsPerSet, policy, maxBytesPerSet, maxBytesTotal,
+                null, SetHash.MODULO, compressor);
+    }
+
+    /**
+     * Constructs a cache with every option. A cache cannot both keep values
+     * off the heap and compress them.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the maximum number of entries in each set
+     * @param policy the replacement policy each set runs
+     * @param maxBytesPerSet byte budget of each set, or 0 for none
+     * @param maxBytesTotal byte budget of the whole cache, or 0 for none
+     * @param slabs allocator to keep values in, or null to keep them on-heap
+     * @param setHash how keys are mapped to sets
+     * @param compressor compresses on-heap values, or null to keep them as
+     *        they are
+     * @throws IllegalArgumentException if both slabs and compressor are given
+     */
+    public KVCache(int numSets, int maxElemsPerSet, CachePolicy policy,
+            long maxBytesPerSet, long maxBytesTotal, SlabAllocator slabs,
+            SetHash setHash, ValueCompressor compressor) {
+        if (slabs != null && compressor != null)
+            throw new IllegalArgumentException("an off-heap cache cannot compress values");
+        this.slabs = slabs;
+        this.compressor = compressor;
+        this.selector = setHash.newSelector(numSets);
         this.numSets = numSets;
         this.maxElemsPerSet = maxElemsPerSet;
+        this.maxBytesPerSet = maxBytesPerSet;
+        this.maxBytesTotal = maxBytesTotal;
         cache = new ArrayList<CacheSet>(numSets);
         setLocks = new ArrayList<Lock>(numSets);
         for (int i = 0; i < numSets; i++) {
-            CacheSet cacheSet = new CacheSet(maxElemsPerSet);
+            CacheSet cacheSet = new CacheSet(maxElemsPerSet,
+                    policy.newPolicy(maxElemsPerSet));
             cache.add(cacheSet);
             setLocks.add(new ReentrantLock());
         }
@@ -57,9 +196,42 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public String get(String key) {
-        int s = getCacheSetForKey(key);
-        CacheEntry e = cache.get(s).getCacheEntryForKey(key);
-        return (e != null) ? e.value : null;
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        CacheEntry e = set.getCacheEntryForKey(key);
+        if (e == null) {
+            set.misses.increment();
+            return null;
+        }
+        set.hits.increment();
+        return valueOf(e);
+    }
+
+    /**
+     * Retrieves an entry from the cache without taking the set's lock.
+     * Each set carries a version stamp that writers make odd while they
+     * mutate it (a seqlock), so the read is only trusted if no write started
+     * or finished around it. A null result means either a miss or a conflict;
+     * the caller should then retry with get() under the set's lock. Policies
+     * that reorder entries on every hit (LRU, ARC) always return null here.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key, or null if the optimistic
+     *         read missed or raced with a writer
+     */
+    public String optimisticGet(String key) {
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        if (!set.policy.recordsHitsByMarking())
+            return null;
+        long stamp = set.version.get();
+        if ((stamp & 1) != 0)
+            return null;
+        CacheEntry e = set.index.get(key);
+        String value = (e != null) ? valueOf(e) : null;
+        if (value == null || set.version.get() != stamp)
+            return null;
+        e.markAccessed();
+        set.hits.increment();
+        return value;
     }
 
     /**
@@ -68,12 +240,11 @@ public class KVCache implements KeyValueInterface {
      * replaced by the new entry. When an entry is replaced, its reference bit
      * will be set to True. If the set is full, an entry is removed from
      * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * will be inserted behind all existing entries. Each set keeps a hash index
+     * next to its policy's intrusive lists, so lookups, deletes and
+     * evictions are all O(1) amortized. More details and explanations in
+     * the spec. Assumes access to the corresponding set has already been
+     * locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
@@ -81,7 +252,75 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void put(String key, String value) {
         CacheSet set = cache.get(getCacheSetForKey(key));
-        set.putCacheEntryForKey(key, value);
+        set.beginWrite();
+        try {
+            set.putCacheEntryForKey(key, value);
+        } finally {
+            set.endWrite();
+        }
+    }
+
+    /**
+     * Fills the cache with a value that was just read from the store.
+     * Behaves like put, except that when the set is full its victim is only
+     * given up if the admission filter prefers the new key. A null filter
+     * admits everything. Assumes access to the corresponding set has already
+     * been locked by the caller of this method.
+     *
+     * @param key the key that missed in the cache
+     * @param value the value read from the store
+     * @param filter the admission filter to consult, or null
+     * @return true if the entry is now cached, false if it was rejected
+     */
+    public boolean putIfAdmitted(String key, String value, AdmissionFilter filter) {
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        set.beginWrite();
+        try {
+            return set.putCacheEntryIfAdmitted(key, value, filter);
+        } finally {
+            set.endWrite();
+        }
+    }
+
+    /**
+     * Caches a value that already lives in this cache's allocator, e.g. in
+     * an OffHeapKVStore sharing it, without copying its bytes. The caller's
+     * reference to the handle passes to the cache, which frees it once the
+     * entry is replaced, evicted or deleted, or right away if the value is
+     * not cached. Only valid for a cache constructed with an allocator.
+     * Assumes access to the corresponding set has already been locked by
+     * the caller of this method.
+     *
+     * @param key the key with which the value is to be associated
+     * @param handle a retained handle to the value in getAllocator()
+     */
+    void putRetained(String key, long handle) {
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        set.beginWrite();
+        try {
+            set.putRetained(key, handle);
+        } finally {
+            set.endWrite();
+        }
+    }
+
+    /**
+     * Like putIfAdmitted, for a value referenced by a retained handle as in
+     * putRetained. The handle is freed if the fill is rejected.
+     *
+     * @param key the key that missed in the cache
+     * @param handle a retained handle to the value in getAllocator()
+     * @param filter the admission filter to consult, or null
+     * @return true if the entry is now cached, false if it was rejected
+     */
+    boolean putRetainedIfAdmitted(String key, long handle, AdmissionFilter filter) {
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        set.beginWrite();
+        try {
+            return set.putRetainedIfAdmitted(key, handle, filter);
+        } finally {
+            set.endWrite();
+        }
     }
 
     /**
@@ -94,7 +333,12 @@ public class KVCache implements KeyValueInterface {
     @Override
     public void del(String key) {
         CacheSet set = cache.get(getCacheSetForKey(key));
-        set.deleteCacheEntryForKey(key);
+        set.beginWrite();
+        try {
+            set.deleteCacheEntryForKey(key);
+        } finally {
+            set.endWrite();
+        }
     }
 
     /**
@@ -111,6 +355,17 @@ public class KVCache implements KeyValueInterface {
         return setLocks.get(setIndex);
     }
 
+    /**
+     * Checks for a key without counting it as an access, e.g. to skip keys
+     * that are already cached. Does not need the set lock.
+     *
+     * @param key the key to look for
+     * @return true if the key is cached
+     */
+    boolean containsKey(String key) {
+        return cache.get(getCacheSetForKey(key)).index.containsKey(key);
+    }
+
     /**
      * Get the size of a given set in the cache.
      * @param cacheSet Which set.
@@ -120,13 +375,91 @@ public class KVCache implements KeyValueInterface {
         return cache.get(cacheSet).getSetSize();
     }
 
+    /**
+     * Get the number of bytes the entries of a given set take up.
+     * @param cacheSet Which set.
+     * @return Bytes held by the cache set, as counted by sizeOf.
+     */
+    public long getCacheSetBytes(int cacheSet) {
+        return cache.get(cacheSet).bytes;
+    }
+
+    /**
+     * @return Bytes held by the whole cache, as counted by sizeOf.
+     */
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    /**
+     * @return the number of sets in this cache
+     */
+    public int getNumSets() {
+        return numSets;
+    }
+
+    /**
+     * Records that a request had to wait for the lock of a key's set.
+     *
+     * @param key the key whose set lock was contended
+     * @param nanos how long the request waited
+     */
+    void recordLockWait(String key, long nanos) {
+        CacheSet set = cache.get(getCacheSetForKey(key));
+        set.lockWaits.increment();
+        set.lockWaitNanos.add(nanos);
+    }
+
+    /**
+     * Takes a snapshot of the per-set counters. Hits and misses are those of
+     * get and optimisticGet; lock waits are those reported by the server.
+     *
+     * @return the counters of every set
+     */
+    public CacheStats getStats() {
+        return getStats(new HashMap<String, Long>());
+    }
+
+    CacheStats getStats(Map<String, Long> hotKeys) {
+        long[] hits = new long[numSets], misses = new long[numSets];
+        long[] evictions = new long[numSets], rotations = new long[numSets];
+        long[] lockWaits = new long[numSets], lockWaitNanos = new long[numSets];
+        for (int i = 0; i < numSets; i++) {
+            CacheSet set = cache.get(i);
+            hits[i] = set.hits.sum();
+            misses[i] = set.misses.sum();
+            evictions[i] = set.evictions.sum();
+            rotations[i] = set.policy.getRotations();
+            lockWaits[i] = set.lockWaits.sum();
+            lockWaitNanos[i] = set.lockWaitNanos.sum();
+        }
+        return new CacheStats(hits, misses, evictions, rotations,
+                lockWaits, lockWaitNanos, hotKeys);
+    }
+
+    /**
+     * @return the allocator values are kept in, or null if they are on-heap
+     */
+    public SlabAllocator getAllocator() {
+        return slabs;
+    }
+
+    /**
+     * The size an entry is charged against the byte budgets: the UTF-16
+     * bytes of its key and value, i.e. roughly what the two Strings' char
+     * data takes up on the heap. An off-heap cache charges the UTF-8 bytes of
+     * the value instead.
+     *
+     * @param key the entry's key
+     * @param value the entry's value
+     * @return the entry's size in bytes
+     */
+    public static int sizeOf(String key, String value) {
+        return 2 * (key.length() + value.length());
+    }
+
     private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVCacheType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+        XMLBinding.marshaller().marshal(getXMLRoot(), os);
     }
 
     private JAXBElement<KVCacheType> getXMLRoot() throws JAXBException {
@@ -134,12 +467,10 @@ public class KVCache implements KeyValueInterface {
         KVCacheType xmlCache = factory.createKVCacheType();
         for (int i = 0; i < numSets; i++) {
             KVSetType setType = new KVSetType();
-            CacheSet cs = cache.get(i);
-            for (int a = 0; a < getCacheSetSize(i); a++) {
+            for (CacheEntry ce : cache.get(i).entriesInOrder()) {
                 KVCacheEntry e = new KVCacheEntry();
-                CacheEntry ce = cs.cacheSet.get(a);
                 e.setKey(ce.key);
-                e.setValue(ce.value);
+                e.setValue(valueOf(ce));
                 e.setIsReferenced(ce.isUsed ? "True" : "False");
                 setType.getCacheEntry().add(e);
             }
@@ -165,111 +496,276 @@ public class KVCache implements KeyValueInterface {
         return this.toXML();
     }
 
-    // Utility methods
-    private int getCacheSetForKey(String key) {
-        int hash = Math.abs(key.hashCode());
-        return hash % numSets;
+    /**
+     * Serialize to XML and write the output to a file, e.g. so that a
+     * CacheWarmer can preload the same keys after a restart.
+     * This method is best effort. Any exceptions that arise can be dropped.
+     *
+     * @param fileName the file to write the serialized cache
+     */
+    public void dumpToFile(String fileName) {
+        try {
+            FileOutputStream fstream = new FileOutputStream(new File(fileName));
+            try {
+                marshalTo(fstream);
+            } finally {
+                fstream.close();
+            }
+        } catch (Exception e) {
+            // ignore
+        }
     }
 
-    private class CacheEntry {
-        public String key;
-        public String value;
-        public boolean isUsed;
+    // Utility methods
+    private String valueOf(CacheEntry e) {
+        if (slabs != null)
+            return slabs.readString(e.handle);
+        return (compressor == null) ? e.value : compressor.decode(e.value);
+    }
 
-        public CacheEntry() {
-            key = null; value = null; isUsed = false;
-        }
+    /* The form an on-heap value is cached in. */
+    private String stored(String value) {
+        return (compressor == null) ? value : compressor.encode(value);
+    }
 
-        public CacheEntry(String key, String value) {
-            this.key = key;
-            this.value = value;
-            this.isUsed = false;
-        }
+    int getCacheSetForKey(String key) {
+        return selector.setFor(key);
     }
 
+    /**
+     * One set of the cache. Entries are indexed by key in a hash map; the
+     * set's EvictionPolicy keeps them in replacement order and chooses which
+     * one to give up when the set is full.
+     *
+     * The index is a ConcurrentHashMap only so that optimisticGet can probe
+     * it while a writer holds the set lock; the policy's lists are only ever
+     * touched under that lock.
+     */
     private class CacheSet {
-        public List<CacheEntry> cacheSet;
+        private ConcurrentHashMap<String, CacheEntry> index;
+        private EvictionPolicy policy;
         private int maxElemsPerSet;
 
-        public CacheSet(int maxElemsPerSet)
+        /* seqlock stamp: odd while a put or del is modifying this set */
+        private final AtomicLong version = new AtomicLong();
+
+        /* sum of sizeOf over the resident entries */
+        private volatile long bytes;
+
+        private final StripedCounter hits = new StripedCounter();
+        private final StripedCounter misses = new StripedCounter();
+        private final StripedCounter evictions = new StripedCounter();
+        private final StripedCounter lockWaits = new StripedCounter();
+        private final StripedCounter lockWaitNanos = new StripedCounter();
+
+        public CacheSet(int maxElemsPerSet, EvictionPolicy policy)
         {
-            cacheSet = new ArrayList<CacheEntry>(maxElemsPerSet);
+            index = new ConcurrentHashMap<String, CacheEntry>(
+                    (int) (Math.min(maxElemsPerSet, 1024) / 0.75f) + 1, 0.75f, 1);
             this.maxElemsPerSet = maxElemsPerSet;
+            this.policy = policy;
         }
 
-        private int getCacheEntryIndex(String key) {
-            for (int i = 0; i < getSetSize(); i++) {
-                String k = cacheSet.get(i).key;
-                if (key.equals(k))
-                    return i;
-            }
-            return -1;
+        public void beginWrite() {
+            version.incrementAndGet();
+        }
+
+        public void endWrite() {
+            version.incrementAndGet();
         }
 
         public CacheEntry getCacheEntryForKey(String key) {
-            int idx = getCacheEntryIndex(key);
-            if (idx != -1) {
+            CacheEntry ce = index.get(key);
+            if (ce != null) {
                 // mark it used.
-                CacheEntry ce = cacheSet.get(idx);
-                ce.isUsed = true;
-                return ce;
+                policy.onHit(ce);
             }
-            return null;
+            return ce;
         }
 
         public void deleteCacheEntryForKey(String key) {
-            int idx = getCacheEntryIndex(key);
-            if (idx != -1) {
-                cacheSet.remove(idx);
+            CacheEntry ce = index.remove(key);
+            if (ce != null) {
+                policy.onRemove(ce);
+                release(ce);
             }
         }
 
         public void putCacheEntryForKey(String key, String value) {
+            if (slabs == null) {
+                String stored = stored(value);
+                putCacheEntry(key, stored, 0, sizeOf(key, stored));
+            } else {
+                byte[] encoded = value.getBytes(SlabAllocator.UTF8);
+                int size = 2 * key.length() + encoded.length;
+                // don't copy a value off-heap only to throw it away
+                if (!fitsEmpty(size)) {
+                    deleteCacheEntryForKey(key);
+                    return;
+                }
+                putCacheEntry(key, null, slabs.store(encoded), size);
+            }
+        }
+
+        /*
+         * Inserts or updates an entry holding either an on-heap value or,
+         * in an off-heap cache, a handle whose reference passes to this set:
+         * it is freed here if the entry ends up not being cached.
+         */
+        private void putCacheEntry(String key, String value, long handle, int size) {
+            if (!fitsEmpty(size)) {
+                // too big to ever cache; don't leave a stale copy behind
+                deleteCacheEntryForKey(key);
+                discard(handle);
+                return;
+            }
+
             // check if key already exists
             CacheEntry centry = getCacheEntryForKey(key);
             if (centry != null) {
-                centry.value = value;
+                if (slabs != null) {
+                    long old = centry.handle;
+                    centry.handle = handle;
+                    slabs.free(old);
+                } else {
+                    centry.value = value;
+                }
+                addBytes(size - centry.size);
+                centry.size = size;
+                while (isOverBudget(0)) {
+                    if (evictOne() == centry)
+                        break;
+                }
                 return;
             }
 
-            // if set not full, just add it at the back
-            if (!isSetFull()) {
-                CacheEntry e = new CacheEntry(key, value);
-                cacheSet.add(e);
+            if (!canMakeRoom(size)) {
+                // other sets hold the shared budget; leave the policy untouched
+                discard(handle);
                 return;
             }
+            policy.onMiss(key);
+            while (isSetFull(size)) {
+                if (evictOne() == null)
+                    break;
+            }
 
-            // cycle all cache entries for first non-used entry and
-            // in the worst case you give everyone second chance and
-            // choose the first element.
-            for (int i = 0; i <= getSetSize(); i++) {
-                // always get first entry, as we are gonna traverse
-                // setSize times.
-                CacheEntry ce = cacheSet.get(0);
-                if (ce.isUsed) {
-                    // give it second chance, and add it to the last.
-                    ce.isUsed = false;
-                    cacheSet.remove(0);
-                    cacheSet.add(ce);
-                } else {
-                    // evict this entry.
-                    cacheSet.remove(0);
-                    ce = null;  // set null for gc
-                    CacheEntry e = new CacheEntry(key, value);
-                    cacheSet.add(e);
+            CacheEntry e = new CacheEntry(key, value);
+            e.handle = handle;
+            e.size = size;
+            index.put(key, e);
+            policy.onInsert(e);
+            addBytes(size);
+            // a racing insert into another set may have taken the room since
+            // the check; the policy then gives it back, if need be the new entry
+            while (isOverBudget(0)) {
+                if (evictOne() == null)
                     break;
-                }
             }
-            return;
+        }
+
+        public void putRetained(String key, long handle) {
+            putCacheEntry(key, null, handle, sizeOfRetained(key, handle));
+        }
+
+        public boolean putCacheEntryIfAdmitted(String key, String value,
+                AdmissionFilter filter) {
+            if (slabs == null && compressor != null) {
+                String stored = stored(value);
+                int size = sizeOf(key, stored);
+                if (!admits(key, size, filter))
+                    return false;
+                putCacheEntry(key, stored, 0, size);
+                return index.containsKey(key);
+            }
+            if (!admits(key, sizeOf(key, value), filter))
+                return false;
+            putCacheEntryForKey(key, value);
+            return index.containsKey(key);
+        }
+
+        public boolean putRetainedIfAdmitted(String key, long handle,
+                AdmissionFilter filter) {
+            int size = sizeOfRetained(key, handle);
+            if (!admits(key, size, filter)) {
+                discard(handle);
+                return false;
+            }
+            putCacheEntry(key, null, handle, size);
+            return index.containsKey(key);
+        }
+
+        /* false if the filter prefers the entry a new key would evict */
+        private boolean admits(String key, int size, AdmissionFilter filter) {
+            if (filter != null && isSetFull(size) && !index.containsKey(key)) {
+                CacheEntry victim = policy.peekVictim();
+                if (victim != null && !filter.admit(key, victim.key))
+                    return false;
+            }
+            return true;
+        }
+
+        /**
+         * Lists the entries in the policy's replacement order; for
+         * second-chance that is from the oldest to the newest.
+         */
+        public List<CacheEntry> entriesInOrder() {
+            return policy.entriesInOrder();
         }
 
         public int getSetSize() {
-            return cacheSet.size();
+            return index.size();
+        }
+
+        /* true if an entry of the given size cannot be added without evicting */
+        private boolean isSetFull(int incoming) {
+            return (getSetSize() >= maxElemsPerSet) || isOverBudget(incoming);
+        }
+
+        private boolean isOverBudget(int incoming) {
+            return (maxBytesPerSet > 0 && bytes + incoming > maxBytesPerSet)
+                || (maxBytesTotal > 0 && totalBytes.get() + incoming > maxBytesTotal);
         }
 
-        private boolean isSetFull() {
-            return (getSetSize() == maxElemsPerSet);
+        /* true if evicting this whole set would leave room for the entry */
+        private boolean canMakeRoom(int size) {
+            return maxBytesTotal <= 0 || totalBytes.get() - bytes + size <= maxBytesTotal;
         }
 
+        /* true if an entry of the given size fits in an empty cache */
+        private boolean fitsEmpty(int size) {
+            return maxElemsPerSet > 0
+                && (maxBytesPerSet <= 0 || size <= maxBytesPerSet)
+                && (maxBytesTotal <= 0 || size <= maxBytesTotal);
+        }
+
+        private CacheEntry evictOne() {
+            CacheEntry victim = policy.evict();
+            if (victim != null) {
+                evictions.increment();
+                index.remove(victim.key);
+                release(victim);
+            }
+            return victim;
+        }
+
+        private void release(CacheEntry e) {
+            discard(e.handle);
+            addBytes(-e.size);
+        }
+
+        private void discard(long handle) {
+            if (slabs != null)
+                slabs.free(handle);
+        }
+
+        private int sizeOfRetained(String key, long handle) {
+            return 2 * key.length() + slabs.length(handle);
+        }
+
+        private void addBytes(long delta) {
+            bytes += delta;
+            totalBytes.addAndGet(delta);
+        }
     }
 }
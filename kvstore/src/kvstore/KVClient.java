@@ -14,6 +14,14 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Client API used to issue requests to key-value server.
@@ -22,6 +30,24 @@ public class KVClient implements KeyValueInterface {
 
     public String server;
     public int port;
+    public WireProtocol protocol;
+
+    /* Opened by the first request of a PERSISTENT client. */
+    private KVConnection connection;
+
+    /** Pairs fetched per request by scan, unless told otherwise. */
+    public static final int DEFAULT_SCAN_PAGE = 100;
+
+    /** Default for idleHoldMillis. */
+    public static final long DEFAULT_IDLE_HOLD = 5000;
+
+    /**
+     * Milliseconds a PERSISTENT client goes on using a connection that has
+     * sat idle; after longer, it closes it and opens a new one. Keep it
+     * well below ServerClientHandler.PERSISTENT_IDLE_TIMEOUT, so that the
+     * server is not closing the connection as the client reuses it.
+     */
+    public long idleHoldMillis = DEFAULT_IDLE_HOLD;
 
     /**
      * Constructs a KVClient connected to a server.
@@ -30,8 +56,21 @@ public class KVClient implements KeyValueInterface {
      * @param port is the port on which the server is listening
      */
     public KVClient(String server, int port) {
+        this(server, port, WireProtocol.XML);
+    }
+
+    /**
+     * Constructs a KVClient connected to a server that speaks protocol for
+     * gets, puts and dels.
+     *
+     * @param server is the DNS reference to the server
+     * @param port is the port on which the server is listening
+     * @param protocol how requests are sent
+     */
+    public KVClient(String server, int port, WireProtocol protocol) {
         this.server = server;
         this.port = port;
+        this.protocol = protocol;
     }
 
     /**
@@ -65,30 +104,101 @@ public class KVClient implements KeyValueInterface {
     }
 
     /**
-     * Issues a PUT request to the server.
+     * Closes the connection a PERSISTENT client keeps open, if any. Using
+     * the client again opens a new one.
+     */
+    public synchronized void close() {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+
+    /**
+     * Sends a request and reads the response in this client's protocol:
+     * over a connection of its own, or the kept one if PERSISTENT. If the
+     * server has no room for a persistent connection, the request is sent
+     * in BINARY instead.
      *
-     * @param  key String to put in server as key
-     * @throws KVException if the request was not successful in any way
+     * @param  kvm the request
+     * @return the response
+     * @throws KVException if unable to connect, or either cannot be sent
+     *         or read
      */
-    @Override
-    public void put(String key, String value) throws KVException {
+    private KVMessage request(KVMessage kvm) throws KVException {
+        if (protocol == WireProtocol.PERSISTENT) {
+            try {
+                return connection().send(kvm);
+            } catch (KVException ex) {
+                if (!KVConstants.ERROR_SERVER_BUSY.equals(ex.getKVMessage().getMessage()))
+                    throw ex;
+            }
+        }
         Socket socket = null;
         try {
             socket = connectHost();
-            KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
-            kvm.setKey(key);
-            kvm.setValue(value);
+            if (protocol != WireProtocol.XML) {
+                BinaryProtocol.sendRequest(socket, kvm);
+                return BinaryProtocol.receiveResponse(socket);
+            }
             kvm.sendMessage(socket);
-
-            // get response from socket.
-            KVMessage resp = new KVMessage(socket);
-        } catch (KVException ex) {
-            throw ex;
+            return new KVMessage(socket);
         } finally {
             closeHost(socket);
         }
     }
 
+    /*
+     * The kept connection, opened again if it failed or has sat idle for
+     * longer than idleHoldMillis.
+     */
+    private synchronized KVConnection connection() throws KVException {
+        if (connection != null && (connection.isClosed()
+                || connection.idleTime(TimeUnit.MILLISECONDS) > idleHoldMillis))
+            close();
+        if (connection == null)
+            connection = new KVConnection(server, port);
+        return connection;
+    }
+
+    /**
+     * Issues a PUT request to the server.
+     *
+     * @param  key String to put in server as key
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        KVMessage resp = request(kvm);
+    }
+
+    /**
+     * Issues a PUT request for a key that expires after ttl. The TTL is
+     * sent in whole milliseconds, at least one.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @param  ttl how long the key lives
+     * @param  unit the unit of ttl
+     * @throws KVException with ERROR_INVALID_TTL if ttl is not positive, or
+     *         if the request was not successful in any way
+     */
+    public void put(String key, String value, long ttl, TimeUnit unit) throws KVException {
+        if (ttl <= 0)
+            throw new KVException(KVConstants.ERROR_INVALID_TTL);
+        KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        kvm.setTTL(Math.max(1, unit.toMillis(ttl)));
+        KVMessage resp = request(kvm);
+        String msg = resp.getMessage();
+        if (msg == null || !msg.equals(KVConstants.SUCCESS))
+            throw new KVException(resp);
+    }
+
     /**
      * Issues a GET request to the server.
      *
@@ -98,38 +208,165 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.GET_REQ);
+        kvm.setKey(key);
+        KVMessage resp = request(kvm);
+        if (resp.getMessage() != null)
+            throw new KVException(resp);
+        return resp.getValue();
+    }
+
+    /**
+     * Issues a DEL request to the server.
+     *
+     * @param  key String to delete value for in server
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void del(String key) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.DEL_REQ);
+        kvm.setKey(key);
+        KVMessage resp = request(kvm);
+        String msg = resp.getMessage();
+        if (msg == null || !msg.equals(KVConstants.SUCCESS))
+            throw new KVException(resp);
+    }
+
+    /**
+     * Issues GET requests for many keys at once, as MGET requests of up to
+     * ServerClientHandler.MAX_BATCH keys each, always as XML. The server
+     * takes each cache set's lock once per request rather than once per key.
+     *
+     * @param  keys the keys to get
+     * @return the value of each key that exists, in the order of keys;
+     *         keys that do not exist are left out
+     * @throws KVException if a request was not successful in any way, e.g.
+     *         with ERROR_INVALID_FORMAT if a key is empty
+     */
+    public Map<String, String> mget(Collection<String> keys) throws KVException {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        for (List<String> chunk : batches(new ArrayList<String>(keys))) {
+            KVMessage kvm = new KVMessage(KVConstants.MGET_REQ);
+            for (String key : chunk)
+                kvm.addPair(key, null);
+            for (Map.Entry<String, String> pair : batch(kvm).getPairs())
+                values.put(pair.getKey(), pair.getValue());
+        }
+        return values;
+    }
+
+    /**
+     * Issues PUT requests for many pairs at once, as MPUT requests; see
+     * mget. Each request is checked whole before any of its pairs is
+     * written, but they are not atomic, and neither is the whole.
+     *
+     * @param  pairs the keys and values to put
+     * @throws KVException if a request was not successful in any way
+     */
+    public void mput(Map<String, String> pairs) throws KVException {
+        List<Map.Entry<String, String>> entries =
+                new ArrayList<Map.Entry<String, String>>(pairs.entrySet());
+        for (List<Map.Entry<String, String>> chunk : batches(entries)) {
+            KVMessage kvm = new KVMessage(KVConstants.MPUT_REQ);
+            for (Map.Entry<String, String> pair : chunk)
+                kvm.addPair(pair.getKey(), pair.getValue());
+            batch(kvm);
+        }
+    }
+
+    /**
+     * Issues DEL requests for many keys at once, as MDEL requests; see
+     * mget. A key that does not exist is no error.
+     *
+     * @param  keys the keys to delete
+     * @return the keys that existed and were deleted, in the order of keys
+     * @throws KVException if a request was not successful in any way
+     */
+    public Set<String> mdel(Collection<String> keys) throws KVException {
+        Set<String> deleted = new LinkedHashSet<String>();
+        for (List<String> chunk : batches(new ArrayList<String>(keys))) {
+            KVMessage kvm = new KVMessage(KVConstants.MDEL_REQ);
+            for (String key : chunk)
+                kvm.addPair(key, null);
+            for (Map.Entry<String, String> pair : batch(kvm).getPairs())
+                deleted.add(pair.getKey());
+        }
+        return deleted;
+    }
+
+    /* Splits items into runs the server takes in one batch request. */
+    private static <T> List<List<T>> batches(List<T> items) {
+        List<List<T>> batches = new ArrayList<List<T>>();
+        for (int i = 0; i < items.size(); i += ServerClientHandler.MAX_BATCH)
+            batches.add(items.subList(i,
+                    Math.min(items.size(), i + ServerClientHandler.MAX_BATCH)));
+        return batches;
+    }
+
+    /*
+     * Sends a batch request as XML and returns the response, which must be
+     * a success.
+     */
+    private KVMessage batch(KVMessage kvm) throws KVException {
         Socket socket = null;
         try {
             socket = connectHost();
-            KVMessage kvm = new KVMessage(KVConstants.GET_REQ);
-            kvm.setKey(key);
             kvm.sendMessage(socket);
-
-            // get response from socket.
             KVMessage resp = new KVMessage(socket);
-            if (resp.getMessage() != null)
+            String msg = resp.getMessage();
+            if (msg == null || !msg.equals(KVConstants.SUCCESS))
                 throw new KVException(resp);
-            return resp.getValue();
-        } catch (KVException ex) {
-            throw ex;
+            return resp;
         } finally {
             closeHost(socket);
         }
     }
 
     /**
-     * Issues a DEL request to the server.
+     * Scans the pairs with startKey &lt;= key &lt; endKey in key order,
+     * fetching them from the server DEFAULT_SCAN_PAGE at a time as the
+     * cursor advances.
      *
-     * @param  key String to delete value for in server
+     * @param  startKey the first key to include, or null for the smallest
+     * @param  endKey the first key to leave out, or null for no bound
+     * @param  limit the most pairs to return
+     * @return a cursor over the pairs; no request is made until it is used
+     */
+    public ScanCursor scan(String startKey, String endKey, int limit) {
+        return scan(startKey, endKey, limit, DEFAULT_SCAN_PAGE);
+    }
+
+    /**
+     * Scans a range of keys with a chosen page size; see scan. The server
+     * may send smaller pages than asked for.
+     *
+     * @param  startKey the first key to include, or null for the smallest
+     * @param  endKey the first key to leave out, or null for no bound
+     * @param  limit the most pairs to return
+     * @param  pageSize the most pairs to fetch per request
+     * @return a cursor over the pairs; no request is made until it is used
+     */
+    public ScanCursor scan(String startKey, String endKey, int limit, int pageSize) {
+        return new ScanCursor(this, startKey, endKey, limit, pageSize);
+    }
+
+    /**
+     * Issues a single SCAN request to the server, always as XML.
+     *
+     * @param  startKey the first key to include, or null for the smallest
+     * @param  endKey the first key to leave out, or null for no bound
+     * @param  pageSize the most pairs to return
+     * @return the response, holding the pairs in order and, if the range
+     *         has more, the start key of the next page as its key
      * @throws KVException if the request was not successful in any way
      */
-    @Override
-    public void del(String key) throws KVException {
+    public KVMessage scanPage(String startKey, String endKey, int pageSize) throws KVException {
         Socket socket = null;
         try {
             socket = connectHost();
-            KVMessage kvm = new KVMessage(KVConstants.DEL_REQ);
-            kvm.setKey(key);
+            KVMessage kvm = new KVMessage(KVConstants.SCAN_REQ, Integer.toString(pageSize));
+            kvm.setKey(startKey);
+            kvm.setValue(endKey);
             kvm.sendMessage(socket);
 
             // get response from socket
@@ -137,8 +374,7 @@ public class KVClient implements KeyValueInterface {
             String msg = resp.getMessage();
             if (msg == null || !msg.equals(KVConstants.SUCCESS))
                 throw new KVException(resp);
-        } catch (KVException ex) {
-            throw ex;
+            return resp;
         } finally {
             closeHost(socket);
         }
@@ -0,0 +1,259 @@
+package kvstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One connection to a server that stays open across requests, speaking
+ * WireProtocol.PERSISTENT. Requests may be pipelined: pipeline sends a
+ * list of them without waiting for each response in turn. Calls from
+ * several threads take turns on the connection.
+ *
+ * Once sending or receiving fails, the connection is closed and every
+ * later request fails as well; open a new one.
+ */
+public class KVConnection implements KeyValueInterface, Closeable {
+
+    /** Most requests pipeline has sent but not seen answered. */
+    public static final int MAX_IN_FLIGHT = 256;
+    /**
+     * Most bytes of requests pipeline has sent but not seen answered, past
+     * the first. While the server writes a response the client is not yet
+     * reading, it reads no requests either, so without a bound both could
+     * block writing.
+     */
+    public static final int MAX_IN_FLIGHT_BYTES = 64 * 1024;
+
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private int nextId;
+    private long lastUsed;
+
+    /**
+     * Connects to a server and asks for a persistent connection, waiting
+     * for the server to accept it.
+     *
+     * @param  server is the DNS reference to the server
+     * @param  port is the port on which the server is listening
+     * @throws KVException with ERROR_COULD_NOT_CONNECT,
+     *         ERROR_COULD_NOT_SEND_DATA if the request for one fails, or the
+     *         server's reason for refusing it, e.g. ERROR_SERVER_BUSY
+     */
+    public KVConnection(String server, int port) throws KVException {
+        try {
+            socket = new Socket(server, port);
+        } catch (Exception ex) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
+        }
+        try {
+            // frames are written whole, so Nagle would only delay them
+            socket.setTcpNoDelay(true);
+            in = new BufferedInputStream(socket.getInputStream());
+            out = new BufferedOutputStream(socket.getOutputStream());
+            out.write(BinaryProtocol.PERSISTENT_MAGIC);
+            out.flush();
+        } catch (IOException ex) {
+            close();
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+        try {
+            int id = BinaryProtocol.readId(in);
+            if (id < 0)
+                throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+            if (id != 0)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            checkSuccess(BinaryProtocol.readResponse(in));
+        } catch (KVException ex) {
+            close();
+            throw ex;
+        }
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * Sends requests in order, without waiting for each response before
+     * sending the next, and reads their responses. A request that fails on
+     * the server does not stop the others; its response carries the error.
+     *
+     * @param  requests get, put and del requests
+     * @return the responses, in the order of requests: each holding the
+     *         value got, or SUCCESS or the error as its message
+     * @throws KVException with ERROR_INVALID_FORMAT if a request is not a
+     *         valid get, put or del, before any is sent; otherwise if the
+     *         connection fails, after which it is closed
+     */
+    public synchronized List<KVMessage> pipeline(List<KVMessage> requests)
+            throws KVException {
+        int n = requests.size();
+        int firstId = nextId;
+        ByteBuffer[] frames = new ByteBuffer[n];
+        for (int i = 0; i < n; i++)
+            frames[i] = BinaryProtocol.taggedRequest((firstId + i) & Integer.MAX_VALUE,
+                    requests.get(i));
+        nextId = (firstId + n) & Integer.MAX_VALUE;
+
+        KVMessage[] responses = new KVMessage[n];
+        int sent = 0, received = 0;
+        long inFlightBytes = 0;
+        try {
+            while (received < n) {
+                while (sent < n && (sent == received || (sent - received < MAX_IN_FLIGHT
+                        && inFlightBytes + frames[sent].capacity() <= MAX_IN_FLIGHT_BYTES))) {
+                    out.write(frames[sent].array());
+                    inFlightBytes += frames[sent].capacity();
+                    sent++;
+                }
+                out.flush();
+                // one response, and any others already here, before sending more
+                do {
+                    int id = BinaryProtocol.readId(in);
+                    if (id < 0)
+                        throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+                    int i = (id - firstId) & Integer.MAX_VALUE;
+                    // the server answers in order, so anything else is a bug
+                    if (i != received)
+                        throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+                    responses[i] = BinaryProtocol.readResponse(in);
+                    inFlightBytes -= frames[i].capacity();
+                    frames[i] = null;
+                    received++;
+                } while (received < sent && in.available() > 0);
+            }
+        } catch (IOException ex) {
+            close();
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        } catch (KVException ex) {
+            close();
+            throw ex;
+        } finally {
+            lastUsed = System.nanoTime();
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * Sends one request and reads its response; see pipeline.
+     *
+     * @param  request a get, put or del request
+     * @return the response
+     * @throws KVException as pipeline does
+     */
+    public KVMessage send(KVMessage request) throws KVException {
+        return pipeline(Collections.singletonList(request)).get(0);
+    }
+
+    /**
+     * Issues a PUT request over this connection.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        checkSuccess(send(kvm));
+    }
+
+    /**
+     * Issues a PUT request for a key that expires after ttl, as
+     * KVClient.put does.
+     *
+     * @param  key String to put in server as key
+     * @param  value String to put in server as value
+     * @param  ttl how long the key lives
+     * @param  unit the unit of ttl
+     * @throws KVException with ERROR_INVALID_TTL if ttl is not positive, or
+     *         if the request was not successful in any way
+     */
+    public void put(String key, String value, long ttl, TimeUnit unit) throws KVException {
+        if (ttl <= 0)
+            throw new KVException(KVConstants.ERROR_INVALID_TTL);
+        KVMessage kvm = new KVMessage(KVConstants.PUT_REQ);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        kvm.setTTL(Math.max(1, unit.toMillis(ttl)));
+        checkSuccess(send(kvm));
+    }
+
+    /**
+     * Issues a GET request over this connection.
+     *
+     * @param  key String to get value for in server
+     * @return String value associated with key
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public String get(String key) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.GET_REQ);
+        kvm.setKey(key);
+        KVMessage resp = send(kvm);
+        if (resp.getMessage() != null)
+            throw new KVException(resp);
+        return resp.getValue();
+    }
+
+    /**
+     * Issues a DEL request over this connection.
+     *
+     * @param  key String to delete value for in server
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void del(String key) throws KVException {
+        KVMessage kvm = new KVMessage(KVConstants.DEL_REQ);
+        kvm.setKey(key);
+        checkSuccess(send(kvm));
+    }
+
+    /**
+     * How long since this connection last sent or received.
+     *
+     * @param  unit the unit of the result
+     * @return the time since, in unit
+     */
+    public synchronized long idleTime(TimeUnit unit) {
+        return unit.convert(System.nanoTime() - lastUsed, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Whether this connection has been closed, by close or a failure.
+     *
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    /**
+     * Closes the connection, which the server takes as the end of its
+     * requests. Best effort, like KVClient.closeHost.
+     */
+    @Override
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private static void checkSuccess(KVMessage resp) throws KVException {
+        String msg = resp.getMessage();
+        if (msg == null || !msg.equals(KVConstants.SUCCESS))
+            throw new KVException(resp);
+    }
+}
@@ -6,6 +6,10 @@ public class KVConstants {
     public static final String GET_REQ  = "getreq";
     public static final String PUT_REQ  = "putreq";
     public static final String DEL_REQ  = "delreq";
+    public static final String SCAN_REQ = "scanreq";
+    public static final String MGET_REQ = "mgetreq";
+    public static final String MPUT_REQ = "mputreq";
+    public static final String MDEL_REQ = "mdelreq";
     public static final String RESP     = "resp";
     public static final String SUCCESS  = "Success";
 
@@ -50,6 +54,14 @@ public class KVConstants {
     public static final String ERROR_SOCKET_TIMEOUT =
         "Network Error: Socket timeout";
 
+    /**
+     * Error message used if a server has no thread left for another
+     * persistent connection. Its requests can still be sent one per
+     * connection.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Network Error: No room for another persistent connection";
+
     /**
      * Error message used if any exception arises from the usage of libraries to
      * serialize or deserialize KVMessages. This may include parsers,
@@ -106,4 +118,25 @@ public class KVConstants {
     public static final String ERROR_INVALID_VALUE =
         "Data Error: Null or empty value";
 
+    /**
+     * Error message used if a disk-backed store fails to read or write its
+     * files.
+     */
+    public static final String ERROR_STORAGE =
+        "Storage Error: Could not access disk";
+
+    /**
+     * Error message used if a scan request reaches a server whose store
+     * does not keep its keys in order.
+     */
+    public static final String ERROR_SCAN_UNSUPPORTED =
+        "Data Error: Store does not support scans";
+
+    /**
+     * Error message used if a put asks for a time-to-live that is not
+     * positive.
+     */
+    public static final String ERROR_INVALID_TTL =
+        "Data Error: Invalid TTL";
+
 }
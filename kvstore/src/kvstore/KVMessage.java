@@ -5,22 +5,19 @@ import static kvstore.KVConstants.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
-import javax.xml.bind.JAXBContext;
-import javax.xml.bind.JAXBElement;
-import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
-import javax.xml.parsers.*;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
-import kvstore.xml.KVMessageType;
-import kvstore.xml.ObjectFactory;
-
 import org.w3c.dom.*;
-import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 /**
@@ -33,6 +30,9 @@ public class KVMessage implements Serializable {
     private String key;
     private String value;
     private String message;
+    /* time-to-live of a put, in milliseconds; 0 if the key never expires */
+    private long ttl;
+    private ArrayList<Map.Entry<String, String>> pairs;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
@@ -81,14 +81,7 @@ public class KVMessage implements Serializable {
     public KVMessage(Socket sock, int timeout) throws KVException {
         try {
             sock.setSoTimeout(timeout);
-            NoCloseInputStream in = new NoCloseInputStream(sock.getInputStream());
-            KVMessageType serializedKvm = this.unmarshal(in);
-            this.msgType = serializedKvm.getType();
-            this.key = serializedKvm.getKey();
-            this.value = serializedKvm.getValue();
-            this.message = serializedKvm.getMessage();
-        } catch (JAXBException e) {
-            throw new KVException(KVConstants.ERROR_PARSER);
+            readFrom(sock.getInputStream());
         } catch (SocketTimeoutException e) {
             throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
         } catch (IOException e) {
@@ -96,6 +89,32 @@ public class KVMessage implements Serializable {
         }
     }
 
+    /**
+     * Construct KVMessage from XML in the InputStream of a socket that has
+     * already been read from, e.g. through a stream that pushed back what
+     * ServerClientHandler looked at to tell XML from BinaryProtocol.
+     *
+     * @param  in the rest of the socket's input; it is not closed
+     * @throws KVException with ERROR_PARSER as for KVMessage(Socket)
+     */
+    KVMessage(InputStream in) throws KVException {
+        readFrom(in);
+    }
+
+    private void readFrom(InputStream in) throws KVException {
+        try {
+            KVMessage read = KVMessageCodec.read(new NoCloseInputStream(in));
+            this.msgType = read.msgType;
+            this.key = read.key;
+            this.value = read.value;
+            this.message = read.message;
+            this.ttl = read.ttl;
+            this.pairs = read.pairs;
+        } catch (SAXException e) {
+            throw new KVException(KVConstants.ERROR_PARSER);
+        }
+    }
+
     /**
      * Constructs a KVMessage by copying another KVMessage.
      *
@@ -106,26 +125,31 @@ public class KVMessage implements Serializable {
         this.key = kvm.getKey();
         this.value = kvm.getValue();
         this.message = kvm.getMessage();
+        this.ttl = kvm.getTTL();
+        if (kvm.pairs != null)
+            this.pairs = new ArrayList<Map.Entry<String, String>>(kvm.pairs);
     }
     
 
     /**
-     * Validates and creates the KVMessageType XML root element for this KVMessage
+     * Checks that this KVMessage has the fields its type requires.
      *
-     * @throws JAXBException
      * @throws KVException
      */
-    private JAXBElement<KVMessageType> getXMLRoot() throws JAXBException, KVException {
-        ObjectFactory factory = new ObjectFactory();
-        KVMessageType xmlStore = factory.createKVMessageType();
+    void validate() throws KVException {
         boolean validKey = !isNullOrEmpty(key);
         boolean validValue = !isNullOrEmpty(value);
         boolean validMsg = !isNullOrEmpty(message);
         boolean isGetReq = KVConstants.GET_REQ.equals(msgType);
         boolean isPutReq = KVConstants.PUT_REQ.equals(msgType);
         boolean isDelReq = KVConstants.DEL_REQ.equals(msgType);
+        boolean isScanReq = KVConstants.SCAN_REQ.equals(msgType);
+        boolean isMputReq = KVConstants.MPUT_REQ.equals(msgType);
+        boolean isBatchReq = isMputReq || KVConstants.MGET_REQ.equals(msgType)
+                || KVConstants.MDEL_REQ.equals(msgType);
         boolean isResp = KVConstants.RESP.equals(msgType);
-        boolean validMsgType = isGetReq || isPutReq || isDelReq || isResp;
+        boolean validMsgType = isGetReq || isPutReq || isDelReq || isScanReq
+                || isBatchReq || isResp;
 
         if (!validMsgType) {
             throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
@@ -135,18 +159,30 @@ public class KVMessage implements Serializable {
             throw new KVException(KVConstants.ERROR_INVALID_KEY);
         } else if (isPutReq && !validValue) {
             throw new KVException(KVConstants.ERROR_INVALID_VALUE);
+        } else if (ttl < 0) {
+            throw new KVException(KVConstants.ERROR_INVALID_TTL);
+        } else if (ttl != 0 && !isPutReq) {
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         } else if (isDelReq && !validKey) {
             throw new KVException(KVConstants.ERROR_INVALID_KEY);
+        } else if (isScanReq && !validMsg) {
+            // the page size
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if (isBatchReq) {
+            // the keys, and values for mput, are in the pairs
+            if (getPairs().isEmpty())
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            for (Map.Entry<String, String> pair : getPairs()) {
+                if (isNullOrEmpty(pair.getKey()))
+                    throw new KVException(KVConstants.ERROR_INVALID_KEY);
+                if (isMputReq && isNullOrEmpty(pair.getValue()))
+                    throw new KVException(KVConstants.ERROR_INVALID_VALUE);
+            }
         } else if (isResp) {
             // either message is set or key/value
             if (!validMsg && !(validKey && validValue))
                 throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
-        xmlStore.setKey(key);
-        xmlStore.setValue(value);
-        xmlStore.setType(msgType);
-        xmlStore.setMessage(message);
-        return factory.createKVMessage(xmlStore);
     }
 
     private boolean isNullOrEmpty(String s) {
@@ -159,49 +195,23 @@ public class KVMessage implements Serializable {
      *
      * @return the XML string representation of this KVMessage
      * @throws KVException
-     *             with ERROR_INVALID_FORMAT or ERROR_PARSER
+     *             with ERROR_INVALID_FORMAT
      */
     public String toXML() throws KVException {
-        ByteArrayOutputStream os = new ByteArrayOutputStream();
-        try {
-            marshalTo(os);
-        }
-        catch (KVException e) {
-            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
-        }
-        catch (JAXBException e) {
-            throw new KVException(KVConstants.ERROR_PARSER);
-        }
-        return os.toString();
+        return encode().toString();
     }
 
-    /**
-     * Grab XML from an InputStream and create a KVMessageType object.
-     *
-     * @param is InputStream to get XML from
-     * @return KVMessageType from XML
-     * @throws JAXBException
-     */
-    private KVMessageType unmarshal(InputStream is) throws JAXBException {
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = jc.createUnmarshaller();
-        return ((JAXBElement<KVMessageType>)unmarshaller.unmarshal(is)).getValue();
-    }
-
-    /**
-     * Export XML from this KVMessage object and marshal it to the OutputStream
-     * @param os OutputStream to marshal to
-     * @throws JAXBException
-     * @throws KVException
+    /*
+     * Validates this message and writes it into the thread's codec buffer.
      */
-    private void marshalTo(OutputStream os) throws JAXBException, KVException {
-        JAXBContext jc = JAXBContext.newInstance(KVMessageType.class);
-        Marshaller marshaller = jc.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.marshal(getXMLRoot(), os);
+    private KVMessageCodec.Output encode() throws KVException {
+        try {
+            validate();
+        } catch (KVException e) {
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        }
+        return KVMessageCodec.write(this);
     }
-    
 
     /**
      * Send serialized version of this KVMessage over the network.
@@ -211,14 +221,14 @@ public class KVMessage implements Serializable {
      * as well as the OutputStream, preventing the receipt of a response.
      *
      * @param  sock Socket to send XML through
-     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     * @throws KVException with ERROR_INVALID_FORMAT or
      *         ERROR_COULD_NOT_SEND_DATA
      */
     public void sendMessage(Socket sock) throws KVException {
         try {
-            String serializedXml = this.toXML();
-            PrintWriter out = new PrintWriter(sock.getOutputStream(), true);
-            out.print(serializedXml);
+            KVMessageCodec.Output xml = encode();
+            OutputStream out = sock.getOutputStream();
+            xml.writeTo(out);
             out.flush();
             sock.shutdownOutput();
         } catch (IOException e) {
@@ -228,6 +238,78 @@ public class KVMessage implements Serializable {
         }
     }
 
+    /**
+     * Sends a get response whose value is already UTF-8, e.g. a view from
+     * ValueLogKVStore.getMapped, without decoding it into a String. Runs of
+     * the value go from the buffer to the socket as they are, with only the
+     * characters XML requires escaped between them. Like sendMessage, this
+     * shuts down the socket's output when done.
+     *
+     * @param  sock Socket to send XML through
+     * @param  key the key that was asked for
+     * @param  value the value's bytes, from its position to its limit
+     * @throws KVException with ERROR_INVALID_KEY or ERROR_COULD_NOT_SEND_DATA
+     */
+    public static void sendValue(Socket sock, String key, ByteBuffer value)
+            throws KVException {
+        if (key == null || key.trim().length() == 0)
+            throw new KVException(KVConstants.ERROR_INVALID_KEY);
+        try {
+            // sockets from a plain ServerSocket have no channel of their own
+            BufferedOutputStream buffered = (sock.getChannel() != null) ? null
+                    : new BufferedOutputStream(sock.getOutputStream());
+            WritableByteChannel out = (buffered == null) ? sock.getChannel()
+                    : Channels.newChannel(buffered);
+            writeFully(out, ByteBuffer.wrap(VALUE_RESP_HEAD));
+            writeEscaped(out, ByteBuffer.wrap(key.getBytes(SlabAllocator.UTF8)));
+            writeFully(out, ByteBuffer.wrap(VALUE_RESP_MIDDLE));
+            writeEscaped(out, value.duplicate());
+            writeFully(out, ByteBuffer.wrap(VALUE_RESP_TAIL));
+            if (buffered != null)
+                buffered.flush();
+            sock.shutdownOutput();
+        } catch (IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    private static final byte[] VALUE_RESP_HEAD = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<KVMessage type=\"" + RESP + "\"><Key>").getBytes(SlabAllocator.UTF8);
+    private static final byte[] VALUE_RESP_MIDDLE = "</Key><Value>".getBytes(SlabAllocator.UTF8);
+    private static final byte[] VALUE_RESP_TAIL = "</Value></KVMessage>".getBytes(SlabAllocator.UTF8);
+
+    /*
+     * Writes UTF-8 text as XML character data. The bytes of multi-byte
+     * characters are all 0x80 or above, so only single bytes need a look.
+     */
+    private static void writeEscaped(WritableByteChannel out, ByteBuffer text)
+            throws IOException {
+        int run = text.position();
+        int end = text.limit();
+        for (int i = run; i < end; i++) {
+            String entity;
+            switch (text.get(i)) {
+            case '&': entity = "&amp;"; break;
+            case '<': entity = "&lt;"; break;
+            case '>': entity = "&gt;"; break;
+            case '\r': entity = "&#13;"; break;
+            default: continue;
+            }
+            text.limit(i).position(run);
+            writeFully(out, text);
+            text.limit(end);
+            writeFully(out, ByteBuffer.wrap(entity.getBytes(SlabAllocator.UTF8)));
+            run = i + 1;
+        }
+        text.position(run);
+        writeFully(out, text);
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining())
+            out.write(buf);
+    }
+
     public String getKey() {
         return key;
     }
@@ -252,10 +334,47 @@ public class KVMessage implements Serializable {
         this.message = message;
     }
 
+    /**
+     * @return the time-to-live of a put request in milliseconds, or 0 if
+     *         the key should never expire
+     */
+    public long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Sets how long the key of a put request lives before it expires.
+     *
+     * @param ttl milliseconds, or 0 for no expiry
+     */
+    public void setTTL(long ttl) {
+        this.ttl = ttl;
+    }
+
     public String getMsgType() {
         return msgType;
     }
 
+    /**
+     * @return the key-value pairs carried by this message, such as a page of
+     *         scan results, in order; empty if there are none
+     */
+    public List<Map.Entry<String, String>> getPairs() {
+        if (pairs == null)
+            pairs = new ArrayList<Map.Entry<String, String>>();
+        return pairs;
+    }
+
+    /**
+     * Appends a key-value pair to this message.
+     *
+     * @param key String key
+     * @param value String value
+     */
+    public void addPair(String key, String value) {
+        getPairs().add(new AbstractMap.SimpleImmutableEntry<String, String>(key, value));
+    }
+
     @Override
     public String toString() {
         try {
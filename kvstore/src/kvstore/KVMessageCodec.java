@@ -0,0 +1,675 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Reads and writes the KVMessage element of kvstore.xsd without JAXB, so
+ * no KVMessageType tree is built in between. Both sides go through a byte
+ * buffer each thread keeps and reuses.
+ *
+ * Reading takes in the stream to its end, as the JAXB reader did, and
+ * scans the bytes by hand when they are what KVMessage and other plain
+ * writers produce: UTF-8 with elements, text and the predefined entities.
+ * Anything else, such as another encoding, a DTD, comments or CDATA, and
+ * anything that may not be well-formed, goes through the SAX parser JAXB
+ * used instead, which decides what is an error.
+ *
+ * Either way reading is as lenient as the JAXB binding it replaces:
+ * children may come in any order, the last of a repeated one wins, unknown
+ * elements and a TTL that is not a number are ignored, and a missing type
+ * attribute gives a null type. What is not well-formed XML, has a root
+ * other than KVMessage or cannot be read is a SAXException.
+ */
+final class KVMessageCodec {
+
+    /* the parser JAXB used; a SAXParser is not thread-safe */
+    private static final ThreadLocal<SAXParser> parsers = new ThreadLocal<SAXParser>() {
+        @Override
+        protected SAXParser initialValue() {
+            SAXParserFactory factory = SAXParserFactory.newInstance();
+            factory.setNamespaceAware(true);
+            try {
+                return factory.newSAXParser();
+            } catch (ParserConfigurationException e) {
+                throw new IllegalStateException(e);
+            } catch (SAXException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private static final ThreadLocal<Input> inputBuffers = new ThreadLocal<Input>() {
+        @Override
+        protected Input initialValue() {
+            return new Input();
+        }
+    };
+
+    private static final ThreadLocal<Output> outputs = new ThreadLocal<Output>() {
+        @Override
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    private KVMessageCodec() {
+    }
+
+    /**
+     * Reads one KVMessage document from in, up to the end of the stream.
+     *
+     * @param  in the stream to read; it is not closed
+     * @return the message, unvalidated
+     * @throws SAXException if in does not hold a KVMessage document or
+     *         cannot be read
+     */
+    static KVMessage read(InputStream in) throws SAXException {
+        Input input = inputBuffers.get();
+        try {
+            input.readAll(in);
+        } catch (IOException e) {
+            // JAXB reported a failed read as a parse error as well
+            throw new SAXException(e);
+        }
+        KVMessage msg = new Scanner(input.buf, input.count).scan();
+        if (msg == null)
+            msg = parse(new ByteArrayInputStream(input.buf, 0, input.count));
+        return msg;
+    }
+
+    /* Reads a document of any form the SAX parser accepts. */
+    private static KVMessage parse(InputStream in) throws SAXException {
+        Handler handler = new Handler();
+        try {
+            parsers.get().parse(in, handler);
+        } catch (IOException e) {
+            throw new SAXException(e);
+        }
+        return handler.msg;
+    }
+
+    /*
+     * Fills in a KVMessage from SAX events. Like JAXB, it takes from each
+     * child only the text directly inside it, and sets the field again for
+     * each run of text an element nested in it ends, so that mostly the
+     * last run counts.
+     */
+    private static final class Handler extends DefaultHandler {
+        KVMessage msg;
+        private int depth;
+        private boolean inPair;
+        private String pairKey;
+        private String pairValue;
+        /* the element whose text is being collected, and its depth */
+        private String field;
+        private int fieldDepth;
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                Attributes attributes) throws SAXException {
+            depth++;
+            if (depth == 1) {
+                if (!"KVMessage".equals(localName) || uri.length() > 0)
+                    throw new SAXException("unexpected element " + qName);
+                msg = new KVMessage(attributes.getValue("", "type"));
+            } else if (field != null) {
+                // like JAXB, take the text so far, then start over
+                set(field, text.toString());
+                text.setLength(0);
+            } else {
+                if (depth == 2 && "KVPair".equals(localName)) {
+                    inPair = true;
+                    pairKey = null;
+                    pairValue = null;
+                } else if (depth == 2 || (depth == 3 && inPair)) {
+                    field = localName;
+                    fieldDepth = depth;
+                    text.setLength(0);
+                }
+            }
+        }
+
+        @Override
+        public void characters(char[] ch, int start, int length) {
+            if (field != null && depth == fieldDepth)
+                text.append(ch, start, length);
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (field != null && depth == fieldDepth) {
+                set(field, text.toString());
+                field = null;
+            } else if (depth == 2 && inPair) {
+                msg.addPair(pairKey, pairValue);
+                inPair = false;
+            }
+            depth--;
+        }
+
+        private void set(String name, String value) {
+            if (inPair) {
+                if ("Key".equals(name))
+                    pairKey = value;
+                else if ("Value".equals(name))
+                    pairValue = value;
+            } else if ("Key".equals(name)) {
+                msg.setKey(value);
+            } else if ("Value".equals(name)) {
+                msg.setValue(value);
+            } else if ("Message".equals(name)) {
+                msg.setMessage(value);
+            } else if ("TTL".equals(name)) {
+                try {
+                    msg.setTTL(Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    // JAXB dropped what was not an xsd:long
+                }
+            }
+        }
+    }
+
+    /*
+     * The bytes of the last document a thread read. One that grew past
+     * RETAINED bytes for a large message is not kept for the next one.
+     */
+    private static final class Input {
+        private byte[] buf = new byte[Output.INITIAL];
+        private int count;
+
+        void readAll(InputStream in) throws IOException {
+            if (buf.length > Output.RETAINED)
+                buf = new byte[Output.INITIAL];
+            count = 0;
+            while (true) {
+                if (count == buf.length) {
+                    byte[] bigger = new byte[2 * buf.length];
+                    System.arraycopy(buf, 0, bigger, 0, count);
+                    buf = bigger;
+                }
+                int n = in.read(buf, count, buf.length - count);
+                if (n < 0)
+                    return;
+                count += n;
+            }
+        }
+    }
+
+    /*
+     * Scans the documents KVMessage writes, and others written as plainly:
+     * at most the usual UTF-8 XML declaration, a KVMessage root with only a
+     * type attribute, and the schema's elements holding text, in which
+     * carriage returns and control characters are escaped. scan returns
+     * null on anything else, well-formed or not, for parse to decide.
+     */
+    private static final class Scanner {
+        private static final byte[] DECLARATION = ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"");
+        private static final byte[] DECLARATION_END = ascii("?>");
+        private static final byte[] STANDALONE_YES = ascii(" standalone=\"yes\"");
+        private static final byte[] STANDALONE_NO = ascii(" standalone=\"no\"");
+        private static final byte[] ROOT = ascii("<KVMessage");
+        private static final byte[] TYPE = ascii("type");
+        private static final byte[] ROOT_END = ascii("</KVMessage");
+        private static final byte[] PAIR_END = ascii("</KVPair");
+        private static final byte[][] NAMES = {
+            ascii("Key"), ascii("Value"), ascii("Message"), ascii("TTL"), ascii("KVPair") };
+        private static final int KEY = 0, VALUE = 1, MESSAGE = 2, TTL = 3, PAIR = 4;
+
+        private final byte[] b;
+        private final int end;
+        private int pos;
+        private char[] chars = new char[64];
+
+        Scanner(byte[] b, int end) {
+            this.b = b;
+            this.end = end;
+        }
+
+        KVMessage scan() {
+            if (skip(DECLARATION)) {
+                if (!skip(STANDALONE_YES))
+                    skip(STANDALONE_NO);
+                if (!skip(DECLARATION_END))
+                    return null;
+            }
+            skipSpace();
+            if (!skip(ROOT))
+                return null;
+            String type = null;
+            while (true) {
+                boolean spaced = skipSpace();
+                if (pos >= end)
+                    return null;
+                if (b[pos] == '>' || b[pos] == '/')
+                    break;
+                if (!spaced || type != null || !skip(TYPE))
+                    return null;
+                skipSpace();
+                if (!skip('='))
+                    return null;
+                skipSpace();
+                if (pos >= end || (b[pos] != '"' && b[pos] != '\''))
+                    return null;
+                type = text(b[pos++]);
+                if (type == null)
+                    return null;
+            }
+            KVMessage msg = new KVMessage(type);
+            if (!skip('/')) {
+                skip('>');
+                while (true) {
+                    skipSpace();
+                    if (skip(ROOT_END))
+                        break;
+                    int name = startTag();
+                    if (name < 0)
+                        return null;
+                    if (name == PAIR) {
+                        if (!pair(msg))
+                            return null;
+                        continue;
+                    }
+                    String text = content(name);
+                    if (text == null)
+                        return null;
+                    if (name == KEY) {
+                        msg.setKey(text);
+                    } else if (name == VALUE) {
+                        msg.setValue(text);
+                    } else if (name == MESSAGE) {
+                        msg.setMessage(text);
+                    } else {
+                        try {
+                            msg.setTTL(Long.parseLong(text.trim()));
+                        } catch (NumberFormatException e) {
+                            // JAXB dropped what was not an xsd:long
+                        }
+                    }
+                }
+                skipSpace();
+            }
+            if (!skip('>'))
+                return null;
+            skipSpace();
+            return (pos == end) ? msg : null;
+        }
+
+        /* Reads the rest of a KVPair after its start tag. */
+        private boolean pair(KVMessage msg) {
+            if (b[pos - 2] == '/') {
+                msg.addPair(null, null);
+                return true;
+            }
+            String key = null;
+            String value = null;
+            while (true) {
+                skipSpace();
+                if (skip(PAIR_END))
+                    break;
+                int name = startTag();
+                if (name != KEY && name != VALUE)
+                    return false;
+                String text = content(name);
+                if (text == null)
+                    return false;
+                if (name == KEY)
+                    key = text;
+                else
+                    value = text;
+            }
+            skipSpace();
+            if (!skip('>'))
+                return false;
+            msg.addPair(key, value);
+            return true;
+        }
+
+        /*
+         * Reads a start tag of one of NAMES, or an empty element tag, and
+         * returns the index of its name or -1.
+         */
+        private int startTag() {
+            if (!skip('<'))
+                return -1;
+            for (int i = 0; i < NAMES.length; i++) {
+                if (skip(NAMES[i])) {
+                    if (skip('>'))
+                        return i;
+                    if (skip('/') && skip('>'))
+                        return i;
+                    return -1;
+                }
+            }
+            return -1;
+        }
+
+        /*
+         * Reads the text after the start tag of NAMES[name] and its end tag,
+         * or returns null if there is anything but text in between.
+         */
+        private String content(int name) {
+            if (b[pos - 2] == '/')
+                return "";
+            String text = text((byte) '<');
+            if (text == null || !skip('<') || !skip('/') || !skip(NAMES[name]))
+                return null;
+            skipSpace();
+            return skip('>') ? text : null;
+        }
+
+        /*
+         * Decodes UTF-8 text up to the byte until, which is consumed if it
+         * is a quote. Returns null on a malformed sequence, a character XML
+         * does not allow, a carriage return, which XML would normalize, an
+         * entity other than the predefined ones and character references,
+         * or "]]>"; and in attribute values on whitespace other than space
+         * and on '<'.
+         */
+        private String text(byte until) {
+            boolean attribute = until != '<';
+            int n = 0;
+            while (true) {
+                if (pos >= end)
+                    return null;
+                int c = b[pos] & 0xff;
+                if (c == until) {
+                    if (attribute)
+                        pos++;
+                    return new String(chars, 0, n);
+                }
+                if (n + 2 > chars.length) {
+                    char[] bigger = new char[2 * chars.length];
+                    System.arraycopy(chars, 0, bigger, 0, n);
+                    chars = bigger;
+                }
+                if (c < 0x80) {
+                    if (c < 0x20 && (attribute || (c != '\t' && c != '\n')))
+                        return null;
+                    if (c == '<')
+                        return null;
+                    if (c == '>' && n >= 2 && chars[n - 1] == ']' && chars[n - 2] == ']')
+                        return null;
+                    if (c == '&') {
+                        int ref = reference();
+                        if (ref < 0)
+                            return null;
+                        n += Character.toChars(ref, chars, n);
+                        continue;
+                    }
+                    chars[n++] = (char) c;
+                    pos++;
+                    continue;
+                }
+                int cp = decode(c);
+                if (cp < 0)
+                    return null;
+                n += Character.toChars(cp, chars, n);
+            }
+        }
+
+        /* Decodes the multi-byte UTF-8 sequence at pos, or returns -1. */
+        private int decode(int lead) {
+            int more;
+            int cp;
+            int min;
+            if (lead >= 0xc2 && lead <= 0xdf) {
+                more = 1; cp = lead & 0x1f; min = 0x80;
+            } else if (lead >= 0xe0 && lead <= 0xef) {
+                more = 2; cp = lead & 0x0f; min = 0x800;
+            } else if (lead >= 0xf0 && lead <= 0xf4) {
+                more = 3; cp = lead & 0x07; min = 0x10000;
+            } else {
+                return -1;
+            }
+            if (pos + more >= end)
+                return -1;
+            for (int i = 1; i <= more; i++) {
+                int c = b[pos + i] & 0xff;
+                if ((c & 0xc0) != 0x80)
+                    return -1;
+                cp = (cp << 6) | (c & 0x3f);
+            }
+            if (cp < min || !isChar(cp))
+                return -1;
+            pos += more + 1;
+            return cp;
+        }
+
+        /* Reads the reference at pos and returns its character, or -1. */
+        private int reference() {
+            int semi = pos + 1;
+            while (semi < end && semi - pos < 12 && b[semi] != ';')
+                semi++;
+            if (semi >= end || b[semi] != ';')
+                return -1;
+            String ref = new String(b, pos + 1, semi - pos - 1, SlabAllocator.UTF8);
+            int c;
+            if (ref.equals("lt")) {
+                c = '<';
+            } else if (ref.equals("gt")) {
+                c = '>';
+            } else if (ref.equals("amp")) {
+                c = '&';
+            } else if (ref.equals("quot")) {
+                c = '"';
+            } else if (ref.equals("apos")) {
+                c = '\'';
+            } else if (ref.startsWith("#x") && ref.length() > 2) {
+                c = number(ref.substring(2), 16);
+            } else if (ref.startsWith("#") && ref.length() > 1) {
+                c = number(ref.substring(1), 10);
+            } else {
+                return -1;
+            }
+            if (c < 0 || !isChar(c))
+                return -1;
+            pos = semi + 1;
+            return c;
+        }
+
+        private static int number(String digits, int radix) {
+            for (int i = 0; i < digits.length(); i++) {
+                if (Character.digit(digits.charAt(i), radix) < 0 || digits.charAt(i) > 'f')
+                    return -1;
+            }
+            try {
+                return Integer.parseInt(digits, radix);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        /* Whether XML 1.0 allows the character at all. */
+        private static boolean isChar(int c) {
+            return c == 0x9 || c == 0xa || c == 0xd || (c >= 0x20 && c <= 0xd7ff)
+                    || (c >= 0xe000 && c <= 0xfffd) || (c >= 0x10000 && c <= 0x10ffff);
+        }
+
+        private boolean skipSpace() {
+            int start = pos;
+            while (pos < end && (b[pos] == ' ' || b[pos] == '\n' || b[pos] == '\t' || b[pos] == '\r'))
+                pos++;
+            return pos > start;
+        }
+
+        private boolean skip(char c) {
+            if (pos < end && b[pos] == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean skip(byte[] s) {
+            if (pos + s.length > end)
+                return false;
+            for (int i = 0; i < s.length; i++) {
+                if (b[pos + i] != s[i])
+                    return false;
+            }
+            pos += s.length;
+            return true;
+        }
+
+        private static byte[] ascii(String s) {
+            return s.getBytes(SlabAllocator.UTF8);
+        }
+    }
+
+    /**
+     * Encodes msg, which the caller has validated, into this thread's
+     * buffer. The result is only good until the thread encodes again.
+     *
+     * @param  msg the message to write
+     * @return the encoded document
+     */
+    static Output write(KVMessage msg) {
+        Output out = outputs.get();
+        out.reset();
+        out.ascii("<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVMessage type=\"");
+        out.escaped(msg.getMsgType(), true);
+        out.ascii("\">");
+        out.element("Key", msg.getKey());
+        out.element("Value", msg.getValue());
+        out.element("Message", msg.getMessage());
+        if (msg.getTTL() != 0)
+            out.element("TTL", Long.toString(msg.getTTL()));
+        for (Map.Entry<String, String> pair : msg.getPairs()) {
+            out.ascii("<KVPair>");
+            out.element("Key", pair.getKey());
+            out.element("Value", pair.getValue());
+            out.ascii("</KVPair>");
+        }
+        out.ascii("</KVMessage>");
+        return out;
+    }
+
+    /**
+     * A growable UTF-8 buffer. One that grew past RETAINED bytes for a
+     * large message is not kept for the next one.
+     */
+    static final class Output {
+        private static final int INITIAL = 512;
+        private static final int RETAINED = 64 * 1024;
+
+        private byte[] buf = new byte[INITIAL];
+        private int count;
+
+        /**
+         * @return the number of bytes written
+         */
+        int length() {
+            return count;
+        }
+
+        /**
+         * Writes the buffer's bytes to out.
+         *
+         * @param  out the stream to write to
+         * @throws IOException if out does
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(buf, 0, count);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, 0, count, SlabAllocator.UTF8);
+        }
+
+        private void reset() {
+            if (buf.length > RETAINED)
+                buf = new byte[INITIAL];
+            count = 0;
+        }
+
+        private void element(String name, String text) {
+            if (text == null)
+                return;
+            put('<');
+            ascii(name);
+            put('>');
+            escaped(text, false);
+            put('<');
+            put('/');
+            ascii(name);
+            put('>');
+        }
+
+        private void ascii(String s) {
+            for (int i = 0; i < s.length(); i++)
+                put(s.charAt(i));
+        }
+
+        /* Writes s as character data, or as an attribute value if attribute. */
+        private void escaped(String s, boolean attribute) {
+            int n = s.length();
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (count + 6 > buf.length)
+                    grow(6);
+                if (c < 0x80) {
+                    switch (c) {
+                    case '&': ascii("&amp;"); break;
+                    case '<': ascii("&lt;"); break;
+                    case '>': ascii("&gt;"); break;
+                    case '\r': ascii("&#xD;"); break;
+                    case '"':
+                        if (attribute) ascii("&quot;"); else buf[count++] = (byte) c;
+                        break;
+                    case '\n':
+                        if (attribute) ascii("&#xA;"); else buf[count++] = (byte) c;
+                        break;
+                    case '\t':
+                        if (attribute) ascii("&#x9;"); else buf[count++] = (byte) c;
+                        break;
+                    default:
+                        buf[count++] = (byte) c;
+                    }
+                } else if (c < 0x800) {
+                    buf[count++] = (byte) (0xc0 | (c >> 6));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < n
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[count++] = (byte) (0xf0 | (cp >> 18));
+                    buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (cp & 0x3f));
+                } else if (Character.isSurrogate(c)) {
+                    // unpaired, replaced as String.getBytes would
+                    buf[count++] = '?';
+                } else {
+                    buf[count++] = (byte) (0xe0 | (c >> 12));
+                    buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[count++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+        }
+
+        private void put(char c) {
+            if (count == buf.length)
+                grow(1);
+            buf[count++] = (byte) c;
+        }
+
+        private void grow(int needed) {
+            byte[] bigger = new byte[Math.max(count + needed, 2 * buf.length)];
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+        }
+    }
+}
@@ -1,21 +1,79 @@
 package kvstore;
 
+import static kvstore.KVConstants.ERROR_INVALID_TTL;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
+import static kvstore.KVConstants.ERROR_SCAN_UNSUPPORTED;
+import static kvstore.KVConstants.ERROR_STORAGE;
 import static kvstore.KVConstants.RESP;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 
 /**
  * This class services all storage logic for an individual key-value server.
  * All KVServer request on keys from different sets must be parallel while
  * requests on keys from the same set should be serial. A write-through
- * policy should be followed when a put request is made.
+ * policy should be followed when a put request is made. Cache hits are
+ * served optimistically without the set lock; see KVCache.optimisticGet.
+ * Keys put with a time-to-live are treated as missing once it has passed,
+ * and a timing wheel deletes them soon after.
  */
 public class KVServer implements KeyValueInterface {
 
-    private KVStore dataStore;
+    private KeyValueInterface dataStore;
     private KVCache dataCache;
+    private AdmissionFilter admissionFilter;
+    /* dataStore, when it keeps values in the cache's allocator */
+    private OffHeapKVStore sharedStore;
+    /* dataStore, when it keeps large values in a mapped log */
+    private ValueLogKVStore valueLog;
+    private WriteAheadLog wal;
+    /* pending expiry of each key put with a TTL; changed under the set lock */
+    private final ConcurrentHashMap<String, Expiry> expiries =
+            new ConcurrentHashMap<String, Expiry>();
+    /* started by the first put with a TTL */
+    private volatile TimingWheel expiryWheel;
+
+    private final StripedCounter cacheHits = new StripedCounter();
+    private final StripedCounter cacheMisses = new StripedCounter();
+    private final StripedCounter rejectedFills = new StripedCounter();
+    private final StripedCounter expiredKeys = new StripedCounter();
+    private final HotKeySketch hotKeys = new HotKeySketch(HOT_KEYS, HOT_KEY_SAMPLE_RATE);
+
+    /* lets a fill use free room in its set but never evict for it */
+    private static final AdmissionFilter REJECT_ALL = new AdmissionFilter() {
+        @Override
+        public void recordAccess(String key) {
+        }
+
+        @Override
+        public boolean admit(String candidate, String victim) {
+            return false;
+        }
+    };
+
+    private static final int HOT_KEYS = 32;
+    private static final int HOT_KEY_SAMPLE_RATE = 64;
+
+    private static final long EXPIRY_TICK_MILLIS = 10;
 
     private static final int MAX_KEY_SIZE = 256;
     private static final int MAX_VAL_SIZE = 256 * 1024;
@@ -32,31 +90,237 @@ public class KVServer implements KeyValueInterface {
         this.dataStore = new KVStore();
     }
 
+    /**
+     * Constructs a KVServer whose read-through cache fills are guarded by an
+     * admission filter, e.g. a TinyLFUFilter sized for numSets*maxElemsPerSet.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param filter decides which store reads may evict cached entries;
+     *        null admits every read
+     */
+    public KVServer(int numSets, int maxElemsPerSet, AdmissionFilter filter) {
+        this(numSets, maxElemsPerSet, CachePolicy.SECOND_CHANCE, filter);
+    }
+
+    /**
+     * Constructs a KVServer whose data cache evicts with the given policy.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy the replacement policy of every cache set
+     */
+    public KVServer(int numSets, int maxElemsPerSet, CachePolicy policy) {
+        this(numSets, maxElemsPerSet, policy, null);
+    }
+
+    /**
+     * Constructs a KVServer with both a cache policy and an admission filter.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy the replacement policy of every cache set
+     * @param filter decides which store reads may evict cached entries;
+     *        null admits every read
+     */
+    public KVServer(int numSets, int maxElemsPerSet, CachePolicy policy,
+            AdmissionFilter filter) {
+        this.dataCache = new KVCache(numSets, maxElemsPerSet, policy);
+        this.dataStore = new KVStore();
+        this.admissionFilter = filter;
+    }
+
+    /**
+     * Constructs a KVServer in front of a cache the caller has configured,
+     * e.g. one bounded by a byte budget.
+     *
+     * @param cache the data cache to serve from
+     * @param filter decides which store reads may evict cached entries;
+     *        null admits every read
+     */
+    public KVServer(KVCache cache, AdmissionFilter filter) {
+        this(cache, new KVStore(), filter);
+    }
+
+    /**
+     * Constructs a KVServer over any store, e.g. an OffHeapKVStore, with the
+     * given cache in front of it. If the store is an OffHeapKVStore using the
+     * same SlabAllocator as the cache, cached entries reference the store's
+     * copy of each value instead of keeping their own. If the store is a
+     * ValueLogKVStore, the values it logs are left out of the cache and
+     * getMapped serves them from the log.
+     *
+     * @param cache the data cache to serve from
+     * @param store the store to write through to and fill the cache from
+     * @param filter decides which store reads may evict cached entries;
+     *        null admits every read
+     */
+    public KVServer(KVCache cache, KeyValueInterface store, AdmissionFilter filter) {
+        this.dataCache = cache;
+        this.dataStore = store;
+        this.admissionFilter = filter;
+        if (store instanceof OffHeapKVStore && cache.getAllocator() != null
+                && cache.getAllocator() == ((OffHeapKVStore) store).getAllocator())
+            this.sharedStore = (OffHeapKVStore) store;
+        if (store instanceof ValueLogKVStore)
+            this.valueLog = (ValueLogKVStore) store;
+    }
+
+    /**
+     * Constructs a KVServer whose writes are made durable in a write-ahead
+     * log before they are acknowledged. The log is first replayed into the
+     * store, recovering writes made since the store was last saved; the
+     * store should therefore be empty or hold that saved copy. Recovered
+     * keys put with a TTL expire at their original deadlines, and those
+     * whose deadline passed while the server was down are deleted.
+     *
+     * @param cache the data cache to serve from
+     * @param store the store to write through to and fill the cache from
+     * @param filter decides which store reads may evict cached entries;
+     *        null admits every read
+     * @param wal the log every put and del is appended to
+     * @throws IOException if the log cannot be replayed
+     */
+    public KVServer(KVCache cache, KeyValueInterface store, AdmissionFilter filter,
+            WriteAheadLog wal) throws IOException {
+        this(cache, store, filter);
+        Map<String, Long> deadlines = new HashMap<String, Long>();
+        wal.replay(store, deadlines);
+        this.wal = wal;
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> e : deadlines.entrySet()) {
+            long left = e.getValue() - now;
+            if (left > 0)
+                setExpiry(e.getKey(), TimeUnit.MILLISECONDS.toNanos(left));
+            else
+                removeExpired(e.getKey());
+        }
+    }
+
     /**
      * Performs put request on cache and store.
      *
      * @param  key String key
      * @param  value String value
-     * @throws KVException if key or value is too long
+     * @throws KVException if key or value is too long, or with ERROR_STORAGE
+     *         if the write-ahead log cannot be written
      */
     @Override
     public void put(String key, String value) throws KVException {
+        put(key, value, 0);
+    }
+
+    /**
+     * Performs put request for a key that expires after ttl. Until then the
+     * key behaves as if put without one; afterwards gets and dels find it
+     * missing. A later put of the key replaces its TTL, or removes it if
+     * made without one. The write-ahead log keeps each TTL as a wall-clock
+     * deadline, so keys recovered from it still expire on time.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @param  ttl how long the key lives
+     * @param  unit the unit of ttl
+     * @throws KVException with ERROR_INVALID_TTL if ttl is not positive, or
+     *         as put
+     */
+    public void put(String key, String value, long ttl, TimeUnit unit)
+            throws KVException {
+        if (ttl <= 0)
+            throw new KVException(ERROR_INVALID_TTL);
+        put(key, value, unit.toNanos(ttl));
+    }
+
+    /* A put that expires after ttlNanos, or never if it is 0. */
+    private void put(String key, String value, long ttlNanos) throws KVException {
+        checkSize(key, value);
+        if (admissionFilter != null)
+            admissionFilter.recordAccess(key);
+        hotKeys.offer(key);
+        Lock lock = dataCache.getLock(key);
+        long batch;
+        acquire(lock, key);
+        try {
+            batch = putLocked(key, value, ttlNanos);
+        } finally {
+            lock.unlock();
+        }
+        awaitDurable(batch);
+    }
+
+    /**
+     * Performs put requests for many pairs at once, taking each cache set's
+     * lock once for all the pairs in it. Every pair is checked before any
+     * is written, but the batch is not atomic: other requests may see some
+     * pairs written before the rest, and a storage error leaves the pairs
+     * written before it in place.
+     *
+     * @param  pairs the keys and values to put
+     * @throws KVException if any key or value is too long, or with
+     *         ERROR_STORAGE if the write-ahead log cannot be written
+     */
+    public void mput(Map<String, String> pairs) throws KVException {
+        for (Map.Entry<String, String> pair : pairs.entrySet())
+            checkSize(pair.getKey(), pair.getValue());
+        for (String key : pairs.keySet()) {
+            if (admissionFilter != null)
+                admissionFilter.recordAccess(key);
+            hotKeys.offer(key);
+        }
+        long batch = 0;
+        for (List<String> set : groupBySet(pairs.keySet())) {
+            Lock lock = dataCache.getLock(set.get(0));
+            acquire(lock, set.get(0));
+            try {
+                for (String key : set)
+                    batch = Math.max(batch, putLocked(key, pairs.get(key), 0));
+            } finally {
+                lock.unlock();
+            }
+        }
+        // the last batch is only on disk once every earlier one is
+        awaitDurable(batch);
+    }
+
+    private static void checkSize(String key, String value) throws KVException {
         // check if key/value is oversized.
         if (key.length() > 256)
             throw new KVException(ERROR_OVERSIZED_KEY);
         if (value.length() > 256 * 1024)
             throw new KVException(ERROR_OVERSIZED_VALUE);
+    }
 
-        Lock lock = dataCache.getLock(key);
-        lock.lock();
-        dataStore.put(key, value);
-        dataCache.put(key, value);
-        lock.unlock();
+    /*
+     * Writes a put through to the store and the cache, and returns its log
+     * batch, or 0 without a log. Assumes the key's set lock is held.
+     */
+    private long putLocked(String key, String value, long ttlNanos) throws KVException {
+        long batch = 0;
+        try {
+            if (wal != null && ttlNanos > 0)
+                batch = wal.appendPut(key, value, System.currentTimeMillis()
+                        + TimeUnit.NANOSECONDS.toMillis(ttlNanos + 999999));
+            else if (wal != null)
+                batch = wal.appendPut(key, value);
+            dataStore.put(key, value);
+            if (sharedStore != null)
+                dataCache.putRetained(key, sharedStore.retain(key));
+            else if (valueLog != null && valueLog.isLogged(value))
+                dataCache.del(key);
+            else
+                dataCache.put(key, value);
+            setExpiry(key, ttlNanos);
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+        return batch;
     }
 
     /**
      * Performs get request.
-     * Checks cache first. Updates cache if not in cache but located in store.
+     * Checks cache first, optimistically and then under the set lock if that
+     * read missed or raced with a writer. Updates cache if not in cache but
+     * located in store, subject to the admission filter if there is one.
      *
      * @param  key String key
      * @return String value associated with key
@@ -64,12 +328,28 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
+        if (admissionFilter != null)
+            admissionFilter.recordAccess(key);
+        hotKeys.offer(key);
+        checkExpiry(key);
+        String cached = dataCache.optimisticGet(key);
+        if (cached != null) {
+            cacheHits.increment();
+            return cached;
+        }
+
         Lock lock = dataCache.getLock(key);
         try {
-            lock.lock();
+            acquire(lock, key);
             String val = dataCache.get(key);
-            if (val == null)
-                return dataStore.get(key);
+            if (val != null) {
+                cacheHits.increment();
+                return val;
+            }
+            cacheMisses.increment();
+            val = fill(key, admissionFilter);
+            if (!dataCache.containsKey(key))
+                rejectedFills.increment();
             return val;
         } catch (KVException e) {
             throw e;
@@ -79,23 +359,395 @@ public class KVServer implements KeyValueInterface {
     }
 
     /**
-     * Performs del request.
+     * Performs get requests for many keys at once. Keys that are cached are
+     * read optimistically, as by get; the rest are grouped by cache set, and
+     * each set's lock is taken once for all the keys in it.
+     *
+     * @param  keys the keys to get
+     * @return the value of each key that exists, in the order of keys;
+     *         keys that do not exist are left out
+     * @throws KVException if the store fails other than by not having a key
+     */
+    public Map<String, String> mget(Collection<String> keys) throws KVException {
+        // placeholders keep the order of keys as values come in out of it
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        List<String> missed = new ArrayList<String>();
+        for (String key : keys) {
+            if (values.containsKey(key))
+                continue;
+            values.put(key, null);
+            if (admissionFilter != null)
+                admissionFilter.recordAccess(key);
+            hotKeys.offer(key);
+            if (reclaimIfExpired(key))
+                continue;
+            String cached = dataCache.optimisticGet(key);
+            if (cached != null) {
+                cacheHits.increment();
+                values.put(key, cached);
+            } else {
+                missed.add(key);
+            }
+        }
+
+        for (List<String> set : groupBySet(missed)) {
+            Lock lock = dataCache.getLock(set.get(0));
+            acquire(lock, set.get(0));
+            try {
+                for (String key : set) {
+                    String val = dataCache.get(key);
+                    if (val != null) {
+                        cacheHits.increment();
+                        values.put(key, val);
+                        continue;
+                    }
+                    cacheMisses.increment();
+                    try {
+                        val = fill(key, admissionFilter);
+                    } catch (KVException e) {
+                        if (!ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage()))
+                            throw e;
+                        continue;
+                    }
+                    if (!dataCache.containsKey(key))
+                        rejectedFills.increment();
+                    values.put(key, val);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        values.values().removeAll(Collections.singleton(null));
+        return values;
+    }
+
+    /*
+     * Splits keys by cache set, in set order and keeping their order within
+     * each set, so that a batch can take each set lock once.
+     */
+    private Collection<List<String>> groupBySet(Collection<String> keys) {
+        Map<Integer, List<String>> sets = new TreeMap<Integer, List<String>>();
+        for (String key : keys) {
+            Integer set = dataCache.getCacheSetForKey(key);
+            List<String> keysInSet = sets.get(set);
+            if (keysInSet == null) {
+                keysInSet = new ArrayList<String>();
+                sets.put(set, keysInSet);
+            }
+            keysInSet.add(key);
+        }
+        return sets.values();
+    }
+
+    /**
+     * Caches a key during warm-up, unless it is cached already. Unlike a
+     * get miss this never evicts, so it cannot push out entries that live
+     * traffic brought in; keys no longer in the store are skipped.
+     *
+     * @param  key the key to preload
+     * @return false if the key's set had no room for it
+     */
+    boolean warm(String key) {
+        Lock lock = dataCache.getLock(key);
+        try {
+            acquire(lock, key);
+            if (dataCache.containsKey(key))
+                return true;
+            fill(key, REJECT_ALL);
+            return dataCache.containsKey(key);
+        } catch (KVException e) {
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts preloading the cache with the given keys in the background and
+     * returns at once; requests are served while the warm-up runs. See
+     * CacheWarmer for where the keys can come from.
+     *
+     * @param  hotKeys keys to preload, in the order to insert them
+     * @return the running warm-up
+     */
+    public CacheWarmer warmUp(List<String> hotKeys) {
+        CacheWarmer warmer = new CacheWarmer(this, dataCache);
+        warmer.start(hotKeys);
+        return warmer;
+    }
+
+    /*
+     * Reads key from the store into the cache, subject to filter, and
+     * returns its value. Assumes the key's set lock is held.
+     */
+    private String fill(String key, AdmissionFilter filter) throws KVException {
+        if (sharedStore != null) {
+            long handle = sharedStore.retain(key);
+            String val = dataCache.getAllocator().readString(handle);
+            dataCache.putRetainedIfAdmitted(key, handle, filter);
+            return val;
+        }
+        String val = dataStore.get(key);
+        if (valueLog == null || !valueLog.isLogged(val))
+            dataCache.putIfAdmitted(key, val, filter);
+        return val;
+    }
+
+    /**
+     * Performs get request for a value the store keeps in a mapped value
+     * log, returning its UTF-8 bytes for KVMessage.sendValue instead of a
+     * String. Such values are never cached, and the store's index is read
+     * without the set lock: write-through updates it before the cache.
      *
      * @param  key String key
+     * @return a read-only view of the value's bytes, or null if the store
+     *         is not a ValueLogKVStore or keeps this value on the heap, in
+     *         which case get should be used
      * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
      */
+    public ByteBuffer getMapped(String key) throws KVException {
+        if (valueLog == null)
+            return null;
+        checkExpiry(key);
+        ByteBuffer value = valueLog.getMapped(key);
+        if (value != null) {
+            if (admissionFilter != null)
+                admissionFilter.recordAccess(key);
+            hotKeys.offer(key);
+        }
+        return value;
+    }
+
+    /**
+     * Performs del request.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store,
+     *         or with ERROR_STORAGE if the write-ahead log cannot be written
+     */
     @Override
     public void del(String key) throws KVException {
         Lock lock = dataCache.getLock(key);
+        long batch;
         try {
-            lock.lock();
-            dataCache.del(key);
-            dataStore.del(key);
-        } catch (KVException e) {
-            throw e;
+            acquire(lock, key);
+            batch = delLocked(key);
         } finally {
             lock.unlock();
         }
+        awaitDurable(batch);
+    }
+
+    /**
+     * Performs del requests for many keys at once, taking each cache set's
+     * lock once for all the keys in it. Like mput, the batch is not atomic.
+     *
+     * @param  keys the keys to delete
+     * @return the keys that existed and were deleted, in the order of keys
+     * @throws KVException with ERROR_STORAGE if the write-ahead log cannot
+     *         be written
+     */
+    public Set<String> mdel(Collection<String> keys) throws KVException {
+        Set<String> deleted = new HashSet<String>();
+        long batch = 0;
+        for (List<String> set : groupBySet(new LinkedHashSet<String>(keys))) {
+            Lock lock = dataCache.getLock(set.get(0));
+            acquire(lock, set.get(0));
+            try {
+                for (String key : set) {
+                    try {
+                        batch = Math.max(batch, delLocked(key));
+                        deleted.add(key);
+                    } catch (KVException e) {
+                        if (!ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage()))
+                            throw e;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        awaitDurable(batch);
+        Set<String> inOrder = new LinkedHashSet<String>();
+        for (String key : keys) {
+            if (deleted.contains(key))
+                inOrder.add(key);
+        }
+        return inOrder;
+    }
+
+    /*
+     * Deletes key from the store and the cache, and returns its log batch,
+     * or 0 without a log. Assumes the key's set lock is held.
+     */
+    private long delLocked(String key) throws KVException {
+        Expiry expiry = expiries.remove(key);
+        if (expiry != null) {
+            expiryWheel.cancel(expiry);
+            if (expiry.hasPassed()) {
+                removeExpired(key);
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+        }
+        dataStore.del(key);
+        dataCache.del(key);
+        // logged once the del is known to apply; the set lock keeps the
+        // log in the order the store saw
+        try {
+            return (wal != null) ? wal.appendDel(key) : 0;
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+    }
+
+    /*
+     * Waits for a write's log batch to reach disk. Done after the set lock
+     * is released, so that writers to the same set can join the batch;
+     * readers may meanwhile see a value that is not yet durable.
+     */
+    private void awaitDurable(long batch) throws KVException {
+        if (wal == null)
+            return;
+        try {
+            wal.sync(batch);
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+    }
+
+    /*
+     * Replaces the key's expiry with one ttlNanos from now, or drops it if
+     * ttlNanos is 0. Assumes the key's set lock is held.
+     */
+    private void setExpiry(String key, long ttlNanos) {
+        Expiry old = expiries.remove(key);
+        if (old != null)
+            expiryWheel.cancel(old);
+        if (ttlNanos == 0)
+            return;
+        Expiry expiry = new Expiry(key, System.nanoTime() + ttlNanos);
+        expiries.put(key, expiry);
+        startExpiryWheel().schedule(expiry, ttlNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private TimingWheel startExpiryWheel() {
+        if (expiryWheel == null) {
+            synchronized (expiries) {
+                if (expiryWheel == null)
+                    expiryWheel = new TimingWheel(EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return expiryWheel;
+    }
+
+    /*
+     * Reclaims the key if its TTL has passed, so that it is not served from
+     * the cache or store.
+     */
+    private void checkExpiry(String key) throws KVException {
+        if (reclaimIfExpired(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
+    }
+
+    private boolean reclaimIfExpired(String key) {
+        Expiry expiry = expiries.get(key);
+        if (expiry == null || !expiry.hasPassed())
+            return false;
+        reclaim(expiry);
+        return true;
+    }
+
+    private boolean isExpired(String key) {
+        Expiry expiry = expiries.get(key);
+        return expiry != null && expiry.hasPassed();
+    }
+
+    /*
+     * Deletes an expired key, unless it has been put or deleted since the
+     * expiry was set. Called from the timing wheel and from lookups that
+     * find the key expired first.
+     */
+    private void reclaim(Expiry expiry) {
+        Lock lock = dataCache.getLock(expiry.key);
+        acquire(lock, expiry.key);
+        try {
+            if (!expiries.remove(expiry.key, expiry))
+                return;
+            expiryWheel.cancel(expiry);
+            removeExpired(expiry.key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* Assumes the key's set lock is held. */
+    private void removeExpired(String key) {
+        dataCache.del(key);
+        try {
+            dataStore.del(key);
+            if (wal != null) {
+                // not waited for: replay drops a put whose deadline has
+                // passed anyway, so the del only saves it the work
+                wal.appendDel(key);
+            }
+        } catch (KVException e) {
+            // already gone from the store
+        } catch (IOException e) {
+            // the key is still dropped from memory
+        }
+        expiredKeys.increment();
+    }
+
+    /**
+     * Performs scan request: up to limit pairs with startKey &lt;= key &lt;
+     * endKey, in key order. Pairs are read from the store as the iterator
+     * advances and bypass the cache, which write-through keeps in step with
+     * the store. No set locks are held, so puts and dels carry on during a
+     * scan and may or may not show up in it. Keys whose TTL has passed are
+     * left out.
+     *
+     * @param  startKey the first key to include, or null for the smallest
+     * @param  endKey the first key to leave out, or null for no bound
+     * @param  limit the most pairs to return
+     * @return the pairs in range
+     * @throws KVException with ERROR_SCAN_UNSUPPORTED if the store does not
+     *         keep its keys in order, i.e. is not a SortedKeyValueInterface
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey,
+            final int limit) throws KVException {
+        if (!(dataStore instanceof SortedKeyValueInterface))
+            throw new KVException(ERROR_SCAN_UNSUPPORTED);
+        final Iterator<Map.Entry<String, String>> range =
+                ((SortedKeyValueInterface) dataStore).scan(startKey, endKey);
+        return new Iterator<Map.Entry<String, String>>() {
+            private int returned;
+            private Map.Entry<String, String> next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && returned < limit && range.hasNext()) {
+                    Map.Entry<String, String> e = range.next();
+                    if (!isExpired(e.getKey()))
+                        next = e;
+                }
+                return next != null;
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                returned++;
+                Map.Entry<String, String> e = next;
+                next = null;
+                return e;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
     }
 
     /**
@@ -107,6 +759,8 @@ public class KVServer implements KeyValueInterface {
      * @param key key to check for membership in store
      */
     public boolean hasKey(String key) {
+        if (isExpired(key))
+            return false;
         try {
             String value = dataStore.get(key);
             return true;
@@ -115,6 +769,75 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Fraction of get requests answered by the cache since the server
+     * started. Compare runs with and without an admission filter to tune it.
+     *
+     * @return hits / (hits + misses), or 0 if there were no gets yet
+     */
+    public double getCacheHitRatio() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return (total == 0) ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * @return number of store reads the admission filter kept out of the cache
+     */
+    public long getRejectedFills() {
+        return rejectedFills.sum();
+    }
+
+    /**
+     * @return number of keys deleted because their TTL passed
+     */
+    public long getExpiredKeys() {
+        return expiredKeys.sum();
+    }
+
+    /**
+     * Takes a snapshot of the cache's per-set hit, miss, eviction, rotation
+     * and lock-wait counters, along with the keys requested most often.
+     * Cheap enough to poll; it takes no locks.
+     *
+     * @return the current statistics
+     */
+    public CacheStats getStats() {
+        return dataCache.getStats(hotKeys.getTopKeys());
+    }
+
+    /*
+     * Locks a set, timing the wait only if the lock is contended so that
+     * uncontended requests do not pay for System.nanoTime.
+     */
+    private void acquire(Lock lock, String key) {
+        if (lock.tryLock())
+            return;
+        long start = System.nanoTime();
+        lock.lock();
+        dataCache.recordLockWait(key, System.nanoTime() - start);
+    }
+
+    /* A pending expiry of one key, as set by a put with a TTL. */
+    private class Expiry extends TimingWheel.Timer {
+        final String key;
+        final long deadline;
+
+        Expiry(String key, long deadline) {
+            this.key = key;
+            this.deadline = deadline;
+        }
+
+        boolean hasPassed() {
+            return System.nanoTime() - deadline >= 0;
+        }
+
+        @Override
+        void expire() {
+            reclaim(this);
+        }
+    }
+
     /** This method is purely for convenience and will not be tested. */
     @Override
     public String toString() {
@@ -3,37 +3,82 @@ package kvstore;
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
 import javax.xml.bind.JAXBException;
-import javax.xml.bind.Marshaller;
-import javax.xml.bind.Unmarshaller;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
 import kvstore.xml.KVPairType;
-import kvstore.xml.KVSetType;
 import kvstore.xml.KVStoreType;
-import kvstore.xml.ObjectFactory;
 
 
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
  * backing store.
+ *
+ * snapshot gives a consistent point-in-time view for dumps and backups
+ * without stopping writers; see StoreSnapshot. While a snapshot is open,
+ * store may hold TOMBSTONE values for deleted keys.
+ *
+ * A store constructed with a ValueCompressor keeps long values compressed,
+ * and store then holds them as ValueCompressor.encode returned them; get,
+ * snapshots and dumps give back the original values.
  */
 public class KVStore implements KeyValueInterface {
 
+    /** Marks a key deleted while a snapshot is open. Compared by identity. */
+    static final String TOMBSTONE = new String("");
+
+    private static final StoreSnapshot[] NO_SNAPSHOTS = new StoreSnapshot[0];
+
     public ConcurrentHashMap<String, String> store;
 
+    private final ValueCompressor compressor;
+    /* heap bytes of the values, as given and as kept; only with a compressor */
+    private StripedCounter rawBytes, storedBytes;
+
+    /* replaced, never modified, under snapshotLock */
+    private volatile StoreSnapshot[] snapshots = NO_SNAPSHOTS;
+    private final Object snapshotLock = new Object();
+    /* keys deleted while a snapshot was open, removed when none is */
+    private final ConcurrentLinkedQueue<String> tombstones = new ConcurrentLinkedQueue<String>();
+    /*
+     * Writers in progress, counted by the parity of the epoch they started
+     * in, so that opening or closing a snapshot can wait out the writers
+     * that may not have seen it.
+     */
+    private final StripedCounter[] writers = { new StripedCounter(), new StripedCounter() };
+    private volatile int epoch;
+
     /**
      * Construct a new KVStore.
      */
     public KVStore() {
+        this(null);
+    }
+
+    /**
+     * Construct a new KVStore that compresses values.
+     *
+     * @param compressor decides which values to compress and how, or null
+     *        to keep all values as they are
+     */
+    public KVStore(ValueCompressor compressor) {
+        this.compressor = compressor;
         resetStore();
     }
 
     public void resetStore() {
         this.store = new ConcurrentHashMap<String, String>();
+        tombstones.clear();
+        rawBytes = new StripedCounter();
+        storedBytes = new StripedCounter();
     }
 
     /**
@@ -44,7 +89,26 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-        store.put(key, value);
+        String stored = (compressor == null) ? value : compressor.encode(value);
+        if (stored.isEmpty()) {
+            // the one value equal to TOMBSTONE; kept out of release's sweep
+            synchronized (snapshotLock) {
+                putStored(key, stored);
+            }
+        } else {
+            putStored(key, stored);
+        }
+    }
+
+    private void putStored(String key, String stored) {
+        StripedCounter w = beginWrite();
+        try {
+            ConcurrentHashMap<String, String> m = store;
+            saveForSnapshots(m, key);
+            account(m.put(key, stored), stored);
+        } finally {
+            w.add(-1);
+        }
     }
 
     /**
@@ -55,11 +119,11 @@ public class KVStore implements KeyValueInterface {
     @Override
     public String get(String key) throws KVException {
         String retVal = this.store.get(key);
-        if (retVal == null) {
+        if (retVal == null || retVal == TOMBSTONE) {
             KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
             throw new KVException(msg);
         }
-        return retVal;
+        return decode(retVal);
     }
 
     /**
@@ -71,39 +135,191 @@ public class KVStore implements KeyValueInterface {
     @Override
     public void del(String key) throws KVException {
         if(key != null) {
-            if (!this.store.containsKey(key)) {
-                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-                throw new KVException(msg);
+            StripedCounter w = beginWrite();
+            try {
+                ConcurrentHashMap<String, String> m = store;
+                String current = m.get(key);
+                if (current == null || current == TOMBSTONE) {
+                    KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                    throw new KVException(msg);
+                }
+                if (saveForSnapshots(m, key)) {
+                    // open snapshots need the key to stay where they look
+                    account(m.put(key, TOMBSTONE), null);
+                    tombstones.add(key);
+                } else {
+                    account(m.remove(key), null);
+                }
+            } finally {
+                w.add(-1);
             }
-            this.store.remove(key);
         }
     }
 
-    private synchronized JAXBElement<KVStoreType> getXMLRoot() throws JAXBException {
-        ObjectFactory factory = new ObjectFactory();
-        KVStoreType xmlStore = factory.createKVStoreType();
-        for (Entry<String, String> e : store.entrySet()) {
-            KVPairType kvPair = factory.createKVPairType();
-            kvPair.setKey(e.getKey());
-            kvPair.setValue(e.getValue());
-            xmlStore.getKVPair().add(kvPair);
+    /**
+     * Takes a point-in-time snapshot of the store. This waits only for
+     * puts and dels already in progress, and copies nothing; see
+     * StoreSnapshot for what it costs while open.
+     *
+     * @return the snapshot, which the caller must close
+     */
+    public StoreSnapshot snapshot() {
+        synchronized (snapshotLock) {
+            StoreSnapshot s = new StoreSnapshot(this, store);
+            StoreSnapshot[] open = Arrays.copyOf(snapshots, snapshots.length + 1);
+            open[open.length - 1] = s;
+            snapshots = open;
+            awaitWriters();
+            return s;
+        }
+    }
+
+    /* Called by StoreSnapshot.close. */
+    void release(StoreSnapshot s) {
+        synchronized (snapshotLock) {
+            StoreSnapshot[] open = new StoreSnapshot[snapshots.length - 1];
+            int i = 0;
+            for (StoreSnapshot t : snapshots) {
+                if (t != s)
+                    open[i++] = t;
+            }
+            snapshots = open;
+            awaitWriters();
+            if (open.length == 0) {
+                ConcurrentHashMap<String, String> m = store;
+                String key;
+                while ((key = tombstones.poll()) != null) {
+                    // remove compares by equals, which a put "" since would pass
+                    if (m.get(key) == TOMBSTONE)
+                        m.remove(key, TOMBSTONE);
+                }
+            }
         }
-        return factory.createKVStore(xmlStore);
     }
 
-    private void marshalTo(OutputStream os) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(KVStoreType.class);
-        Marshaller marshaller = context.createMarshaller();
-        marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
-        marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
-        marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
-        marshaller.marshal(getXMLRoot(), os);
+    /**
+     * @return heap bytes the values would take up uncompressed, i.e. two
+     *         per char; only counted if the store has a ValueCompressor
+     */
+    public long getRawBytes() {
+        return rawBytes.sum();
+    }
+
+    /**
+     * @return heap bytes the values take up as stored; only counted if the
+     *         store has a ValueCompressor
+     */
+    public long getStoredBytes() {
+        return storedBytes.sum();
     }
-    
+
+    /* Turns a value from store back into the one that was put. */
+    String decode(String stored) {
+        return (compressor == null) ? stored : compressor.decode(stored);
+    }
+
+    /* Counts a change of a key's stored value from old to stored; either may be null. */
+    private void account(String old, String stored) {
+        if (compressor == null)
+            return;
+        long raw = 0, kept = 0;
+        if (old != null) {
+            raw -= ValueCompressor.decodedLength(old);
+            kept -= old.length();
+        }
+        if (stored != null) {
+            raw += ValueCompressor.decodedLength(stored);
+            kept += stored.length();
+        }
+        rawBytes.add(2 * raw);
+        storedBytes.add(2 * kept);
+    }
+
+    /*
+     * Saves the key's value in every open snapshot of m that has not seen
+     * it change yet. Returns whether any snapshot of m is open.
+     */
+    private boolean saveForSnapshots(ConcurrentHashMap<String, String> m, String key) {
+        StoreSnapshot[] open = snapshots;
+        boolean any = false;
+        String current = null;
+        for (StoreSnapshot s : open) {
+            if (s.map != m)
+                continue;
+            if (!any)
+                current = m.get(key);
+            any = true;
+            s.save(key, (current == TOMBSTONE) ? null : current);
+        }
+        return any;
+    }
+
+    /* Registers a put or del, for awaitWriters. */
+    private StripedCounter beginWrite() {
+        for (;;) {
+            int e = epoch;
+            StripedCounter w = writers[e & 1];
+            w.increment();
+            if (epoch == e)
+                return w;
+            // raced with awaitWriters; count in the new epoch instead
+            w.add(-1);
+        }
+    }
+
+    /*
+     * Must hold snapshotLock. Waits for writers that started before the
+     * snapshot list last changed, and so may be acting on the old one.
+     */
+    private void awaitWriters() {
+        int e = epoch;
+        epoch = e + 1;
+        StripedCounter old = writers[e & 1];
+        while (old.sum() != 0)
+            Thread.yield();
+    }
+
+    /**
+     * Writes the store as XML one pair at a time, in the same format the
+     * JAXB binding reads. The pairs come from a snapshot, so puts and dels
+     * continue during a dump and the file holds the store exactly as it
+     * was when the dump began. Memory use does not grow with the size of
+     * the store, only with the writes made during the dump.
+     *
+     * @param os stream to write to; flushed but not closed
+     */
+    void writeXML(OutputStream os) throws XMLStreamException {
+        StoreSnapshot snapshot = snapshot();
+        try {
+            writeXML(os, snapshot);
+        } finally {
+            snapshot.close();
+        }
+    }
+
+    private static void writeXML(OutputStream os, StoreSnapshot snapshot)
+            throws XMLStreamException {
+        XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(os, "UTF-8");
+        writer.writeStartDocument("UTF-8", "1.0");
+        writer.writeStartElement("KVStore");
+        for (Entry<String, String> e : snapshot.entrySet()) {
+            writer.writeStartElement("KVPair");
+            writer.writeStartElement("Key");
+            writer.writeCharacters(e.getKey());
+            writer.writeEndElement();
+            writer.writeStartElement("Value");
+            writer.writeCharacters(e.getValue());
+            writer.writeEndElement();
+            writer.writeEndElement();
+        }
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+        writer.close();
+    }
+
     private KVStoreType unmarshal(File f) throws JAXBException {
-        JAXBContext context = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = context.createUnmarshaller();
-        KVStoreType xmlStore = ((JAXBElement<KVStoreType>) unmarshaller.unmarshal(f)).getValue();
+        KVStoreType xmlStore = ((JAXBElement<KVStoreType>) XMLBinding.unmarshaller().unmarshal(f)).getValue();
         return xmlStore;
     }
 
@@ -114,8 +330,8 @@ public class KVStore implements KeyValueInterface {
     public String toXML() {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         try {
-            marshalTo(os);
-        } catch (JAXBException e) {
+            writeXML(os);
+        } catch (XMLStreamException e) {
             e.printStackTrace();
         }
         return os.toString();
@@ -127,7 +343,9 @@ public class KVStore implements KeyValueInterface {
     }
 
     /**
-     * Serialize to XML and write the output to a file.
+     * Serialize to XML and write the output to a file. The store stays
+     * available to puts and dels while the file is written, which holds
+     * the store as it was when the dump began; see writeXML.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file to write the serialized store
@@ -135,18 +353,41 @@ public class KVStore implements KeyValueInterface {
     public void dumpToFile(String fileName) {
         try {
             File f = new File(fileName);
-            FileOutputStream fstream = new FileOutputStream(f);
-            marshalTo(fstream);
-            fstream.close();
+            OutputStream fstream = new BufferedOutputStream(new FileOutputStream(f));
+            try {
+                writeXML(fstream);
+            } finally {
+                fstream.close();
+            }
         } catch (Exception e) {
             // ignore
         }
     }
 
+    /**
+     * Write the store to a file as a BinarySnapshot, which restoreFromFile
+     * loads far faster than XML. Like dumpToFile it runs concurrently with
+     * puts and dels, and writes the store as it was when it began.
+     * This method is best effort. Any exceptions that arise can be dropped.
+     *
+     * @param fileName the file to write the snapshot
+     */
+    public void dumpToBinaryFile(String fileName) {
+        StoreSnapshot snapshot = snapshot();
+        try {
+            BinarySnapshot.write(snapshot, fileName);
+        } catch (IOException e) {
+            // ignore
+        } finally {
+            snapshot.close();
+        }
+    }
+
     /**
      * Replaces the contents of the store with the contents of a file
-     * written by dumpToFile; the previous contents of the store are lost.
-     * The store is cleared even if the file does not exist.
+     * written by dumpToFile or dumpToBinaryFile; the previous contents of
+     * the store are lost. The store is cleared even if the file does not
+     * exist, and stays empty if a binary snapshot turns out to be damaged.
      * This method is best effort. Any exceptions that arise can be dropped.
      *
      * @param fileName the file containing the serialized store data
@@ -154,6 +395,23 @@ public class KVStore implements KeyValueInterface {
     public void restoreFromFile(String fileName) {
         resetStore();
 
+        if (BinarySnapshot.isSnapshot(fileName)) {
+            try {
+                ConcurrentHashMap<String, String> m = BinarySnapshot.read(fileName);
+                if (compressor != null) {
+                    for (Entry<String, String> e : m.entrySet()) {
+                        String stored = compressor.encode(e.getValue());
+                        if (stored != e.getValue())
+                            e.setValue(stored);
+                        account(null, stored);
+                    }
+                }
+                this.store = m;
+            } catch (IOException e) {
+                // ignore
+            }
+            return;
+        }
         try {
             File f = new File(fileName);
             KVStoreType storeType = unmarshal(f);
@@ -0,0 +1,58 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Least-recently-used replacement. Every hit moves the entry to the back of
+ * the list, so hits need the set lock and skip the optimistic read path.
+ */
+class LRUPolicy implements EvictionPolicy {
+    private final EntryList recency = new EntryList();
+
+    @Override
+    public boolean recordsHitsByMarking() {
+        return false;
+    }
+
+    @Override
+    public void onHit(CacheEntry e) {
+        recency.moveToLast(e);
+    }
+
+    @Override
+    public void onMiss(String key) {
+    }
+
+    @Override
+    public void onInsert(CacheEntry e) {
+        recency.addLast(e);
+    }
+
+    @Override
+    public void onRemove(CacheEntry e) {
+        recency.remove(e);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        return recency.removeFirst();
+    }
+
+    @Override
+    public CacheEntry peekVictim() {
+        return recency.first();
+    }
+
+    @Override
+    public List<CacheEntry> entriesInOrder() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(recency.size());
+        recency.appendTo(entries);
+        return entries;
+    }
+
+    @Override
+    public long getRotations() {
+        return 0;
+    }
+}
@@ -0,0 +1,844 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A disk-backed key-value store built as a log-structured merge tree, for
+ * write-heavy workloads. Writes go to a WriteAheadLog and a sorted
+ * in-memory memtable. A full memtable is frozen and, in the background,
+ * written out as an immutable SSTable in level 0, and its log is deleted.
+ *
+ * Level 0 tables may overlap one another. Every deeper level is a single
+ * sorted run of tables that do not overlap. Each level holds ten times as
+ * many bytes as the one above it. When level 0 has four tables, or a
+ * deeper level outgrows its budget, the background thread merges a table
+ * into the overlapping tables of the next level (leveled compaction).
+ * Deletes leave tombstones, which are dropped once they reach the deepest
+ * level.
+ *
+ * A get checks the memtables, then level 0 from newest to oldest, then
+ * the one table per deeper level whose range covers the key. Each table
+ * keeps a Bloom filter on the heap. A lookup of a missing key therefore
+ * reads from disk only on a false positive, about 1% of the tables it
+ * checks.
+ *
+ * The set of live tables is recorded in a MANIFEST file, which is
+ * replaced atomically. On open, the store loads those tables, deletes
+ * files that no table or log needs, and replays the logs of memtables
+ * that had not been written out.
+ */
+public class LSMKVStore implements KeyValueInterface, Closeable {
+
+    public static final int DEFAULT_MEMTABLE_BYTES = 4 << 20;
+
+    static final int L0_COMPACTION_TRIGGER = 4;
+    static final int LEVEL_SIZE_MULTIPLIER = 10;
+    static final int MAX_LEVELS = 7;
+
+    private static final String MANIFEST = "MANIFEST";
+    private static final String TABLE_SUFFIX = ".sst";
+    private static final String LOG_SUFFIX = ".wal";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final Path dir;
+    private final int memtableBytes;
+    private final boolean syncWrites;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /* signalled when there is a memtable to write out or the store closes */
+    private final Condition work = lock.newCondition();
+    /* signalled when the background thread finishes a step */
+    private final Condition progress = lock.newCondition();
+
+    /* replaced, never modified, under lock; read without it */
+    private volatile Version version;
+    /* guarded by lock */
+    private WriteAheadLog log;
+    private long logId;
+    private WriteAheadLog frozenLog;
+    private long frozenLogId;
+    private long memtableSize;
+    private boolean closed;
+    private IOException failure;
+
+    private final AtomicLong nextFileId = new AtomicLong(1);
+    private final String[] compactPointers = new String[MAX_LEVELS];
+    private final Thread background;
+
+    private final AtomicLong bloomSkips = new AtomicLong();
+    private final AtomicLong tableReads = new AtomicLong();
+
+    /**
+     * Opens or creates a store in the given directory with 4 MiB memtables,
+     * forcing every write to disk before it returns.
+     *
+     * @param dir directory holding the store's files
+     * @throws IOException if the files cannot be read or created
+     */
+    public LSMKVStore(String dir) throws IOException {
+        this(dir, DEFAULT_MEMTABLE_BYTES, true);
+    }
+
+    /**
+     * Opens or creates a store, recovering whatever is already in dir.
+     *
+     * @param dir directory holding the store's files
+     * @param memtableBytes approximate memtable size at which it is written
+     *        out; also the size of the tables compaction writes, and a tenth
+     *        of level 1's budget
+     * @param syncWrites wait for each put and del to reach disk, with group
+     *        commit, before returning
+     * @throws IOException if the files cannot be read or created
+     */
+    public LSMKVStore(String dir, int memtableBytes, boolean syncWrites) throws IOException {
+        this.dir = Paths.get(dir);
+        this.memtableBytes = memtableBytes;
+        this.syncWrites = syncWrites;
+        Files.createDirectories(this.dir);
+        recover();
+        background = new Thread("lsm-compactor") {
+            @Override
+            public void run() {
+                backgroundLoop();
+            }
+        };
+        background.setDaemon(true);
+        background.start();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_STORAGE if the log cannot be written
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        write(key, value);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_STORAGE if a table cannot be read
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = lookup(key);
+        if (value == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key. Costs a lookup
+     * as well as a write, to report missing keys.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_STORAGE if the log cannot be written
+     */
+    @Override
+    public void del(String key) throws KVException {
+        write(key, null);
+    }
+
+    /**
+     * Freezes the memtable, if it has anything in it, and waits until it is
+     * written out as a table. Compaction that it triggers runs on in the
+     * background.
+     *
+     * @throws IOException if the table cannot be written
+     */
+    public void flush() throws IOException {
+        lock.lock();
+        try {
+            while (version.frozen != null && failure == null && !closed)
+                progress.awaitUninterruptibly();
+            if (!version.memtable.isEmpty() && failure == null && !closed)
+                freeze();
+            while (version.frozen != null && failure == null && !closed)
+                progress.awaitUninterruptibly();
+            if (failure != null)
+                throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until no memtable is waiting to be written out and no level
+     * needs compacting.
+     *
+     * @throws IOException if the background thread failed
+     */
+    void awaitBackgroundWork() throws IOException {
+        lock.lock();
+        try {
+            while ((version.frozen != null || pickCompaction(version) != null)
+                    && failure == null && !closed)
+                progress.awaitUninterruptibly();
+            if (failure != null)
+                throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param level Which level.
+     * @return the number of tables in the level
+     */
+    public int getTableCount(int level) {
+        List<List<SSTable>> levels = version.levels;
+        return (level < levels.size()) ? levels.get(level).size() : 0;
+    }
+
+    /**
+     * @return table lookups that a Bloom filter answered without reading
+     *         from disk
+     */
+    public long getBloomSkips() {
+        return bloomSkips.get();
+    }
+
+    /**
+     * @return blocks read from disk by gets
+     */
+    public long getTableReads() {
+        return tableReads.get();
+    }
+
+    /**
+     * Stops the background thread, once it has written out a frozen
+     * memtable if there is one, and closes every file. Writes still in the
+     * memtable are safe in its log and are recovered on the next open.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            work.signal();
+            progress.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            background.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        lock.lock();
+        try {
+            log.close();
+            if (frozenLog != null)
+                frozenLog.close();
+            for (List<SSTable> level : version.levels) {
+                for (SSTable table : level)
+                    table.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /* A null value is a delete. */
+    private void write(String key, String value) throws KVException {
+        WriteAheadLog target = null;
+        long batch = 0;
+        while (target == null) {
+            // a del looks the key up before taking lock, so that no write
+            // waits on its table reads
+            Version seen = version;
+            boolean exists = (value != null) || lookup(key) != null;
+            lock.lock();
+            try {
+                // a full memtable waits for the frozen one to be written out
+                while (memtableSize >= memtableBytes && version.frozen != null
+                        && failure == null && !closed)
+                    progress.awaitUninterruptibly();
+                if (failure != null || closed)
+                    throw new KVException(ERROR_STORAGE);
+                if (value == null) {
+                    // writes since the lookup are all in seen's memtable,
+                    // unless it has been frozen since; then look again
+                    if (version.memtable != seen.memtable)
+                        continue;
+                    String latest = seen.memtable.get(key);
+                    if (latest != null)
+                        exists = (latest != SSTable.TOMBSTONE);
+                    if (!exists) {
+                        KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                        throw new KVException(msg);
+                    }
+                }
+                target = log;
+                batch = (value == null) ? log.appendDel(key) : log.appendPut(key, value);
+                version.memtable.put(key, (value == null) ? SSTable.TOMBSTONE : value);
+                memtableSize += 2L * (key.length() + ((value == null) ? 0 : value.length())) + 64;
+                if (memtableSize >= memtableBytes && version.frozen == null)
+                    freeze();
+            } catch (IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            } finally {
+                lock.unlock();
+            }
+        }
+        if (syncWrites) {
+            try {
+                target.sync(batch);
+            } catch (IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            }
+        }
+    }
+
+    /* The key's value, or null if it is missing or deleted. */
+    private String lookup(String key) throws KVException {
+        for (;;) {
+            Version v = version;
+            String value = v.memtable.get(key);
+            if (value == null && v.frozen != null)
+                value = v.frozen.get(key);
+            try {
+                if (value == null)
+                    value = v.find(key);
+                return (value == SSTable.TOMBSTONE) ? null : value;
+            } catch (ClosedByInterruptException e) {
+                throw new KVException(ERROR_STORAGE);
+            } catch (ClosedChannelException e) {
+                // compaction replaces the version before deleting the table
+                if (version == v)
+                    throw new KVException(ERROR_STORAGE);
+            } catch (IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            }
+            if (closed)
+                throw new KVException(ERROR_STORAGE);
+        }
+    }
+
+    /* Must hold lock. Swaps in an empty memtable and log. */
+    private void freeze() throws IOException {
+        long nextId = nextFileId.getAndIncrement();
+        WriteAheadLog next = new WriteAheadLog(logFile(nextId).toString());
+        frozenLog = log;
+        frozenLogId = logId;
+        log = next;
+        logId = nextId;
+        version = new Version(new ConcurrentSkipListMap<String, String>(), version.memtable,
+                version.levels);
+        memtableSize = 0;
+        work.signal();
+    }
+
+    private void backgroundLoop() {
+        for (;;) {
+            Version v;
+            Compaction compaction = null;
+            lock.lock();
+            try {
+                while (!closed && version.frozen == null
+                        && (compaction = pickCompaction(version)) == null)
+                    work.awaitUninterruptibly();
+                if (closed && version.frozen == null)
+                    return;
+                v = version;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                if (v.frozen != null)
+                    writeFrozen(v);
+                else
+                    compaction.run(v);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failure = e;
+                    progress.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                progress.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /* Writes the frozen memtable to level 0, then drops it and its log. */
+    private void writeFrozen(Version v) throws IOException {
+        long id = nextFileId.getAndIncrement();
+        SSTable table = SSTable.write(tableFile(id), id, new MapCursor(v.frozen), Long.MAX_VALUE);
+        List<List<SSTable>> levels = copyLevels(v.levels);
+        if (table != null)
+            levels.get(0).add(0, table);
+        writeManifest(levels);
+        WriteAheadLog oldLog;
+        long oldLogId;
+        lock.lock();
+        try {
+            version = new Version(version.memtable, null, levels);
+            oldLog = frozenLog;
+            oldLogId = frozenLogId;
+            frozenLog = null;
+        } finally {
+            lock.unlock();
+        }
+        oldLog.close();
+        Files.deleteIfExists(logFile(oldLogId));
+    }
+
+    /*
+     * The next merge to run, if any level is over budget: all of level 0
+     * once it has L0_COMPACTION_TRIGGER tables, else one table of the
+     * shallowest level over its byte budget, taken round-robin by key.
+     */
+    private Compaction pickCompaction(Version v) {
+        List<List<SSTable>> levels = v.levels;
+        if (levels.get(0).size() >= L0_COMPACTION_TRIGGER)
+            return new Compaction(0, new ArrayList<SSTable>(levels.get(0)));
+        long budget = (long) memtableBytes * LEVEL_SIZE_MULTIPLIER;
+        for (int level = 1; level < MAX_LEVELS - 1; level++, budget *= LEVEL_SIZE_MULTIPLIER) {
+            List<SSTable> tables = levels.get(level);
+            long bytes = 0;
+            for (SSTable t : tables)
+                bytes += t.fileSize;
+            if (bytes <= budget)
+                continue;
+            SSTable pick = tables.get(0);
+            String after = compactPointers[level];
+            if (after != null) {
+                for (SSTable t : tables) {
+                    if (t.minKey.compareTo(after) > 0) {
+                        pick = t;
+                        break;
+                    }
+                }
+            }
+            return new Compaction(level, Collections.singletonList(pick));
+        }
+        return null;
+    }
+
+    /* Merges some tables of one level into the overlapping ones below it. */
+    private class Compaction {
+        final int level;
+        final List<SSTable> inputs;
+
+        Compaction(int level, List<SSTable> inputs) {
+            this.level = level;
+            this.inputs = inputs;
+        }
+
+        void run(Version v) throws IOException {
+            String start = inputs.get(0).minKey, end = inputs.get(0).maxKey;
+            for (SSTable t : inputs) {
+                if (t.minKey.compareTo(start) < 0)
+                    start = t.minKey;
+                if (t.maxKey.compareTo(end) > 0)
+                    end = t.maxKey;
+            }
+            List<SSTable> below = new ArrayList<SSTable>();
+            for (SSTable t : v.levels.get(level + 1)) {
+                if (t.overlaps(start, end))
+                    below.add(t);
+            }
+            boolean deepest = true;
+            for (int l = level + 2; l < MAX_LEVELS; l++)
+                deepest &= v.levels.get(l).isEmpty();
+
+            // newest first: level 0 is kept newest first, and inputs are above below
+            List<SSTable.Cursor> sources = new ArrayList<SSTable.Cursor>();
+            for (SSTable t : inputs)
+                sources.add(t.cursor());
+            for (SSTable t : below)
+                sources.add(t.cursor());
+            SSTable.Cursor merged = new MergingCursor(sources, deepest);
+
+            List<SSTable> outputs = new ArrayList<SSTable>();
+            try {
+                while (merged.valid()) {
+                    long id = nextFileId.getAndIncrement();
+                    SSTable table = SSTable.write(tableFile(id), id, merged, memtableBytes);
+                    if (table != null)
+                        outputs.add(table);
+                }
+            } catch (IOException e) {
+                for (SSTable t : outputs)
+                    t.delete();
+                throw e;
+            }
+
+            List<List<SSTable>> levels = copyLevels(v.levels);
+            levels.get(level).removeAll(inputs);
+            List<SSTable> next = levels.get(level + 1);
+            next.removeAll(below);
+            next.addAll(outputs);
+            Collections.sort(next, BY_MIN_KEY);
+            writeManifest(levels);
+            lock.lock();
+            try {
+                version = new Version(version.memtable, version.frozen, levels);
+            } finally {
+                lock.unlock();
+            }
+            compactPointers[level] = end;
+            // gets still reading these retry on the new version
+            for (SSTable t : inputs)
+                t.delete();
+            for (SSTable t : below)
+                t.delete();
+        }
+    }
+
+    /* Opens the tables in the manifest and replays leftover logs. */
+    private void recover() throws IOException {
+        List<List<SSTable>> levels = emptyLevels();
+        Map<Long, Integer> live = new HashMap<Long, Integer>();
+        Path manifest = dir.resolve(MANIFEST);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, ASCII)) {
+                String[] parts = line.trim().split(" ");
+                if (parts.length == 2 && parts[0].equals("next"))
+                    nextFileId.set(Long.parseLong(parts[1]));
+                else if (parts.length == 2)
+                    live.put(Long.parseLong(parts[1], 16), Integer.parseInt(parts[0]));
+            }
+        }
+        List<Long> logs = new ArrayList<Long>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir);
+        try {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                if (name.endsWith(TABLE_SUFFIX)) {
+                    long id = fileId(name, TABLE_SUFFIX);
+                    Integer level = live.get(id);
+                    if (level == null)
+                        Files.delete(p); // output of a compaction that never finished
+                    else
+                        levels.get(level).add(new SSTable(p, id));
+                    bumpFileId(id);
+                } else if (name.endsWith(LOG_SUFFIX)) {
+                    long id = fileId(name, LOG_SUFFIX);
+                    logs.add(id);
+                    bumpFileId(id);
+                }
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(levels.get(0), Collections.reverseOrder(BY_ID));
+        for (int l = 1; l < MAX_LEVELS; l++)
+            Collections.sort(levels.get(l), BY_MIN_KEY);
+
+        // memtables that never became tables, oldest first
+        Collections.sort(logs);
+        final ConcurrentSkipListMap<String, String> replayed =
+                new ConcurrentSkipListMap<String, String>();
+        KeyValueInterface sink = new KeyValueInterface() {
+            @Override
+            public void put(String key, String value) {
+                replayed.put(key, value);
+            }
+
+            @Override
+            public String get(String key) {
+                return replayed.get(key);
+            }
+
+            @Override
+            public void del(String key) {
+                replayed.put(key, SSTable.TOMBSTONE);
+            }
+        };
+        for (Long id : logs) {
+            WriteAheadLog old = new WriteAheadLog(logFile(id).toString());
+            try {
+                old.replay(sink);
+            } finally {
+                old.close();
+            }
+        }
+        if (!replayed.isEmpty()) {
+            long id = nextFileId.getAndIncrement();
+            levels.get(0).add(0, SSTable.write(tableFile(id), id, new MapCursor(replayed),
+                    Long.MAX_VALUE));
+        }
+        writeManifest(levels);
+        for (Long id : logs)
+            Files.deleteIfExists(logFile(id));
+
+        logId = nextFileId.getAndIncrement();
+        log = new WriteAheadLog(logFile(logId).toString());
+        version = new Version(new ConcurrentSkipListMap<String, String>(), null, levels);
+    }
+
+    /* Replaces the manifest with one listing the given tables. */
+    private void writeManifest(List<List<SSTable>> levels) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("next ").append(nextFileId.get()).append('\n');
+        for (int l = 0; l < levels.size(); l++) {
+            for (SSTable t : levels.get(l))
+                sb.append(l).append(' ').append(Long.toHexString(t.id)).append('\n');
+        }
+        Path tmp = dir.resolve(MANIFEST + ".tmp");
+        FileChannel ch = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            ByteBuffer buf = ASCII.encode(sb.toString());
+            while (buf.hasRemaining())
+                ch.write(buf);
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+        Files.move(tmp, dir.resolve(MANIFEST), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        syncDirectory();
+    }
+
+    private void syncDirectory() {
+        try {
+            FileChannel d = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                d.force(true);
+            } finally {
+                d.close();
+            }
+        } catch (IOException e) {
+            // not every platform can sync a directory
+        }
+    }
+
+    private void bumpFileId(long id) {
+        long next;
+        while ((next = nextFileId.get()) <= id && !nextFileId.compareAndSet(next, id + 1))
+            ;
+    }
+
+    private Path tableFile(long id) {
+        return dir.resolve(String.format("%016x", id) + TABLE_SUFFIX);
+    }
+
+    private Path logFile(long id) {
+        return dir.resolve(String.format("%016x", id) + LOG_SUFFIX);
+    }
+
+    private static long fileId(String name, String suffix) {
+        return Long.parseLong(name.substring(0, name.length() - suffix.length()), 16);
+    }
+
+    private static List<List<SSTable>> emptyLevels() {
+        List<List<SSTable>> levels = new ArrayList<List<SSTable>>(MAX_LEVELS);
+        for (int l = 0; l < MAX_LEVELS; l++)
+            levels.add(new ArrayList<SSTable>());
+        return levels;
+    }
+
+    private static List<List<SSTable>> copyLevels(List<List<SSTable>> levels) {
+        List<List<SSTable>> copy = new ArrayList<List<SSTable>>(levels.size());
+        for (List<SSTable> level : levels)
+            copy.add(new ArrayList<SSTable>(level));
+        return copy;
+    }
+
+    private static final Comparator<SSTable> BY_MIN_KEY = new Comparator<SSTable>() {
+        @Override
+        public int compare(SSTable a, SSTable b) {
+            return a.minKey.compareTo(b.minKey);
+        }
+    };
+
+    private static final Comparator<SSTable> BY_ID = new Comparator<SSTable>() {
+        @Override
+        public int compare(SSTable a, SSTable b) {
+            return (a.id < b.id) ? -1 : (a.id == b.id) ? 0 : 1;
+        }
+    };
+
+    /*
+     * What a get searches: the memtable, the frozen memtable being written
+     * out, and the tables of each level. Never modified once published.
+     */
+    private class Version {
+        final ConcurrentSkipListMap<String, String> memtable;
+        final ConcurrentSkipListMap<String, String> frozen;
+        final List<List<SSTable>> levels;
+
+        Version(ConcurrentSkipListMap<String, String> memtable,
+                ConcurrentSkipListMap<String, String> frozen, List<List<SSTable>> levels) {
+            this.memtable = memtable;
+            this.frozen = frozen;
+            this.levels = levels;
+        }
+
+        /* Searches the tables; returns a value, TOMBSTONE or null. */
+        String find(String key) throws IOException {
+            for (SSTable t : levels.get(0)) {
+                String value = probe(t, key);
+                if (value != null)
+                    return value;
+            }
+            for (int l = 1; l < levels.size(); l++) {
+                List<SSTable> level = levels.get(l);
+                // the last table starting at or before the key
+                int lo = 0, hi = level.size() - 1, found = -1;
+                while (lo <= hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (level.get(mid).minKey.compareTo(key) <= 0) {
+                        found = mid;
+                        lo = mid + 1;
+                    } else {
+                        hi = mid - 1;
+                    }
+                }
+                if (found >= 0) {
+                    String value = probe(level.get(found), key);
+                    if (value != null)
+                        return value;
+                }
+            }
+            return null;
+        }
+
+        private String probe(SSTable t, String key) throws IOException {
+            if (key.compareTo(t.minKey) < 0 || key.compareTo(t.maxKey) > 0)
+                return null;
+            if (!t.mightContain(key)) {
+                bloomSkips.incrementAndGet();
+                return null;
+            }
+            tableReads.incrementAndGet();
+            return t.get(key);
+        }
+    }
+
+    /* Walks a memtable. */
+    private static class MapCursor extends SSTable.Cursor {
+        private final Iterator<Map.Entry<String, String>> it;
+        private Map.Entry<String, String> current;
+
+        MapCursor(ConcurrentSkipListMap<String, String> map) {
+            it = map.entrySet().iterator();
+            current = it.hasNext() ? it.next() : null;
+        }
+
+        @Override
+        boolean valid() {
+            return current != null;
+        }
+
+        @Override
+        String key() {
+            return current.getKey();
+        }
+
+        @Override
+        String value() {
+            return current.getValue();
+        }
+
+        @Override
+        void next() {
+            current = it.hasNext() ? it.next() : null;
+        }
+    }
+
+    /*
+     * Merges sorted cursors, listed newest first, into one sorted run that
+     * has each key once with its newest value. With dropDeletes it also
+     * leaves out tombstones, which is safe only when nothing older lies
+     * beneath the inputs.
+     */
+    private static class MergingCursor extends SSTable.Cursor {
+        private final List<SSTable.Cursor> sources;
+        private final boolean dropDeletes;
+        private SSTable.Cursor current;
+
+        MergingCursor(List<SSTable.Cursor> sources, boolean dropDeletes) throws IOException {
+            this.sources = sources;
+            this.dropDeletes = dropDeletes;
+            settle();
+        }
+
+        @Override
+        boolean valid() {
+            return current != null;
+        }
+
+        @Override
+        String key() {
+            return current.key();
+        }
+
+        @Override
+        String value() {
+            return current.value();
+        }
+
+        @Override
+        void next() throws IOException {
+            String key = current.key();
+            for (SSTable.Cursor c : sources) {
+                if (c.valid() && c.key().equals(key))
+                    c.next();
+            }
+            settle();
+        }
+
+        /* Picks the smallest key, newest source first, skipping deletes if asked. */
+        private void settle() throws IOException {
+            for (;;) {
+                current = null;
+                for (SSTable.Cursor c : sources) {
+                    if (c.valid() && (current == null || c.key().compareTo(current.key()) < 0))
+                        current = c;
+                }
+                if (current == null || !dropDeletes || current.value() != SSTable.TOMBSTONE)
+                    return;
+                String key = current.key();
+                for (SSTable.Cursor c : sources) {
+                    if (c.valid() && c.key().equals(key))
+                        c.next();
+                }
+            }
+        }
+    }
+}
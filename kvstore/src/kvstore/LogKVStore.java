@@ -0,0 +1,580 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * A disk-backed key-value store laid out like Bitcask. Every put and del is
+ * appended to the active log file; only the keys live in memory, in a key
+ * directory that points at the newest record for each key, so the values
+ * can far outgrow the heap. A get costs one positional read.
+ *
+ * Records are [crc32][key length][value length][key][value], with a value
+ * length of -1 marking a delete. When the active file reaches its size
+ * limit it is closed to writes and a new one started. Compaction rewrites
+ * the live records of the closed files into new files and then deletes the
+ * old ones; it runs in the background once more than half of the bytes on
+ * disk are dead, or when compact() is called.
+ *
+ * On open the files are replayed in order to rebuild the key directory. A
+ * record that is cut short or fails its checksum, as the last one written
+ * before a crash may, ends its file, which is truncated there. Writes reach
+ * the OS at once but are only forced to disk per write if syncWrites is set.
+ */
+public class LogKVStore implements KeyValueInterface, Closeable {
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 64L << 20;
+
+    /* crc, key length, value length */
+    static final int HEADER = 12;
+    static final int TOMBSTONE = -1;
+    /* in a WriteAheadLog only: the deadline of the put that follows */
+    static final int EXPIRY = -2;
+    private static final String SUFFIX = ".log";
+    /* file ids are (sequence << 16) | part; compaction output uses parts */
+    private static final int PART_BITS = 16;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Path dir;
+    private final long maxFileSize;
+    private final boolean syncWrites;
+
+    private final ConcurrentHashMap<String, Location> keydir =
+            new ConcurrentHashMap<String, Location>();
+    private final ConcurrentHashMap<Long, FileChannel> files =
+            new ConcurrentHashMap<Long, FileChannel>();
+
+    private final Object writeLock = new Object();
+    private FileChannel active;
+    private long activeId;
+    private long activeSize;
+
+    /* bytes in all files, and bytes of the records the key directory uses */
+    private final AtomicLong fileBytes = new AtomicLong();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private volatile boolean closed;
+
+    /* signalled when a write leaves too many dead bytes, or the store closes */
+    private final ReentrantLock workLock = new ReentrantLock();
+    private final Condition work = workLock.newCondition();
+    /* guarded by workLock */
+    private boolean workPending;
+    private final Thread compactor;
+
+    /**
+     * Opens or creates a store in the given directory with 64 MiB files.
+     *
+     * @param dir directory holding the log files
+     * @throws IOException if the files cannot be read or created
+     */
+    public LogKVStore(String dir) throws IOException {
+        this(dir, DEFAULT_MAX_FILE_SIZE, false);
+    }
+
+    /**
+     * Opens or creates a store, replaying any log files already in dir.
+     *
+     * @param dir directory holding the log files
+     * @param maxFileSize size at which the active file is closed to writes
+     * @param syncWrites force every put and del to disk before returning
+     * @throws IOException if the files cannot be read or created
+     */
+    public LogKVStore(String dir, long maxFileSize, boolean syncWrites) throws IOException {
+        this.dir = Paths.get(dir);
+        this.maxFileSize = maxFileSize;
+        this.syncWrites = syncWrites;
+        Files.createDirectories(this.dir);
+        long lastId = recover();
+        startActiveFile(((lastId >>> PART_BITS) + 1) << PART_BITS);
+        compactor = new Thread("log-compactor") {
+            @Override
+            public void run() {
+                compactorLoop();
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_STORAGE if the log cannot be written
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        byte[] k = key.getBytes(SlabAllocator.UTF8);
+        byte[] v = value.getBytes(SlabAllocator.UTF8);
+        ByteBuffer record = encode(k, v, v.length);
+        try {
+            synchronized (writeLock) {
+                Location loc = append(record, v.length);
+                Location old = keydir.put(key, loc);
+                liveBytes.addAndGet(loc.length - ((old != null) ? old.length : 0));
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        for (;;) {
+            Location loc = keydir.get(key);
+            if (loc == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            FileChannel ch = files.get(loc.fileId);
+            try {
+                if (ch != null) {
+                    ByteBuffer record = ByteBuffer.allocate(loc.length);
+                    readFully(ch, record, loc.offset);
+                    if (checksum(record) != record.getInt(0))
+                        throw new KVException(ERROR_STORAGE);
+                    return new String(record.array(), loc.length - loc.valueLength,
+                            loc.valueLength, SlabAllocator.UTF8);
+                }
+            } catch (ClosedByInterruptException e) {
+                throw new KVException(ERROR_STORAGE);
+            } catch (ClosedChannelException e) {
+                // compaction moved the record, or an interrupt closed ch
+                try {
+                    reopen(loc.fileId, ch);
+                } catch (IOException x) {
+                    throw new KVException(ERROR_STORAGE);
+                }
+            } catch (IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            }
+            if (closed)
+                throw new KVException(ERROR_STORAGE);
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        byte[] k = key.getBytes(SlabAllocator.UTF8);
+        try {
+            synchronized (writeLock) {
+                Location old = keydir.get(key);
+                if (old == null) {
+                    KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                    throw new KVException(msg);
+                }
+                append(encode(k, new byte[0], TOMBSTONE), 0);
+                keydir.remove(key);
+                liveBytes.addAndGet(-old.length);
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+        maybeCompact();
+    }
+
+    /**
+     * Rewrites the live records of every file but the active one into new
+     * files and deletes the old ones. Reads and writes continue meanwhile.
+     * Waits for a compaction already running to finish first.
+     *
+     * @throws IOException if the new files cannot be written
+     */
+    public void compact() throws IOException {
+        compactionLock.lock();
+        try {
+            compactFiles();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /* Must hold compactionLock. */
+    private void compactFiles() throws IOException {
+        List<Long> inputs = new ArrayList<Long>();
+        synchronized (writeLock) {
+            if (activeSize > 0)
+                startActiveFile(activeId + (1L << PART_BITS));
+            for (Long id : files.keySet()) {
+                if (id < activeId)
+                    inputs.add(id);
+            }
+        }
+        if (inputs.isEmpty())
+            return;
+        Collections.sort(inputs);
+        long inputBytes = 0;
+        for (Long id : inputs)
+            inputBytes += files.get(id).size();
+
+        // outputs sort after every input and before the active file
+        long outId = inputs.get(inputs.size() - 1) + 1;
+        FileChannel out = openFile(outId);
+        long outSize = 0;
+        for (Long id : inputs) {
+            FileChannel in = files.get(id);
+            long size = in.size();
+            long pos = 0;
+            ByteBuffer record;
+            while ((record = readRecord(in, pos, size)) != null) {
+                int length = record.capacity();
+                String key = decodeKey(record);
+                Location cur = keydir.get(key);
+                if (cur != null && cur.fileId == id && cur.offset == pos) {
+                    if (outSize > 0 && outSize + length > maxFileSize) {
+                        out.force(true);
+                        out = openFile(++outId);
+                        outSize = 0;
+                    }
+                    record.rewind();
+                    writeFully(out, record, outSize);
+                    fileBytes.addAndGet(length);
+                    // loses to a put or del that raced with the copy
+                    keydir.replace(key, cur,
+                            new Location(outId, outSize, length, cur.valueLength));
+                    outSize += length;
+                }
+                pos += length;
+            }
+            if (pos < size)
+                throw new IOException("corrupt record in " + fileFor(id));
+        }
+        out.force(true);
+        syncDirectory();
+
+        if (closed)
+            throw new ClosedChannelException();
+        // oldest first, so no delete outlives the record it hides
+        for (Long id : inputs) {
+            FileChannel in = files.remove(id);
+            in.close();
+            Files.deleteIfExists(fileFor(id));
+        }
+        fileBytes.addAndGet(-inputBytes);
+        if (outSize == 0) {
+            files.remove(outId).close();
+            Files.deleteIfExists(fileFor(outId));
+        }
+    }
+
+    /**
+     * @return the number of keys in the store
+     */
+    public int size() {
+        return keydir.size();
+    }
+
+    /**
+     * @return bytes on disk taken by overwritten or deleted records
+     */
+    public long getDeadBytes() {
+        return fileBytes.get() - liveBytes.get();
+    }
+
+    /**
+     * @return bytes in all the store's log files
+     */
+    public long getDiskBytes() {
+        return fileBytes.get();
+    }
+
+    /**
+     * Closes the log files, waiting for a running compaction to give up and
+     * the compactor thread to exit. Later operations fail with ERROR_STORAGE.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        requestCompaction();
+        compactionLock.lock();
+        try {
+            synchronized (writeLock) {
+                for (FileChannel ch : files.values())
+                    ch.close();
+            }
+        } finally {
+            compactionLock.unlock();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Replays every log file in order; returns the newest file's id. */
+    private long recover() throws IOException {
+        List<Long> ids = new ArrayList<Long>();
+        DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "*" + SUFFIX);
+        try {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                ids.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length()), 16));
+            }
+        } finally {
+            stream.close();
+        }
+        Collections.sort(ids);
+        for (Long id : ids) {
+            FileChannel ch = openFile(id);
+            long size = ch.size();
+            long pos = 0;
+            ByteBuffer record;
+            while ((record = readRecord(ch, pos, size)) != null) {
+                String key = decodeKey(record);
+                int valueLength = record.getInt(8);
+                int length = record.capacity();
+                Location old = (valueLength == TOMBSTONE) ? keydir.remove(key)
+                        : keydir.put(key, new Location(id, pos, length, valueLength));
+                liveBytes.addAndGet(((valueLength == TOMBSTONE) ? 0 : length)
+                        - ((old != null) ? old.length : 0));
+                pos += length;
+            }
+            if (pos < size) {
+                // torn or corrupt tail left by a crash
+                ch.truncate(pos);
+                ch.force(true);
+            }
+            fileBytes.addAndGet(pos);
+        }
+        return ids.isEmpty() ? 0 : ids.get(ids.size() - 1);
+    }
+
+    /* Must hold writeLock. */
+    private Location append(ByteBuffer record, int valueLength) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (!active.isOpen())
+            reopen(activeId, active);
+        int length = record.remaining();
+        if (activeSize > 0 && activeSize + length > maxFileSize)
+            startActiveFile(activeId + (1L << PART_BITS));
+        long offset = activeSize;
+        writeFully(active, record, offset);
+        if (syncWrites)
+            active.force(false);
+        activeSize += length;
+        fileBytes.addAndGet(length);
+        return new Location(activeId, offset, length, valueLength);
+    }
+
+    /* Must hold writeLock, or be the constructor. */
+    private void startActiveFile(long id) throws IOException {
+        if (active != null)
+            active.force(true);
+        active = openFile(id);
+        activeId = id;
+        activeSize = 0;
+        syncDirectory();
+    }
+
+    private boolean needsCompaction() {
+        long total = fileBytes.get();
+        return total >= 2 * maxFileSize && getDeadBytes() >= COMPACTION_THRESHOLD * total;
+    }
+
+    private void maybeCompact() {
+        if (needsCompaction() && !closed)
+            requestCompaction();
+    }
+
+    /*
+     * Wakes the compactor thread. Requests made while it is busy collapse
+     * into one more pass.
+     */
+    private void requestCompaction() {
+        workLock.lock();
+        try {
+            workPending = true;
+            work.signal();
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    private void compactorLoop() {
+        for (;;) {
+            workLock.lock();
+            try {
+                while (!workPending)
+                    work.awaitUninterruptibly();
+                workPending = false;
+            } finally {
+                workLock.unlock();
+            }
+            if (closed)
+                return;
+            compactionLock.lock();
+            try {
+                // a compact() call may have done the work meanwhile
+                if (!closed && needsCompaction())
+                    compactFiles();
+            } catch (IOException e) {
+                // best effort; the next write past the threshold tries again
+            } finally {
+                compactionLock.unlock();
+            }
+        }
+    }
+
+    /*
+     * Replaces the channel of file id, which an interrupted read or write
+     * closed for every thread, unless compaction has removed the file or
+     * another thread has replaced the channel already.
+     */
+    private void reopen(long id, FileChannel old) throws IOException {
+        synchronized (writeLock) {
+            if (closed || files.get(id) != old)
+                return;
+            FileChannel ch = FileChannel.open(fileFor(id), StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            // compaction removes files without writeLock
+            if (!files.replace(id, old, ch)) {
+                closeQuietly(ch);
+                return;
+            }
+            if (active == old)
+                active = ch;
+        }
+    }
+
+    private static void closeQuietly(FileChannel ch) {
+        try {
+            ch.close();
+        } catch (IOException e) {
+            // never read or written, so nothing is lost
+        }
+    }
+
+    private FileChannel openFile(long id) throws IOException {
+        FileChannel ch = FileChannel.open(fileFor(id), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        files.put(id, ch);
+        return ch;
+    }
+
+    private Path fileFor(long id) {
+        return dir.resolve(String.format("%016x%s", id, SUFFIX));
+    }
+
+    private void syncDirectory() {
+        try {
+            FileChannel d = FileChannel.open(dir, StandardOpenOption.READ);
+            try {
+                d.force(true);
+            } finally {
+                d.close();
+            }
+        } catch (IOException e) {
+            // not every platform can sync a directory
+        }
+    }
+
+    /*
+     * Reads the record at pos, or returns null if the file ends there or
+     * the record is incomplete or fails its checksum.
+     */
+    static ByteBuffer readRecord(FileChannel ch, long pos, long size) throws IOException {
+        return readRecord(ch, pos, size, TOMBSTONE);
+    }
+
+    /* As above, taking value lengths down to minValueLength as markers. */
+    static ByteBuffer readRecord(FileChannel ch, long pos, long size, int minValueLength)
+            throws IOException {
+        if (pos + HEADER > size)
+            return null;
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(ch, header, pos);
+        int keyLength = header.getInt(4), valueLength = header.getInt(8);
+        // an expiry holds its deadline, 8 bytes, where a value would be
+        int payload = (valueLength == EXPIRY) ? 8 : Math.max(valueLength, 0);
+        if (keyLength < 0 || valueLength < minValueLength
+                || pos + HEADER + keyLength + payload > size)
+            return null;
+        ByteBuffer record = ByteBuffer.allocate(HEADER + keyLength + payload);
+        readFully(ch, record, pos);
+        return (checksum(record) == record.getInt(0)) ? record : null;
+    }
+
+    static ByteBuffer encode(byte[] key, byte[] value, int valueLength) {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + key.length + value.length);
+        record.putInt(0).putInt(key.length).putInt(valueLength).put(key).put(value);
+        record.putInt(0, checksum(record));
+        record.flip();
+        return record;
+    }
+
+    static String decodeKey(ByteBuffer record) {
+        return new String(record.array(), HEADER, record.getInt(4), SlabAllocator.UTF8);
+    }
+
+    /* CRC32 of everything after the crc field */
+    private static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = ch.read(buf, pos + buf.position());
+            if (n < 0)
+                throw new IOException("unexpected end of log file");
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer buf, long pos) throws IOException {
+        long start = pos - buf.position();
+        while (buf.hasRemaining())
+            ch.write(buf, start + buf.position());
+    }
+
+    /* Where the newest record for a key is. */
+    private static class Location {
+        final long fileId;
+        final long offset;
+        final int length;
+        final int valueLength;
+
+        Location(long fileId, long offset, int length, int valueLength) {
+            this.fileId = fileId;
+            this.offset = offset;
+            this.length = length;
+            this.valueLength = valueLength;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A key-value store that keeps its values outside the Java heap, in the slabs
+ * of a SlabAllocator. The map only holds each key and a handle to its value,
+ * which is decoded back into a String when get returns it.
+ */
+public class OffHeapKVStore implements KeyValueInterface {
+
+    private final ConcurrentHashMap<String, Long> handles;
+    private final SlabAllocator slabs;
+
+    /**
+     * Construct a new OffHeapKVStore with its own allocator.
+     */
+    public OffHeapKVStore() {
+        this(new SlabAllocator());
+    }
+
+    /**
+     * Construct a new OffHeapKVStore.
+     *
+     * @param slabs the allocator to keep values in
+     */
+    public OffHeapKVStore(SlabAllocator slabs) {
+        this.slabs = slabs;
+        this.handles = new ConcurrentHashMap<String, Long>();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        Long old = handles.put(key, slabs.storeString(value));
+        if (old != null)
+            slabs.free(old);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        for (;;) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            String value = slabs.readString(handle);
+            if (value != null)
+                return value;
+            // a racing put or del freed the chunk after we looked it up
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        Long old = handles.remove(key);
+        if (old == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        slabs.free(old);
+    }
+
+    /**
+     * Takes a reference to the bytes of a key's value, so that a KVCache on
+     * the same allocator can hold the value without copying it. The caller
+     * must give the reference back with SlabAllocator.free.
+     *
+     * @param  key String key
+     * @return a handle to the value, retained for the caller
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    public long retain(String key) throws KVException {
+        for (;;) {
+            Long handle = handles.get(key);
+            if (handle == null) {
+                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+                throw new KVException(msg);
+            }
+            if (slabs.retain(handle))
+                return handle;
+            // a racing put or del freed the chunk after we looked it up
+        }
+    }
+
+    /**
+     * @return the number of keys in the store
+     */
+    public int size() {
+        return handles.size();
+    }
+
+    /**
+     * @return the allocator holding this store's values
+     */
+    public SlabAllocator getAllocator() {
+        return slabs;
+    }
+}
@@ -0,0 +1,144 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * S3-FIFO replacement. New keys enter a small probationary FIFO; an entry
+ * that is hit while on probation moves to the main FIFO when it reaches the
+ * head, otherwise it is evicted and its key is remembered in a ghost FIFO.
+ * Keys that come back while still remembered go straight to main. Main is a
+ * FIFO with lazy promotion: an entry at the head with a non-zero frequency
+ * is decremented and reinserted at the back.
+ */
+class S3FIFOPolicy implements EvictionPolicy {
+    private static final int SMALL = 0, MAIN = 1;
+
+    private final EntryList small = new EntryList();
+    private final EntryList main = new EntryList();
+    private final Map<String, Boolean> ghost;
+    private boolean insertToMain;
+    private volatile long rotations;
+
+    /**
+     * @param capacity number of entries in the set; also bounds the ghost FIFO
+     */
+    S3FIFOPolicy(final int capacity) {
+        ghost = new LinkedHashMap<String, Boolean>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > Math.max(1, capacity);
+            }
+        };
+    }
+
+    @Override
+    public boolean recordsHitsByMarking() {
+        return true;
+    }
+
+    @Override
+    public void onHit(CacheEntry e) {
+        e.markAccessed();
+    }
+
+    @Override
+    public void onMiss(String key) {
+        insertToMain = (ghost.remove(key) != null);
+    }
+
+    @Override
+    public void onInsert(CacheEntry e) {
+        e.freq = 0;
+        if (insertToMain) {
+            e.status = MAIN;
+            main.addLast(e);
+        } else {
+            e.status = SMALL;
+            small.addLast(e);
+        }
+        insertToMain = false;
+    }
+
+    @Override
+    public void onRemove(CacheEntry e) {
+        queueOf(e).remove(e);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        for (;;) {
+            if (evictFromSmall()) {
+                CacheEntry t = small.removeFirst();
+                if (t.freq > 0) {
+                    // accessed while on probation
+                    t.freq = 0;
+                    t.isUsed = false;
+                    t.status = MAIN;
+                    main.addLast(t);
+                    rotations++;
+                    continue;
+                }
+                ghost.put(t.key, Boolean.TRUE);
+                return t;
+            }
+            if (main.isEmpty())
+                return null;
+            CacheEntry t = main.first();
+            if (t.freq > 0) {
+                t.freq--;
+                if (t.freq == 0)
+                    t.isUsed = false;
+                main.moveToLast(t);
+                rotations++;
+                continue;
+            }
+            main.remove(t);
+            return t;
+        }
+    }
+
+    @Override
+    public CacheEntry peekVictim() {
+        if (evictFromSmall()) {
+            CacheEntry t = small.first();
+            for (int i = 0; i < small.size(); i++, t = t.next) {
+                if (t.freq == 0)
+                    return t;
+            }
+        }
+        CacheEntry t = main.first();
+        for (int i = 0; i < main.size(); i++, t = t.next) {
+            if (t.freq == 0)
+                return t;
+        }
+        return main.isEmpty() ? small.first() : main.first();
+    }
+
+    @Override
+    public List<CacheEntry> entriesInOrder() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(small.size() + main.size());
+        small.appendTo(entries);
+        main.appendTo(entries);
+        return entries;
+    }
+
+    /* Small is kept to about a tenth of the resident entries. */
+    private boolean evictFromSmall() {
+        return !small.isEmpty()
+            && (main.isEmpty() || small.size() * 10 >= small.size() + main.size());
+    }
+
+    private EntryList queueOf(CacheEntry e) {
+        return (e.status == MAIN) ? main : small;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations;
+    }
+}
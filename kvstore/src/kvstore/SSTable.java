@@ -0,0 +1,392 @@
+package kvstore;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * An immutable sorted file of an LSMKVStore. Entries are packed in order
+ * into blocks of about 4 KiB, each with its own checksum, followed by an
+ * index holding the first key of every block, a Bloom filter of all keys
+ * and a fixed-size footer:
+ *
+ *   entry   [key length][key][value length, -1 for a delete][value]
+ *   index   [block count] then per block [key length][first key][offset]
+ *           [length][crc32], then [key length][last key]
+ *   footer  [index offset][index length][filter offset][filter length]
+ *           [entry count][crc32 of index and filter][magic]
+ *
+ * The index and filter are kept on the heap, so a lookup of a key the
+ * filter rules out costs no I/O, and any other lookup reads one block.
+ */
+class SSTable implements Closeable {
+
+    /** Marks a delete. Compared by identity, so no stored value can be it. */
+    static final String TOMBSTONE = new String("");
+
+    static final int BLOCK_SIZE = 4096;
+    static final int BLOOM_BITS_PER_KEY = 10;
+    private static final int MAGIC = 0x4c534d54; // "LSMT"
+    private static final int FOOTER = 40;
+
+    final long id;
+    final String minKey, maxKey;
+    final long entries;
+    final long fileSize;
+
+    private final Path file;
+    /* replaced if an interrupted read closes it; see read */
+    private volatile FileChannel channel;
+    private boolean closed;
+    private final String[] blockKeys;
+    private final long[] blockOffsets;
+    private final int[] blockLengths;
+    private final int[] blockCrcs;
+    private final BloomFilter bloom;
+
+    /**
+     * Opens a table written by write.
+     *
+     * @param file the table's file
+     * @param id the table's file id
+     * @throws IOException if the file cannot be read or is damaged
+     */
+    SSTable(Path file, long id) throws IOException {
+        this.file = file;
+        this.id = id;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            fileSize = channel.size();
+            if (fileSize < FOOTER)
+                throw new IOException("table too short: " + file);
+            ByteBuffer footer = read(fileSize - FOOTER, FOOTER);
+            long indexOffset = footer.getLong();
+            int indexLength = footer.getInt();
+            long bloomOffset = footer.getLong();
+            int bloomLength = footer.getInt();
+            entries = footer.getLong();
+            int metaCrc = footer.getInt();
+            if (footer.getInt() != MAGIC)
+                throw new IOException("not a table: " + file);
+            ByteBuffer meta = read(indexOffset, indexLength + bloomLength);
+            if (crc(meta.array(), 0, meta.capacity()) != metaCrc || bloomOffset != indexOffset + indexLength)
+                throw new IOException("table index fails its checksum: " + file);
+
+            int blocks = meta.getInt();
+            blockKeys = new String[blocks];
+            blockOffsets = new long[blocks];
+            blockLengths = new int[blocks];
+            blockCrcs = new int[blocks];
+            for (int i = 0; i < blocks; i++) {
+                blockKeys[i] = getString(meta);
+                blockOffsets[i] = meta.getLong();
+                blockLengths[i] = meta.getInt();
+                blockCrcs[i] = meta.getInt();
+            }
+            maxKey = getString(meta);
+            minKey = (blocks > 0) ? blockKeys[0] : maxKey;
+            bloom = BloomFilter.readFrom(meta);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        } catch (RuntimeException e) {
+            // lengths that run past the index
+            channel.close();
+            throw new IOException("bad table index: " + file, e);
+        }
+    }
+
+    /**
+     * Writes entries from the cursor to a new table until it runs out or
+     * the file reaches maxBytes, leaving the cursor on the first entry not
+     * written. The file is forced to disk before this returns.
+     *
+     * @param file the file to create
+     * @param id the table's file id
+     * @param entries the entries to write, in ascending key order
+     * @param maxBytes size after which no more entries are taken
+     * @return the new table, or null if the cursor had no entries
+     * @throws IOException if the table cannot be written
+     */
+    static SSTable write(Path file, long id, Cursor entries, long maxBytes) throws IOException {
+        if (!entries.valid())
+            return null;
+        FileOutputStream fos = new FileOutputStream(file.toFile());
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+        try {
+            List<String> firstKeys = new ArrayList<String>();
+            List<long[]> blocks = new ArrayList<long[]>(); // offset, length, crc
+            BlockBuilder block = new BlockBuilder();
+            List<String> keys = new ArrayList<String>();
+            long offset = 0;
+            long count = 0;
+            String last = null;
+            while (entries.valid() && offset + block.length < maxBytes) {
+                if (block.length == 0)
+                    firstKeys.add(entries.key());
+                last = entries.key();
+                block.add(last, entries.value());
+                keys.add(last);
+                count++;
+                entries.next();
+                if (block.length >= BLOCK_SIZE || !entries.valid()
+                        || offset + block.length >= maxBytes) {
+                    int length = block.length;
+                    blocks.add(new long[] { offset, length, block.writeTo(out) });
+                    offset += length;
+                }
+            }
+
+            BloomFilter bloom = new BloomFilter(keys.size(), BLOOM_BITS_PER_KEY);
+            for (String k : keys)
+                bloom.add(k);
+            byte[] lastBytes = last.getBytes(SlabAllocator.UTF8);
+            int indexLength = 4 + 4 + lastBytes.length;
+            List<byte[]> encodedKeys = new ArrayList<byte[]>(firstKeys.size());
+            for (String k : firstKeys) {
+                byte[] b = k.getBytes(SlabAllocator.UTF8);
+                encodedKeys.add(b);
+                indexLength += 4 + b.length + 8 + 4 + 4;
+            }
+            ByteBuffer meta = ByteBuffer.allocate(indexLength + bloom.serializedSize());
+            meta.putInt(blocks.size());
+            for (int i = 0; i < blocks.size(); i++) {
+                meta.putInt(encodedKeys.get(i).length).put(encodedKeys.get(i));
+                meta.putLong(blocks.get(i)[0]).putInt((int) blocks.get(i)[1]).putInt((int) blocks.get(i)[2]);
+            }
+            meta.putInt(lastBytes.length).put(lastBytes);
+            bloom.writeTo(meta);
+            out.write(meta.array());
+            out.writeLong(offset);
+            out.writeInt(indexLength);
+            out.writeLong(offset + indexLength);
+            out.writeInt(bloom.serializedSize());
+            out.writeLong(count);
+            out.writeInt(crc(meta.array(), 0, meta.capacity()));
+            out.writeInt(MAGIC);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return new SSTable(file, id);
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the key's value, TOMBSTONE if the table records its delete,
+     *         or null if the table does not mention it
+     * @throws IOException if the block cannot be read or fails its
+     *         checksum; ClosedChannelException if the table was closed
+     */
+    String get(String key) throws IOException {
+        if (key.compareTo(minKey) < 0 || key.compareTo(maxKey) > 0 || !mightContain(key))
+            return null;
+        int i = Arrays.binarySearch(blockKeys, key);
+        if (i < 0)
+            i = -i - 2; // the block before the insertion point
+        ByteBuffer block = readBlock(i);
+        while (block.hasRemaining()) {
+            String k = getString(block);
+            int valueLength = block.getInt(block.position());
+            int cmp = k.compareTo(key);
+            if (cmp == 0)
+                return (valueLength < 0) ? TOMBSTONE : getString(block);
+            if (cmp > 0)
+                return null;
+            block.position(block.position() + 4 + Math.max(valueLength, 0));
+        }
+        return null;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return false if the key is certainly not in the table
+     */
+    boolean mightContain(String key) {
+        return bloom.mightContain(key);
+    }
+
+    /**
+     * @return a cursor over every entry in key order, positioned on the first
+     * @throws IOException if the first block cannot be read
+     */
+    Cursor cursor() throws IOException {
+        return new TableCursor();
+    }
+
+    /**
+     * @param start the smallest key of a range
+     * @param end the largest key of the range
+     * @return whether the table holds keys in the range
+     */
+    boolean overlaps(String start, String end) {
+        return minKey.compareTo(end) <= 0 && maxKey.compareTo(start) >= 0;
+    }
+
+    /**
+     * Closes the table and deletes its file. Lookups in progress fail with
+     * ClosedChannelException.
+     */
+    void delete() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        channel.close();
+    }
+
+    private ByteBuffer readBlock(int i) throws IOException {
+        ByteBuffer block = read(blockOffsets[i], blockLengths[i]);
+        if (crc(block.array(), 0, blockLengths[i]) != blockCrcs[i])
+            throw new IOException("table block fails its checksum: " + file);
+        return block;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        FileChannel ch = channel;
+        while (buf.hasRemaining()) {
+            int n;
+            try {
+                n = ch.read(buf, position + buf.position());
+            } catch (ClosedByInterruptException e) {
+                throw e;
+            } catch (ClosedChannelException e) {
+                ch = reopen(ch);
+                continue;
+            }
+            if (n < 0)
+                throw new IOException("unexpected end of table: " + file);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    /*
+     * An interrupted read closes the channel for every thread; replaces it
+     * unless close did, and returns the current one.
+     */
+    private synchronized FileChannel reopen(FileChannel old) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        if (channel == old)
+            channel = FileChannel.open(file, StandardOpenOption.READ);
+        return channel;
+    }
+
+    private static String getString(ByteBuffer in) {
+        int n = in.getInt();
+        String s = new String(in.array(), in.position(), n, SlabAllocator.UTF8);
+        in.position(in.position() + n);
+        return s;
+    }
+
+    private static int crc(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A position in a sorted run of entries, LevelDB style: valid says
+     * whether it is on an entry, whose key and value it then returns, and
+     * next moves to the following one. Values may be TOMBSTONE.
+     */
+    abstract static class Cursor {
+        abstract boolean valid();
+
+        abstract String key();
+
+        abstract String value();
+
+        abstract void next() throws IOException;
+    }
+
+    /* Reads the table a block at a time. */
+    private class TableCursor extends Cursor {
+        private int blockIndex = -1;
+        private ByteBuffer block;
+        private String key, value;
+
+        TableCursor() throws IOException {
+            next();
+        }
+
+        @Override
+        boolean valid() {
+            return key != null;
+        }
+
+        @Override
+        String key() {
+            return key;
+        }
+
+        @Override
+        String value() {
+            return value;
+        }
+
+        @Override
+        void next() throws IOException {
+            while (block == null || !block.hasRemaining()) {
+                if (++blockIndex >= blockKeys.length) {
+                    key = value = null;
+                    return;
+                }
+                block = readBlock(blockIndex);
+            }
+            key = getString(block);
+            if (block.getInt(block.position()) < 0) {
+                block.getInt();
+                value = TOMBSTONE;
+            } else {
+                value = getString(block);
+            }
+        }
+    }
+
+    /* The encoded entries of the block being written. */
+    private static class BlockBuilder {
+        byte[] data = new byte[2 * BLOCK_SIZE];
+        int length;
+
+        void add(String key, String value) {
+            byte[] k = key.getBytes(SlabAllocator.UTF8);
+            byte[] v = (value == TOMBSTONE) ? null : value.getBytes(SlabAllocator.UTF8);
+            int n = 8 + k.length + ((v == null) ? 0 : v.length);
+            if (length + n > data.length)
+                data = Arrays.copyOf(data, Math.max(length + n, 2 * data.length));
+            ByteBuffer buf = ByteBuffer.wrap(data, length, n);
+            buf.putInt(k.length).put(k).putInt((v == null) ? -1 : v.length);
+            if (v != null)
+                buf.put(v);
+            length += n;
+        }
+
+        /* Writes the block and returns its crc. */
+        int writeTo(DataOutputStream out) throws IOException {
+            out.write(data, 0, length);
+            int crc = crc(data, 0, length);
+            length = 0;
+            return crc;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package kvstore;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The client side of a scan: walks a range of keys on a server one page at
+ * a time, asking for the next page only once the current one is used up.
+ * Only one page is held in memory, however large the range. Each page is
+ * a separate request, so writes made between pages may or may not be seen.
+ */
+public class ScanCursor {
+
+    private final KVClient client;
+    private final String endKey;
+    private final int pageSize;
+    private int remaining;
+
+    private String nextStart;
+    private boolean lastPage;
+    private Iterator<Map.Entry<String, String>> page;
+
+    ScanCursor(KVClient client, String startKey, String endKey, int limit, int pageSize) {
+        this.client = client;
+        this.nextStart = startKey;
+        this.endKey = endKey;
+        this.remaining = limit;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return whether the scan has another pair, fetching the next page
+     *         from the server if the current one is used up
+     * @throws KVException if a page could not be fetched
+     */
+    public boolean hasNext() throws KVException {
+        while (remaining > 0 && (page == null || !page.hasNext()) && !lastPage) {
+            KVMessage resp = client.scanPage(nextStart, endKey, Math.min(pageSize, remaining));
+            page = resp.getPairs().iterator();
+            nextStart = resp.getKey();
+            lastPage = (nextStart == null);
+        }
+        return remaining > 0 && page != null && page.hasNext();
+    }
+
+    /**
+     * @return the next pair in key order
+     * @throws KVException if a page could not be fetched
+     * @throws NoSuchElementException if the scan is finished
+     */
+    public Map.Entry<String, String> next() throws KVException {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        remaining--;
+        return page.next();
+    }
+}
@@ -0,0 +1,79 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Second-chance replacement. Entries sit on a circular list in insertion
+ * order and the head of the list is the clock hand: a referenced entry under
+ * the hand has its bit cleared and the hand moves past it, an unreferenced
+ * one is evicted. In the worst case everyone gets a second chance and the
+ * hand comes back round to the entry it started on.
+ */
+class SecondChancePolicy implements EvictionPolicy {
+    private final EntryList clock = new EntryList();
+    /* volatile so that KVCache.getStats can read it without the set lock */
+    private volatile long rotations;
+
+    @Override
+    public boolean recordsHitsByMarking() {
+        return true;
+    }
+
+    @Override
+    public void onHit(CacheEntry e) {
+        e.markAccessed();
+    }
+
+    @Override
+    public void onMiss(String key) {
+    }
+
+    @Override
+    public void onInsert(CacheEntry e) {
+        clock.addLast(e);
+    }
+
+    @Override
+    public void onRemove(CacheEntry e) {
+        clock.remove(e);
+    }
+
+    @Override
+    public CacheEntry evict() {
+        if (clock.isEmpty())
+            return null;
+        CacheEntry hand = clock.first();
+        while (hand.isUsed) {
+            hand.isUsed = false;
+            clock.moveToLast(hand);
+            rotations++;
+            hand = clock.first();
+        }
+        clock.remove(hand);
+        return hand;
+    }
+
+    @Override
+    public CacheEntry peekVictim() {
+        CacheEntry ce = clock.first();
+        for (int i = 0; i < clock.size(); i++) {
+            if (!ce.isUsed)
+                return ce;
+            ce = ce.next;
+        }
+        return clock.first();
+    }
+
+    @Override
+    public List<CacheEntry> entriesInOrder() {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>(clock.size());
+        clock.appendTo(entries);
+        return entries;
+    }
+
+    @Override
+    public long getRotations() {
+        return rotations;
+    }
+}
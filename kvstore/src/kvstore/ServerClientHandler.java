@@ -1,27 +1,74 @@
 package kvstore;
 
 import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MDEL_REQ;
+import static kvstore.KVConstants.MGET_REQ;
+import static kvstore.KVConstants.MPUT_REQ;
 import static kvstore.KVConstants.PUT_REQ;
 import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SCAN_REQ;
 import static kvstore.KVConstants.SUCCESS;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
+ * A connection carries one request, either a KVMessage in XML or, if it
+ * starts with BinaryProtocol.MAGIC, a binary frame; the response is sent
+ * the same way. One that starts with BinaryProtocol.PERSISTENT_MAGIC
+ * carries binary requests until the client closes it, and keeps a thread
+ * for as long; those threads come from a pool of their own, so that
+ * persistent clients never hold up one-request connections. When every
+ * persistent thread is taken, a new persistent connection is refused with
+ * ERROR_SERVER_BUSY. Telling the
+ * protocols apart is left to the request pool's threads, so that
+ * SocketServer never waits on a client's first bytes before accepting the
+ * next connection.
  */
 public class ServerClientHandler implements NetworkHandler {
 
     public KVServer kvServer;
     public ThreadPool threadPool;
+    public ThreadPool persistentPool;
+    /* one per persistentPool thread not serving a connection */
+    private final Semaphore persistentSlots;
+
+    /** Most pairs a single scan response carries, whatever the client asks. */
+    public static final int MAX_SCAN_PAGE = 1000;
+
+    /** Most keys a single mget, mput or mdel request may carry. */
+    public static final int MAX_BATCH = 1000;
+
+    /**
+     * Milliseconds a persistent connection may wait for its next request
+     * before the server closes it and frees its thread.
+     */
+    public static final int PERSISTENT_IDLE_TIMEOUT = 60000;
 
     /**
-     * Constructs a ServerClientHandler with ThreadPool of a single thread.
+     * Constructs a ServerClientHandler with ThreadPool of a single thread,
+     * and room for one persistent connection.
      *
      * @param kvServer KVServer to carry out requests
      */
@@ -31,14 +78,30 @@ public class ServerClientHandler implements NetworkHandler {
 
     /**
      * Constructs a ServerClientHandler with ThreadPool of thread equal to
-     * the number passed in as connections.
+     * the number passed in as connections, and room for as many persistent
+     * connections.
      *
      * @param kvServer KVServer to carry out requests
      * @param connections number of threads in threadPool to service requests
      */
     public ServerClientHandler(KVServer kvServer, int connections) {
+        this(kvServer, connections, connections);
+    }
+
+    /**
+     * Constructs a ServerClientHandler with separate pools for one-request
+     * and persistent connections.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param connections number of threads in threadPool to service requests
+     * @param persistentConnections most persistent connections served at
+     *        once, each by a thread of persistentPool
+     */
+    public ServerClientHandler(KVServer kvServer, int connections, int persistentConnections) {
         this.kvServer = kvServer;
         this.threadPool = new ThreadPool(connections);
+        this.persistentPool = new ThreadPool(persistentConnections);
+        this.persistentSlots = new Semaphore(persistentConnections);
     }
 
     /**
@@ -65,30 +128,254 @@ public class ServerClientHandler implements NetworkHandler {
 
         @Override
         public void run() {
+            InputStream in;
+            try {
+                PushbackInputStream pushback = new PushbackInputStream(
+                        client.getInputStream(), BinaryProtocol.MAGIC.length);
+                WireProtocol protocol = BinaryProtocol.negotiate(pushback);
+                if (protocol == WireProtocol.BINARY) {
+                    serveBinary(pushback);
+                    return;
+                } else if (protocol == WireProtocol.PERSISTENT) {
+                    startPersistent(pushback);
+                    return;
+                }
+                in = pushback;
+            } catch (IOException e) {
+                in = null;
+            }
+            serveXML(in);
+        }
+
+        /* Answers one XML request, from in or, if null, a failed read. */
+        private void serveXML(InputStream in) {
             KVMessage req = null;
             KVMessage resp = new KVMessage(RESP);
+            ByteBuffer mapped = null;
             try {
-                req = new KVMessage(client);
-                if (PUT_REQ.equals(req.getMsgType())) {
-                    kvServer.put(req.getKey(), req.getValue());
-                    resp.setMessage(SUCCESS);
-                } else if (GET_REQ.equals(req.getMsgType())) {
-                    String value = kvServer.get(req.getKey());
-                    resp.setKey(req.getKey());
-                    resp.setValue(value);
-                } else if (DEL_REQ.equals(req.getMsgType())) {
-                    kvServer.del(req.getKey());
-                    resp.setMessage(SUCCESS);
-                }
+                if (in == null)
+                    throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+                req = new KVMessage(in);
+                mapped = execute(req, resp);
             } catch (KVException ex) {
                 resp = ex.getKVMessage();
             }
 
             try {
-                resp.sendMessage(client);
+                if (mapped != null)
+                    KVMessage.sendValue(client, req.getKey(), mapped);
+                else
+                    resp.sendMessage(client);
             } catch (KVException ex) {
                 ex.printStackTrace();
             }
         }
+
+        /*
+         * Answers one request frame, the connection's magic already read,
+         * and closes the connection.
+         */
+        private void serveBinary(InputStream in) {
+            KVMessage resp = new KVMessage(RESP);
+            ByteBuffer mapped = null;
+            try {
+                mapped = execute(BinaryProtocol.readRequest(in), resp);
+            } catch (KVException ex) {
+                resp = ex.getKVMessage();
+            }
+
+            try {
+                if (mapped != null)
+                    BinaryProtocol.sendValue(client, mapped);
+                else
+                    BinaryProtocol.sendResponse(client, resp);
+            } catch (KVException ex) {
+                ex.printStackTrace();
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // the response is out or could not be sent anyway
+                }
+            }
+        }
+
+        /*
+         * Accepts the connection, its magic already read, and hands it to a
+         * thread of persistentPool; or, if none is free, refuses it with
+         * ERROR_SERVER_BUSY and closes it.
+         */
+        private void startPersistent(final InputStream raw) {
+            boolean accepted = persistentSlots.tryAcquire();
+            try {
+                OutputStream out = client.getOutputStream();
+                BinaryProtocol.writeResponse(out, 0,
+                        new KVMessage(RESP, accepted ? SUCCESS : ERROR_SERVER_BUSY));
+                out.flush();
+                if (accepted) {
+                    persistentPool.addJob(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                servePersistent(raw);
+                            } finally {
+                                persistentSlots.release();
+                            }
+                        }
+                    });
+                    return;
+                }
+            } catch (IOException ex) {
+                // the client is gone
+            } catch (InterruptedException ex) {
+                // addJob does not block
+            }
+            if (accepted)
+                persistentSlots.release();
+            try {
+                client.close();
+            } catch (IOException e) {
+                // nothing left to send
+            }
+        }
+
+        /*
+         * Answers tagged request frames, the connection's magic already
+         * read, until the client closes its side, stays idle too long or
+         * sends a frame that cannot be read; then closes the connection.
+         * Responses are flushed only when no further request is waiting,
+         * so that pipelined requests share writes.
+         */
+        private void servePersistent(InputStream raw) {
+            try {
+                client.setSoTimeout(PERSISTENT_IDLE_TIMEOUT);
+                // responses are flushed whole, so Nagle would only delay them
+                client.setTcpNoDelay(true);
+                InputStream in = new BufferedInputStream(raw);
+                OutputStream out = new BufferedOutputStream(client.getOutputStream());
+                int id;
+                while ((id = BinaryProtocol.readId(in)) >= 0) {
+                    KVMessage req;
+                    try {
+                        req = BinaryProtocol.readRequest(in);
+                    } catch (KVException ex) {
+                        // the frames after this one cannot be found
+                        BinaryProtocol.writeResponse(out, id, ex.getKVMessage());
+                        out.flush();
+                        break;
+                    }
+                    KVMessage resp = new KVMessage(RESP);
+                    ByteBuffer mapped = null;
+                    try {
+                        mapped = execute(req, resp);
+                    } catch (KVException ex) {
+                        resp = ex.getKVMessage();
+                    }
+                    if (mapped != null)
+                        BinaryProtocol.writeValue(out, id, mapped);
+                    else
+                        BinaryProtocol.writeResponse(out, id, resp);
+                    if (in.available() == 0)
+                        out.flush();
+                }
+            } catch (KVException ex) {
+                // timed out or cut short between requests
+            } catch (IOException ex) {
+                // the client is gone
+            } finally {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // nothing left to send
+                }
+            }
+        }
+
+        /*
+         * Carries out req and fills in resp. Returns the value of a get
+         * instead, if the server can hand out its bytes as they are stored.
+         */
+        private ByteBuffer execute(KVMessage req, KVMessage resp) throws KVException {
+            if (PUT_REQ.equals(req.getMsgType())) {
+                if (req.getTTL() != 0)
+                    kvServer.put(req.getKey(), req.getValue(), req.getTTL(),
+                            TimeUnit.MILLISECONDS);
+                else
+                    kvServer.put(req.getKey(), req.getValue());
+                resp.setMessage(SUCCESS);
+            } else if (GET_REQ.equals(req.getMsgType())) {
+                ByteBuffer mapped = kvServer.getMapped(req.getKey());
+                if (mapped != null)
+                    return mapped;
+                String value = kvServer.get(req.getKey());
+                resp.setKey(req.getKey());
+                resp.setValue(value);
+            } else if (DEL_REQ.equals(req.getMsgType())) {
+                kvServer.del(req.getKey());
+                resp.setMessage(SUCCESS);
+            } else if (SCAN_REQ.equals(req.getMsgType())) {
+                scanPage(req, resp);
+            } else if (MGET_REQ.equals(req.getMsgType())) {
+                Map<String, String> values = kvServer.mget(batchKeys(req));
+                for (Map.Entry<String, String> e : values.entrySet())
+                    resp.addPair(e.getKey(), e.getValue());
+                resp.setMessage(SUCCESS);
+            } else if (MPUT_REQ.equals(req.getMsgType())) {
+                batchKeys(req);
+                Map<String, String> pairs = new LinkedHashMap<String, String>();
+                for (Map.Entry<String, String> e : req.getPairs())
+                    pairs.put(e.getKey(), e.getValue());
+                kvServer.mput(pairs);
+                resp.setMessage(SUCCESS);
+            } else if (MDEL_REQ.equals(req.getMsgType())) {
+                for (String key : kvServer.mdel(batchKeys(req)))
+                    resp.addPair(key, null);
+                resp.setMessage(SUCCESS);
+            }
+            return null;
+        }
+
+        /*
+         * Checks a batch request's pairs, which nothing has looked at yet,
+         * and returns its keys in order.
+         */
+        private List<String> batchKeys(KVMessage req) throws KVException {
+            req.validate();
+            if (req.getPairs().size() > MAX_BATCH)
+                throw new KVException(ERROR_INVALID_FORMAT);
+            List<String> keys = new ArrayList<String>(req.getPairs().size());
+            for (Map.Entry<String, String> e : req.getPairs())
+                keys.add(e.getKey());
+            return keys;
+        }
+
+        /*
+         * Fills resp with one page of a scan. A scan request carries the
+         * start key in Key, the optional end key in Value and the page size
+         * in Message. If the range holds more pairs than fit, resp's Key is
+         * the start key of the next page.
+         */
+        private void scanPage(KVMessage req, KVMessage resp) throws KVException {
+            int pageSize;
+            try {
+                pageSize = Integer.parseInt(req.getMessage().trim());
+            } catch (NumberFormatException e) {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            if (pageSize <= 0)
+                throw new KVException(ERROR_INVALID_FORMAT);
+            pageSize = Math.min(pageSize, MAX_SCAN_PAGE);
+            String start = req.getKey(), end = req.getValue();
+            Iterator<Map.Entry<String, String>> it = kvServer.scan(
+                    (start == null || start.isEmpty()) ? null : start,
+                    (end == null || end.isEmpty()) ? null : end, pageSize + 1);
+            for (int i = 0; i < pageSize && it.hasNext(); i++) {
+                Map.Entry<String, String> e = it.next();
+                resp.addPair(e.getKey(), e.getValue());
+            }
+            if (it.hasNext())
+                resp.setKey(it.next().getKey());
+            resp.setMessage(SUCCESS);
+        }
     }
 }
@@ -0,0 +1,135 @@
+package kvstore;
+
+import java.security.SecureRandom;
+
+/**
+ * The ways a KVCache can map keys to its sets. MODULO is the original
+ * mapping and is kept as the default so that existing set layouts, and the
+ * toXML output that shows them, stay the same.
+ */
+public enum SetHash {
+
+    /** Math.abs(key.hashCode()) % numSets, the cache's original mapping. */
+    MODULO {
+        @Override
+        SetSelector newSelector(final int numSets) {
+            return new SetSelector() {
+                @Override
+                public int setFor(String key) {
+                    int h = key.hashCode();
+                    // Math.abs(Integer.MIN_VALUE) is still negative
+                    return (h == Integer.MIN_VALUE) ? 0 : Math.abs(h) % numSets;
+                }
+            };
+        }
+    },
+
+    /**
+     * String.hashCode put through a 64-bit finalizer, so that nearby hashes
+     * such as those of sequential keys land in unrelated sets. Costs a few
+     * multiplies, as String caches its hashCode, and needs no division.
+     * Keys whose hashCodes collide still share a set.
+     */
+    MIXED {
+        @Override
+        SetSelector newSelector(final int numSets) {
+            return new SetSelector() {
+                @Override
+                public int setFor(String key) {
+                    return reduce(mix64(key.hashCode()), numSets);
+                }
+            };
+        }
+    },
+
+    /**
+     * SipHash-1-3 of the key's chars under a random per-cache key. Reads
+     * the whole key on every call, but keys crafted to collide, or to pile
+     * into one set, cannot be found without knowing the cache's key.
+     */
+    SEEDED {
+        @Override
+        SetSelector newSelector(final int numSets) {
+            SecureRandom random = new SecureRandom();
+            final long k0 = random.nextLong(), k1 = random.nextLong();
+            return new SetSelector() {
+                @Override
+                public int setFor(String key) {
+                    return reduce(sipHash13(k0, k1, key), numSets);
+                }
+            };
+        }
+    };
+
+    /**
+     * @param numSets the number of sets of the cache
+     * @return a mapping from keys to set indexes in [0, numSets)
+     */
+    abstract SetSelector newSelector(int numSets);
+
+    /**
+     * Maps a key to a cache set.
+     */
+    interface SetSelector {
+        int setFor(String key);
+    }
+
+    /* murmur3's fmix64 */
+    static long mix64(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /*
+     * Masks when numSets is a power of two; otherwise scales the high 32
+     * bits into range with a multiply (Lemire's fastrange), again avoiding
+     * a division.
+     */
+    static int reduce(long h, int numSets) {
+        if ((numSets & (numSets - 1)) == 0)
+            return (int) h & (numSets - 1);
+        return (int) (((h >>> 32) * numSets) >>> 32);
+    }
+
+    /* SipHash-1-3 over the key's UTF-16 chars, four to a word */
+    static long sipHash13(long k0, long k1, String key) {
+        long v0 = k0 ^ 0x736f6d6570736575L;
+        long v1 = k1 ^ 0x646f72616e646f6dL;
+        long v2 = k0 ^ 0x6c7967656e657261L;
+        long v3 = k1 ^ 0x7465646279746573L;
+        int len = key.length();
+        int i = 0;
+        for (; i + 4 <= len; i += 4) {
+            long m = key.charAt(i) | ((long) key.charAt(i + 1) << 16)
+                    | ((long) key.charAt(i + 2) << 32) | ((long) key.charAt(i + 3) << 48);
+            v3 ^= m;
+            // one SipRound
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+            v0 ^= m;
+        }
+        long m = (long) len << 56;
+        for (int shift = 0; i < len; i++, shift += 16)
+            m |= (long) key.charAt(i) << shift;
+        v3 ^= m;
+        v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+        v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+        v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+        v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        v0 ^= m;
+        v2 ^= 0xff;
+        for (int r = 0; r < 3; r++) {
+            v0 += v1; v1 = Long.rotateLeft(v1, 13); v1 ^= v0; v0 = Long.rotateLeft(v0, 32);
+            v2 += v3; v3 = Long.rotateLeft(v3, 16); v3 ^= v2;
+            v0 += v3; v3 = Long.rotateLeft(v3, 21); v3 ^= v0;
+            v2 += v1; v1 = Long.rotateLeft(v1, 17); v1 ^= v2; v2 = Long.rotateLeft(v2, 32);
+        }
+        return v0 ^ v1 ^ v2 ^ v3;
+    }
+}
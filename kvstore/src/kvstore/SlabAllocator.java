@@ -0,0 +1,317 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps byte strings outside the Java heap so that large data sets do not
+ * lengthen GC pauses. Memory is taken in fixed-size slabs of direct
+ * ByteBuffers; each slab belongs to one size class and is carved into equal
+ * chunks, as in memcached, and freed chunks go on their class's free list.
+ *
+ * A stored value is named by a long handle packing a generation number, its
+ * slab and its offset, so indexes only need to hold the handle. Every free
+ * bumps the chunk's generation; reading through a handle whose chunk has been
+ * freed (and possibly reused) returns null rather than another value's bytes.
+ * Reads take no lock, so reads of one slab never wait on each other; only
+ * header updates do. Instead each slab counts its frees, and a read notes the
+ * count, copies, and then checks it with a compareAndSet to the same value.
+ * A free bumps the count with an atomic increment before its chunk can be
+ * reused. Either that increment reads the read's compareAndSet, and so the
+ * copy happens-before any later store into the chunk, or the compareAndSet
+ * fails and the copy is retried, or found freed by its generation.
+ *
+ * Chunks are reference counted so that a store and a cache can share one copy
+ * of a value: store hands out the first reference, retain adds more, and the
+ * chunk is only freed when every reference has been given back with free.
+ */
+public class SlabAllocator {
+
+    public static final int DEFAULT_SLAB_SIZE = 1 << 20;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* chunk header: short refcount, short generation, int payload length */
+    private static final int HEADER = 8;
+    private static final int MAX_REFS = 0xffff;
+    private static final int MIN_CHUNK = 64;
+    private static final double GROWTH_FACTOR = 1.25;
+    private static final int OFFSET_BITS = 24, SLAB_BITS = 24;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final long SLAB_MASK = (1L << SLAB_BITS) - 1;
+
+    private final int slabSize;
+    private final SizeClass[] classes;
+    private volatile Slab[] slabs = new Slab[0];
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    /**
+     * Constructs an allocator with 1 MiB slabs.
+     */
+    public SlabAllocator() {
+        this(DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Constructs an allocator with slabs of the given size, which also bounds
+     * the largest value it can hold.
+     *
+     * @param slabSize bytes per slab, at most 16 MiB
+     */
+    public SlabAllocator(int slabSize) {
+        if (slabSize < MIN_CHUNK || slabSize > (1 << OFFSET_BITS))
+            throw new IllegalArgumentException("bad slab size: " + slabSize);
+        this.slabSize = slabSize;
+        int n = 0;
+        int[] sizes = new int[128];
+        for (int size = MIN_CHUNK; size < slabSize; ) {
+            sizes[n++] = size;
+            size = (int) Math.min(slabSize, ((long) (size * GROWTH_FACTOR) + 7) & ~7L);
+        }
+        sizes[n++] = slabSize;
+        classes = new SizeClass[n];
+        for (int i = 0; i < n; i++)
+            classes[i] = new SizeClass(sizes[i]);
+    }
+
+    /**
+     * Copies a byte string into off-heap memory.
+     *
+     * @param data the bytes to store
+     * @return a handle, holding one reference, to read or free them with
+     * @throws IllegalArgumentException if data does not fit in one slab
+     */
+    public long store(byte[] data) {
+        SizeClass sc = classFor(data.length + HEADER);
+        long location = sc.allocate();
+        Slab slab = slabs[(int) ((location >>> OFFSET_BITS) & SLAB_MASK)];
+        int offset = (int) (location & OFFSET_MASK);
+        // nobody else holds this chunk yet, so only the header needs the lock
+        ByteBuffer buf = slab.buf.duplicate();
+        buf.putInt(offset + 4, data.length);
+        buf.position(offset + HEADER);
+        buf.put(data);
+        int generation;
+        synchronized (slab) {
+            generation = slab.buf.getInt(offset) & 0xffff;
+            slab.buf.putInt(offset, (1 << 16) | generation);
+        }
+        usedBytes.addAndGet(data.length);
+        return ((long) generation << (SLAB_BITS + OFFSET_BITS)) | location;
+    }
+
+    /**
+     * Copies a stored byte string back onto the heap.
+     *
+     * @param handle a handle returned by store
+     * @return the stored bytes, or null if the handle has been freed
+     */
+    public byte[] read(long handle) {
+        Slab slab = slabOf(handle);
+        int offset = (int) (handle & OFFSET_MASK);
+        int generation = generationOf(handle);
+        for (;;) {
+            int frees = slab.frees.get();
+            if ((slab.buf.getInt(offset) & 0xffff) != generation)
+                return null;
+            int length = slab.buf.getInt(offset + 4);
+            // a reuse of the chunk may have torn the length; validation fails then
+            byte[] data = null;
+            if (length >= 0 && length <= slab.sizeClass.chunkSize - HEADER) {
+                data = new byte[length];
+                ByteBuffer buf = slab.buf.duplicate();
+                buf.position(offset + HEADER);
+                buf.get(data);
+            }
+            if (slab.frees.compareAndSet(frees, frees) && data != null)
+                return data;
+        }
+    }
+
+    /**
+     * Takes another reference to a stored byte string.
+     *
+     * @param handle a handle returned by store
+     * @return false if the handle has already been freed
+     */
+    public boolean retain(long handle) {
+        Slab slab = slabOf(handle);
+        int offset = (int) (handle & OFFSET_MASK);
+        synchronized (slab) {
+            int header = slab.buf.getInt(offset);
+            if ((header & 0xffff) != generationOf(handle))
+                return false;
+            if ((header >>> 16) == MAX_REFS)
+                throw new IllegalStateException("too many references to one chunk");
+            slab.buf.putInt(offset, header + (1 << 16));
+            return true;
+        }
+    }
+
+    /**
+     * Gives back one reference to a stored byte string, returning its chunk
+     * to its size class once no references are left. Freeing a handle whose
+     * chunk has already been returned is harmless.
+     *
+     * @param handle a handle returned by store
+     */
+    public void free(long handle) {
+        Slab slab = slabOf(handle);
+        int offset = (int) (handle & OFFSET_MASK);
+        int length;
+        synchronized (slab) {
+            int header = slab.buf.getInt(offset);
+            int generation = header & 0xffff;
+            if (generation != generationOf(handle))
+                return;
+            if ((header >>> 16) > 1) {
+                slab.buf.putInt(offset, header - (1 << 16));
+                return;
+            }
+            slab.buf.putInt(offset, (generation + 1) & 0xffff);
+            length = slab.buf.getInt(offset + 4);
+            // must be an atomic update, not a volatile write; see the class comment
+            slab.frees.incrementAndGet();
+        }
+        usedBytes.addAndGet(-length);
+        slab.sizeClass.release(handle & ((1L << (SLAB_BITS + OFFSET_BITS)) - 1));
+    }
+
+    /**
+     * @param handle a handle returned by store
+     * @return the length of the stored byte string, or -1 if it was freed
+     */
+    public int length(long handle) {
+        Slab slab = slabOf(handle);
+        int offset = (int) (handle & OFFSET_MASK);
+        int generation = generationOf(handle);
+        for (;;) {
+            int frees = slab.frees.get();
+            if ((slab.buf.getInt(offset) & 0xffff) != generation)
+                return -1;
+            int length = slab.buf.getInt(offset + 4);
+            if (slab.frees.compareAndSet(frees, frees))
+                return length;
+        }
+    }
+
+    /**
+     * Stores a string as UTF-8.
+     *
+     * @param value the string to store
+     * @return a handle to read or free it with
+     */
+    public long storeString(String value) {
+        return store(value.getBytes(UTF8));
+    }
+
+    /**
+     * Decodes a string stored with storeString.
+     *
+     * @param handle a handle returned by storeString
+     * @return the string, or null if the handle has been freed
+     */
+    public String readString(long handle) {
+        byte[] data = read(handle);
+        return (data == null) ? null : new String(data, UTF8);
+    }
+
+    /**
+     * @return payload bytes currently stored, excluding headers and slack
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return off-heap bytes reserved in slabs so far
+     */
+    public long getReservedBytes() {
+        return (long) slabs.length * slabSize;
+    }
+
+    private SizeClass classFor(int chunkSize) {
+        int lo = 0, hi = classes.length - 1;
+        if (chunkSize > classes[hi].chunkSize)
+            throw new IllegalArgumentException(
+                    "value of " + (chunkSize - HEADER) + " bytes does not fit in a slab");
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (classes[mid].chunkSize < chunkSize)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return classes[lo];
+    }
+
+    private Slab slabOf(long handle) {
+        return slabs[(int) ((handle >>> OFFSET_BITS) & SLAB_MASK)];
+    }
+
+    private static int generationOf(long handle) {
+        return (int) (handle >>> (SLAB_BITS + OFFSET_BITS));
+    }
+
+    private synchronized Slab newSlab(SizeClass sc) {
+        Slab[] old = slabs;
+        if (old.length > SLAB_MASK)
+            throw new OutOfMemoryError("slab allocator is out of slab ids");
+        Slab slab = new Slab(old.length, ByteBuffer.allocateDirect(slabSize), sc);
+        Slab[] grown = new Slab[old.length + 1];
+        System.arraycopy(old, 0, grown, 0, old.length);
+        grown[old.length] = slab;
+        slabs = grown;
+        return slab;
+    }
+
+    private static class Slab {
+        final int id;
+        final ByteBuffer buf;
+        final SizeClass sizeClass;
+        /* bumped by every free, before the chunk goes back to its class */
+        final AtomicInteger frees = new AtomicInteger();
+
+        Slab(int id, ByteBuffer buf, SizeClass sizeClass) {
+            this.id = id;
+            this.buf = buf;
+            this.sizeClass = sizeClass;
+        }
+    }
+
+    private class SizeClass {
+        final int chunkSize;
+        private long[] free = new long[16];
+        private int freeCount;
+        private Slab current;
+        private int nextOffset;
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        /* returns the chunk's slab and offset, without a generation */
+        synchronized long allocate() {
+            if (freeCount > 0)
+                return free[--freeCount];
+            if (current == null || nextOffset + chunkSize > slabSize) {
+                current = newSlab(this);
+                nextOffset = 0;
+            }
+            long location = ((long) current.id << OFFSET_BITS) | nextOffset;
+            nextOffset += chunkSize;
+            return location;
+        }
+
+        synchronized void release(long location) {
+            if (freeCount == free.length) {
+                long[] grown = new long[free.length * 2];
+                System.arraycopy(free, 0, grown, 0, freeCount);
+                free = grown;
+            }
+            free[freeCount++] = location;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * An in-memory store kept in key order in a concurrent skip list, so that
+ * KVServer can answer scans over a range of keys, e.g. every key starting
+ * with "tenant42:". Point operations cost O(log n) rather than KVStore's
+ * O(1), so use it only when ranges are needed.
+ */
+public class SortedKVStore implements SortedKeyValueInterface {
+
+    private final ConcurrentSkipListMap<String, String> store =
+            new ConcurrentSkipListMap<String, String>();
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     */
+    @Override
+    public void put(String key, String value) {
+        store.put(key, value);
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = store.get(key);
+        if (value == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        return value;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if (store.remove(key) == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+    }
+
+    /**
+     * Iterate over a range of keys; see SortedKeyValueInterface. Walks the
+     * skip list's weakly consistent view, so it holds no locks and takes
+     * O(log n) to find startKey and O(1) per pair after that.
+     */
+    @Override
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey) {
+        ConcurrentNavigableMap<String, String> range;
+        if (startKey != null && endKey != null) {
+            if (startKey.compareTo(endKey) >= 0)
+                return Collections.<Map.Entry<String, String>>emptyList().iterator();
+            range = store.subMap(startKey, true, endKey, false);
+        } else if (startKey != null) {
+            range = store.tailMap(startKey, true);
+        } else if (endKey != null) {
+            range = store.headMap(endKey, false);
+        } else {
+            range = store;
+        }
+        final Iterator<Map.Entry<String, String>> it = range.entrySet().iterator();
+        // keeps callers from removing through the skip list's iterator
+        return new Iterator<Map.Entry<String, String>>() {
+            @Override
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            @Override
+            public Map.Entry<String, String> next() {
+                return it.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * @return the number of pairs in the store
+     */
+    public int size() {
+        return store.size();
+    }
+}
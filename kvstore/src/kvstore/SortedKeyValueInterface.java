@@ -0,0 +1,23 @@
+package kvstore;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A KeyValueInterface whose keys are kept in order, so that a range of
+ * them can be read without visiting the rest.
+ */
+public interface SortedKeyValueInterface extends KeyValueInterface {
+    /**
+     * Iterate over the pairs with startKey &lt;= key &lt; endKey in ascending
+     * key order. Pairs are produced as the iterator advances, not collected
+     * up front, and puts and dels may run meanwhile: the iterator never
+     * fails because of them, but may or may not reflect them.
+     * @param startKey the first key to include, or null to start at the
+     *        smallest key
+     * @param endKey the first key to leave out, or null to run to the end
+     * @return an iterator over the pairs in range; remove is not supported
+     */
+    public Iterator<Map.Entry<String, String>> scan(String startKey, String endKey);
+
+}
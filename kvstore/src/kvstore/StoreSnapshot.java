@@ -0,0 +1,138 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A read-only view of a KVStore as it was when KVStore.snapshot returned.
+ * Taking one costs no copying, and reads and iteration never block the
+ * store's writers. While the snapshot is open, the first put or del of
+ * each key copies the key's old value here, so memory grows with the
+ * number of keys changed since, not with the size of the store.
+ *
+ * Iterating visits every pair of the snapshot exactly once. size walks
+ * all of them. Close the snapshot when done with it, since until the last
+ * open one is closed, deleted keys linger in the store as tombstones.
+ */
+public class StoreSnapshot extends AbstractMap<String, String> implements Closeable {
+
+    private final KVStore owner;
+    /* the map the snapshot was taken of; KVStore.resetStore replaces it */
+    final ConcurrentHashMap<String, String> map;
+    /* value at snapshot time of each key changed since, or TOMBSTONE */
+    private final ConcurrentHashMap<String, String> before =
+            new ConcurrentHashMap<String, String>();
+    private volatile boolean closed;
+
+    StoreSnapshot(KVStore owner, ConcurrentHashMap<String, String> map) {
+        this.owner = owner;
+        this.map = map;
+    }
+
+    /**
+     * @param  key String key
+     * @return the key's value when the snapshot was taken, or null if it
+     *         had none
+     */
+    @Override
+    public String get(Object key) {
+        checkOpen();
+        // a writer saves the old value before changing the map, so a value
+        // read before finding nothing saved is still the snapshot's
+        String value = map.get(key);
+        String saved = before.get(key);
+        if (saved != null)
+            value = saved;
+        return (value == null || value == KVStore.TOMBSTONE) ? null : owner.decode(value);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        checkOpen();
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new SnapshotIterator();
+            }
+
+            @Override
+            public int size() {
+                int n = 0;
+                for (Iterator<Map.Entry<String, String>> it = iterator(); it.hasNext(); it.next())
+                    n++;
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Releases the snapshot. Later reads throw IllegalStateException.
+     */
+    @Override
+    public void close() {
+        if (closed)
+            return;
+        closed = true;
+        owner.release(this);
+    }
+
+    /* Called by writers, before they change the key in map. */
+    void save(String key, String current) {
+        before.putIfAbsent(key, (current == null) ? KVStore.TOMBSTONE : current);
+    }
+
+    private void checkOpen() {
+        if (closed)
+            throw new IllegalStateException("snapshot is closed");
+    }
+
+    /*
+     * Walks the live map. Deletes leave tombstones while the snapshot is
+     * open, so every key it holds stays in the map and is visited once.
+     */
+    private class SnapshotIterator implements Iterator<Map.Entry<String, String>> {
+        private final Iterator<Map.Entry<String, String>> live = map.entrySet().iterator();
+        private Map.Entry<String, String> next;
+
+        @Override
+        public boolean hasNext() {
+            checkOpen();
+            while (next == null && live.hasNext()) {
+                Map.Entry<String, String> e = live.next();
+                String value = e.getValue();
+                String saved = before.get(e.getKey());
+                if (saved != null)
+                    value = saved;
+                if (value != KVStore.TOMBSTONE)
+                    next = new AbstractMap.SimpleImmutableEntry<String, String>(
+                            e.getKey(), owner.decode(value));
+            }
+            return next != null;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<String, String> e = next;
+            next = null;
+            return e;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
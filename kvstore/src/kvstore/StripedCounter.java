@@ -0,0 +1,76 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A statistics counter that stays cheap under contention, in the manner of
+ * Java 8's LongAdder. It starts as a single AtomicLong; the first time two
+ * threads collide on it, it spreads further updates over cache-line padded
+ * stripes picked by thread, so concurrent writers stop bouncing one line
+ * between cores. Reading sums the stripes, so a read racing with updates
+ * may miss some of them.
+ */
+class StripedCounter {
+
+    /* longs per stripe, so that each stripe has a 64-byte line to itself */
+    private static final int PAD = 8;
+    private static final int NUM_STRIPES;
+    static {
+        int n = 1;
+        while (n < Runtime.getRuntime().availableProcessors() && n < 64)
+            n <<= 1;
+        NUM_STRIPES = n;
+    }
+
+    private final AtomicLong base = new AtomicLong();
+    private volatile AtomicLongArray stripes;
+
+    /**
+     * Adds to the count.
+     *
+     * @param x the amount to add
+     */
+    public void add(long x) {
+        AtomicLongArray s = stripes;
+        if (s == null) {
+            long b = base.get();
+            if (base.compareAndSet(b, b + x))
+                return;
+            s = inflate();
+        }
+        s.getAndAdd(stripeIndex(), x);
+    }
+
+    /**
+     * Adds one to the count.
+     */
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * @return the current count
+     */
+    public long sum() {
+        long sum = base.get();
+        AtomicLongArray s = stripes;
+        if (s != null) {
+            for (int i = 0; i < s.length(); i += PAD)
+                sum += s.get(i);
+        }
+        return sum;
+    }
+
+    private synchronized AtomicLongArray inflate() {
+        if (stripes == null)
+            stripes = new AtomicLongArray(NUM_STRIPES * PAD);
+        return stripes;
+    }
+
+    private static int stripeIndex() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return ((h >>> 16) & (NUM_STRIPES - 1)) * PAD;
+    }
+}
@@ -0,0 +1,246 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A hierarchical hashed timing wheel. Scheduling and cancelling a timer are
+ * O(1): each level has 64 slots holding linked lists of timers, the slots
+ * of level n spanning 64^n ticks each. A daemon thread advances the wheel
+ * one tick at a time, expiring the timers in the current slot of level 0
+ * and, whenever a level wraps around, moving the timers in the next slot
+ * of the level above down to where they now belong. A timer is moved at
+ * most once per level, so there is no periodic scan of all timers.
+ *
+ * Timers fire up to one tick late, never early.
+ */
+class TimingWheel implements Closeable {
+
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 6;
+    /* the furthest ahead a timer can be placed; later ones are moved down early */
+    private static final long MAX_TICKS = (1L << (SLOT_BITS * LEVELS)) - 1;
+
+    /**
+     * Something to be done when its time comes. Subclasses carry whatever
+     * expire needs. A timer can be scheduled again once it has fired or
+     * been cancelled.
+     */
+    abstract static class Timer {
+        private long deadlineTick;
+        private int slot = -1;
+        private Timer prev, next;
+
+        /**
+         * Called on the wheel's thread, without its lock held, at most one
+         * tick after the timer's deadline.
+         */
+        abstract void expire();
+    }
+
+    private final long tickNanos;
+    private final long startNanos = System.nanoTime();
+    private final Timer[] slots = new Timer[LEVELS * SLOTS];
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition scheduled = lock.newCondition();
+    private final Thread ticker;
+    /* last tick processed; guarded by lock */
+    private long currentTick;
+    private int size;
+    private volatile boolean closed;
+
+    /**
+     * Starts a wheel whose thread wakes once a tick while timers are
+     * pending and sleeps while there are none.
+     *
+     * @param tick the wheel's resolution
+     * @param unit the unit of tick
+     */
+    TimingWheel(long tick, TimeUnit unit) {
+        this.tickNanos = Math.max(1, unit.toNanos(tick));
+        ticker = new Thread("timing-wheel") {
+            @Override
+            public void run() {
+                runTicks();
+            }
+        };
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Schedules timer to expire after delay. The timer must not already be
+     * scheduled.
+     *
+     * @param timer the timer to schedule
+     * @param delay how long from now it should expire
+     * @param unit the unit of delay
+     */
+    void schedule(Timer timer, long delay, TimeUnit unit) {
+        long elapsed = System.nanoTime() - startNanos;
+        // rounded up, so that the tick is not processed before the deadline
+        long delayNanos = Math.min(Math.max(0, unit.toNanos(delay)), Long.MAX_VALUE / 2);
+        long deadlineTick = (elapsed + delayNanos + tickNanos - 1) / tickNanos;
+        lock.lock();
+        try {
+            if (timer.slot >= 0)
+                throw new IllegalStateException("timer is already scheduled");
+            if (size == 0)
+                // the ticker stopped counting while the wheel was empty
+                currentTick = Math.max(currentTick, elapsed / tickNanos);
+            timer.deadlineTick = deadlineTick;
+            insert(timer);
+            if (size++ == 0)
+                scheduled.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Cancels timer if it has not expired yet.
+     *
+     * @param  timer the timer to cancel
+     * @return false if the timer was not scheduled, e.g. because it has
+     *         already expired
+     */
+    boolean cancel(Timer timer) {
+        lock.lock();
+        try {
+            if (timer.slot < 0)
+                return false;
+            unlink(timer);
+            size--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of timers waiting to expire
+     */
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the wheel's thread. Pending timers never expire.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        ticker.interrupt();
+    }
+
+    /*
+     * Puts a timer in the slot its deadline falls in: the lowest level
+     * whose span still reaches it. Assumes lock is held.
+     */
+    private void insert(Timer timer) {
+        long delta = Math.min(timer.deadlineTick - currentTick, MAX_TICKS);
+        long tick = currentTick + Math.max(1, delta);
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (SLOT_BITS * (level + 1))))
+            level++;
+        int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        timer.slot = slot;
+        timer.prev = null;
+        timer.next = slots[slot];
+        if (timer.next != null)
+            timer.next.prev = timer;
+        slots[slot] = timer;
+    }
+
+    private void unlink(Timer timer) {
+        if (timer.prev != null)
+            timer.prev.next = timer.next;
+        else
+            slots[timer.slot] = timer.next;
+        if (timer.next != null)
+            timer.next.prev = timer.prev;
+        timer.slot = -1;
+        timer.prev = timer.next = null;
+    }
+
+    /* Detaches and returns a slot's list. Assumes lock is held. */
+    private Timer takeSlot(int slot) {
+        Timer head = slots[slot];
+        slots[slot] = null;
+        return head;
+    }
+
+    /*
+     * Advances the wheel by one tick, adding the timers that expired to
+     * expired. Assumes lock is held.
+     */
+    private void advance(List<Timer> expired) {
+        long tick = ++currentTick;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((tick & ((1L << (SLOT_BITS * level)) - 1)) != 0)
+                break;
+            int slot = level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+            Timer t = takeSlot(slot);
+            while (t != null) {
+                Timer next = t.next;
+                insert(t);
+                t = next;
+            }
+        }
+        Timer t = takeSlot((int) (tick & (SLOTS - 1)));
+        while (t != null) {
+            Timer next = t.next;
+            t.slot = -1;
+            t.prev = t.next = null;
+            expired.add(t);
+            size--;
+            t = next;
+        }
+    }
+
+    private void runTicks() {
+        List<Timer> expired = new ArrayList<Timer>();
+        while (!closed) {
+            lock.lock();
+            try {
+                long target = (System.nanoTime() - startNanos) / tickNanos;
+                if (size == 0) {
+                    // nothing can expire, so there is nothing to step through
+                    currentTick = Math.max(currentTick, target);
+                    scheduled.await();
+                    continue;
+                }
+                if (currentTick >= target) {
+                    long wait = (target + 1) * tickNanos - (System.nanoTime() - startNanos);
+                    if (wait > 0)
+                        scheduled.awaitNanos(wait);
+                    continue;
+                }
+                while (currentTick < target && expired.isEmpty())
+                    advance(expired);
+            } catch (InterruptedException e) {
+                continue;
+            } finally {
+                lock.unlock();
+            }
+            for (Timer t : expired) {
+                try {
+                    t.expire();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+            expired.clear();
+        }
+    }
+}
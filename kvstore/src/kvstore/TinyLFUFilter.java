@@ -0,0 +1,30 @@
+package kvstore;
+
+/**
+ * TinyLFU admission: a key read from the store only replaces the set's victim
+ * if it has been seen more often recently than the victim. Keys that are read
+ * once and never again therefore stop flushing hot entries out of the cache.
+ */
+public class TinyLFUFilter implements AdmissionFilter {
+
+    private final FrequencySketch sketch;
+
+    /**
+     * Constructs a filter for a cache holding up to maximumEntries entries.
+     *
+     * @param maximumEntries total capacity of the cache, over all sets
+     */
+    public TinyLFUFilter(int maximumEntries) {
+        this.sketch = new FrequencySketch(maximumEntries);
+    }
+
+    @Override
+    public void recordAccess(String key) {
+        sketch.increment(key);
+    }
+
+    @Override
+    public boolean admit(String candidate, String victim) {
+        return sketch.frequency(candidate) > sketch.frequency(victim);
+    }
+}
@@ -0,0 +1,336 @@
+package kvstore;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses values for KVStore and KVCache, which keep them as Strings.
+ * A value of at least threshold characters is deflated as UTF-8 and the
+ * bytes packed two to a char behind a short header, so that it still fits
+ * a Map of Strings while taking up about the compressed size on the heap.
+ * Values that are shorter, or that deflate would not shrink, are kept as
+ * they are. decode turns either form back into the original value.
+ *
+ * Values that are much alike, e.g. JSON objects with the same fields,
+ * compress far better with a preset dictionary of their common substrings;
+ * see trainDictionary. A stored value can only be decoded by a compressor
+ * with the dictionary it was encoded with.
+ */
+public class ValueCompressor {
+
+    private static final Charset UTF8 = SlabAllocator.UTF8;
+    /* maps bytes to chars and back unchanged */
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    /*
+     * First char of every encoded value. A value that itself starts with it
+     * is escaped, so that decode can tell the forms apart.
+     */
+    static final char MARK = '\uFDD0';
+    private static final char ESCAPED = 'E';
+    private static final char EVEN = 'Z';
+    private static final char ODD = 'z';
+    /* MARK, kind, char count and UTF-8 length, each of the two as two chars */
+    private static final int HEADER = 6;
+
+    /** Deflate's window; a longer dictionary is not all used. */
+    public static final int MAX_DICTIONARY = 32 * 1024;
+
+    /* length of the substrings trainDictionary counts */
+    private static final int GRAM = 8;
+
+    private final int threshold;
+    private final byte[] dictionary;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+        @Override
+        protected Deflater initialValue() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+    };
+    private final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+        @Override
+        protected Inflater initialValue() {
+            return new Inflater(true);
+        }
+    };
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[1024];
+        }
+    };
+
+    private final StripedCounter compressedValues = new StripedCounter();
+    private final StripedCounter inputBytes = new StripedCounter();
+    private final StripedCounter outputBytes = new StripedCounter();
+
+    /**
+     * Constructs a compressor without a dictionary.
+     *
+     * @param threshold the fewest characters a value must have to be compressed
+     */
+    public ValueCompressor(int threshold) {
+        this(threshold, null);
+    }
+
+    /**
+     * Constructs a compressor with a preset dictionary.
+     *
+     * @param threshold the fewest characters a value must have to be compressed
+     * @param dictionary substrings values are likely to share, the most
+     *        common last, e.g. from trainDictionary; or null for none
+     */
+    public ValueCompressor(int threshold, byte[] dictionary) {
+        this.threshold = Math.max(1, threshold);
+        this.dictionary = (dictionary == null || dictionary.length == 0) ? null
+                : dictionary.clone();
+    }
+
+    /**
+     * @param  value a value to store
+     * @return value in the form to store it in: compressed if that is
+     *         worth it, otherwise value itself, escaped if need be
+     */
+    public String encode(String value) {
+        if (value.length() < threshold) {
+            if (value.length() > 0 && value.charAt(0) == MARK)
+                return MARK + (ESCAPED + value);
+            return value;
+        }
+        byte[] utf8 = value.getBytes(UTF8);
+        // only worth keeping if it saves at least the header and a char
+        int limit = utf8.length - 2 * (HEADER + 1);
+        if (limit <= 0)
+            return escape(value);
+        byte[] out = buffer(limit);
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        if (dictionary != null)
+            deflater.setDictionary(dictionary);
+        deflater.setInput(utf8);
+        deflater.finish();
+        int n = 0;
+        while (!deflater.finished() && n < limit)
+            n += deflater.deflate(out, n, limit - n);
+        if (!deflater.finished())
+            return escape(value);
+
+        char[] packed = new char[HEADER + (n + 1) / 2];
+        packed[0] = MARK;
+        packed[1] = ((n & 1) == 0) ? EVEN : ODD;
+        packed[2] = (char) (value.length() >>> 16);
+        packed[3] = (char) value.length();
+        packed[4] = (char) (utf8.length >>> 16);
+        packed[5] = (char) utf8.length;
+        for (int i = 0; i < n; i += 2) {
+            int lo = (i + 1 < n) ? (out[i + 1] & 0xff) : 0;
+            packed[HEADER + i / 2] = (char) (((out[i] & 0xff) << 8) | lo);
+        }
+        compressedValues.increment();
+        inputBytes.add(utf8.length);
+        outputBytes.add(n);
+        return new String(packed);
+    }
+
+    /**
+     * @param  stored a value as encode returned it
+     * @return the original value
+     * @throws IllegalArgumentException if stored is compressed but damaged,
+     *         or was compressed with another dictionary
+     */
+    public String decode(String stored) {
+        if (stored.length() == 0 || stored.charAt(0) != MARK)
+            return stored;
+        if (stored.charAt(1) == ESCAPED)
+            return stored.substring(2);
+        int utf8Length = (stored.charAt(4) << 16) | stored.charAt(5);
+        int n = 2 * (stored.length() - HEADER) - ((stored.charAt(1) == ODD) ? 1 : 0);
+        // one byte to spare: raw inflate may want a byte past the end
+        byte[] in = buffer(n + 1);
+        for (int i = 0; i < n; i += 2) {
+            char c = stored.charAt(HEADER + i / 2);
+            in[i] = (byte) (c >>> 8);
+            in[i + 1] = (byte) c;
+        }
+        in[n] = 0;
+        byte[] utf8 = new byte[utf8Length];
+        Inflater inflater = inflaters.get();
+        inflater.reset();
+        if (dictionary != null)
+            inflater.setDictionary(dictionary);
+        inflater.setInput(in, 0, n + 1);
+        try {
+            int read = 0;
+            while (read < utf8Length) {
+                int k = inflater.inflate(utf8, read, utf8Length - read);
+                if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()
+                        || inflater.finished()))
+                    throw new IllegalArgumentException("truncated value");
+                read += k;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("damaged value", e);
+        }
+        return new String(utf8, UTF8);
+    }
+
+    /**
+     * @param  stored a value as encode returned it
+     * @return whether stored holds a compressed value
+     */
+    public static boolean isCompressed(String stored) {
+        return stored.length() > 1 && stored.charAt(0) == MARK && stored.charAt(1) != ESCAPED;
+    }
+
+    /**
+     * @param  stored a value as encode returned it
+     * @return the length in chars of the value it holds
+     */
+    public static int decodedLength(String stored) {
+        if (stored.length() == 0 || stored.charAt(0) != MARK)
+            return stored.length();
+        if (stored.charAt(1) == ESCAPED)
+            return stored.length() - 2;
+        return (stored.charAt(2) << 16) | stored.charAt(3);
+    }
+
+    /**
+     * @return the fewest characters a value must have to be compressed
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return number of values encode has compressed
+     */
+    public long getCompressedValues() {
+        return compressedValues.sum();
+    }
+
+    /**
+     * @return UTF-8 bytes of the values encode has compressed
+     */
+    public long getInputBytes() {
+        return inputBytes.sum();
+    }
+
+    /**
+     * @return bytes those values were compressed to
+     */
+    public long getOutputBytes() {
+        return outputBytes.sum();
+    }
+
+    private String escape(String value) {
+        return (value.charAt(0) == MARK) ? MARK + (ESCAPED + value) : value;
+    }
+
+    /* A per-thread scratch buffer of at least size bytes. */
+    private byte[] buffer(int size) {
+        byte[] buf = buffers.get();
+        if (buf.length < size) {
+            buf = new byte[Math.max(size, 2 * buf.length)];
+            buffers.set(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * Builds a preset dictionary from sample values: the stretches of them
+     * made of substrings that recur across samples, ranked by how many
+     * samples share them and how long they are, with the best ones last,
+     * where deflate reaches them with the shortest distances.
+     *
+     * @param  samples values typical of those to be stored
+     * @param  maxSize the most bytes the dictionary may have; at most
+     *         MAX_DICTIONARY are useful
+     * @return the dictionary, empty if the samples share nothing
+     */
+    public static byte[] trainDictionary(Iterable<String> samples, int maxSize) {
+        maxSize = Math.min(maxSize, MAX_DICTIONARY);
+        List<byte[]> docs = new ArrayList<byte[]>();
+        for (String s : samples)
+            docs.add(s.getBytes(UTF8));
+
+        // in how many samples each substring of GRAM bytes occurs
+        Map<Long, int[]> counts = new HashMap<Long, int[]>();
+        for (int d = 0; d < docs.size(); d++) {
+            byte[] doc = docs.get(d);
+            for (int i = 0; i + GRAM <= doc.length; i++) {
+                Long gram = gramAt(doc, i);
+                int[] c = counts.get(gram);
+                if (c == null) {
+                    counts.put(gram, new int[] { 1, d });
+                } else if (c[1] != d) {
+                    c[0]++;
+                    c[1] = d;
+                }
+            }
+        }
+
+        // runs of shared substrings, scored by the samples they would help
+        int minShared = Math.max(2, docs.size() / 100);
+        final Map<String, long[]> segments = new HashMap<String, long[]>();
+        for (byte[] doc : docs) {
+            int i = 0;
+            while (i + GRAM <= doc.length) {
+                int start = i;
+                long score = 0;
+                int[] c;
+                while (i + GRAM <= doc.length
+                        && (c = counts.get(gramAt(doc, i)))[0] >= minShared) {
+                    score += c[0];
+                    i++;
+                }
+                if (i > start) {
+                    String segment = new String(doc, start, i - start + GRAM - 1, LATIN1);
+                    if (!segments.containsKey(segment))
+                        segments.put(segment, new long[] { score });
+                    i += GRAM - 1;
+                } else {
+                    i++;
+                }
+            }
+        }
+
+        List<String> ranked = new ArrayList<String>(segments.keySet());
+        Collections.sort(ranked, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return Long.compare(segments.get(b)[0], segments.get(a)[0]);
+            }
+        });
+        List<String> chosen = new ArrayList<String>();
+        int size = 0;
+        for (String segment : ranked) {
+            if (size + segment.length() > maxSize)
+                continue;
+            chosen.add(segment);
+            size += segment.length();
+        }
+        byte[] dict = new byte[size];
+        int at = size;
+        for (String segment : chosen) {
+            at -= segment.length();
+            System.arraycopy(segment.getBytes(LATIN1), 0, dict, at,
+                    segment.length());
+        }
+        return dict;
+    }
+
+    private static Long gramAt(byte[] b, int i) {
+        long g = 0;
+        for (int k = 0; k < GRAM; k++)
+            g = (g << 8) | (b[i + k] & 0xff);
+        return g;
+    }
+}
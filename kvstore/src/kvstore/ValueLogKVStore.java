@@ -0,0 +1,487 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A key-value store that keeps large values as UTF-8 in a memory-mapped,
+ * append-only value log, so that they cost their encoded size once, in
+ * pages the OS can write out, rather than twice that as UTF-16 on the
+ * heap. The index holds small values themselves and, for values of at
+ * least inlineLimit chars, where they are in the log. getMapped returns a
+ * logged value as a read-only view of the mapping, which
+ * KVMessage.sendValue writes to a socket without building a String.
+ *
+ * The log is a series of fixed-size segment files, each mapped whole and
+ * filled in turn. Overwritten and deleted values leave dead bytes behind.
+ * A segment is deleted once nothing in it is live, and a compaction in
+ * the background moves the live values out of mostly dead segments. Views
+ * handed out earlier stay readable, since a mapping outlives its file.
+ *
+ * Like OffHeapKVStore, the store does not outlive the process: the log is
+ * scratch space, and segment files left in dir by an earlier run are
+ * deleted on open.
+ */
+public class ValueLogKVStore implements KeyValueInterface, Closeable {
+
+    public static final int DEFAULT_INLINE_LIMIT = 4096;
+    public static final int DEFAULT_SEGMENT_SIZE = 64 << 20;
+
+    private static final String SUFFIX = ".vlog";
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final Path dir;
+    private final int inlineLimit;
+    private final int segmentSize;
+
+    /* each value is either the String itself or a Pointer into the log */
+    private final ConcurrentHashMap<String, Object> index =
+            new ConcurrentHashMap<String, Object>();
+    private final ConcurrentHashMap<Long, Segment> segments =
+            new ConcurrentHashMap<Long, Segment>();
+
+    private final ReentrantLock writeLock = new ReentrantLock();
+    /* guarded by writeLock */
+    private final CharsetEncoder encoder = SlabAllocator.UTF8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private Segment active;
+    private long nextSegmentId;
+
+    /* bytes appended to live segments, and bytes the index points at */
+    private final AtomicLong logBytes = new AtomicLong();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final ReentrantLock compactionLock = new ReentrantLock();
+    private volatile boolean closed;
+
+    /* signalled when a sealed segment becomes mostly dead or the store closes */
+    private final ReentrantLock workLock = new ReentrantLock();
+    private final Condition work = workLock.newCondition();
+    /* guarded by workLock */
+    private boolean workPending;
+    private final Thread compactor;
+
+    /**
+     * Creates a store logging values of 4096 chars or more in 64 MiB
+     * segments.
+     *
+     * @param dir directory to keep the segment files in
+     * @throws IOException if the first segment cannot be created
+     */
+    public ValueLogKVStore(String dir) throws IOException {
+        this(dir, DEFAULT_INLINE_LIMIT, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates an empty store, deleting any segments left in dir.
+     *
+     * @param dir directory to keep the segment files in
+     * @param inlineLimit length in chars from which values go to the log
+     * @param segmentSize size of each segment file; must hold the largest
+     *        value, KVServer allowing up to 768 KiB of UTF-8
+     * @throws IOException if the first segment cannot be created
+     */
+    public ValueLogKVStore(String dir, int inlineLimit, int segmentSize) throws IOException {
+        this.dir = Paths.get(dir);
+        this.inlineLimit = inlineLimit;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(this.dir);
+        DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir, "*" + SUFFIX);
+        try {
+            for (Path p : stream)
+                Files.delete(p);
+        } finally {
+            stream.close();
+        }
+        active = newSegment();
+        compactor = new Thread("value-log-compactor") {
+            @Override
+            public void run() {
+                compactorLoop();
+            }
+        };
+        compactor.setDaemon(true);
+        compactor.start();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVException with ERROR_STORAGE if the log cannot grow, or the
+     *         value does not fit in a segment
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        Object slot = isLogged(value) ? append(value) : value;
+        release(index.put(key, slot));
+    }
+
+    /**
+     * Retrieve the value corresponding to the provided key
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        Object slot = lookup(key);
+        if (slot instanceof String)
+            return (String) slot;
+        ByteBuffer view = ((Pointer) slot).view();
+        byte[] bytes = new byte[view.remaining()];
+        view.get(bytes);
+        return new String(bytes, SlabAllocator.UTF8);
+    }
+
+    /**
+     * Retrieve a logged value without decoding it.
+     *
+     * @param  key String key
+     * @return a read-only view of the value's UTF-8 bytes in the mapped log,
+     *         or null if the value is small enough to be kept on the heap,
+     *         in which case get returns it
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    public ByteBuffer getMapped(String key) throws KVException {
+        Object slot = lookup(key);
+        return (slot instanceof Pointer) ? ((Pointer) slot).view() : null;
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        Object old = index.remove(key);
+        if (old == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        release(old);
+    }
+
+    /**
+     * @param  value a value about to be put
+     * @return whether the store would keep it in the log
+     */
+    public boolean isLogged(String value) {
+        return value.length() >= inlineLimit;
+    }
+
+    /**
+     * Moves the live values out of every full segment that is mostly dead
+     * and deletes those segments. Reads and writes continue meanwhile.
+     * Returns at once if a compaction is already running.
+     *
+     * @throws IOException if the active segment cannot be replaced
+     */
+    public void compact() throws IOException {
+        if (!compactionLock.tryLock())
+            return;
+        try {
+            compactSegments();
+        } finally {
+            compactionLock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of keys in the store
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return bytes appended to the segments still on disk
+     */
+    public long getLogBytes() {
+        return logBytes.get();
+    }
+
+    /**
+     * @return bytes of the log taken by overwritten or deleted values
+     */
+    public long getDeadBytes() {
+        return logBytes.get() - liveBytes.get();
+    }
+
+    /**
+     * Deletes the segment files. Views returned by getMapped stay readable
+     * until they are garbage collected; later operations fail.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        requestCompaction();
+        compactionLock.lock();
+        writeLock.lock();
+        try {
+            index.clear();
+            for (Segment s : segments.values())
+                retire(s);
+        } finally {
+            writeLock.unlock();
+            compactionLock.unlock();
+        }
+        try {
+            compactor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Object lookup(String key) throws KVException {
+        Object slot = index.get(key);
+        if (slot == null) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+        return slot;
+    }
+
+    /* Encodes the value straight into the active segment. */
+    private Pointer append(String value) throws KVException {
+        writeLock.lock();
+        try {
+            if (closed)
+                throw new KVException(ERROR_STORAGE);
+            for (boolean retried = false;; retried = true) {
+                ByteBuffer out = active.map.duplicate();
+                out.position(active.used);
+                encoder.reset();
+                CharBuffer in = CharBuffer.wrap(value);
+                CoderResult result = encoder.encode(in, out, true);
+                if (!result.isOverflow())
+                    result = encoder.flush(out);
+                if (result.isOverflow()) {
+                    // does not fit in what is left of the segment
+                    if (retried || active.used == 0)
+                        throw new KVException(ERROR_STORAGE);
+                    seal();
+                    continue;
+                }
+                Pointer p = new Pointer(active, active.used, out.position() - active.used);
+                active.used = out.position();
+                active.liveBytes.addAndGet(p.length);
+                logBytes.addAndGet(p.length);
+                liveBytes.addAndGet(p.length);
+                return p;
+            }
+        } catch (IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /* Drops the bytes of a value the index no longer points at. */
+    private void release(Object old) {
+        if (!(old instanceof Pointer))
+            return;
+        Pointer p = (Pointer) old;
+        liveBytes.addAndGet(-p.length);
+        Segment s = p.segment;
+        long live = s.liveBytes.addAndGet(-p.length);
+        if (!s.sealed)
+            return;
+        if (live == 0)
+            retire(s);
+        else if (isVictim(s, live) && !isVictim(s, live + p.length))
+            requestCompaction();
+    }
+
+    /* Must hold writeLock. Starts a new active segment. */
+    private void seal() throws IOException {
+        Segment full = active;
+        active = newSegment();
+        full.sealed = true;
+        long live = full.liveBytes.get();
+        if (live == 0)
+            retire(full);
+        else if (isVictim(full, live))
+            requestCompaction();
+    }
+
+    /* Whether compaction moves the values out of a sealed segment. */
+    private static boolean isVictim(Segment s, long live) {
+        return live < COMPACTION_THRESHOLD * s.used;
+    }
+
+    /* Must hold writeLock, or be the constructor. */
+    private Segment newSegment() throws IOException {
+        long id = nextSegmentId++;
+        Path file = dir.resolve(String.format("%016x%s", id, SUFFIX));
+        FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            // the mapping stays valid once the channel is closed
+            Segment s = new Segment(id, file, ch.map(FileChannel.MapMode.READ_WRITE, 0,
+                    segmentSize));
+            segments.put(id, s);
+            return s;
+        } finally {
+            ch.close();
+        }
+    }
+
+    /* Deletes a segment nothing points at, once. */
+    private void retire(Segment s) {
+        if (!s.retired.compareAndSet(false, true))
+            return;
+        segments.remove(s.id);
+        logBytes.addAndGet(-s.used);
+        try {
+            Files.deleteIfExists(s.file);
+        } catch (IOException e) {
+            // the file goes when the directory is cleaned on the next open
+        }
+    }
+
+    /* Must hold compactionLock. */
+    private void compactSegments() throws IOException {
+        List<Segment> victims = new ArrayList<Segment>();
+        for (Segment s : segments.values()) {
+            if (s.sealed && isVictim(s, s.liveBytes.get()))
+                victims.add(s);
+        }
+        if (victims.isEmpty())
+            return;
+        for (Map.Entry<String, Object> e : index.entrySet()) {
+            Object slot = e.getValue();
+            if (closed)
+                return;
+            if (!(slot instanceof Pointer) || !victims.contains(((Pointer) slot).segment))
+                continue;
+            Pointer old = (Pointer) slot;
+            Pointer moved = copy(old);
+            // loses to a put or del that raced with the copy
+            if (index.replace(e.getKey(), old, moved))
+                release(old);
+            else
+                release(moved);
+        }
+    }
+
+    /* Copies a value to the active segment. */
+    private Pointer copy(Pointer old) throws IOException {
+        writeLock.lock();
+        try {
+            if (active.used + old.length > segmentSize)
+                seal();
+            ByteBuffer out = active.map.duplicate();
+            out.position(active.used);
+            out.put(old.view());
+            Pointer p = new Pointer(active, active.used, old.length);
+            active.used += old.length;
+            active.liveBytes.addAndGet(p.length);
+            logBytes.addAndGet(p.length);
+            liveBytes.addAndGet(p.length);
+            return p;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /*
+     * Wakes the compactor thread. Called as a sealed segment becomes a
+     * victim, which happens once per segment, and on close.
+     */
+    private void requestCompaction() {
+        workLock.lock();
+        try {
+            workPending = true;
+            work.signal();
+        } finally {
+            workLock.unlock();
+        }
+    }
+
+    private void compactorLoop() {
+        for (;;) {
+            workLock.lock();
+            try {
+                while (!workPending)
+                    work.awaitUninterruptibly();
+                workPending = false;
+            } finally {
+                workLock.unlock();
+            }
+            if (closed)
+                return;
+            // waits out a compact() call, which may have missed the victim
+            compactionLock.lock();
+            try {
+                compactSegments();
+            } catch (IOException e) {
+                // best effort; the victims are retried with the next ones
+            } finally {
+                compactionLock.unlock();
+            }
+        }
+    }
+
+    /* One file of the log. */
+    private static class Segment {
+        final long id;
+        final Path file;
+        final MappedByteBuffer map;
+        final AtomicLong liveBytes = new AtomicLong();
+        final AtomicBoolean retired = new AtomicBoolean();
+        /* written under writeLock; read only once sealed */
+        int used;
+        volatile boolean sealed;
+
+        Segment(long id, Path file, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.map = map;
+        }
+    }
+
+    /* Where a value is in the log. */
+    private static class Pointer {
+        final Segment segment;
+        final int offset;
+        final int length;
+
+        Pointer(Segment segment, int offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        ByteBuffer view() {
+            ByteBuffer b = segment.map.duplicate();
+            b.position(offset).limit(offset + length);
+            return b.slice().asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package kvstore;
+
+/**
+ * How a KVClient talks to a server. A server serves both on the same port,
+ * telling them apart by the first bytes of each connection.
+ */
+public enum WireProtocol {
+
+    /** A KVMessage XML document each way, ended by shutting down output. */
+    XML,
+
+    /**
+     * Length-prefixed frames, see BinaryProtocol: far less to parse and
+     * send, and values are not escaped. Gets, puts and dels only; scans
+     * still go as XML.
+     */
+    BINARY,
+
+    /**
+     * BINARY frames tagged with request IDs, on a connection kept open for
+     * many requests instead of one; see KVConnection. Each connection holds
+     * one of the server's persistent threads while it is open, and a server
+     * with none free refuses it; KVClient then sends BINARY instead.
+     */
+    PERSISTENT
+}
@@ -0,0 +1,406 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A redo log for a store that lives in memory, written with group commit.
+ * Writers copy their records into a shared buffer and get back the number
+ * of the batch they joined; one flusher thread writes the buffer out,
+ * forces it to disk with a single fsync and then wakes every writer of
+ * that batch. Under load, the writers that arrive while one fsync runs
+ * share the next one, so the cost of an fsync is spread over a batch
+ * instead of paid by every request.
+ *
+ * The flusher waits up to batchWindow after the first record of a batch
+ * for others to join, unless the batch reaches maxBatchBytes first. The
+ * default window of 0 adds no latency and still batches whatever arrives
+ * during the previous fsync; a longer window trades latency for fewer
+ * fsyncs when writers are few.
+ *
+ * Records use LogKVStore's layout. A put that expires is preceded by an
+ * expiry record, with a value length of -2, holding its deadline. On open,
+ * a record cut short or failing its checksum, as the last one written
+ * before a crash may, ends the log, which is truncated there.
+ */
+public class WriteAheadLog implements Closeable {
+
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1 << 20;
+
+    private final FileChannel channel;
+    private final long batchWindowNanos;
+    private final int maxBatchBytes;
+    private long size;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    /* signalled when a batch has records, fills up, or the log closes */
+    private final Condition pending = lock.newCondition();
+    /* signalled when a batch is on disk or the log fails */
+    private final Condition flushed = lock.newCondition();
+
+    /* guarded by lock */
+    private byte[] filling = new byte[4096];
+    private int fillingLength;
+    private int fillingRecords;
+    private long fillingBatch = 1;
+    private long flushedBatch;
+    private IOException failure;
+    private boolean closed;
+
+    private final Histogram fsyncNanos = new Histogram();
+    private final Histogram batchRecords = new Histogram();
+    private final Thread flusher;
+
+    /**
+     * Opens or creates a log that flushes as soon as a batch has records.
+     *
+     * @param fileName the log file
+     * @throws IOException if the file cannot be read or created
+     */
+    public WriteAheadLog(String fileName) throws IOException {
+        this(fileName, 0, TimeUnit.NANOSECONDS, DEFAULT_MAX_BATCH_BYTES);
+    }
+
+    /**
+     * Opens or creates a log, dropping any torn record at its end.
+     *
+     * @param fileName the log file
+     * @param batchWindow how long a batch waits for more records after its
+     *        first one before it is flushed
+     * @param unit the unit of batchWindow
+     * @param maxBatchBytes size at which a batch is flushed without waiting
+     *        out the window
+     * @throws IOException if the file cannot be read or created
+     */
+    public WriteAheadLog(String fileName, long batchWindow, TimeUnit unit, int maxBatchBytes)
+            throws IOException {
+        this.batchWindowNanos = unit.toNanos(batchWindow);
+        this.maxBatchBytes = maxBatchBytes;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        ByteBuffer record;
+        while ((record = LogKVStore.readRecord(channel, size, fileSize,
+                LogKVStore.EXPIRY)) != null)
+            size += record.capacity();
+        if (size < fileSize) {
+            channel.truncate(size);
+            channel.force(true);
+        }
+        flusher = new Thread("wal-flusher") {
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        };
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Applies every record in the log to a store, in the order they were
+     * written. Call before appending anything new. Deletes of keys the
+     * store does not have are skipped: the store may be a copy saved after
+     * they were logged, if truncate did not finish.
+     *
+     * @param store the store to recover into
+     * @return the number of records applied
+     * @throws IOException if the log cannot be read, or the store refuses a
+     *         record for any other reason
+     */
+    public long replay(KeyValueInterface store) throws IOException {
+        return replay(store, null);
+    }
+
+    /**
+     * Applies every record in the log to a store, as replay does, and
+     * collects the deadlines of puts that expire.
+     *
+     * @param store the store to recover into
+     * @param deadlines if not null, given each key whose last put had a
+     *        deadline, mapped to that deadline in System.currentTimeMillis
+     *        terms; it may have passed
+     * @return the number of puts and deletes applied
+     * @throws IOException as replay(store)
+     */
+    public long replay(KeyValueInterface store, Map<String, Long> deadlines)
+            throws IOException {
+        long pos = 0;
+        long n = 0;
+        String expiring = null;
+        long deadline = 0;
+        ByteBuffer record;
+        while (pos < size && (record = LogKVStore.readRecord(channel, pos, size,
+                LogKVStore.EXPIRY)) != null) {
+            long at = pos;
+            pos += record.capacity();
+            String key = LogKVStore.decodeKey(record);
+            int keyLength = record.getInt(4), valueLength = record.getInt(8);
+            if (valueLength == LogKVStore.EXPIRY) {
+                expiring = key;
+                deadline = record.getLong(LogKVStore.HEADER + keyLength);
+                continue;
+            }
+            try {
+                if (valueLength == LogKVStore.TOMBSTONE) {
+                    store.del(key);
+                } else {
+                    store.put(key, new String(record.array(), LogKVStore.HEADER + keyLength,
+                            valueLength, SlabAllocator.UTF8));
+                }
+            } catch (KVException e) {
+                // already applied to a copy saved after the record was logged
+                if (valueLength == LogKVStore.TOMBSTONE
+                        && KVConstants.ERROR_NO_SUCH_KEY.equals(e.getKVMessage().getMessage()))
+                    continue;
+                throw new IOException("record at " + at + " does not apply: "
+                        + e.getKVMessage().getMessage());
+            }
+            if (deadlines != null) {
+                if (valueLength != LogKVStore.TOMBSTONE && key.equals(expiring))
+                    deadlines.put(key, deadline);
+                else
+                    deadlines.remove(key);
+            }
+            expiring = null;
+            n++;
+        }
+        return n;
+    }
+
+    /**
+     * Adds a put to the current batch. The record is not durable until
+     * sync returns for the batch number returned here.
+     *
+     * @param key String key
+     * @param value String value
+     * @return the batch the record joined
+     * @throws IOException if the log has failed or is closed
+     */
+    public long appendPut(String key, String value) throws IOException {
+        byte[] v = value.getBytes(SlabAllocator.UTF8);
+        return append(LogKVStore.encode(key.getBytes(SlabAllocator.UTF8), v, v.length));
+    }
+
+    /**
+     * Adds a put that expires to the current batch; see appendPut. The
+     * deadline is kept as given, so that replay can tell whether the put
+     * is still live after a restart.
+     *
+     * @param key String key
+     * @param value String value
+     * @param deadline when the key expires, in System.currentTimeMillis terms
+     * @return the batch the record joined
+     * @throws IOException if the log has failed or is closed
+     */
+    public long appendPut(String key, String value, long deadline) throws IOException {
+        byte[] k = key.getBytes(SlabAllocator.UTF8);
+        byte[] v = value.getBytes(SlabAllocator.UTF8);
+        ByteBuffer expiry = LogKVStore.encode(k, ByteBuffer.allocate(8).putLong(deadline).array(),
+                LogKVStore.EXPIRY);
+        ByteBuffer put = LogKVStore.encode(k, v, v.length);
+        // one append, so no record comes between them; expiry first, so a
+        // torn tail never keeps the put without it
+        ByteBuffer both = ByteBuffer.allocate(expiry.remaining() + put.remaining());
+        both.put(expiry).put(put).flip();
+        return append(both);
+    }
+
+    /**
+     * Adds a delete to the current batch; see appendPut.
+     *
+     * @param key String key
+     * @return the batch the record joined
+     * @throws IOException if the log has failed or is closed
+     */
+    public long appendDel(String key) throws IOException {
+        return append(LogKVStore.encode(key.getBytes(SlabAllocator.UTF8), new byte[0],
+                LogKVStore.TOMBSTONE));
+    }
+
+    /**
+     * Waits until a batch, and so every batch before it, is on disk.
+     *
+     * @param batch a number returned by appendPut or appendDel
+     * @throws IOException if the batch could not be written
+     */
+    public void sync(long batch) throws IOException {
+        lock.lock();
+        try {
+            while (flushedBatch < batch && failure == null)
+                flushed.awaitUninterruptibly();
+            if (flushedBatch < batch)
+                throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the time each fsync took, in nanoseconds
+     */
+    public Histogram getFsyncLatency() {
+        return fsyncNanos;
+    }
+
+    /**
+     * @return the number of records each fsync made durable
+     */
+    public Histogram getBatchSizes() {
+        return batchRecords;
+    }
+
+    /**
+     * @return the bytes of records on disk
+     */
+    public long getSize() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Empties the log once the store it protects has been saved some other
+     * way, e.g. by KVStore.dumpToBinaryFile. Waits for pending records to
+     * reach disk first. Writes must be paused from the start of the dump
+     * until this returns, or records the dump missed are lost with the log.
+     *
+     * @throws IOException if the log has failed or cannot be truncated
+     */
+    public void truncate() throws IOException {
+        lock.lock();
+        try {
+            while ((fillingRecords > 0 || flushedBatch < fillingBatch - 1) && failure == null)
+                flushed.awaitUninterruptibly();
+            if (failure != null)
+                throw failure;
+            channel.truncate(0);
+            channel.force(true);
+            size = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Flushes the records appended so far and closes the file. Appends
+     * made after this throw.
+     */
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            closed = true;
+            pending.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private long append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        lock.lock();
+        try {
+            if (failure != null)
+                throw failure;
+            if (closed)
+                throw new IOException("write-ahead log is closed");
+            if (fillingLength + length > filling.length) {
+                byte[] grown = new byte[Math.max(fillingLength + length, 2 * filling.length)];
+                System.arraycopy(filling, 0, grown, 0, fillingLength);
+                filling = grown;
+            }
+            record.get(filling, fillingLength, length);
+            fillingLength += length;
+            fillingRecords++;
+            // the flusher only needs waking for the first record and a full batch
+            if (fillingRecords == 1 || fillingLength >= maxBatchBytes)
+                pending.signal();
+            return fillingBatch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void flushLoop() {
+        byte[] flushing = new byte[filling.length];
+        for (;;) {
+            long batch;
+            int length, records;
+            lock.lock();
+            try {
+                while (fillingRecords == 0 && !closed)
+                    pending.awaitUninterruptibly();
+                if (fillingRecords == 0)
+                    return;
+                long deadline = System.nanoTime() + batchWindowNanos;
+                long remaining;
+                while (fillingLength < maxBatchBytes && !closed
+                        && (remaining = deadline - System.nanoTime()) > 0) {
+                    try {
+                        pending.awaitNanos(remaining);
+                    } catch (InterruptedException e) {
+                        // daemon thread; nobody interrupts it on purpose
+                    }
+                }
+                // swap buffers so writers can fill the next batch meanwhile
+                byte[] full = filling;
+                filling = flushing;
+                flushing = full;
+                length = fillingLength;
+                records = fillingRecords;
+                batch = fillingBatch++;
+                fillingLength = 0;
+                fillingRecords = 0;
+            } finally {
+                lock.unlock();
+            }
+
+            IOException error = null;
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(flushing, 0, length);
+                long pos = size;
+                while (buf.hasRemaining())
+                    pos += channel.write(buf, pos);
+                long start = System.nanoTime();
+                channel.force(false);
+                fsyncNanos.record(System.nanoTime() - start);
+                batchRecords.record(records);
+            } catch (IOException e) {
+                error = e;
+            }
+
+            lock.lock();
+            try {
+                if (error != null) {
+                    failure = error;
+                } else {
+                    size += length;
+                    flushedBatch = batch;
+                }
+                flushed.signalAll();
+                if (error != null)
+                    return;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
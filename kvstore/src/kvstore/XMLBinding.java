@@ -0,0 +1,76 @@
+package kvstore;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+
+import kvstore.xml.ObjectFactory;
+
+/**
+ * The JAXB binding of the kvstore.xml classes, shared by everything that
+ * reads or writes messages and dumps. Creating a JAXBContext reflects over
+ * every bound class and costs far more than the (un)marshalling itself, so
+ * the process has one, created on first use. Marshallers and Unmarshallers
+ * are cheap but not thread-safe; each thread keeps one of each and reuses
+ * it for every message it handles.
+ */
+final class XMLBinding {
+
+    private static final JAXBContext CONTEXT;
+    static {
+        try {
+            CONTEXT = JAXBContext.newInstance(ObjectFactory.class);
+        } catch (JAXBException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final ThreadLocal<Marshaller> marshallers = new ThreadLocal<Marshaller>();
+    private static final ThreadLocal<Unmarshaller> unmarshallers = new ThreadLocal<Unmarshaller>();
+
+    private XMLBinding() {
+    }
+
+    /**
+     * @return the shared context, e.g. for a Marshaller configured
+     *         differently than marshaller's
+     */
+    static JAXBContext context() {
+        return CONTEXT;
+    }
+
+    /**
+     * Returns this thread's Marshaller. It writes fragments, without
+     * formatting, behind a standalone UTF-8 XML declaration. Callers must
+     * not change its properties.
+     *
+     * @return the Marshaller
+     * @throws JAXBException if one cannot be created
+     */
+    static Marshaller marshaller() throws JAXBException {
+        Marshaller m = marshallers.get();
+        if (m == null) {
+            m = CONTEXT.createMarshaller();
+            m.setProperty("com.sun.xml.internal.bind.xmlHeaders",
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            m.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            m.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, false);
+            marshallers.set(m);
+        }
+        return m;
+    }
+
+    /**
+     * @return this thread's Unmarshaller
+     * @throws JAXBException if one cannot be created
+     */
+    static Unmarshaller unmarshaller() throws JAXBException {
+        Unmarshaller u = unmarshallers.get();
+        if (u == null) {
+            u = CONTEXT.createUnmarshaller();
+            unmarshallers.set(u);
+        }
+        return u;
+    }
+}
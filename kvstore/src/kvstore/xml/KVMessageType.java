@@ -8,6 +8,8 @@
 
 package kvstore.xml;
 
+import java.util.ArrayList;
+import java.util.List;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
@@ -28,6 +30,8 @@ import javax.xml.bind.annotation.XmlType;
  *         &lt;element name="Key" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Value" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
  *         &lt;element name="Message" type="{http://www.w3.org/2001/XMLSchema}string" minOccurs="0"/>
+ *         &lt;element name="TTL" type="{http://www.w3.org/2001/XMLSchema}long" minOccurs="0"/>
+ *         &lt;element name="KVPair" type="{}KVPairType" maxOccurs="unbounded" minOccurs="0"/>
  *       &lt;/sequence>
  *       &lt;attribute name="type" use="required" type="{http://www.w3.org/2001/XMLSchema}string" />
  *     &lt;/restriction>
@@ -41,7 +45,9 @@ import javax.xml.bind.annotation.XmlType;
 @XmlType(name = "KVMessageType", propOrder = {
     "key",
     "value",
-    "message"
+    "message",
+    "ttl",
+    "kvPair"
 })
 public class KVMessageType {
 
@@ -51,6 +57,10 @@ public class KVMessageType {
     protected String value;
     @XmlElement(name = "Message")
     protected String message;
+    @XmlElement(name = "TTL")
+    protected Long ttl;
+    @XmlElement(name = "KVPair")
+    protected List<KVPairType> kvPair;
     @XmlAttribute(name = "type", required = true)
     protected String type;
 
@@ -126,6 +136,59 @@ public class KVMessageType {
         this.message = value;
     }
 
+    /**
+     * Gets the value of the ttl property.
+     * 
+     * @return
+     *     possible object is
+     *     {@link Long }
+     *     
+     */
+    public Long getTTL() {
+        return ttl;
+    }
+
+    /**
+     * Sets the value of the ttl property.
+     * 
+     * @param value
+     *     allowed object is
+     *     {@link Long }
+     *     
+     */
+    public void setTTL(Long value) {
+        this.ttl = value;
+    }
+
+    /**
+     * Gets the value of the kvPair property.
+     * 
+     * <p>
+     * This accessor method returns a reference to the live list,
+     * not a snapshot. Therefore any modification you make to the
+     * returned list will be present inside the JAXB object.
+     * This is why there is not a <CODE>set</CODE> method for the kvPair property.
+     * 
+     * <p>
+     * For example, to add a new item, do as follows:
+     * <pre>
+     *    getKVPair().add(newItem);
+     * </pre>
+     * 
+     * 
+     * <p>
+     * Objects of the following type(s) are allowed in the list
+     * {@link KVPairType }
+     * 
+     * 
+     */
+    public List<KVPairType> getKVPair() {
+        if (kvPair == null) {
+            kvPair = new ArrayList<KVPairType>();
+        }
+        return this.kvPair;
+    }
+
     /**
      * Gets the value of the type property.
      * 
@@ -31,6 +31,17 @@ public final class AGCategories {
         KVClientTest.class,
         KVMessageTest.class,
         KVStoreTest.class,
+        OffHeapKVStoreTest.class,
+        LogKVStoreTest.class,
+        BinarySnapshotTest.class,
+        WriteAheadLogTest.class,
+        SortedKVStoreTest.class,
+        LSMKVStoreTest.class,
+        ValueLogKVStoreTest.class,
+        TimingWheelTest.class,
+        ValueCompressorTest.class,
+        BinaryProtocolTest.class,
+        KVConnectionTest.class,
         SocketServerTest.class,
         ThreadPoolTest.class,
         KVServerTest.class
@@ -0,0 +1,89 @@
+package kvstore;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times fetching a page's worth of keys over loopback: one KVClient.get
+ * per key, in XML and over a PERSISTENT connection, against one mget.
+ * Not a unit test; run it by hand:
+ *
+ *   java kvstore.BatchBenchmark [keys per page] [pages]
+ */
+public class BatchBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 100;
+        int pages = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        final SocketServer ss = new SocketServer("127.0.0.1", 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(16, 64), 4));
+        ss.connect();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        int port = ss.server.getLocalPort();
+
+        KVClient xml = new KVClient("127.0.0.1", port);
+        KVClient persistent = new KVClient("127.0.0.1", port, WireProtocol.PERSISTENT);
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        for (int i = 0; i < keys; i++)
+            pairs.put("user:" + i, "{\"id\":" + i + ",\"name\":\"user " + i + "\"}");
+        List<String> page = new ArrayList<String>(pairs.keySet());
+        xml.mput(pairs);
+        try {
+            // the first round only warms up the JIT
+            for (int round = 0; round < 2; round++) {
+                long gets = 0, persistentGets = 0, mgets = 0;
+                for (int p = 0; p < pages; p++) {
+                    long start = System.nanoTime();
+                    for (String key : page)
+                        check(pairs.get(key), xml.get(key));
+                    long mid = System.nanoTime();
+                    for (String key : page)
+                        check(pairs.get(key), persistent.get(key));
+                    long mid2 = System.nanoTime();
+                    Map<String, String> values = xml.mget(page);
+                    long end = System.nanoTime();
+                    check(pairs.toString(), values.toString());
+                    gets += mid - start;
+                    persistentGets += mid2 - mid;
+                    mgets += end - mid2;
+                }
+                if (round == 1) {
+                    report("get per key", gets, pages, keys);
+                    report("PERSISTENT get", persistentGets, pages, keys);
+                    report("mget", mgets, pages, keys);
+                }
+            }
+            if (xml.mdel(page).size() != keys || !xml.mget(page).isEmpty())
+                throw new IllegalStateException("mdel left keys behind");
+        } finally {
+            persistent.close();
+            ss.stop();
+        }
+        // the handler's pool threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    static void check(String expected, String value) {
+        if (!expected.equals(value))
+            throw new IllegalStateException("got " + value);
+    }
+
+    static void report(String name, long nanos, int pages, int keys) {
+        System.out.println(String.format("%-16s %8.1f us/page of %d keys",
+                name, nanos / 1e3 / pages, keys));
+    }
+}
@@ -0,0 +1,197 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PushbackInputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class BinaryProtocolTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Request frames read back as the requests that were sent")
+    public void requestRoundTrip() throws Exception {
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("k\u00e9y");
+        put.setValue("<v> & \"\u65b0\"\r\n");
+        put.setTTL(1500);
+        KVMessage read = roundTrip(put);
+        assertEquals(KVConstants.PUT_REQ, read.getMsgType());
+        assertEquals("k\u00e9y", read.getKey());
+        assertEquals("<v> & \"\u65b0\"\r\n", read.getValue());
+        assertEquals(1500, read.getTTL());
+
+        KVMessage get = new KVMessage(KVConstants.GET_REQ);
+        get.setKey("key");
+        read = roundTrip(get);
+        assertEquals(KVConstants.GET_REQ, read.getMsgType());
+        assertEquals("key", read.getKey());
+        assertNull(read.getValue());
+
+        KVMessage del = new KVMessage(KVConstants.DEL_REQ);
+        del.setKey("key");
+        read = roundTrip(del);
+        assertEquals(KVConstants.DEL_REQ, read.getMsgType());
+        assertEquals("key", read.getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Negotiation pushes back bytes that are not the magic")
+    public void negotiateLeavesXMLUnread() throws Exception {
+        byte[] xml = "<?xml version=\"1.0\"?>".getBytes(SlabAllocator.UTF8);
+        PushbackInputStream in = new PushbackInputStream(
+                new ByteArrayInputStream(xml), BinaryProtocol.MAGIC.length);
+        assertEquals(WireProtocol.XML, BinaryProtocol.negotiate(in));
+        byte[] left = new byte[xml.length];
+        assertEquals(xml.length, in.read(left));
+        assertTrue(Arrays.equals(xml, left));
+
+        // shorter than the magic
+        in = new PushbackInputStream(new ByteArrayInputStream(new byte[] { 0, 'K' }),
+                BinaryProtocol.MAGIC.length);
+        assertEquals(WireProtocol.XML, BinaryProtocol.negotiate(in));
+        assertEquals(0, in.read());
+        assertEquals('K', in.read());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Bad and truncated frames throw the matching errors")
+    public void badFramesThrow() {
+        assertReadFails(new byte[] { 9, 0, 0, 0, 1, 0, 0, 0, 0, 'k' }, ERROR_INVALID_FORMAT);
+        assertReadFails(new byte[] { BinaryProtocol.GET, 0, 0, 0, 1, -1, -1, -1, -1, 'k' },
+                ERROR_INVALID_FORMAT);
+        assertReadFails(new byte[] { BinaryProtocol.PUT, 0, 0, 0, 3, 0, 0, 0, 5, 'k' },
+                ERROR_COULD_NOT_RECEIVE_DATA);
+        assertReadFails(new byte[0], ERROR_COULD_NOT_RECEIVE_DATA);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Responses carry values, SUCCESS and error messages")
+    public void responseRoundTrip() throws Exception {
+        KVMessage value = new KVMessage(KVConstants.RESP);
+        value.setKey("key");
+        value.setValue("");
+        KVMessage read = responseRoundTrip(value);
+        assertEquals("", read.getValue());
+        assertNull(read.getMessage());
+
+        read = responseRoundTrip(new KVMessage(KVConstants.RESP, KVConstants.SUCCESS));
+        assertEquals(KVConstants.SUCCESS, read.getMessage());
+        assertNull(read.getValue());
+
+        read = responseRoundTrip(new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY));
+        assertEquals(ERROR_NO_SUCH_KEY, read.getMessage());
+        assertNull(read.getValue());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "XML and binary clients share one server")
+    public void serverSpeaksBoth() throws Exception {
+        final SocketServer ss = new SocketServer("127.0.0.1", 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(4, 4), 2));
+        ss.connect();
+        // not a ServerRunner, which exits the JVM when stop closes the socket
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            int port = ss.server.getLocalPort();
+            KVClient xml = new KVClient("127.0.0.1", port);
+            KVClient binary = new KVClient("127.0.0.1", port, WireProtocol.BINARY);
+            String odd = "a & b < c ]]> \"\u65b0\"\r\n";
+            binary.put("odd", odd);
+            assertEquals(odd, xml.get("odd"));
+            assertEquals(odd, binary.get("odd"));
+            xml.put("plain", "value");
+            assertEquals("value", binary.get("plain"));
+            binary.put("short", "lived", 1, TimeUnit.HOURS);
+            assertEquals("lived", xml.get("short"));
+            binary.del("plain");
+            try {
+                binary.get("plain");
+                fail("get of a deleted key did not throw");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+            try {
+                binary.del("plain");
+                fail("del of a deleted key did not throw");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+        } finally {
+            ss.stop();
+        }
+    }
+
+    private static KVMessage roundTrip(KVMessage req) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BinaryProtocol.sendRequest(writeTo(os), req);
+        PushbackInputStream in = new PushbackInputStream(
+                new ByteArrayInputStream(os.toByteArray()), BinaryProtocol.MAGIC.length);
+        assertEquals(WireProtocol.BINARY, BinaryProtocol.negotiate(in));
+        KVMessage read = BinaryProtocol.readRequest(in);
+        assertEquals(-1, in.read());
+        return read;
+    }
+
+    private static KVMessage responseRoundTrip(KVMessage resp) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        BinaryProtocol.sendResponse(writeTo(os), resp);
+        return BinaryProtocol.receiveResponse(Utils.setupReadFromBytes(os.toByteArray()));
+    }
+
+    private static Socket writeTo(ByteArrayOutputStream os) throws IOException {
+        Socket sock = mock(Socket.class);
+        when(sock.getOutputStream()).thenReturn(os);
+        return sock;
+    }
+
+    private static void assertReadFails(byte[] frame, String error) {
+        try {
+            BinaryProtocol.readRequest(new ByteArrayInputStream(frame));
+            fail("read of a bad frame did not throw");
+        } catch (KVException e) {
+            assertEquals(error, e.getKVMessage().getMessage());
+        }
+    }
+}
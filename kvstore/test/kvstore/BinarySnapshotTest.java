@@ -0,0 +1,121 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class BinarySnapshotTest {
+
+    File file;
+
+    @Before
+    public void setupFile() throws IOException {
+        file = File.createTempFile("TestBinarySnapshot-", ".snap");
+    }
+
+    @After
+    public void removeFile() {
+        file.delete();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A snapshot of many chunks reads back the same pairs")
+    public void roundTrip() throws IOException {
+        Map<String, String> pairs = new HashMap<String, String>();
+        for (int i = 0; i < 10000; i++)
+            pairs.put("key" + i, "value" + i);
+        pairs.put("\u65e5\u672c", "\u00e9\u4e16<&>");
+        pairs.put("empty", "");
+        assertEquals(pairs.size(), BinarySnapshot.write(pairs, file.getPath(), 4096));
+        assertTrue(file.length() > 10 * 4096);
+        assertEquals(pairs, BinarySnapshot.read(file.getPath(), 4));
+        assertEquals(pairs, BinarySnapshot.read(file.getPath(), 1));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An empty store makes a readable snapshot")
+    public void emptySnapshot() throws IOException {
+        BinarySnapshot.write(new HashMap<String, String>(), file.getPath());
+        assertTrue(BinarySnapshot.isSnapshot(file.getPath()));
+        assertTrue(BinarySnapshot.read(file.getPath()).isEmpty());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Damaged or truncated snapshots are refused")
+    public void refusesDamage() throws IOException {
+        Map<String, String> pairs = new HashMap<String, String>();
+        for (int i = 0; i < 1000; i++)
+            pairs.put("key" + i, "value" + i);
+        BinarySnapshot.write(pairs, file.getPath(), 1024);
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long length = raf.length();
+        raf.seek(length / 2);
+        int b = raf.read();
+        raf.seek(length / 2);
+        raf.write(b ^ 0x20);
+        raf.close();
+        try {
+            BinarySnapshot.read(file.getPath());
+            fail("flipped bit was not caught");
+        } catch (IOException e) {
+            // expected
+        }
+
+        BinarySnapshot.write(pairs, file.getPath(), 1024);
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(length - 4);
+        raf.close();
+        try {
+            BinarySnapshot.read(file.getPath());
+            fail("truncated snapshot was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "KVStore restores binary and XML dumps from the same call")
+    public void storeRestoresBothFormats() throws KVException {
+        KVStore store = new KVStore();
+        for (int i = 0; i < 500; i++)
+            store.put("key" + i, "value" + i);
+        Map<String, String> expected = new HashMap<String, String>(store.store);
+
+        store.dumpToBinaryFile(file.getPath());
+        KVStore restored = new KVStore();
+        restored.put("stale", "gone");
+        restored.restoreFromFile(file.getPath());
+        assertEquals(expected, restored.store);
+
+        store.dumpToFile(file.getPath());
+        assertTrue(!BinarySnapshot.isSnapshot(file.getPath()));
+        restored = new KVStore();
+        restored.restoreFromFile(file.getPath());
+        assertEquals(expected, restored.store);
+    }
+}
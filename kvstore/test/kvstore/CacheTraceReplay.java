@@ -0,0 +1,124 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Replays a key trace through a read-through KVCache and reports the hit
+ * ratio and the cost per access of every CachePolicy, with and without a
+ * TinyLFU admission filter. Not a unit test; run it by hand:
+ *
+ *   java kvstore.CacheTraceReplay [traceFile [numSets [maxElemsPerSet]]]
+ *
+ * A trace file holds one key per line. Without one, a synthetic trace is
+ * generated: Zipf-distributed reads of a hot key space interleaved with a
+ * stream of keys that are read exactly once.
+ */
+public class CacheTraceReplay {
+
+    public static void main(String[] args) throws IOException {
+        List<String> trace = (args.length > 0) ? readTrace(args[0])
+                : syntheticTrace(1000000, 50000, 0.99, 0.3, 162);
+        int numSets = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int maxElemsPerSet = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+
+        System.out.println(String.format("%d accesses, %d sets x %d entries",
+                trace.size(), numSets, maxElemsPerSet));
+        for (CachePolicy policy : CachePolicy.values()) {
+            report(policy, trace, numSets, maxElemsPerSet, false);
+            report(policy, trace, numSets, maxElemsPerSet, true);
+        }
+    }
+
+    static void report(CachePolicy policy, List<String> trace, int numSets,
+            int maxElemsPerSet, boolean tinyLFU) {
+        int capacity = numSets * maxElemsPerSet;
+        // one warm-up pass so the JIT has compiled the cache code
+        replay(trace, new KVCache(numSets, maxElemsPerSet, policy),
+                tinyLFU ? new TinyLFUFilter(capacity) : null);
+
+        AdmissionFilter filter = tinyLFU ? new TinyLFUFilter(capacity) : null;
+        KVCache cache = new KVCache(numSets, maxElemsPerSet, policy);
+        long start = System.nanoTime();
+        long hits = replay(trace, cache, filter);
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("%-14s %-10s hit ratio %.4f  %6.1f ns/op",
+                policy, tinyLFU ? "TinyLFU" : "no filter",
+                (double) hits / trace.size(), (double) elapsed / trace.size()));
+    }
+
+    /**
+     * Runs the trace single-threaded, filling the cache on every miss the
+     * way KVServer.get does.
+     *
+     * @return number of accesses that hit the cache
+     */
+    static long replay(List<String> trace, KVCache cache, AdmissionFilter filter) {
+        long hits = 0;
+        for (String key : trace) {
+            if (filter != null)
+                filter.recordAccess(key);
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.putIfAdmitted(key, key, filter);
+            }
+        }
+        return hits;
+    }
+
+    static List<String> readTrace(String fileName) throws IOException {
+        List<String> trace = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.length() > 0)
+                    trace.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return trace;
+    }
+
+    /**
+     * @param length number of accesses
+     * @param hotKeys size of the Zipf-distributed key space
+     * @param skew Zipf exponent
+     * @param oneHitFraction fraction of accesses that go to never-repeated keys
+     * @param seed random seed, so runs are comparable
+     */
+    static List<String> syntheticTrace(int length, int hotKeys, double skew,
+            double oneHitFraction, long seed) {
+        double[] cdf = new double[hotKeys];
+        double sum = 0;
+        for (int i = 0; i < hotKeys; i++) {
+            sum += 1.0 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random rand = new Random(seed);
+        List<String> trace = new ArrayList<String>(length);
+        for (int i = 0; i < length; i++) {
+            if (rand.nextDouble() < oneHitFraction) {
+                trace.add("once:" + i);
+                continue;
+            }
+            double u = rand.nextDouble() * sum;
+            int lo = 0, hi = hotKeys - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            trace.add("user:" + lo);
+        }
+        return trace;
+    }
+}
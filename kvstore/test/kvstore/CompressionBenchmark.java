@@ -0,0 +1,91 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures what value compression saves and costs: the heap bytes of a
+ * KVStore full of small JSON session records, and the time per put and get,
+ * without a compressor, with one and with one using a trained dictionary.
+ * Not a unit test; run it by hand:
+ *
+ *   java kvstore.CompressionBenchmark [numKeys [threshold [dictionarySize]]]
+ *
+ * Deflate takes in the whole dictionary before each value, so a larger one
+ * trades put latency for a better ratio.
+ */
+public class CompressionBenchmark {
+
+    public static void main(String[] args) throws KVException {
+        int numKeys = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int threshold = (args.length > 1) ? Integer.parseInt(args[1]) : 64;
+        int dictionarySize = (args.length > 2) ? Integer.parseInt(args[2]) : 4096;
+
+        List<String> samples = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++)
+            samples.add(session(-1 - i));
+        long start = System.nanoTime();
+        byte[] dictionary = ValueCompressor.trainDictionary(samples, dictionarySize);
+        System.out.println(String.format("trained a %d byte dictionary from %d samples in %.0f ms",
+                dictionary.length, samples.size(), (System.nanoTime() - start) / 1e6));
+
+        // the first round of each only warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            run("plain", null, numKeys, print);
+            run("deflate", new ValueCompressor(threshold), numKeys, print);
+            run("dictionary", new ValueCompressor(threshold, dictionary), numKeys, print);
+        }
+    }
+
+    static void run(String name, ValueCompressor compressor, int n, boolean print)
+            throws KVException {
+        KVStore store = new KVStore(compressor);
+        String[] keys = new String[n];
+        String[] values = new String[n];
+        long raw = 0;
+        for (int i = 0; i < n; i++) {
+            keys[i] = String.format("session:%08d", i);
+            values[i] = session(i);
+            raw += 2 * values[i].length();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++)
+            store.put(keys[i], values[i]);
+        long put = System.nanoTime() - start;
+
+        Random rand = new Random(1);
+        start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            int k = rand.nextInt(n);
+            if (store.get(keys[k]).length() != values[k].length())
+                throw new IllegalStateException(name + " returned a wrong value");
+        }
+        long get = System.nanoTime() - start;
+
+        long stored = 0;
+        for (String value : store.store.values())
+            stored += 2 * value.length();
+        if (print)
+            System.out.println(String.format(
+                    "%-10s %8d values  %7.1f MB raw  %7.1f MB stored  ratio %.2f"
+                    + "  put %6.0f ns  get %6.0f ns",
+                    name, n, raw / 1e6, stored / 1e6, (double) stored / raw,
+                    (double) put / n, (double) get / n));
+    }
+
+    static String session(int i) {
+        Random rand = new Random(i);
+        return "{\"sessionId\":\"" + Long.toHexString(rand.nextLong())
+                + "\",\"userId\":" + rand.nextInt(1000000)
+                + ",\"createdAt\":\"2014-05-" + (10 + rand.nextInt(20)) + "T"
+                + (10 + rand.nextInt(14)) + ":" + (10 + rand.nextInt(50)) + ":00Z\""
+                + ",\"locale\":\"" + (rand.nextBoolean() ? "en_US" : "de_DE") + "\""
+                + ",\"userAgent\":\"Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36\""
+                + ",\"cart\":{\"items\":" + rand.nextInt(10) + ",\"currency\":\"USD\""
+                + ",\"total\":" + rand.nextInt(50000) / 100.0 + "}"
+                + ",\"flags\":{\"beta\":" + rand.nextBoolean() + ",\"admin\":false}}";
+    }
+}
@@ -4,10 +4,19 @@ import static org.junit.Assert.*;
 import static kvstore.KVConstants.*;
 
 
+import static autograder.TestUtils.kTimeoutDefault;
 import static autograder.TestUtils.kTimeoutQuick;
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 
@@ -254,4 +263,462 @@ public class KVCacheTest {
         assertEquals(cache.get("woah"), null);
         System.out.println(cache.toXML());
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Second-chance order matches a plain list-based reference")
+    public void secondChanceMatchesListModel() {
+        KVCache cache = new KVCache(1, 8);
+        List<String[]> model = new ArrayList<String[]>(); // {key, value, used}
+        Random rand = new Random(162);
+        for (int i = 0; i < 5000; i++) {
+            String key = Integer.toString(rand.nextInt(20));
+            int op = rand.nextInt(3);
+            int idx = -1;
+            for (int j = 0; j < model.size(); j++) {
+                if (model.get(j)[0].equals(key))
+                    idx = j;
+            }
+            if (op == 0) {
+                String expected = (idx == -1) ? null : model.get(idx)[1];
+                if (idx != -1)
+                    model.get(idx)[2] = "True";
+                assertEquals(expected, cache.get(key));
+            } else if (op == 1) {
+                String val = Integer.toString(i);
+                cache.put(key, val);
+                if (idx != -1) {
+                    model.get(idx)[1] = val;
+                    model.get(idx)[2] = "True";
+                    continue;
+                }
+                if (model.size() == 8) {
+                    while (model.get(0)[2].equals("True")) {
+                        String[] head = model.remove(0);
+                        head[2] = "False";
+                        model.add(head);
+                    }
+                    model.remove(0);
+                }
+                model.add(new String[] {key, val, "False"});
+            } else {
+                cache.del(key);
+                if (idx != -1)
+                    model.remove(idx);
+            }
+        }
+        StringBuilder expected = new StringBuilder();
+        for (String[] e : model) {
+            expected.append("<CacheEntry isReferenced=\"" + e[2] + "\">"
+                    + "<Key>" + e[0] + "</Key><Value>" + e[1] + "</Value>"
+                    + "</CacheEntry>");
+        }
+        assertTrue(cache.toXML().contains("<Set>" + expected + "</Set>"));
+        assertEquals(model.size(), cache.getCacheSetSize(0));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Optimistic get returns hits, misses with null, marks entries")
+    public void optimisticGetHitAndMiss() {
+        KVCache cache = new KVCache(1, 2);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        assertEquals("1", cache.optimisticGet("a"));
+        assertNull(cache.optimisticGet("c"));
+        // "a" was referenced by the optimistic read, so "b" is evicted.
+        cache.put("c", "3");
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Optimistic reads only ever see values that were written")
+    public void optimisticGetDuringWrites() throws InterruptedException {
+        final KVCache cache = new KVCache(1, 4);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicBoolean bad = new AtomicBoolean();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    while (!done.get()) {
+                        for (int k = 0; k < 8; k++) {
+                            String v = cache.optimisticGet("k" + k);
+                            if (v != null && !v.startsWith("k" + k + "="))
+                                bad.set(true);
+                        }
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        Lock lock = cache.getLock("k0");
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + (i % 8);
+            lock.lock();
+            try {
+                if (i % 5 == 0)
+                    cache.del(key);
+                else
+                    cache.put(key, key + "=" + i);
+            } finally {
+                lock.unlock();
+            }
+        }
+        done.set(true);
+        for (Thread t : readers)
+            t.join();
+        assertFalse(bad.get());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "TinyLFU keeps a one-hit key from evicting a frequent one")
+    public void admissionFilterRejectsColdKeys() {
+        KVCache cache = new KVCache(1, 1);
+        AdmissionFilter filter = new TinyLFUFilter(16);
+        for (int i = 0; i < 5; i++)
+            filter.recordAccess("hot");
+        assertTrue(cache.putIfAdmitted("hot", "1", filter));
+        filter.recordAccess("cold");
+        assertFalse(cache.putIfAdmitted("cold", "2", filter));
+        assertEquals("1", cache.get("hot"));
+        assertNull(cache.get("cold"));
+        // without a filter every fill is admitted
+        assertTrue(cache.putIfAdmitted("cold", "2", null));
+        assertEquals("2", cache.get("cold"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Every policy returns the latest value and respects set size")
+    public void policiesStayConsistent() {
+        for (CachePolicy policy : CachePolicy.values()) {
+            KVCache cache = new KVCache(2, 5, policy);
+            Map<String, String> latest = new HashMap<String, String>();
+            Random rand = new Random(4);
+            for (int i = 0; i < 20000; i++) {
+                String key = Integer.toString(rand.nextInt(40));
+                int op = rand.nextInt(10);
+                if (op < 5) {
+                    String v = (op == 0) ? cache.optimisticGet(key) : cache.get(key);
+                    if (v != null)
+                        assertEquals(policy + " " + key, latest.get(key), v);
+                } else if (op < 9) {
+                    cache.put(key, "v" + i);
+                    latest.put(key, "v" + i);
+                    assertEquals(policy.toString(), "v" + i, cache.get(key));
+                } else {
+                    cache.del(key);
+                    latest.remove(key);
+                    assertNull(policy.toString(), cache.get(key));
+                }
+                assertTrue(cache.getCacheSetSize(0) <= 5);
+                assertTrue(cache.getCacheSetSize(1) <= 5);
+            }
+            String xml = cache.toXML();
+            int entries = xml.split("<CacheEntry").length - 1;
+            assertEquals(policy.toString(),
+                    cache.getCacheSetSize(0) + cache.getCacheSetSize(1), entries);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LRU evicts the least recently used")
+    public void lruEvictsLeastRecentlyUsed() {
+        KVCache cache = new KVCache(1, 3, CachePolicy.LRU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.optimisticGet("a"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "S3-FIFO, CLOCK-Pro and ARC keep a re-used key over a scan")
+    public void scanResistantPolicies() {
+        CachePolicy[] policies = {
+            CachePolicy.S3_FIFO, CachePolicy.CLOCK_PRO, CachePolicy.ARC };
+        for (CachePolicy policy : policies) {
+            KVCache cache = new KVCache(1, 4, policy);
+            cache.put("hot", "h");
+            for (int i = 0; i < 50; i++) {
+                assertEquals(policy.toString(), "h", cache.get("hot"));
+                cache.put("scan" + i, "s");
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A byte-budgeted set evicts by size and reports its bytes")
+    public void perSetByteBudget() {
+        // "k0".."k9" with 8-char values are 20 bytes each
+        KVCache cache = new KVCache(1, 100, CachePolicy.SECOND_CHANCE, 100, 0);
+        for (int i = 0; i < 5; i++)
+            cache.put("k" + i, "12345678");
+        assertEquals(100, cache.getCacheSetBytes(0));
+        assertEquals(5, cache.getCacheSetSize(0));
+
+        // a 60-byte entry pushes out the three oldest
+        cache.put("big", "123456789012345678901234567");
+        assertEquals(3, cache.getCacheSetSize(0));
+        assertNull(cache.get("k0"));
+        assertNull(cache.get("k2"));
+        assertEquals("12345678", cache.get("k3"));
+        assertEquals(100, cache.getCacheSetBytes(0));
+
+        // growing an entry in place evicts others, shrinking frees bytes
+        cache.put("k3", "1");
+        assertEquals(86, cache.getCacheSetBytes(0));
+        cache.del("big");
+        assertEquals(26, cache.getCacheSetBytes(0));
+        assertEquals(26, cache.getTotalBytes());
+
+        // an entry over the budget is never cached and drops a stale copy
+        cache.put("k4", makeString(60));
+        assertNull(cache.get("k4"));
+        assertEquals(6, cache.getCacheSetBytes(0));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A cache-wide byte budget holds across sets")
+    public void totalByteBudget() {
+        KVCache cache = new KVCache(4, 100, CachePolicy.SECOND_CHANCE, 0, 400);
+        Random rand = new Random(9);
+        for (int i = 0; i < 1000; i++) {
+            cache.put("key" + rand.nextInt(200), makeString(rand.nextInt(40) + 1));
+            assertTrue(cache.getTotalBytes() <= 400);
+        }
+        long sum = 0;
+        for (int s = 0; s < cache.getNumSets(); s++)
+            sum += cache.getCacheSetBytes(s);
+        assertEquals(cache.getTotalBytes(), sum);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An insert with no room in the shared budget leaves the policy alone")
+    public void droppedInsertKeepsPolicyState() {
+        CachePolicy[] policies = { CachePolicy.S3_FIFO, CachePolicy.CLOCK_PRO };
+        for (CachePolicy policy : policies) {
+            // keys and values of 5 chars are 20 bytes each
+            KVCache cache = new KVCache(2, 2, policy, 0, 60);
+            List<String> a = keysInSet(cache, 0, 5), b = keysInSet(cache, 1, 1);
+            cache.put(a.get(0), "12345");
+            cache.put(a.get(1), "12345");
+            cache.put(a.get(2), "12345");
+            assertEquals(policy.toString(), 2, cache.getCacheSetSize(0));
+            cache.del(a.get(1));
+            cache.del(a.get(2));
+
+            // set 1 holds too much of the budget for a(0) to come back
+            cache.put(b.get(0), makeString(20));
+            cache.put(a.get(0), "12345");
+            assertNull(policy.toString(), cache.get(a.get(0)));
+            cache.del(b.get(0));
+
+            // its remembered miss still marks it as re-used, so a scan passes it by
+            cache.put(a.get(0), "12345");
+            cache.put(a.get(3), "12345");
+            cache.put(a.get(4), "12345");
+            assertEquals(policy.toString(), "12345", cache.get(a.get(0)));
+        }
+    }
+
+    private static List<String> keysInSet(KVCache cache, int set, int n) {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; keys.size() < n; i++) {
+            String key = String.format("k%04d", i);
+            if (cache.getCacheSetForKey(key) == set)
+                keys.add(key);
+        }
+        return keys;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An off-heap cache frees slab chunks it overwrites or evicts")
+    public void offHeapValues() {
+        SlabAllocator slabs = new SlabAllocator(4096);
+        KVCache cache = new KVCache(1, 3, CachePolicy.SECOND_CHANCE, 0, 0, slabs);
+        cache.put("a", "1");
+        cache.put("b", "22");
+        cache.put("c", "\u00e9t\u00e9");
+        assertEquals("\u00e9t\u00e9", cache.get("c"));
+        assertEquals("22", cache.optimisticGet("b"));
+        assertEquals(8, slabs.getUsedBytes());
+
+        cache.put("a", "111");
+        assertEquals("111", cache.get("a"));
+        assertEquals(10, slabs.getUsedBytes());
+
+        // all three are referenced; the clock clears them, then takes "a"
+        cache.put("d", "4");
+        assertNull(cache.get("a"));
+        assertEquals(8, slabs.getUsedBytes());
+        cache.del("c");
+        assertEquals(3, slabs.getUsedBytes());
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertTrue(cache.toXML().contains("22"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A compressing cache fits more long values in its byte budget")
+    public void compressedValues() {
+        ValueCompressor compressor = new ValueCompressor(64);
+        KVCache cache = new KVCache(1, 100, CachePolicy.SECOND_CHANCE, 0, 4096, compressor);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++)
+            sb.append("{\"field\":").append(i % 4).append('}');
+        String json = sb.toString();
+        // over 1KiB uncompressed each, so 4 would fill the budget
+        for (int i = 0; i < 20; i++)
+            cache.put("key" + i, json + i);
+        assertTrue(cache.getTotalBytes() <= 4096);
+        for (int i = 0; i < 20; i++)
+            assertEquals(json + i, cache.get("key" + i));
+        assertEquals(json + 3, cache.optimisticGet("key3"));
+        cache.put("short", "tiny");
+        assertEquals("tiny", cache.get("short"));
+        assertEquals(20, compressor.getCompressedValues());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Per-set stats count hits, misses, evictions and rotations")
+    public void perSetStats() {
+        KVCache cache = new KVCache(2, 2);
+        // "1" and "3" hash to set 1, "2" and "4" to set 0
+        cache.put("1", "a");
+        cache.put("3", "b");
+        assertEquals("a", cache.get("1"));
+        assertEquals("b", cache.optimisticGet("3"));
+        assertNull(cache.get("5"));
+        cache.put("5", "c");
+        cache.recordLockWait("2", 100);
+
+        CacheStats stats = cache.getStats();
+        assertEquals(2, stats.getNumSets());
+        assertEquals(2, stats.getHits(1));
+        assertEquals(1, stats.getMisses(1));
+        assertEquals(1, stats.getEvictions(1));
+        assertEquals(2, stats.getRotations(1));
+        assertEquals(0, stats.getHits(0));
+        assertEquals(1, stats.getLockWaits(0));
+        assertEquals(100, stats.getTotalLockWaitNanos());
+        assertEquals(0, stats.getMostContendedSet());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Striped counters lose no updates under contention")
+    public void stripedCounterConcurrent() throws InterruptedException {
+        final StripedCounter counter = new StripedCounter();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        counter.increment();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+        assertEquals(800000, counter.sum());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The hot-key sketch finds the heavy hitters of a stream")
+    public void hotKeySketch() {
+        HotKeySketch sketch = new HotKeySketch(8, 1);
+        Random rand = new Random(9);
+        int hot = 0;
+        for (int i = 0; i < 10000; i++) {
+            int r = rand.nextInt(10);
+            if (r < 4)
+                hot++;
+            sketch.offer((r < 4) ? "hot" : (r < 6) ? "warm" : "cold" + i);
+        }
+        List<String> top = new ArrayList<String>(sketch.getTopKeys().keySet());
+        assertEquals(8, top.size());
+        assertEquals("hot", top.get(0));
+        assertEquals("warm", top.get(1));
+        // counts never underestimate
+        assertTrue(sketch.getTopKeys().get("hot") >= hot);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Every set hash maps keys into range and round-trips them")
+    public void setHashesStayInRange() {
+        assertEquals(Integer.MIN_VALUE, "polygenelubricants".hashCode());
+        Random rand = new Random(10);
+        for (SetHash hash : SetHash.values()) {
+            for (int numSets : new int[] {1, 3, 8, 10}) {
+                KVCache cache = new KVCache(numSets, 4, CachePolicy.SECOND_CHANCE, hash);
+                cache.put("polygenelubricants", "min");
+                assertEquals("min", cache.get("polygenelubricants"));
+                for (int i = 0; i < 1000; i++) {
+                    int s = cache.getCacheSetForKey(Long.toString(rand.nextLong()));
+                    assertTrue(s >= 0 && s < numSets);
+                }
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Mixed and seeded hashes spread sequential and colliding keys")
+    public void setHashesSpreadKeys() {
+        KVCache mixed = new KVCache(16, 4, CachePolicy.SECOND_CHANCE, SetHash.MIXED);
+        KVCache seeded = new KVCache(16, 4, CachePolicy.SECOND_CHANCE, SetHash.SEEDED);
+        int[] sequential = new int[16], colliding = new int[16];
+        for (int i = 0; i < 4096; i++) {
+            sequential[mixed.getCacheSetForKey(String.format("user:%06d", i))]++;
+            // "Aa" and "BB" share a hashCode, so all of these collide
+            StringBuilder sb = new StringBuilder();
+            for (int b = 0; b < 12; b++)
+                sb.append(((i >>> b) & 1) == 0 ? "Aa" : "BB");
+            colliding[seeded.getCacheSetForKey(sb.toString())]++;
+        }
+        for (int s = 0; s < 16; s++) {
+            assertTrue(sequential[s] > 192 && sequential[s] < 320);
+            assertTrue(colliding[s] > 192 && colliding[s] < 320);
+        }
+    }
+
+    private static String makeString(int n) {
+        return new String(new char[n]).replace('\0', 'x');
+    }
 }
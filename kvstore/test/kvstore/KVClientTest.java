@@ -6,10 +6,16 @@ import static kvstore.Utils.*;
 import static org.junit.Assert.*;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.*;
+import static org.powermock.api.mockito.PowerMockito.verifyNew;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -135,6 +141,43 @@ public class KVClientTest {
         }
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "mget sends one request per MAX_BATCH keys and maps the values found")
+    public void testMget() throws Exception {
+        setupSocketSuccess();
+        List<Map.Entry<String, String>> found = new ArrayList<Map.Entry<String, String>>();
+        found.add(new AbstractMap.SimpleImmutableEntry<String, String>("b", "2"));
+        found.add(new AbstractMap.SimpleImmutableEntry<String, String>("a", "1"));
+        when(msg.getMsgType()).thenReturn(RESP);
+        when(msg.getMessage()).thenReturn(SUCCESS);
+        when(msg.getPairs()).thenReturn(found);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 2 * ServerClientHandler.MAX_BATCH + 1; i++)
+            keys.add("key" + i);
+        Map<String, String> values = client.mget(keys);
+        assertEquals(Arrays.asList("b", "a"), new ArrayList<String>(values.keySet()));
+        assertEquals("1", values.get("a"));
+        verifyNew(Socket.class, times(3)).withArguments(anyString(), anyInt());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "mget raises the server's error")
+    public void testMgetFail() throws Exception {
+        setupSocketSuccess();
+        when(msg.getMsgType()).thenReturn(RESP);
+        when(msg.getMessage()).thenReturn(ERROR_INVALID_KEY);
+        try {
+            client.mget(Arrays.asList("key"));
+            fail("Client did not throw exception!");
+        } catch (KVException kve) {
+            assertKVExceptionEquals(ERROR_INVALID_KEY, kve);
+        }
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
     private void setupSocketSuccess() throws Exception {
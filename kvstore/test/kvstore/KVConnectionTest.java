@@ -0,0 +1,225 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
+import static kvstore.KVConstants.SUCCESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KVConnectionTest {
+
+    SocketServer ss;
+    AtomicInteger accepted;
+    int port;
+
+    @Before
+    public void startServer() throws Exception {
+        startServer(new ServerClientHandler(new KVServer(4, 4), 4));
+    }
+
+    private void startServer(final ServerClientHandler handler) throws Exception {
+        ss = new SocketServer("127.0.0.1", 0);
+        accepted = new AtomicInteger();
+        ss.addHandler(new NetworkHandler() {
+            @Override
+            public void handle(Socket client) {
+                accepted.incrementAndGet();
+                handler.handle(client);
+            }
+        });
+        ss.connect();
+        // not a ServerRunner, which exits the JVM when stop closes the socket
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        port = ss.server.getLocalPort();
+    }
+
+    @After
+    public void stopServer() {
+        ss.stop();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Pipelined requests are answered in order, errors included")
+    public void pipelineAnswersInOrder() throws Exception {
+        KVConnection conn = new KVConnection("127.0.0.1", port);
+        try {
+            List<KVMessage> requests = new ArrayList<KVMessage>();
+            for (int i = 0; i < 1000; i++) {
+                requests.add(request(KVConstants.PUT_REQ, "key" + i, "value" + i));
+                requests.add(request(KVConstants.GET_REQ, "key" + i, null));
+                requests.add(request(KVConstants.DEL_REQ, "key" + (i - 1), null));
+            }
+            List<KVMessage> responses = conn.pipeline(requests);
+            assertEquals(requests.size(), responses.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(SUCCESS, responses.get(3 * i).getMessage());
+                assertEquals("value" + i, responses.get(3 * i + 1).getValue());
+                assertEquals((i == 0) ? ERROR_NO_SUCH_KEY : SUCCESS,
+                        responses.get(3 * i + 2).getMessage());
+            }
+            assertEquals("value999", conn.get("key999"));
+            assertEquals(1, accepted.get());
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Pipelines of large values and responses do not deadlock")
+    public void largeValuesDoNotDeadlock() throws Exception {
+        char[] chars = new char[200 * 1024];
+        Arrays.fill(chars, 'v');
+        String large = new String(chars);
+        KVConnection conn = new KVConnection("127.0.0.1", port);
+        try {
+            List<KVMessage> requests = new ArrayList<KVMessage>();
+            for (int i = 0; i < 40; i++)
+                requests.add(request(KVConstants.PUT_REQ, "key" + i, large));
+            for (int i = 0; i < 40; i++)
+                requests.add(request(KVConstants.GET_REQ, "key" + i, null));
+            List<KVMessage> responses = conn.pipeline(requests);
+            for (int i = 0; i < 40; i++) {
+                assertEquals(SUCCESS, responses.get(i).getMessage());
+                assertEquals(large, responses.get(40 + i).getValue());
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A PERSISTENT KVClient reuses one connection")
+    public void persistentClientReusesConnection() throws Exception {
+        KVClient client = new KVClient("127.0.0.1", port, WireProtocol.PERSISTENT);
+        try {
+            for (int i = 0; i < 200; i++) {
+                client.put("key", "value" + i);
+                assertEquals("value" + i, client.get("key"));
+            }
+            client.del("key");
+            try {
+                client.get("key");
+                fail("get of a deleted key did not throw");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+            assertEquals(1, accepted.get());
+            // XML clients are still served alongside it
+            new KVClient("127.0.0.1", port).put("other", "value");
+            assertEquals("value", client.get("other"));
+            assertEquals(2, accepted.get());
+
+            client.close();
+            assertEquals("value", client.get("other"));
+            assertEquals(3, accepted.get());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The server answers an unreadable frame and hangs up")
+    public void badFrameClosesConnection() throws Exception {
+        Socket sock = new Socket("127.0.0.1", port);
+        try {
+            OutputStream out = sock.getOutputStream();
+            ByteBuffer frames = ByteBuffer.allocate(64);
+            frames.put(BinaryProtocol.PERSISTENT_MAGIC);
+            // a get of "k", then an unknown opcode, then a get never answered
+            frames.putInt(7).put(BinaryProtocol.GET).putInt(1).putInt(0).put((byte) 'k');
+            frames.putInt(8).put((byte) 99).putInt(0).putInt(0);
+            frames.putInt(9).put(BinaryProtocol.GET).putInt(1).putInt(0).put((byte) 'k');
+            out.write(frames.array(), 0, frames.position());
+            out.flush();
+
+            InputStream in = sock.getInputStream();
+            assertEquals(0, BinaryProtocol.readId(in));
+            assertEquals(SUCCESS, BinaryProtocol.readResponse(in).getMessage());
+            assertEquals(7, BinaryProtocol.readId(in));
+            assertEquals(ERROR_NO_SUCH_KEY, BinaryProtocol.readResponse(in).getMessage());
+            assertEquals(8, BinaryProtocol.readId(in));
+            KVMessage resp = BinaryProtocol.readResponse(in);
+            assertEquals(ERROR_INVALID_FORMAT, resp.getMessage());
+            assertNull(resp.getValue());
+            assertEquals(-1, in.read());
+        } finally {
+            sock.close();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Persistent connections cannot take the threads of other requests")
+    public void persistentPoolIsBounded() throws Exception {
+        ss.stop();
+        startServer(new ServerClientHandler(new KVServer(4, 4), 1, 1));
+        KVConnection held = new KVConnection("127.0.0.1", port);
+        KVClient fallback = new KVClient("127.0.0.1", port, WireProtocol.PERSISTENT);
+        try {
+            held.put("key", "value");
+            // the one request thread is free while held idles
+            assertEquals("value", new KVClient("127.0.0.1", port).get("key"));
+            try {
+                new KVConnection("127.0.0.1", port).close();
+                fail("a connection past the limit was accepted");
+            } catch (KVException e) {
+                assertEquals(ERROR_SERVER_BUSY, e.getKVMessage().getMessage());
+            }
+            assertEquals("value", fallback.get("key"));
+            fallback.put("key", "other");
+            assertEquals("other", held.get("key"));
+        } finally {
+            held.close();
+            fallback.close();
+        }
+    }
+
+    private static KVMessage request(String type, String key, String value) {
+        KVMessage kvm = new KVMessage(type);
+        kvm.setKey(key);
+        kvm.setValue(value);
+        return kvm;
+    }
+}
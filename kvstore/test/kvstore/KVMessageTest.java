@@ -1,5 +1,6 @@
 package kvstore;
 
+import static autograder.TestUtils.kTimeoutDefault;
 import static autograder.TestUtils.kTimeoutQuick;
 import static kvstore.KVConstants.*;
 import static org.junit.Assert.*;
@@ -8,9 +9,15 @@ import static org.mockito.Mockito.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.Arrays;
 
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
 import javax.xml.parsers.*;
 
+import kvstore.xml.KVMessageType;
+import kvstore.xml.KVPairType;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 import org.w3c.dom.*;
@@ -133,6 +140,34 @@ public class KVMessageTest {
         assertNotNull(kvm.getValue());
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A put request's optional TTL is parsed, written and validated")
+    public void handlesPutReqTTL() throws KVException {
+        sock = Utils.setupReadFromFile("putreq-ttl.txt");
+        KVMessage kvm = new KVMessage(sock);
+        assertEquals(PUT_REQ, kvm.getMsgType());
+        assertEquals(30000, kvm.getTTL());
+        assertTrue(kvm.toXML().contains("<TTL>30000</TTL>"));
+        assertEquals(30000, new KVMessage(kvm).getTTL());
+
+        sock = Utils.setupReadFromFile("putreq.txt");
+        kvm = new KVMessage(sock);
+        assertEquals(0, kvm.getTTL());
+        assertFalse(kvm.toXML().contains("TTL"));
+
+        KVMessage get = new KVMessage(GET_REQ);
+        get.setKey("key");
+        get.setTTL(1000);
+        try {
+            get.toXML();
+            fail("a get request with a TTL was written");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+        }
+    }
+
     @Test(timeout = kTimeoutQuick)
     @Category(AG_PROJ3_CODE.class)
     @AGTestDetails(points = 1,
@@ -229,8 +264,201 @@ public class KVMessageTest {
         }
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Threads sharing the XML binding must not mix up messages")
+    public void concurrentThreadsRoundTrip() throws Exception {
+        final int numThreads = 8;
+        final int perThread = 200;
+        final Throwable[] failures = new Throwable[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int id = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < perThread; i++) {
+                            KVMessage msg = new KVMessage(PUT_REQ);
+                            msg.setKey("key-" + id + "-" + i);
+                            msg.setValue("value-" + id + "-" + i);
+                            final byte[] xml = msg.toXML().getBytes("UTF-8");
+                            KVMessage parsed = new KVMessage(new Socket() {
+                                @Override
+                                public void setSoTimeout(int timeout) {
+                                }
+
+                                @Override
+                                public InputStream getInputStream() {
+                                    return new ByteArrayInputStream(xml);
+                                }
+                            });
+                            assertEquals(PUT_REQ, parsed.getMsgType());
+                            assertEquals(msg.getKey(), parsed.getKey());
+                            assertEquals(msg.getValue(), parsed.getValue());
+                        }
+                    } catch (Throwable e) {
+                        failures[id] = e;
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (int t = 0; t < numThreads; t++) {
+            threads[t].join();
+            if (failures[t] != null)
+                throw new AssertionError(failures[t]);
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Every example message must parse as the JAXB binding parses it")
+    public void codecMatchesJAXBOnExamples() throws IOException, KVException {
+        File dir = new File(ClassLoader.getSystemResource("getreq.txt").getPath())
+                .getParentFile();
+        File[] files = dir.listFiles();
+        Arrays.sort(files);
+        assertTrue(files.length > 10);
+        for (File file : files) {
+            byte[] bytes = readFile(file);
+            String expected = parseWithJAXB(bytes);
+            KVMessage kvm;
+            try {
+                kvm = new KVMessage(Utils.setupReadFromBytes(bytes));
+            } catch (KVException e) {
+                assertEquals(file.getName(), ERROR_PARSER, e.getKVMessage().getMessage());
+                assertNull(file.getName(), expected);
+                continue;
+            }
+            assertEquals(file.getName(), expected, describe(kvm));
+            // what is valid to send must come back the same
+            String xml;
+            try {
+                xml = kvm.toXML();
+            } catch (KVException e) {
+                continue;
+            }
+            KVMessage again = new KVMessage(Utils.setupReadFromBytes(xml.getBytes("UTF-8")));
+            assertEquals(file.getName(), expected, describe(again));
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Less common XML must parse, or fail, as the JAXB binding did")
+    public void codecMatchesJAXBOnUnusualXML() throws IOException {
+        String decl = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+        String[] docs = {
+            decl + "<!-- hi --><KVMessage type=\"getreq\"><Key>k</Key></KVMessage>",
+            decl + "<KVMessage type=\"getreq\"><Key><![CDATA[a<b]]>&#x43;</Key></KVMessage>",
+            decl + "<!DOCTYPE x [<!ENTITY e \"zz\">]><KVMessage type=\"getreq\"><Key>&e;</Key></KVMessage>",
+            decl + "<KVMessage type=\"putreq\"><Key>a\r\nb</Key><Value>v<b>x</b>w</Value></KVMessage>",
+            decl + "<KVMessage type=\"putreq\"><Key>k</Key><Value>v</Value><TTL>soon</TTL></KVMessage>",
+            decl + "<KVMessage type=\"resp\"><Unknown/><KVPair><Key>a</Key></KVPair></KVMessage>",
+            "<?xml version=\"1.0\" encoding=\"UTF8\"?><KVMessage type=\"getreq\"><Key>k</Key></KVMessage>",
+            decl + "<KVMessage type=\"getreq\"><Key>k</Key></KVMessage>trailing",
+            decl + "<KVMessage type=\"getreq\"><Key>&bogus;</Key></KVMessage>",
+            decl + "<KVMessage type=\"getreq\"><Key>]]></Key></KVMessage>",
+            decl + "<KVStore></KVStore>",
+            decl + "<KVMessage type=\"getreq\"><Key>k</Key>",
+        };
+        for (String doc : docs) {
+            byte[] bytes = doc.getBytes("UTF-8");
+            String expected = parseWithJAXB(bytes);
+            try {
+                KVMessage kvm = new KVMessage(Utils.setupReadFromBytes(bytes));
+                assertEquals(doc, expected, describe(kvm));
+            } catch (KVException e) {
+                assertEquals(doc, ERROR_PARSER, e.getKVMessage().getMessage());
+                assertNull(doc, expected);
+            }
+        }
+        byte[] latin1 = ("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>"
+                + "<KVMessage type=\"getreq\"><Key>caf\u00e9</Key></KVMessage>").getBytes("ISO-8859-1");
+        try {
+            assertEquals("caf\u00e9", new KVMessage(Utils.setupReadFromBytes(latin1)).getKey());
+        } catch (KVException e) {
+            fail("a Latin-1 document was rejected");
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Batch requests carry their keys in pairs, values only for mput")
+    public void batchMessagesRoundTrip() throws Exception {
+        KVMessage mget = new KVMessage(KVConstants.MGET_REQ);
+        mget.addPair("a", null);
+        mget.addPair("b & c", null);
+        KVMessage mput = new KVMessage(KVConstants.MPUT_REQ);
+        mput.addPair("a", "1");
+        mput.addPair("b & c", "<2>");
+        for (KVMessage kvm : new KVMessage[] { mget, mput }) {
+            byte[] bytes = kvm.toXML().getBytes("UTF-8");
+            // the schema lets a KVPair leave out its Value
+            assertEquals(describe(kvm), parseWithJAXB(bytes));
+            assertEquals(describe(kvm), describe(new KVMessage(Utils.setupReadFromBytes(bytes))));
+        }
+
+        KVMessage empty = new KVMessage(KVConstants.MDEL_REQ);
+        KVMessage noValue = new KVMessage(KVConstants.MPUT_REQ);
+        noValue.addPair("a", null);
+        KVMessage noKey = new KVMessage(KVConstants.MGET_REQ);
+        noKey.addPair("", null);
+        for (KVMessage kvm : new KVMessage[] { empty, noValue, noKey }) {
+            try {
+                kvm.toXML();
+                fail("invalid " + kvm.getMsgType() + " was written");
+            } catch (KVException e) {
+                assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+            }
+        }
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
+    private static byte[] readFile(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            in.readFully(bytes);
+            return bytes;
+        } finally {
+            in.close();
+        }
+    }
+
+    /* The fields JAXB reads from bytes as describe shows them, or null. */
+    private static String parseWithJAXB(byte[] bytes) {
+        Object root;
+        try {
+            root = ((JAXBElement<?>) XMLBinding.unmarshaller()
+                    .unmarshal(new ByteArrayInputStream(bytes))).getValue();
+        } catch (JAXBException e) {
+            return null;
+        }
+        if (!(root instanceof KVMessageType))
+            return null;
+        KVMessageType type = (KVMessageType) root;
+        KVMessage kvm = new KVMessage(type.getType(), type.getMessage());
+        kvm.setKey(type.getKey());
+        kvm.setValue(type.getValue());
+        if (type.getTTL() != null)
+            kvm.setTTL(type.getTTL());
+        for (KVPairType pair : type.getKVPair())
+            kvm.addPair(pair.getKey(), pair.getValue());
+        return describe(kvm);
+    }
+
+    private static String describe(KVMessage kvm) {
+        return kvm.getMsgType() + "|" + kvm.getKey() + "|" + kvm.getValue() + "|"
+                + kvm.getMessage() + "|" + kvm.getTTL() + "|" + kvm.getPairs();
+    }
+
     /* Definitely don't make the parse code available to students */
     private static Node parseMessage(KVMessage kvm) throws KVException {
         String out = kvm.toXML();
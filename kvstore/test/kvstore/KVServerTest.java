@@ -9,12 +9,21 @@ import static org.mockito.Matchers.anyInt;
 import static org.mockito.Mockito.*;
 import static org.powermock.api.mockito.PowerMockito.whenNew;
 
+import java.io.File;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.junit.BeforeClass;
@@ -103,6 +112,288 @@ public class KVServerTest {
         assertTrue(map.size() == 0);
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A get that misses the cache fills it from the store")
+    public void testGetFillsCache() throws KVException {
+        setupRealServer();
+        realStore.put("readthrough", "filled");
+        assertNull(realCache.get("readthrough"));
+        assertEquals("filled", server.get("readthrough"));
+        assertEquals("filled", realCache.get("readthrough"));
+        assertEquals("filled", server.get("readthrough"));
+        assertTrue(server.getCacheHitRatio() > 0);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Cache and off-heap store on one allocator share value bytes")
+    public void testSharedOffHeapValues() throws KVException {
+        SlabAllocator slabs = new SlabAllocator(4096);
+        KVCache cache = new KVCache(1, 2, CachePolicy.SECOND_CHANCE, 0, 0, slabs);
+        OffHeapKVStore store = new OffHeapKVStore(slabs);
+        KVServer shared = new KVServer(cache, store, null);
+        shared.put("a", "1111");
+        shared.put("b", "2222");
+        shared.put("a", "3333");
+        assertEquals(8, slabs.getUsedBytes());
+        assertEquals("3333", cache.get("a"));
+
+        // "c" evicts a cached entry, whose bytes stay with the store
+        shared.put("c", "5555");
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertEquals(12, slabs.getUsedBytes());
+        assertEquals("3333", shared.get("a"));
+        assertEquals("2222", shared.get("b"));
+        assertEquals(12, slabs.getUsedBytes());
+
+        shared.del("a");
+        shared.del("b");
+        shared.del("c");
+        assertEquals(0, slabs.getUsedBytes());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Warm-up preloads a snapshot's keys without evicting live ones")
+    public void testWarmUpFromSnapshot() throws Exception {
+        KVStore store = new KVStore();
+        KVCache before = new KVCache(4, 32);
+        for (int i = 0; i < 32; i++) {
+            store.put("key" + i, "old" + i);
+            before.put("key" + i, "old" + i);
+        }
+        File snapshot = File.createTempFile("TestCacheWarmer-", ".xml");
+        snapshot.deleteOnExit();
+        before.dumpToFile(snapshot.getPath());
+        List<String> hotKeys = CacheWarmer.keysFromSnapshot(snapshot.getPath());
+        assertEquals(32, hotKeys.size());
+        store.put("key0", "new0");
+        store.del("key1");
+
+        // values come from the store, and deleted keys are skipped
+        KVCache cache = new KVCache(4, 32);
+        CacheWarmer warmer = new KVServer(cache, store, null).warmUp(hotKeys);
+        assertTrue(warmer.awaitCompletion(5, TimeUnit.SECONDS));
+        assertTrue(warmer.isDone());
+        assertEquals(31, warmer.getWarmedCount());
+        assertEquals("new0", cache.get("key0"));
+        assertEquals("old2", cache.get("key2"));
+        assertNull(cache.get("key1"));
+
+        // a full set keeps what live traffic put there
+        KVCache small = new KVCache(1, 4);
+        KVServer restarted = new KVServer(small, store, null);
+        restarted.put("live", "value");
+        warmer = restarted.warmUp(hotKeys);
+        assertTrue(warmer.awaitCompletion(5, TimeUnit.SECONDS));
+        assertEquals(3, warmer.getWarmedCount());
+        assertEquals(4, small.getCacheSetSize(0));
+        assertEquals("value", small.get("live"));
+        assertEquals(0, CacheWarmer.keysFromSnapshot("no-such-snapshot.xml").size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A frequency summary is ordered hottest first")
+    public void testKeysByFrequency() {
+        Map<String, Long> counts = new HashMap<String, Long>();
+        counts.put("warm", 10L);
+        counts.put("hot", 100L);
+        counts.put("cold", 1L);
+        assertEquals(Arrays.asList("hot", "warm"), CacheWarmer.keysByFrequency(counts, 2));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Server stats report per-set counters, lock waits and hot keys")
+    public void testStats() throws Exception {
+        KVCache cache = new KVCache(1, 4);
+        final KVServer stats = new KVServer(cache, new KVStore(), null);
+        for (int i = 0; i < 4000; i++) {
+            stats.put((i % 2 == 0) ? "hot" : "key" + i, "value");
+            stats.get("hot");
+        }
+        CacheStats snapshot = stats.getStats();
+        assertEquals(4000, snapshot.getTotalHits());
+        assertEquals("hot", snapshot.getHotKeys().keySet().iterator().next());
+
+        // hold the only set's lock so that a get has to wait for it
+        Lock lock = cache.getLock("hot");
+        lock.lock();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    stats.get("key1");
+                } catch (KVException e) {
+                    // not in the store
+                }
+            }
+        };
+        reader.start();
+        Thread.sleep(50);
+        lock.unlock();
+        reader.join();
+        snapshot = stats.getStats();
+        assertEquals(1, snapshot.getLockWaits(0));
+        assertTrue(snapshot.getLockWaitNanos(0) > 0);
+        assertEquals(0, snapshot.getMostContendedSet());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Keys put with a TTL expire from cache and store")
+    public void testKeysExpire() throws Exception {
+        KVCache cache = new KVCache(4, 4);
+        KVStore store = new KVStore();
+        KVServer expiring = new KVServer(cache, store, null);
+        expiring.put("session", "data", 200, TimeUnit.MILLISECONDS);
+        expiring.put("kept", "data", 200, TimeUnit.MILLISECONDS);
+        expiring.put("kept", "forever");
+        expiring.put("short", "data", 1, TimeUnit.MILLISECONDS);
+        assertEquals("data", expiring.get("session"));
+        assertEquals("data", cache.get("session"));
+
+        // the wheel deletes expired keys without them being asked for
+        while (expiring.getExpiredKeys() < 2)
+            Thread.sleep(10);
+        assertNull(cache.get("session"));
+        assertFalse(store.store.containsKey("session"));
+        assertFalse(expiring.hasKey("short"));
+        try {
+            expiring.get("session");
+            fail("get of an expired key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals("forever", expiring.get("kept"));
+
+        try {
+            expiring.put("bad", "ttl", 0, TimeUnit.SECONDS);
+            fail("put with a zero TTL did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_INVALID_TTL, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An expired key is missing as soon as its TTL passes")
+    public void testExpiredKeysMissingOnAccess() throws Exception {
+        KVServer expiring = new KVServer(new KVCache(4, 4), new KVStore(), null);
+        long start = System.nanoTime();
+        expiring.put("a", "1", 50, TimeUnit.MILLISECONDS);
+        expiring.put("b", "2", 50, TimeUnit.MILLISECONDS);
+        expiring.put("c", "3", 1, TimeUnit.HOURS);
+        long end = System.nanoTime();
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(30))
+            assertEquals("1", expiring.get("a"));
+        while (System.nanoTime() - end < TimeUnit.MILLISECONDS.toNanos(50))
+            Thread.yield();
+        // missing from here on, whether or not the wheel has got to them
+        try {
+            expiring.get("a");
+            fail("get of an expired key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            expiring.del("b");
+            fail("del of an expired key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        expiring.del("c");
+        assertEquals(2, expiring.getExpiredKeys());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Batches return per-key results like the single-key requests")
+    public void testBatchResults() throws Exception {
+        KVStore store = new KVStore();
+        KVServer batched = new KVServer(new KVCache(4, 4), store, null);
+        Map<String, String> pairs = new LinkedHashMap<String, String>();
+        for (int i = 0; i < 50; i++)
+            pairs.put("key" + i, "value" + i);
+        batched.mput(pairs);
+        store.put("storeonly", "uncached");
+        batched.put("expiring", "soon", 1, TimeUnit.MILLISECONDS);
+        Thread.sleep(5);
+
+        List<String> keys = Arrays.asList("key7", "missing", "storeonly", "key3",
+                "expiring", "key7");
+        Map<String, String> values = batched.mget(keys);
+        assertEquals(Arrays.asList("key7", "storeonly", "key3"),
+                new ArrayList<String>(values.keySet()));
+        assertEquals("value7", values.get("key7"));
+        assertEquals("uncached", values.get("storeonly"));
+        for (Map.Entry<String, String> pair : pairs.entrySet())
+            assertEquals(pair.getValue(), batched.get(pair.getKey()));
+
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("key7", "storeonly")),
+                batched.mdel(Arrays.asList("key7", "missing", "storeonly", "key7")));
+        assertTrue(batched.mget(Arrays.asList("key7", "storeonly")).isEmpty());
+        assertEquals("value3", batched.get("key3"));
+
+        // a batch with an oversized value writes nothing
+        pairs.clear();
+        pairs.put("fine", "value");
+        pairs.put("huge", new String(new char[256 * 1024 + 1]).replace('\0', 'v'));
+        try {
+            batched.mput(pairs);
+            fail("mput of an oversized value did not throw");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_OVERSIZED_VALUE, e);
+        }
+        assertFalse(batched.hasKey("fine"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ4_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Batches take each set lock once however many keys share it")
+    public void testBatchLocksEachSetOnce() throws Exception {
+        final AtomicInteger locks = new AtomicInteger();
+        KVCache counting = new KVCache(4, 100) {
+            @Override
+            public Lock getLock(String key) {
+                locks.incrementAndGet();
+                return super.getLock(key);
+            }
+        };
+        KVStore store = new KVStore();
+        KVServer batched = new KVServer(counting, store, null);
+        Map<String, String> pairs = new HashMap<String, String>();
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 200; i++) {
+            pairs.put("key" + i, "value" + i);
+            keys.add("key" + i);
+        }
+        batched.mput(pairs);
+        assertTrue(locks.get() <= 4);
+
+        // not cached, so every key is read under its set lock
+        for (String key : keys)
+            counting.del(key);
+        locks.set(0);
+        assertEquals(pairs, batched.mget(keys));
+        assertTrue(locks.get() <= 4);
+
+        locks.set(0);
+        assertEquals(200, batched.mdel(keys).size());
+        assertTrue(locks.get() <= 4);
+    }
+
     @Test(timeout = kTimeoutQuick)
     @Category(AG_PROJ4_CODE.class)
     @AGTestDetails(points = 1, desc = "Test put throws ERROR_OVERSIZED_KEY")
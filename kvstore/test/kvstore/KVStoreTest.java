@@ -13,6 +13,12 @@ import static org.junit.Assert.fail;
 import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -90,4 +96,225 @@ public class KVStoreTest {
             f.delete();
         }
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Streamed XML keeps the JAXB format and escapes markup")
+    public void streamedXMLFormat() throws KVException {
+        store.put("a<b", "x & \"y\"");
+        assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><KVStore><KVPair>"
+                + "<Key>a&lt;b</Key><Value>x &amp; \"y\"</Value>"
+                + "</KVPair></KVStore>", store.toXML());
+        store.put("a<b", "x & \"y\" \u00e9\u4e16");
+
+        String filename = "temp-format.txt";
+        try {
+            store.dumpToFile(filename);
+            store.restoreFromFile(filename);
+            assertEquals("x & \"y\" \u00e9\u4e16", store.get("a<b"));
+        } finally {
+            new File(filename).delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Dumps run concurrently with puts and keep every stable key")
+    public void dumpDuringPuts() throws Exception {
+        for (int i = 0; i < 20000; i++)
+            store.put("stable" + i, "v" + i);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; !stop.get(); i++)
+                    store.put("churn" + (i % 5000), Integer.toString(i));
+            }
+        };
+        writer.start();
+        String filename = "temp-concurrent.txt";
+        try {
+            store.dumpToFile(filename);
+            stop.set(true);
+            writer.join();
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(filename);
+            for (int i = 0; i < 20000; i++)
+                assertEquals("v" + i, restored.get("stable" + i));
+            assertTrue(restored.store.size() <= store.store.size());
+        } finally {
+            stop.set(true);
+            new File(filename).delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A snapshot keeps the values from when it was taken")
+    public void snapshotIsPointInTime() throws KVException {
+        store.put("keep", "1");
+        store.put("change", "2");
+        store.put("remove", "3");
+        StoreSnapshot snapshot = store.snapshot();
+        Map<String, String> expected = new HashMap<String, String>(snapshot);
+
+        store.put("change", "new");
+        store.del("remove");
+        store.put("add", "4");
+        store.put("remove", "back");
+        store.del("remove");
+        try {
+            store.get("remove");
+            fail("get of a deleted key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals("2", snapshot.get("change"));
+        assertEquals("3", snapshot.get("remove"));
+        assertNull(snapshot.get("add"));
+        assertEquals(3, snapshot.size());
+        assertEquals(expected, new HashMap<String, String>(snapshot));
+
+        StoreSnapshot later = store.snapshot();
+        snapshot.close();
+        store.del("add");
+        assertEquals("4", later.get("add"));
+        assertNull(later.get("remove"));
+        later.close();
+        // tombstones go once no snapshot needs them
+        assertEquals(2, store.store.size());
+        try {
+            snapshot.get("keep");
+            fail("read of a closed snapshot did not throw");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An empty value put over a tombstone outlives the snapshot")
+    public void emptyValueOverTombstone() throws KVException {
+        store.put("key", "value");
+        StoreSnapshot snapshot = store.snapshot();
+        store.del("key");
+        store.put("key", "");
+        assertEquals("value", snapshot.get("key"));
+        snapshot.close();
+        assertEquals("", store.get("key"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Snapshots taken during writes are consistent across keys")
+    public void snapshotDuringWrites() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            store.put("stable" + i, "v" + i);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread sequencer = new Thread() {
+            @Override
+            public void run() {
+                // seq0 is always written first, so it leads every other key by at most one
+                for (int i = 0; !stop.get(); i++) {
+                    for (int j = 0; j < 10; j++)
+                        store.put("seq" + j, Integer.toString(i));
+                }
+            }
+        };
+        Thread churner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; !stop.get(); i++) {
+                        store.put("churn" + (i % 100), "x");
+                        store.del("churn" + (i % 100));
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+        sequencer.start();
+        churner.start();
+        try {
+            for (int round = 0; round < 200; round++) {
+                StoreSnapshot snapshot = store.snapshot();
+                try {
+                    Set<String> keys = new HashSet<String>();
+                    Map<String, String> seen = new HashMap<String, String>();
+                    for (Map.Entry<String, String> e : snapshot.entrySet()) {
+                        assertTrue("twice: " + e.getKey(), keys.add(e.getKey()));
+                        seen.put(e.getKey(), e.getValue());
+                    }
+                    for (int i = 0; i < 1000; i++)
+                        assertEquals("v" + i, seen.get("stable" + i));
+                    if (seen.containsKey("seq9")) {
+                        int first = Integer.parseInt(seen.get("seq0"));
+                        int prev = first;
+                        for (int j = 1; j < 10; j++) {
+                            int v = Integer.parseInt(seen.get("seq" + j));
+                            assertTrue(v <= prev && v >= first - 1);
+                            prev = v;
+                        }
+                    }
+                    assertEquals(seen, new HashMap<String, String>(snapshot));
+                } finally {
+                    snapshot.close();
+                }
+            }
+        } finally {
+            stop.set(true);
+            sequencer.join();
+            churner.join();
+        }
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        for (String value : store.store.values())
+            assertTrue(value != KVStore.TOMBSTONE);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A compressing store gives back the values put and counts the savings")
+    public void compressedValues() throws Exception {
+        store = new KVStore(new ValueCompressor(32));
+        String json = "{\"user\":\"alice\",\"roles\":[\"admin\",\"admin\",\"admin\"]}";
+        String marked = ValueCompressor.MARK + "not compressed";
+        store.put("json", json + json + json);
+        store.put("short", "short");
+        store.put("marked", marked);
+        assertEquals(json + json + json, store.get("json"));
+        assertEquals("short", store.get("short"));
+        assertEquals(marked, store.get("marked"));
+        assertTrue(ValueCompressor.isCompressed(store.store.get("json")));
+        assertEquals(2 * (3 * json.length() + 5 + marked.length()), store.getRawBytes());
+        assertTrue(store.getStoredBytes() < store.getRawBytes() / 2);
+
+        StoreSnapshot snapshot = store.snapshot();
+        store.del("json");
+        assertEquals(json + json + json, snapshot.get("json"));
+        assertEquals(3, snapshot.size());
+        snapshot.close();
+        assertEquals(2 * (5 + marked.length()), store.getRawBytes());
+
+        File file = File.createTempFile("TestKVStore-", ".snap");
+        try {
+            store.put("json", json + json);
+            store.dumpToBinaryFile(file.getPath());
+            store.restoreFromFile(file.getPath());
+            assertEquals(json + json, store.get("json"));
+            assertEquals(marked, store.get("marked"));
+            assertTrue(ValueCompressor.isCompressed(store.store.get("json")));
+            assertEquals(2 * (2 * json.length() + 5 + marked.length()), store.getRawBytes());
+        } finally {
+            file.delete();
+        }
+    }
 }
@@ -0,0 +1,219 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class LSMKVStoreTest {
+
+    File dir;
+    LSMKVStore store;
+
+    @Before
+    public void setupStore() throws IOException {
+        dir = Files.createTempDirectory("TestLSMKVStore-").toFile();
+        store = new LSMKVStore(dir.getPath(), 16 * 1024, false);
+    }
+
+    @After
+    public void removeStore() throws IOException {
+        store.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify put, overwrite, get and delete across memtable and tables")
+    public void putGetDel() throws Exception {
+        store.put("a", "1");
+        store.put("b", "2");
+        store.flush();
+        assertEquals(1, store.getTableCount(0));
+        store.put("a", "\u65b0");
+        store.del("b");
+        assertEquals("\u65b0", store.get("a"));
+        assertMissing("b");
+        store.flush();
+        assertEquals("\u65b0", store.get("a"));
+        assertMissing("b");
+        assertMissing("c");
+        try {
+            store.del("b");
+            fail("del of a deleted key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.put("b", "");
+        assertEquals("", store.get("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An interrupted get fails without breaking later reads of the table")
+    public void interruptedGet() throws Exception {
+        store.put("key", "value");
+        store.flush();
+        Thread.currentThread().interrupt();
+        try {
+            store.get("key");
+            fail("interrupted get did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_STORAGE, e.getKVMessage().getMessage());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals("value", store.get("key"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Tables and unflushed writes are recovered on reopen")
+    public void recoversOnReopen() throws Exception {
+        for (int i = 0; i < 2000; i++)
+            store.put("key" + i, "value" + i);
+        store.flush();
+        store.put("key5", "changed");
+        store.del("key6");
+        store.put("late", "write");
+        store.close();
+
+        store = new LSMKVStore(dir.getPath(), 16 * 1024, false);
+        assertEquals("changed", store.get("key5"));
+        assertMissing("key6");
+        assertEquals("write", store.get("late"));
+        assertEquals("value1999", store.get("key1999"));
+        // only the tables and the new memtable's log are left
+        for (File f : dir.listFiles())
+            assertTrue(f.getName(), !f.getName().endsWith(".wal")
+                    || f.length() == 0);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Lookups of missing keys are mostly answered by Bloom filters")
+    public void bloomFiltersSkipMissingKeys() throws Exception {
+        for (int t = 0; t < 3; t++) {
+            for (int i = 0; i < 500; i++)
+                store.put("key" + t + "-" + i, "value");
+            store.flush();
+        }
+        long reads = store.getTableReads();
+        for (int i = 0; i < 1000; i++)
+            assertMissing("key1-" + i + "x");
+        // the keys fall within only the middle table's range, and at 10
+        // bits per key its filter lets about 1% of them through to disk
+        assertTrue(store.getBloomSkips() > 900);
+        assertTrue("table reads: " + (store.getTableReads() - reads),
+                store.getTableReads() - reads < 100);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Compaction keeps the newest value of every key and drops deletes")
+    public void compactionKeepsNewestValues() throws Exception {
+        Map<String, String> expected = new HashMap<String, String>();
+        Random rand = new Random(7);
+        for (int i = 0; i < 20000; i++) {
+            String key = "key" + rand.nextInt(3000);
+            if (expected.containsKey(key) && rand.nextInt(4) == 0) {
+                store.del(key);
+                expected.remove(key);
+            } else {
+                String value = "value" + i;
+                store.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        store.flush();
+        store.awaitBackgroundWork();
+        assertTrue(store.getTableCount(0) < LSMKVStore.L0_COMPACTION_TRIGGER);
+        assertTrue(store.getTableCount(1) > 0);
+        for (int i = 0; i < 3000; i++) {
+            String key = "key" + i;
+            if (expected.containsKey(key))
+                assertEquals(expected.get(key), store.get(key));
+            else
+                assertMissing(key);
+        }
+
+        store.close();
+        store = new LSMKVStore(dir.getPath(), 16 * 1024, false);
+        for (Map.Entry<String, String> e : expected.entrySet())
+            assertEquals(e.getValue(), store.get(e.getKey()));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Gets stay correct while flushes and compactions replace tables")
+    public void readsDuringCompaction() throws Exception {
+        for (int i = 0; i < 1000; i++)
+            store.put("stable" + i, "value" + i);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random();
+                    try {
+                        while (!done.get()) {
+                            int i = rand.nextInt(1000);
+                            assertEquals("value" + i, store.get("stable" + i));
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        for (int i = 0; i < 20000; i++)
+            store.put("churn" + (i % 2000), "value" + i);
+        store.flush();
+        store.awaitBackgroundWork();
+        done.set(true);
+        for (Thread t : readers)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+    }
+
+    private void assertMissing(String key) {
+        try {
+            store.get(key);
+            fail("get of missing key " + key + " did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class LogKVStoreTest {
+
+    File dir;
+    LogKVStore store;
+
+    @Before
+    public void setupStore() throws IOException {
+        dir = Files.createTempDirectory("TestLogKVStore-").toFile();
+        store = new LogKVStore(dir.getPath(), 4096, false);
+    }
+
+    @After
+    public void removeStore() throws IOException {
+        store.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify put, overwrite, get and delete")
+    public void putGetDel() throws KVException {
+        store.put("key", "value");
+        assertEquals("value", store.get("key"));
+        store.put("key", "\u65b0\u3057\u3044");
+        assertEquals("\u65b0\u3057\u3044", store.get("key"));
+        store.put("empty", "");
+        assertEquals("", store.get("empty"));
+        store.del("key");
+        assertEquals(1, store.size());
+        try {
+            store.get("key");
+            fail("get of a deleted key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            store.del("key");
+            fail("del of a missing key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Reopening the directory recovers the last value of every key")
+    public void recoversAfterReopen() throws Exception {
+        Map<String, String> model = randomOps(store, 2000, 11);
+        store.close();
+        store = new LogKVStore(dir.getPath(), 4096, false);
+        assertMatches(model);
+        assertTrue(dir.listFiles().length > 2);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A torn record at the end of the log is dropped on recovery")
+    public void truncatesTornTail() throws Exception {
+        store.put("a", "1");
+        store.put("b", "2");
+        store.close();
+        File[] logs = dir.listFiles();
+        File last = logs[0];
+        for (File f : logs) {
+            if (f.getName().compareTo(last.getName()) > 0)
+                last = f;
+        }
+        long goodLength = last.length();
+        RandomAccessFile raf = new RandomAccessFile(last, "rw");
+        raf.setLength(goodLength - 1);
+        raf.close();
+
+        store = new LogKVStore(dir.getPath(), 4096, false);
+        assertEquals("1", store.get("a"));
+        try {
+            store.get("b");
+            fail("torn record was recovered");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        store.put("b", "3");
+        store.close();
+        store = new LogKVStore(dir.getPath(), 4096, false);
+        assertEquals("3", store.get("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "An interrupted get fails without breaking later reads and writes")
+    public void interruptedGet() throws KVException {
+        store.put("key", "value");
+        Thread.currentThread().interrupt();
+        try {
+            store.get("key");
+            fail("interrupted get did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_STORAGE, e.getKVMessage().getMessage());
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals("value", store.get("key"));
+        store.put("other", "value");
+        assertEquals("value", store.get("other"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Compaction drops dead records and keeps every live value")
+    public void compactionReclaimsSpace() throws Exception {
+        Map<String, String> model = randomOps(store, 5000, 12);
+        store.compact();
+        assertEquals(0, store.getDeadBytes());
+        assertMatches(model);
+        store.close();
+        store = new LogKVStore(dir.getPath(), 4096, false);
+        assertMatches(model);
+        assertEquals(0, store.getDeadBytes());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Reads stay correct while compaction moves records")
+    public void readsDuringCompaction() throws Exception {
+        final Map<String, String> model = randomOps(store, 3000, 13);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (!stop.get()) {
+                        for (Map.Entry<String, String> e : model.entrySet())
+                            assertEquals(e.getValue(), store.get(e.getKey()));
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        };
+        reader.start();
+        for (int i = 0; i < 5; i++) {
+            store.put("churn", Integer.toString(i));
+            store.compact();
+        }
+        stop.set(true);
+        reader.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Background compaction runs on one thread that close stops")
+    public void compactsInBackground() throws Exception {
+        int compactors = compactorThreads();
+        for (int i = 0; i < 2000; i++)
+            store.put("churn", "value " + i);
+        assertEquals(compactors, compactorThreads());
+        // 2000 overwrites fill dozens of 4 KiB files without it
+        while (store.getDiskBytes() > 4 * 4096)
+            Thread.sleep(10);
+        assertEquals("value 1999", store.get("churn"));
+        store.close();
+        assertEquals(compactors - 1, compactorThreads());
+    }
+
+    private static int compactorThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("log-compactor"))
+                n++;
+        }
+        return n;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A KVServer can cache in front of a LogKVStore")
+    public void servesThroughKVServer() throws KVException {
+        KVServer server = new KVServer(new KVCache(2, 2), store, null);
+        for (int i = 0; i < 20; i++)
+            server.put("key" + i, "value" + i);
+        for (int i = 0; i < 20; i++)
+            assertEquals("value" + i, server.get("key" + i));
+        server.del("key3");
+        assertTrue(!server.hasKey("key3"));
+    }
+
+    private static Map<String, String> randomOps(LogKVStore store, int n, long seed)
+            throws KVException {
+        Map<String, String> model = new HashMap<String, String>();
+        Random rand = new Random(seed);
+        for (int i = 0; i < n; i++) {
+            String key = "k" + rand.nextInt(200);
+            if (rand.nextInt(5) == 0) {
+                if (model.remove(key) != null)
+                    store.del(key);
+            } else {
+                String value = Long.toString(rand.nextLong(), 36);
+                model.put(key, value);
+                store.put(key, value);
+            }
+        }
+        return model;
+    }
+
+    private void assertMatches(Map<String, String> model) throws KVException {
+        assertEquals(model.size(), store.size());
+        for (Map.Entry<String, String> e : model.entrySet())
+            assertEquals(e.getValue(), store.get(e.getKey()));
+    }
+}
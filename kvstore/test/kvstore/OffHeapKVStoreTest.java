@@ -0,0 +1,201 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class OffHeapKVStoreTest {
+
+    SlabAllocator slabs;
+    OffHeapKVStore store;
+
+    @Before
+    public void setupStore() {
+        slabs = new SlabAllocator(4096);
+        store = new OffHeapKVStore(slabs);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Verify put, overwrite, get and delete")
+    public void putGetDel() throws KVException {
+        store.put("key", "value");
+        assertEquals("value", store.get("key"));
+        store.put("key", "\u65b0\u3057\u3044");
+        assertEquals("\u65b0\u3057\u3044", store.get("key"));
+        store.del("key");
+        assertEquals(0, store.size());
+        assertEquals(0, slabs.getUsedBytes());
+        try {
+            store.get("key");
+            fail("get of a deleted key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        try {
+            store.del("key");
+            fail("del of a missing key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Freed chunks are reused and stale handles read as null")
+    public void staleHandles() {
+        long first = slabs.storeString("first");
+        slabs.free(first);
+        assertNull(slabs.readString(first));
+        long second = slabs.storeString("second");
+        assertNull(slabs.readString(first));
+        assertEquals("second", slabs.readString(second));
+        // both fit the smallest class, so the chunk was reused
+        assertEquals(4096, slabs.getReservedBytes());
+        slabs.free(first);
+        assertEquals("second", slabs.readString(second));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A chunk is only freed when its last reference is")
+    public void sharedReferences() throws KVException {
+        store.put("key", "value");
+        long handle = store.retain("key");
+        assertEquals(5, slabs.length(handle));
+        store.del("key");
+        assertEquals("value", slabs.readString(handle));
+        assertEquals(5, slabs.getUsedBytes());
+        slabs.free(handle);
+        assertNull(slabs.readString(handle));
+        assertEquals(-1, slabs.length(handle));
+        assertFalse(slabs.retain(handle));
+        assertEquals(0, slabs.getUsedBytes());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Values larger than a slab are rejected")
+    public void valueTooLarge() {
+        try {
+            slabs.store(new byte[4096]);
+            fail("oversized value was stored");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, slabs.getUsedBytes());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Lock-free reads never see a chunk that was freed and reused")
+    public void readsDuringReuse() throws Exception {
+        final String stable = "stable value";
+        final long stableHandle = slabs.storeString(stable);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final List<AtomicReference<Object[]>> slots = new ArrayList<AtomicReference<Object[]>>();
+        Thread[] threads = new Thread[6];
+        for (int t = 0; t < 2; t++) {
+            final AtomicReference<Object[]> slot = new AtomicReference<Object[]>(
+                    new Object[] { slabs.storeString("churn"), "churn" });
+            slots.add(slot);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    // every value fits the smallest class, so chunks are reused at once
+                    for (int i = 1; !stop.get(); i++) {
+                        String value = i + " " + "abcdefghijklmnopqrstuvwxyz".substring(i % 26);
+                        Object[] old = slot.getAndSet(
+                                new Object[] { slabs.storeString(value), value });
+                        slabs.free((Long) old[0]);
+                    }
+                }
+            };
+        }
+        for (int t = 2; t < threads.length; t++) {
+            final AtomicReference<Object[]> slot = slots.get(t % 2);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            assertEquals(stable, slabs.readString(stableHandle));
+                            Object[] pair = slot.get();
+                            String value = slabs.readString((Long) pair[0]);
+                            if (value != null)
+                                assertEquals(pair[1], value);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+        }
+        for (Thread t : threads)
+            t.start();
+        Thread.sleep(1000);
+        stop.set(true);
+        for (Thread t : threads)
+            t.join();
+        if (error.get() != null)
+            throw new AssertionError(error.get());
+        assertEquals(4096, slabs.getReservedBytes());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Random puts and deletes match a HashMap")
+    public void matchesMapModel() throws KVException {
+        Map<String, String> model = new HashMap<String, String>();
+        Random rand = new Random(6);
+        for (int i = 0; i < 20000; i++) {
+            String key = "k" + rand.nextInt(100);
+            if (rand.nextInt(4) == 0) {
+                if (model.remove(key) != null)
+                    store.del(key);
+            } else {
+                char[] chars = new char[rand.nextInt(1000)];
+                for (int j = 0; j < chars.length; j++)
+                    chars[j] = (char) ('a' + rand.nextInt(26));
+                String value = new String(chars);
+                model.put(key, value);
+                store.put(key, value);
+            }
+        }
+        long used = 0;
+        for (Map.Entry<String, String> e : model.entrySet()) {
+            assertEquals(e.getValue(), store.get(e.getKey()));
+            used += e.getValue().length();
+        }
+        assertEquals(model.size(), store.size());
+        assertEquals(used, slabs.getUsedBytes());
+        assertTrue(slabs.getReservedBytes() < 100 * 4096);
+    }
+}
@@ -0,0 +1,137 @@
+package kvstore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Times gets and puts over loopback in each WireProtocol, and gets
+ * pipelined over a KVConnection, for a small and a large value, and counts
+ * the bytes each put request puts on the wire. Not a unit test; run it by
+ * hand:
+ *
+ *   java kvstore.ProtocolBenchmark [requests]
+ */
+public class ProtocolBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        final SocketServer ss = new SocketServer("127.0.0.1", 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(16, 64), 4));
+        ss.connect();
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        int port = ss.server.getLocalPort();
+
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 64 * 1024)
+            large.append("<item id=\"").append(large.length()).append("\">a &amp; b</item>");
+        String[] values = { "{\"userId\":1234,\"locale\":\"en_US\"}", large.toString() };
+        try {
+            // the first round only warms up the JIT
+            for (int round = 0; round < 2; round++) {
+                for (String value : values) {
+                    for (WireProtocol protocol : WireProtocol.values()) {
+                        KVClient client = new KVClient("127.0.0.1", port, protocol);
+                        long put = time(client, "put", value, n);
+                        long get = time(client, "get", value, n);
+                        client.close();
+                        if (round == 1)
+                            System.out.println(String.format(
+                                    "%-10s %6d byte value  put %7.1f us  get %7.1f us  %7d bytes/put",
+                                    protocol, value.length(), put / 1e3 / n, get / 1e3 / n,
+                                    putBytes(protocol, value)));
+                    }
+                    long pipelined = pipelinedGets(port, value, n);
+                    if (round == 1)
+                        System.out.println(String.format(
+                                "%-10s %6d byte value                get %7.1f us",
+                                "PIPELINED", value.length(), pipelined / 1e3 / n));
+                }
+            }
+        } finally {
+            ss.stop();
+        }
+        // the handler's pool threads would keep the JVM alive
+        System.exit(0);
+    }
+
+    static long time(KVClient client, String op, String value, int n) throws KVException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            String key = "key" + (i % 100);
+            if (op.equals("put")) {
+                client.put(key, value);
+            } else if (!value.equals(client.get(key))) {
+                throw new IllegalStateException("wrong value for " + key);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long pipelinedGets(int port, String value, int n) throws KVException {
+        KVConnection conn = new KVConnection("127.0.0.1", port);
+        List<KVMessage> requests = new ArrayList<KVMessage>(n);
+        for (int i = 0; i < n; i++) {
+            KVMessage req = new KVMessage(KVConstants.GET_REQ);
+            req.setKey("key" + (i % 100));
+            requests.add(req);
+        }
+        long start = System.nanoTime();
+        for (KVMessage resp : conn.pipeline(requests)) {
+            if (!value.equals(resp.getValue()))
+                throw new IllegalStateException("wrong value");
+        }
+        long nanos = System.nanoTime() - start;
+        conn.close();
+        return nanos;
+    }
+
+    /* What one put request of value sends, counted by a socket that sends nothing. */
+    static long putBytes(WireProtocol protocol, String value) throws KVException {
+        final long[] count = new long[1];
+        final OutputStream counter = new OutputStream() {
+            @Override
+            public void write(int b) {
+                count[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                count[0] += len;
+            }
+        };
+        Socket sock = new Socket() {
+            @Override
+            public OutputStream getOutputStream() {
+                return counter;
+            }
+
+            @Override
+            public void shutdownOutput() {
+            }
+        };
+        KVMessage req = new KVMessage(KVConstants.PUT_REQ);
+        req.setKey("key0");
+        req.setValue(value);
+        if (protocol == WireProtocol.PERSISTENT)
+            return BinaryProtocol.taggedRequest(0, req).capacity();
+        else if (protocol == WireProtocol.BINARY)
+            BinaryProtocol.sendRequest(sock, req);
+        else
+            req.sendMessage(sock);
+        return count[0];
+    }
+}
@@ -0,0 +1,131 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the SetHash mappings of KVCache on sequential and adversarial
+ * key sets. For each it reports how evenly the keys spread over the sets
+ * (coefficient of variation and fullest set, relative to the mean), the
+ * cost of picking a set, and how often concurrent puts through a KVServer
+ * had to wait for a set lock. Not a unit test; run it by hand:
+ *
+ *   java kvstore.SetHashBenchmark [numSets [threads]]
+ */
+public class SetHashBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int numSets = (args.length > 0) ? Integer.parseInt(args[0]) : 64;
+        int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+
+        List<List<String>> keySets = new ArrayList<List<String>>();
+        List<String> names = new ArrayList<String>();
+        names.add("sequential");
+        keySets.add(sequentialKeys(65536));
+        names.add("hashCode collisions");
+        keySets.add(collidingKeys(16));
+        names.add(String.format("hashCode %% %d == 0", numSets));
+        keySets.add(strideKeys(16384, numSets, 162));
+
+        System.out.println(String.format("%d sets, %d threads", numSets, threads));
+        for (int k = 0; k < keySets.size(); k++) {
+            System.out.println(names.get(k) + ", " + keySets.get(k).size() + " keys:");
+            for (SetHash hash : SetHash.values())
+                report(hash, keySets.get(k), numSets, threads);
+        }
+    }
+
+    static void report(SetHash hash, List<String> keys, int numSets, int threads)
+            throws InterruptedException {
+        KVCache cache = new KVCache(numSets, Integer.MAX_VALUE / numSets,
+                CachePolicy.SECOND_CHANCE, hash);
+        long[] occupancy = new long[numSets];
+        for (String key : keys)
+            occupancy[cache.getCacheSetForKey(key)]++;
+        double mean = (double) keys.size() / numSets;
+        double var = 0;
+        long max = 0;
+        for (long n : occupancy) {
+            var += (n - mean) * (n - mean);
+            max = Math.max(max, n);
+        }
+        double cv = Math.sqrt(var / numSets) / mean;
+
+        // warm up the JIT, then time set selection alone
+        int sink = 0;
+        for (int r = 0; r < 5; r++) {
+            for (String key : keys)
+                sink += cache.getCacheSetForKey(key);
+        }
+        long start = System.nanoTime();
+        for (int r = 0; r < 10; r++) {
+            for (String key : keys)
+                sink += cache.getCacheSetForKey(key);
+        }
+        double nsPerKey = (double) (System.nanoTime() - start) / (10L * keys.size());
+
+        CacheStats stats = contend(cache, keys, threads);
+        System.out.println(String.format(
+                "  %-8s cv %.3f  max/mean %5.2f  %5.1f ns/key  lock waits %6d (%.1f ms)%s",
+                hash, cv, max / mean, nsPerKey, stats.getTotalLockWaits(),
+                stats.getTotalLockWaitNanos() / 1e6, (sink == 42) ? " " : ""));
+    }
+
+    /* Puts random keys of the set from several threads at once. */
+    static CacheStats contend(KVCache cache, final List<String> keys, int threads)
+            throws InterruptedException {
+        final KVServer server = new KVServer(cache, new KVStore(), null);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final Random rand = new Random(t);
+            workers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 200000; i++)
+                            server.put(keys.get(rand.nextInt(keys.size())), "v");
+                    } catch (KVException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+        for (Thread w : workers)
+            w.start();
+        for (Thread w : workers)
+            w.join();
+        return server.getStats();
+    }
+
+    static List<String> sequentialKeys(int n) {
+        List<String> keys = new ArrayList<String>(n);
+        for (int i = 0; i < n; i++)
+            keys.add(String.format("user:%06d", i));
+        return keys;
+    }
+
+    /* "Aa" and "BB" have the same hashCode, so all 2^blocks strings do */
+    static List<String> collidingKeys(int blocks) {
+        List<String> keys = new ArrayList<String>(1 << blocks);
+        for (int i = 0; i < (1 << blocks); i++) {
+            StringBuilder sb = new StringBuilder(2 * blocks);
+            for (int b = 0; b < blocks; b++)
+                sb.append(((i >>> b) & 1) == 0 ? "Aa" : "BB");
+            keys.add(sb.toString());
+        }
+        return keys;
+    }
+
+    /* Random keys whose hashCodes all fall in set 0 under MODULO */
+    static List<String> strideKeys(int n, int numSets, long seed) {
+        Random rand = new Random(seed);
+        List<String> keys = new ArrayList<String>(n);
+        while (keys.size() < n) {
+            String key = "k" + Long.toHexString(rand.nextLong());
+            if (key.hashCode() % numSets == 0)
+                keys.add(key);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,53 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Times dumping and restoring a KVStore of n keys as XML and as a
+ * BinarySnapshot, the restart cost of a server that persists its store.
+ * Not a unit test; run it by hand, with a heap big enough for the store:
+ *
+ *   java -Xmx8g kvstore.SnapshotBenchmark [numKeys [xmlKeys]]
+ *
+ * The XML path is only timed up to xmlKeys keys (default 1M), as its
+ * restore holds the whole document tree in memory.
+ */
+public class SnapshotBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int numKeys = (args.length > 0) ? Integer.parseInt(args[0]) : 10000000;
+        int xmlKeys = (args.length > 1) ? Integer.parseInt(args[1]) : 1000000;
+        File file = File.createTempFile("SnapshotBenchmark-", ".snap");
+        try {
+            if (xmlKeys > 0)
+                report("xml", fill(Math.min(numKeys, xmlKeys)), file, false);
+            report("binary", fill(numKeys), file, true);
+        } finally {
+            file.delete();
+        }
+    }
+
+    static KVStore fill(int n) {
+        KVStore store = new KVStore();
+        for (int i = 0; i < n; i++)
+            store.put(String.format("user:%08d", i), "value-" + Integer.toHexString(i * 31));
+        return store;
+    }
+
+    static void report(String name, KVStore store, File file, boolean binary) {
+        int n = store.store.size();
+        long start = System.nanoTime();
+        if (binary)
+            store.dumpToBinaryFile(file.getPath());
+        else
+            store.dumpToFile(file.getPath());
+        long dumped = System.nanoTime();
+        store.restoreFromFile(file.getPath());
+        long restored = System.nanoTime();
+        if (store.store.size() != n)
+            throw new IllegalStateException(name + " restored " + store.store.size() + " of " + n);
+        System.out.println(String.format("%-7s %9d keys  %7.1f MB  dump %7.0f ms  restore %7.0f ms",
+                name, n, file.length() / 1e6, (dumped - start) / 1e6, (restored - dumped) / 1e6));
+    }
+}
@@ -0,0 +1,170 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_SCAN_UNSUPPORTED;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class SortedKVStoreTest {
+
+    SortedKVStore store;
+
+    @Before
+    public void setupStore() {
+        store = new SortedKVStore();
+        for (int t = 40; t < 45; t++) {
+            for (int i = 0; i < 20; i++)
+                store.put(String.format("tenant%d:%02d", t, i), "v" + t + "-" + i);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Scans include the start key, exclude the end key and run in order")
+    public void scanRanges() {
+        List<String> keys = keys(store.scan("tenant42:", "tenant42;"));
+        assertEquals(20, keys.size());
+        assertEquals("tenant42:00", keys.get(0));
+        assertEquals("tenant42:19", keys.get(19));
+
+        keys = keys(store.scan("tenant42:05", "tenant42:08"));
+        assertEquals("[tenant42:05, tenant42:06, tenant42:07]", keys.toString());
+        assertEquals(100, keys(store.scan(null, null)).size());
+        assertEquals(20, keys(store.scan(null, "tenant41")).size());
+        assertEquals(20, keys(store.scan("tenant44", null)).size());
+        assertTrue(keys(store.scan("tenant43", "tenant42")).isEmpty());
+        assertTrue(keys(store.scan("x", null)).isEmpty());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A scan keeps going, in order, while other threads write")
+    public void scanDuringWrites() throws Exception {
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; !stop.get(); i++) {
+                    String key = String.format("tenant42:%02d-%d", i % 20, i % 7);
+                    store.put(key, "churn");
+                    try {
+                        store.del(key);
+                    } catch (KVException e) {
+                        // cannot happen; only this thread writes the key
+                    }
+                }
+            }
+        };
+        writer.start();
+        try {
+            for (int r = 0; r < 200; r++) {
+                List<String> keys = keys(store.scan("tenant42:", "tenant42;"));
+                int stable = 0;
+                for (int i = 0; i < keys.size(); i++) {
+                    if (i > 0)
+                        assertTrue(keys.get(i - 1).compareTo(keys.get(i)) < 0);
+                    if (keys.get(i).length() == "tenant42:00".length())
+                        stable++;
+                }
+                assertEquals(20, stable);
+            }
+        } finally {
+            stop.set(true);
+            writer.join();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "KVServer scans honour the limit and need a sorted store")
+    public void serverScan() throws KVException {
+        KVServer server = new KVServer(new KVCache(4, 4), store, null);
+        server.put("tenant42:99", "new");
+        List<String> keys = keys(server.scan("tenant42:", null, 5));
+        assertEquals(5, keys.size());
+        assertEquals(21, keys(server.scan("tenant42:", "tenant42;", 1000)).size());
+        assertTrue(keys(server.scan(null, null, 0)).isEmpty());
+
+        try {
+            new KVServer(2, 2).scan(null, null, 10);
+            fail("scan of an unsorted store did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_SCAN_UNSUPPORTED, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A client scan pages through a range over the network")
+    public void scanOverSocket() throws Exception {
+        store.put("tenant42:<&>", "a & \"b\"");
+        final SocketServer ss = new SocketServer("127.0.0.1", 0);
+        ss.addHandler(new ServerClientHandler(new KVServer(new KVCache(4, 4), store, null), 2));
+        ss.connect();
+        // not a ServerRunner, which exits the JVM when stop closes the socket
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            KVClient client = new KVClient("127.0.0.1", ss.server.getLocalPort());
+            ScanCursor cursor = client.scan("tenant42:", "tenant42;", 1000, 7);
+            List<String> keys = new ArrayList<String>();
+            while (cursor.hasNext()) {
+                Map.Entry<String, String> e = cursor.next();
+                keys.add(e.getKey());
+                assertEquals(store.get(e.getKey()), e.getValue());
+            }
+            assertEquals(21, keys.size());
+            assertEquals("tenant42:00", keys.get(0));
+            assertEquals("tenant42:<&>", keys.get(20));
+
+            cursor = client.scan(null, null, 10, 3);
+            int n = 0;
+            while (cursor.hasNext()) {
+                cursor.next();
+                n++;
+            }
+            assertEquals(10, n);
+            assertTrue(client.scanPage(null, null, 3).getKey() != null);
+            assertTrue(client.scanPage("x", null, 3).getPairs().isEmpty());
+        } finally {
+            ss.stop();
+        }
+    }
+
+    private static List<String> keys(Iterator<Map.Entry<String, String>> it) {
+        List<String> keys = new ArrayList<String>();
+        while (it.hasNext())
+            keys.add(it.next().getKey());
+        return keys;
+    }
+}
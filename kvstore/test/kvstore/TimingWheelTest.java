@@ -0,0 +1,89 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TimingWheelTest {
+
+    TimingWheel wheel;
+
+    @Before
+    public void setupWheel() {
+        wheel = new TimingWheel(100, TimeUnit.MICROSECONDS);
+    }
+
+    @After
+    public void closeWheel() {
+        wheel.close();
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Timers on every level fire after their delay, never before")
+    public void firesNoEarlierThanDelay() throws Exception {
+        // 100us ticks: 1ms stays on level 0, 20ms and 500ms are cascaded
+        long[] delays = { 1, 20, 500 };
+        final CountDownLatch fired = new CountDownLatch(delays.length);
+        final AtomicInteger early = new AtomicInteger();
+        for (final long delay : delays) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+            wheel.schedule(new TimingWheel.Timer() {
+                @Override
+                void expire() {
+                    if (System.nanoTime() - deadline < 0)
+                        early.incrementAndGet();
+                    fired.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(5, TimeUnit.SECONDS));
+        assertEquals(0, early.get());
+        assertEquals(0, wheel.size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Cancelled timers never fire and can be scheduled again")
+    public void cancelledTimersDoNotFire() throws Exception {
+        final AtomicInteger fired = new AtomicInteger();
+        TimingWheel.Timer[] timers = new TimingWheel.Timer[1000];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = new TimingWheel.Timer() {
+                @Override
+                void expire() {
+                    fired.incrementAndGet();
+                }
+            };
+            wheel.schedule(timers[i], 200 + i % 50, TimeUnit.MILLISECONDS);
+        }
+        for (int i = 0; i < timers.length; i += 2)
+            assertTrue(wheel.cancel(timers[i]));
+        assertFalse(wheel.cancel(timers[0]));
+        assertEquals(500, wheel.size());
+        wheel.schedule(timers[0], 1, TimeUnit.MILLISECONDS);
+        // size drops as timers are taken off the wheel, before they fire
+        while (fired.get() < 501)
+            Thread.sleep(5);
+        Thread.sleep(20);
+        assertEquals(501, fired.get());
+        assertEquals(0, wheel.size());
+        assertFalse(wheel.cancel(timers[1]));
+    }
+}
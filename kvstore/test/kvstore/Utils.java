@@ -124,4 +124,15 @@ public class Utils {
         return sock;
     }
 
+    static Socket setupReadFromBytes(byte[] bytes) {
+        Socket sock = mock(Socket.class);
+        try {
+            doNothing().when(sock).setSoTimeout(anyInt());
+            when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(bytes));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return sock;
+    }
+
 }
@@ -0,0 +1,83 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class ValueCompressorTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Values of every length and alphabet decode to themselves")
+    public void roundTrips() {
+        ValueCompressor compressor = new ValueCompressor(16);
+        Random rand = new Random(3);
+        String alphabet = "ab{}\":,\u00e9\u65b0" + ValueCompressor.MARK;
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder sb = new StringBuilder();
+            int len = rand.nextInt(300);
+            for (int k = 0; k < len; k++)
+                sb.append(alphabet.charAt(rand.nextInt(rand.nextBoolean() ? 3 : alphabet.length())));
+            String value = sb.toString();
+            String stored = compressor.encode(value);
+            assertEquals(value, compressor.decode(stored));
+            assertEquals(value.length(), ValueCompressor.decodedLength(stored));
+        }
+        assertTrue(compressor.getCompressedValues() > 0);
+        assertTrue(compressor.getOutputBytes() < compressor.getInputBytes());
+
+        // short or incompressible values are kept as they are
+        assertSame("short", compressor.encode("short"));
+        String noise = "q7#Lm2!xZ0^pW9&rT4";
+        assertSame(noise, compressor.encode(noise));
+        assertFalse(ValueCompressor.isCompressed(compressor.encode(ValueCompressor.MARK + "x")));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A trained dictionary shrinks small, similar values further")
+    public void dictionaryImprovesRatio() {
+        List<String> samples = new ArrayList<String>();
+        for (int i = 0; i < 500; i++)
+            samples.add(session(i));
+        byte[] dictionary = ValueCompressor.trainDictionary(samples, 4096);
+        assertTrue(dictionary.length > 0 && dictionary.length <= 4096);
+
+        ValueCompressor plain = new ValueCompressor(32);
+        ValueCompressor trained = new ValueCompressor(32, dictionary);
+        int plainChars = 0, trainedChars = 0;
+        for (int i = 1000; i < 1200; i++) {
+            String value = session(i);
+            String withDictionary = trained.encode(value);
+            assertEquals(value, trained.decode(withDictionary));
+            plainChars += plain.encode(value).length();
+            trainedChars += withDictionary.length();
+        }
+        assertTrue(plainChars + " vs " + trainedChars, trainedChars < plainChars * 2 / 3);
+    }
+
+    static String session(int i) {
+        Random rand = new Random(i);
+        return "{\"sessionId\":\"" + Long.toHexString(rand.nextLong())
+                + "\",\"userId\":" + rand.nextInt(100000)
+                + ",\"createdAt\":\"2014-05-" + (10 + rand.nextInt(20)) + "T12:00:00Z\""
+                + ",\"locale\":\"" + (rand.nextBoolean() ? "en_US" : "de_DE") + "\""
+                + ",\"cart\":{\"items\":" + rand.nextInt(10) + ",\"currency\":\"USD\"}"
+                + ",\"flags\":{\"beta\":" + rand.nextBoolean() + ",\"admin\":false}}";
+    }
+}
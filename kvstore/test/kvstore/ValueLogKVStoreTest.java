@@ -0,0 +1,176 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class ValueLogKVStoreTest {
+
+    File dir;
+    ValueLogKVStore store;
+
+    @Before
+    public void setupStore() throws IOException {
+        dir = Files.createTempDirectory("TestValueLogKVStore-").toFile();
+        store = new ValueLogKVStore(dir.getPath(), 1024, 64 * 1024);
+    }
+
+    @After
+    public void removeStore() throws IOException {
+        store.close();
+        for (File f : dir.listFiles())
+            f.delete();
+        dir.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Small values stay on the heap and large ones are read from the log")
+    public void putGetDel() throws Exception {
+        String large = repeat("\u65b0<&>", 1000);
+        store.put("small", "value");
+        store.put("large", large);
+        assertEquals("value", store.get("small"));
+        assertEquals(large, store.get("large"));
+        assertNull(store.getMapped("small"));
+
+        ByteBuffer mapped = store.getMapped("large");
+        byte[] bytes = new byte[mapped.remaining()];
+        mapped.get(bytes);
+        assertTrue(Arrays.equals(large.getBytes("UTF-8"), bytes));
+        assertTrue(store.getMapped("large").isReadOnly());
+
+        // a large value replaced by a small one, and the reverse
+        store.put("large", "now small");
+        store.put("small", large);
+        assertEquals("now small", store.get("large"));
+        assertEquals(large, store.get("small"));
+        store.del("small");
+        try {
+            store.get("small");
+            fail("get of a deleted key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals(0, store.getLogBytes() - store.getDeadBytes());
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Overwritten values are reclaimed and live ones survive compaction")
+    public void reclaimsOverwrittenValues() throws Exception {
+        String[] values = new String[10];
+        for (int round = 0; round < 50; round++) {
+            for (int k = 0; k < values.length; k++) {
+                values[k] = repeat("r" + round + "k" + k + " ", 500);
+                store.put("key" + k, values[k]);
+            }
+        }
+        store.compact();
+        for (int k = 0; k < values.length; k++)
+            assertEquals(values[k], store.get("key" + k));
+        // 50 rounds wrote about 3.5 MiB, of which 70 KiB is live
+        assertTrue("log bytes: " + store.getLogBytes(), store.getLogBytes() < 512 * 1024);
+        assertTrue(dir.listFiles().length < 10);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "One background compactor empties mostly dead segments unasked")
+    public void compactsInBackground() throws Exception {
+        int compactors = compactorThreads();
+        String pinned = repeat("pinned ", 1000);
+        store.put("pinned", pinned);
+        for (int i = 0; i < 200; i++)
+            store.put("churn", repeat("c" + i + " ", 1000));
+        assertEquals(compactors, compactorThreads());
+        // the first segment lives only while pinned is in it
+        File first = new File(dir, String.format("%016x.vlog", 0));
+        while (first.exists())
+            Thread.sleep(10);
+        assertEquals(pinned, store.get("pinned"));
+    }
+
+    private static int compactorThreads() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.getName().equals("value-log-compactor"))
+                n++;
+        }
+        return n;
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Large values are sent from the mapped log and parse on the client")
+    public void serverSendsMappedValues() throws Exception {
+        String large = repeat("a & b < c > d\r\n", 15000);
+        store.close();
+        store = new ValueLogKVStore(dir.getPath(), 1024, 1 << 20);
+        final SocketServer ss = new SocketServer("127.0.0.1", 0);
+        KVServer server = new KVServer(new KVCache(4, 4), store, null);
+        ss.addHandler(new ServerClientHandler(server, 2));
+        ss.connect();
+        // not a ServerRunner, which exits the JVM when stop closes the socket
+        Thread acceptor = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ss.start();
+                } catch (IOException e) {
+                    // closed by stop
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        try {
+            KVClient client = new KVClient("127.0.0.1", ss.server.getLocalPort());
+            server.put("large", large);
+            server.put("small", "value");
+            assertTrue(server.getMapped("large") != null);
+            assertEquals(large, client.get("large"));
+            assertEquals("value", client.get("small"));
+            // the value's bytes are UTF-8 on the wire whatever the platform
+            store.put("wide", repeat("\u65b0", 2000));
+            assertEquals(repeat("\u65b0", 2000), client.get("wide"));
+            try {
+                client.get("missing");
+                fail("get of a missing key did not throw");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+        } finally {
+            ss.stop();
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder(s.length() * times);
+        for (int i = 0; i < times; i++)
+            sb.append(s);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class WriteAheadLogTest {
+
+    File file;
+    WriteAheadLog wal;
+
+    @Before
+    public void setupLog() throws IOException {
+        file = File.createTempFile("TestWriteAheadLog-", ".wal");
+        wal = new WriteAheadLog(file.getPath());
+    }
+
+    @After
+    public void removeLog() throws IOException {
+        wal.close();
+        file.delete();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Acknowledged puts and dels survive losing the in-memory store")
+    public void recoversAcknowledgedWrites() throws Exception {
+        KVServer server = new KVServer(new KVCache(2, 2), new KVStore(), null, wal);
+        for (int i = 0; i < 50; i++)
+            server.put("key" + i, "value" + i);
+        server.put("key7", "\u65b0");
+        server.del("key8");
+        try {
+            server.del("missing");
+            fail("del of a missing key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+
+        // the old store is dropped without being saved, as in a crash
+        wal.close();
+        wal = new WriteAheadLog(file.getPath());
+        KVStore store = new KVStore();
+        server = new KVServer(new KVCache(2, 2), store, null, wal);
+        assertEquals(49, store.store.size());
+        assertEquals("\u65b0", server.get("key7"));
+        assertEquals("value9", server.get("key9"));
+        assertTrue(!server.hasKey("key8"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Recovered keys put with a TTL still expire at their deadlines")
+    public void recoversDeadlines() throws Exception {
+        KVServer server = new KVServer(new KVCache(2, 2), new KVStore(), null, wal);
+        server.put("gone", "value", 1, TimeUnit.MILLISECONDS);
+        server.put("soon", "value", 400, TimeUnit.MILLISECONDS);
+        server.put("plain", "value", 1, TimeUnit.MILLISECONDS);
+        server.put("plain", "value");
+        Thread.sleep(20);
+
+        wal.close();
+        wal = new WriteAheadLog(file.getPath());
+        KVStore store = new KVStore();
+        server = new KVServer(new KVCache(2, 2), store, null, wal);
+        assertTrue(!store.store.containsKey("gone"));
+        assertEquals("value", server.get("soon"));
+        Thread.sleep(500);
+        assertTrue(!server.hasKey("soon"));
+        assertEquals("value", server.get("plain"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A torn record at the end of the log is dropped on open")
+    public void truncatesTornTail() throws Exception {
+        wal.sync(wal.appendPut("a", "1"));
+        wal.sync(wal.appendPut("b", "2"));
+        wal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 1);
+        raf.close();
+
+        wal = new WriteAheadLog(file.getPath());
+        KVStore store = new KVStore();
+        assertEquals(1, wal.replay(store));
+        assertEquals("1", store.get("a"));
+        wal.sync(wal.appendPut("c", "3"));
+        wal.close();
+        wal = new WriteAheadLog(file.getPath());
+        store = new KVStore();
+        assertEquals(2, wal.replay(store));
+        assertEquals("3", store.get("c"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Concurrent writers share fsyncs, and every batch is counted")
+    public void groupCommit() throws Exception {
+        wal.close();
+        wal = new WriteAheadLog(file.getPath(), 2, TimeUnit.MILLISECONDS, 1 << 20);
+        final KVServer server = new KVServer(new KVCache(8, 8), new KVStore(), null, wal);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] writers = new Thread[8];
+        for (int t = 0; t < writers.length; t++) {
+            final int id = t;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < 50; i++)
+                            server.put("w" + id + "-" + i, Integer.toString(i));
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+        }
+        for (Thread w : writers)
+            w.start();
+        for (Thread w : writers)
+            w.join();
+        if (failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        Histogram batches = wal.getBatchSizes();
+        assertEquals(400, Math.round(batches.getMean() * batches.getCount()));
+        assertTrue(batches.getCount() < 400);
+        assertTrue(batches.getMax() > 1);
+        assertEquals(batches.getCount(), wal.getFsyncLatency().getCount());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Truncating after a save empties the log")
+    public void truncateAfterSave() throws Exception {
+        for (int i = 0; i < 10; i++)
+            wal.appendPut("key" + i, "value" + i);
+        wal.truncate();
+        assertEquals(0, wal.getSize());
+        wal.sync(wal.appendDel("key0"));
+        wal.close();
+        wal = new WriteAheadLog(file.getPath());
+        // replayed over the saved copy, as KVServer does
+        KVStore saved = new KVStore();
+        for (int i = 0; i < 10; i++)
+            saved.put("key" + i, "value" + i);
+        assertEquals(1, wal.replay(saved));
+        assertEquals(9, saved.store.size());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Dels of missing keys are not logged")
+    public void delsLoggedOnlyWhenApplied() throws Exception {
+        KVServer server = new KVServer(new KVCache(2, 2), new KVStore(), null, wal);
+        server.put("key", "value");
+        try {
+            server.del("missing");
+            fail("del of a missing key did not throw");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        server.del("key");
+        wal.close();
+        wal = new WriteAheadLog(file.getPath());
+        assertEquals(2, wal.replay(new KVStore()));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A log not truncated after a save replays over that save")
+    public void replaysOverLaterSave() throws Exception {
+        KVStore store = new KVStore();
+        store.put("key", "value");
+        store.put("other", "value");
+        KVServer server = new KVServer(new KVCache(2, 2), store, null, wal);
+        server.put("new", "value");
+        server.del("key");
+        File saved = File.createTempFile("TestWriteAheadLog-", ".snap");
+        try {
+            // saved, but the server crashes before truncating the log
+            store.dumpToBinaryFile(saved.getPath());
+            wal.close();
+            wal = new WriteAheadLog(file.getPath());
+            KVStore restored = new KVStore();
+            restored.restoreFromFile(saved.getPath());
+            server = new KVServer(new KVCache(2, 2), restored, null, wal);
+            assertEquals("value", server.get("new"));
+            assertEquals("value", server.get("other"));
+            try {
+                server.get("key");
+                fail("get of a deleted key did not throw");
+            } catch (KVException e) {
+                assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+            }
+        } finally {
+            saved.delete();
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Histogram percentiles bound the recorded values")
+    public void histogramPercentiles() {
+        Histogram h = new Histogram();
+        assertEquals(0, h.getPercentile(0.99));
+        for (int i = 1; i <= 100; i++)
+            h.record(i);
+        h.record(-5);
+        assertEquals(101, h.getCount());
+        assertEquals(100, h.getMax());
+        assertEquals(1, h.getBucketCount(0));
+        assertEquals(63, h.getPercentile(0.5));
+        assertEquals(100, h.getPercentile(0.99));
+        assertEquals(7, Histogram.getBucketLimit(3));
+        assertEquals(3, Histogram.bucketOf(7));
+        assertEquals(4, Histogram.bucketOf(8));
+    }
+}
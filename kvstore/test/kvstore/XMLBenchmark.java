@@ -0,0 +1,120 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.Socket;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import kvstore.xml.KVMessageType;
+import kvstore.xml.ObjectFactory;
+
+/**
+ * Times writing and parsing one get response, the XML work of a request:
+ * with JAXB creating JAXBContexts per message, as KVMessage once did; with
+ * JAXB and the shared XMLBinding; and through KVMessage, which now uses
+ * KVMessageCodec. Not a unit test; run it by hand:
+ *
+ *   java kvstore.XMLBenchmark [messages]
+ */
+public class XMLBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+        KVMessage msg = new KVMessage(KVConstants.RESP);
+        msg.setKey("session:00001234");
+        msg.setValue("{\"userId\":1234,\"locale\":\"en_US\",\"cart\":{\"items\":3}}");
+
+        // the first round of each only warms up the JIT
+        for (int round = 0; round < 2; round++) {
+            boolean print = round == 1;
+            // a context per message is slow enough that fewer runs do
+            report("context per message", perMessageContext(msg, n / 20), n / 20, print);
+            report("shared binding", sharedBinding(msg, n), n, print);
+            report("streaming codec", codec(msg, n), n, print);
+        }
+    }
+
+    static long perMessageContext(KVMessage msg, int n) throws JAXBException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            ObjectFactory factory = new ObjectFactory();
+            KVMessageType type = factory.createKVMessageType();
+            type.setType(msg.getMsgType());
+            type.setKey(msg.getKey());
+            type.setValue(msg.getValue());
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Marshaller marshaller = JAXBContext.newInstance(KVMessageType.class).createMarshaller();
+            marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders",
+                    "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
+            marshaller.marshal(factory.createKVMessage(type), os);
+
+            @SuppressWarnings("unchecked")
+            KVMessageType parsed = ((JAXBElement<KVMessageType>) JAXBContext
+                    .newInstance(ObjectFactory.class).createUnmarshaller()
+                    .unmarshal(new ByteArrayInputStream(os.toByteArray()))).getValue();
+            check(msg, parsed.getValue());
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long sharedBinding(KVMessage msg, int n) throws JAXBException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            ObjectFactory factory = new ObjectFactory();
+            KVMessageType type = factory.createKVMessageType();
+            type.setType(msg.getMsgType());
+            type.setKey(msg.getKey());
+            type.setValue(msg.getValue());
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            XMLBinding.marshaller().marshal(factory.createKVMessage(type), os);
+
+            @SuppressWarnings("unchecked")
+            KVMessageType parsed = ((JAXBElement<KVMessageType>) XMLBinding.unmarshaller()
+                    .unmarshal(new ByteArrayInputStream(os.toByteArray()))).getValue();
+            check(msg, parsed.getValue());
+        }
+        return System.nanoTime() - start;
+    }
+
+    static long codec(KVMessage msg, int n) throws KVException {
+        // creating a Socket costs more than the XML
+        ReplaySocket sock = new ReplaySocket();
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sock.bytes = msg.toXML().getBytes(SlabAllocator.UTF8);
+            KVMessage parsed = new KVMessage(sock);
+            check(msg, parsed.getValue());
+        }
+        return System.nanoTime() - start;
+    }
+
+    static void check(KVMessage msg, String value) {
+        if (!msg.getValue().equals(value))
+            throw new IllegalStateException("parsed " + value);
+    }
+
+    static void report(String name, long nanos, int n, boolean print) {
+        if (print)
+            System.out.println(String.format("%-20s %8.1f us/message", name, nanos / 1e3 / n));
+    }
+
+    /* An unconnected socket that reads back the bytes it was last given. */
+    static class ReplaySocket extends Socket {
+        byte[] bytes;
+
+        @Override
+        public void setSoTimeout(int timeout) {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+}